@@ -3,21 +3,31 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates can be computed in one pass over the child,
+ * grouped by any number of columns.
+ * <p>
+ * If the child is known to return the tuples of each group together (see
+ * {@link #isGroupedOn}), the aggregates are computed by a
+ * {@link StreamAggregator}: each group is returned as soon as the next one
+ * starts, and only one group is kept in memory. Otherwise all groups are kept
+ * in a single {@link HashAggregator}, and the whole child is read by
+ * {@link #open()}.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     private OpIterator child;
-    private int aggFieldIndex;
-    private int gbFieldIndex;
-    private Aggregator.Op aop;
+    private int[] aggFieldIndexes;
+    private int[] gbFieldIndexes;
+    private Aggregator.Op[] aops;
     private TupleDesc tupleDesc;
-    private Aggregator aggregator;
+    private long memoryBudget;
+    private boolean streaming;
+    private HashAggregator aggregator;
     private OpIterator aggIterator;
+    private StreamAggregator streamAggregator;
 
 
     /**
@@ -41,33 +51,131 @@ public class Aggregate extends Operator {
      *            运算符
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates grouped by several columns.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     * @param aops
+     *            The aggregation operator to use for each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, HashAggregator.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor for several aggregates whose groups may use at most the
+     * given amount of memory; further groups are spilled to disk.
+     *
+     * @param memoryBudget
+     *            the number of bytes the groups held in memory may use
+     * @see #Aggregate(OpIterator, int[], int[], Aggregator.Op[])
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops, long memoryBudget) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
         this.child=child;
-        this.aggFieldIndex=afield;
-        this.gbFieldIndex=gfield;
-        this.aop=aop;
+        this.aggFieldIndexes=afields;
+        this.gbFieldIndexes=gfields;
+        this.aops=aops;
+        this.memoryBudget=memoryBudget;
 
-        Type gbFieldType;
-        if(gbFieldIndex==Aggregator.NO_GROUPING){
-            gbFieldType=null;
+        TupleDesc childTd=child.getTupleDesc();
+        int numResults=afields.length;
+        for(Aggregator.Op aop:aops){
+            if(aop==Aggregator.Op.SUM_COUNT){
+                numResults++;
+            }
         }
-        else{
-            gbFieldType=child.getTupleDesc().getFieldType(gbFieldIndex);
+        Type[] fieldType=new Type[gfields.length+numResults];
+        String[] fieldName=new String[fieldType.length];
+        for(int i=0;i<gfields.length;i++){
+            fieldType[i]=childTd.getFieldType(gfields[i]);
+            fieldName[i]=childTd.getFieldName(gfields[i]);
         }
-        Type aggFieldType=child.getTupleDesc().getFieldType(aggFieldIndex);
-        Type[] fieldType;
-        String[] fieldName;
-        String aggFieldName=child.getTupleDesc().getFieldName(aggFieldIndex);
-        if(gbFieldType==null){
-            fieldType=new Type[]{aggFieldType};
-            fieldName=new String[]{aggFieldName};
-        }
-        else{
-            String gbFieldName=child.getTupleDesc().getFieldName(gbFieldIndex);
-            fieldType=new Type[]{gbFieldType,aggFieldType};
-            fieldName=new String[]{gbFieldName,aggFieldName};
+        for(int k=0,f=gfields.length;k<afields.length;k++){
+            fieldType[f]=Type.INT_TYPE;
+            fieldName[f++]=childTd.getFieldName(afields[k]);
+            if(aops[k]==Aggregator.Op.SUM_COUNT){
+                // the count that goes with the sum
+                fieldType[f]=Type.INT_TYPE;
+                fieldName[f++]=childTd.getFieldName(afields[k]);
+            }
         }
         tupleDesc=new TupleDesc(fieldType,fieldName);
+        streaming=isGroupedOn(child,gfields);
+    }
+
+    /**
+     * @return true if the tuples of child come grouped on the given fields,
+     *         i.e. all tuples with the same values of the fields are adjacent:
+     *         when child sorts on them (in any order and direction) before any
+     *         other field, or scans a B+ tree keyed on the single field. Filter,
+     *         Limit and Pipeline keep the grouping of their child.
+     */
+    static boolean isGroupedOn(OpIterator child, int[] gfields) {
+        if (gfields.length == 0)
+            return false;
+        if (child instanceof Filter || child instanceof Limit)
+            return isGroupedOn(((Operator) child).getChildren()[0], gfields);
+        if (child instanceof Pipeline) {
+            int[] sourceFields = new int[gfields.length];
+            for (int i = 0; i < gfields.length; i++)
+                sourceFields[i] = ((Pipeline) child).sourceField(gfields[i]);
+            return isGroupedOn(((Pipeline) child).getChildren()[0], sourceFields);
+        }
+        int[] sortFields = null;
+        if (child instanceof OrderBy)
+            sortFields = ((OrderBy) child).getOrderByFields();
+        else if (child instanceof TopN)
+            sortFields = ((TopN) child).getOrderByFields();
+        if (sortFields != null) {
+            if (sortFields.length < gfields.length)
+                return false;
+            // the leading sort fields must be exactly the group-by fields
+            for (int i = 0; i < gfields.length; i++) {
+                boolean found = false;
+                for (int g : gfields)
+                    found = found || sortFields[i] == g;
+                if (!found)
+                    return false;
+            }
+            return true;
+        }
+        // B+ tree files are scanned in key order
+        int tableId, field;
+        if (gfields.length != 1)
+            return false;
+        if (child instanceof SeqScan) {
+            tableId = ((SeqScan) child).getTableId();
+            field = ((SeqScan) child).tableField(gfields[0]);
+        } else if (child instanceof BTreeScan) {
+            tableId = ((BTreeScan) child).getTableId();
+            field = ((BTreeScan) child).tableField(gfields[0]);
+        } else {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return true if this operator aggregates its input as it streams by,
+     *         because the input is grouped on the group-by fields
+     */
+    public boolean isStreaming() {
+        return streaming;
     }
 
     /**
@@ -77,7 +185,15 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 	// some code goes here
-        return this.gbFieldIndex;
+        return gbFieldIndexes.length==0?Aggregator.NO_GROUPING:gbFieldIndexes[0];
+    }
+
+    /**
+     * @return the indexes of all group-by fields in the <b>INPUT</b> tuples,
+     *         empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return gbFieldIndexes;
     }
 
     /**
@@ -87,7 +203,7 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-        if(gbFieldIndex==Aggregator.NO_GROUPING){
+        if(gbFieldIndexes.length==0){
             return null;
         }
         else{
@@ -100,7 +216,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-	    return this.aggFieldIndex;
+	    return aggFieldIndexes[0];
+    }
+
+    /**
+     * @return the indexes of all aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return aggFieldIndexes;
     }
 
     /**
@@ -109,12 +232,7 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	    if(gbFieldIndex==Aggregator.NO_GROUPING){
-	        return tupleDesc.getFieldName(0);
-        }
-	    else{
-	        return tupleDesc.getFieldName(1);
-        }
+	    return tupleDesc.getFieldName(gbFieldIndexes.length);
     }
 
     /**
@@ -122,7 +240,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	    return this.aop;
+	    return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -133,38 +258,46 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
 	// some code goes here
         child.open();
-        Type gbFieldType;
-        if(gbFieldIndex==Aggregator.NO_GROUPING){
-            gbFieldType=null;
+        TupleDesc childTd=child.getTupleDesc();
+        Type[] gbFieldTypes=new Type[gbFieldIndexes.length];
+        for(int i=0;i<gbFieldIndexes.length;i++){
+            gbFieldTypes[i]=childTd.getFieldType(gbFieldIndexes[i]);
         }
-        else{
-            gbFieldType=child.getTupleDesc().getFieldType(gbFieldIndex);
+        Type[] aggFieldTypes=new Type[aggFieldIndexes.length];
+        for(int k=0;k<aggFieldIndexes.length;k++){
+            aggFieldTypes[k]=childTd.getFieldType(aggFieldIndexes[k]);
         }
-        Type aggFieldType=child.getTupleDesc().getFieldType(aggFieldIndex);
-        if(aggFieldType==Type.INT_TYPE){
-            aggregator=new IntegerAggregator(gbFieldIndex,gbFieldType,aggFieldIndex,aop);
+        if(streaming){
+            streamAggregator=new StreamAggregator(gbFieldIndexes,gbFieldTypes,aggFieldIndexes,aggFieldTypes,aops);
         }
         else{
-            aggregator=new StringAggregator(gbFieldIndex,gbFieldType,aggFieldIndex,aop);
-        }
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+            aggregator=new HashAggregator(gbFieldIndexes,gbFieldTypes,aggFieldIndexes,aggFieldTypes,aops,memoryBudget);
+            while(child.hasNext()){
+                aggregator.add(child.next());
+            }
+            aggIterator=aggregator.iterator();
+            aggIterator.open();
         }
-        aggIterator=aggregator.iterator();
-        aggIterator.open();
         super.open();
 
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. The group by fields, if any, come first, followed
+     * by the result of each aggregate, in the order given to the constructor.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
+        if(streaming){
+            while(child.hasNext()){
+                Tuple result=streamAggregator.add(child.next());
+                if(result!=null){
+                    return result;
+                }
+            }
+            return streamAggregator.finish();
+        }
         if(aggIterator.hasNext()){
             return aggIterator.next();
         }
@@ -174,14 +307,18 @@ public class Aggregate extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
         child.rewind();
-        aggIterator.rewind();
+        if(streaming){
+            streamAggregator.reset();
+        }
+        else{
+            aggIterator.rewind();
+        }
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one field per aggregate value column, and two, the sum and
+     * the count, for a SUM_COUNT.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -197,6 +334,13 @@ public class Aggregate extends Operator {
 	// some code goes here
         super.close();
         child.close();
+        if(aggIterator!=null){
+            aggIterator.close();
+            aggregator.close();
+            aggIterator=null;
+            aggregator=null;
+        }
+        streamAggregator=null;
     }
 
     @Override
@@ -209,6 +353,7 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
 	// some code goes here
         this.child=children[0];
+        this.streaming=isGroupedOn(child,gbFieldIndexes);
     }
     
 }
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The layout of the aggregate states of one group in a long array, and the
+ * operations that initialize, update and read them. Each aggregate takes one
+ * slot, except AVG, which keeps its sum and count in two and is only divided
+ * out when read; {@link #width()} slots hold all aggregates of a group.
+ * <p>
+ * SUM_COUNT and SC_AVG split an AVG in two phases, as when several threads
+ * aggregate parts of the input: SUM_COUNT returns the sum and the count of its
+ * field as two result fields, and SC_AVG averages such pairs, reading the sum
+ * from its field and the count from the next field of the tuple.
+ * <p>
+ * APPROX_COUNT_DISTINCT keeps a {@link HyperLogLog} sketch of
+ * {@link #DISTINCT_PRECISION} in its slots, 128 of them, and returns its
+ * estimate.
+ * <p>
+ * Used by {@link HashAggregator}, which keeps the states of all groups in one
+ * array, and by {@link StreamAggregator}, which keeps those of a single group.
+ * INT fields support MIN, MAX, SUM, AVG, COUNT, SUM_COUNT, SC_AVG and
+ * APPROX_COUNT_DISTINCT; STRING fields only COUNT and APPROX_COUNT_DISTINCT.
+ */
+class AggregateStates implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The precision of the sketch of an APPROX_COUNT_DISTINCT: 1024
+     * registers, for a standard error of about 3%.
+     */
+    static final int DISTINCT_PRECISION = 10;
+
+    private final int[] aggFields;
+    private final Aggregator.Op[] ops;
+    // slot[k] is the first state slot of aggregate k within a group
+    private final int[] slot;
+    private final int width;
+    private final int numResults;
+
+    /**
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws UnsupportedOperationException
+     *             if an operator is not supported for its field type
+     */
+    AggregateStates(int[] afields, Type[] afieldtypes, Aggregator.Op[] ops) {
+        if (afields.length != afieldtypes.length || afields.length != ops.length)
+            throw new IllegalArgumentException(
+                    "need one type and one operator per aggregate field");
+        if (afields.length == 0)
+            throw new IllegalArgumentException("need at least one aggregate");
+        this.aggFields = afields;
+        this.ops = ops;
+        slot = new int[ops.length];
+        int w = 0;
+        for (int k = 0; k < ops.length; k++) {
+            switch (ops[k]) {
+            case COUNT:
+            case APPROX_COUNT_DISTINCT:
+                break;
+            case MIN:
+            case MAX:
+            case SUM:
+            case AVG:
+            case SUM_COUNT:
+            case SC_AVG:
+                if (afieldtypes[k] != Type.INT_TYPE)
+                    throw new UnsupportedOperationException(
+                            "Unsupported aggregation operator " + ops[k]
+                                    + " over " + afieldtypes[k]);
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "Unsupported aggregation operator " + ops[k]);
+            }
+            slot[k] = w;
+            w += slots(ops[k]);
+        }
+        width = w;
+        int n = ops.length;
+        for (Aggregator.Op op : ops) {
+            if (op == Aggregator.Op.SUM_COUNT)
+                n++;
+        }
+        numResults = n;
+    }
+
+    private static int slots(Aggregator.Op op) {
+        switch (op) {
+        case AVG:
+        case SUM_COUNT:
+        case SC_AVG:
+            return 2;
+        case APPROX_COUNT_DISTINCT:
+            return HyperLogLog.words(DISTINCT_PRECISION);
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * @return the number of slots taken by the aggregates of one group
+     */
+    int width() {
+        return width;
+    }
+
+    /**
+     * @return the number of aggregates
+     */
+    int numAggregates() {
+        return ops.length;
+    }
+
+    /**
+     * @return the number of result fields: one per aggregate, and a second
+     *         one for each SUM_COUNT
+     */
+    int numResults() {
+        return numResults;
+    }
+
+    /**
+     * @return true if aggregate k also reads the field after its own
+     */
+    boolean readsNextField(int k) {
+        return ops[k] == Aggregator.Op.SC_AVG;
+    }
+
+    private int intValue(Tuple tup, int k) {
+        return ((IntField) tup.getField(aggFields[k])).getValue();
+    }
+
+    // the count of an SC_AVG, in the field after its sum
+    private int countValue(Tuple tup, int k) {
+        return ((IntField) tup.getField(aggFields[k] + 1)).getValue();
+    }
+
+    /**
+     * Initializes the states at state[base..base+width) from the first tuple
+     * of a group.
+     */
+    void init(long[] state, int base, Tuple tup) {
+        for (int k = 0; k < ops.length; k++) {
+            int s = base + slot[k];
+            switch (ops[k]) {
+            case COUNT:
+                state[s] = 1;
+                break;
+            case AVG:
+            case SUM_COUNT:
+                state[s + 1] = 1;
+                state[s] = intValue(tup, k);
+                break;
+            case SC_AVG:
+                state[s + 1] = countValue(tup, k);
+                state[s] = intValue(tup, k);
+                break;
+            case APPROX_COUNT_DISTINCT:
+                Arrays.fill(state, s, s + slots(ops[k]), 0);
+                HyperLogLog.addHash(state, s, DISTINCT_PRECISION,
+                        HyperLogLog.hash(tup.getField(aggFields[k])));
+                break;
+            default:
+                state[s] = intValue(tup, k);
+            }
+        }
+    }
+
+    /**
+     * Merges a further tuple of a group into its states at state[base..).
+     */
+    void merge(long[] state, int base, Tuple tup) {
+        for (int k = 0; k < ops.length; k++) {
+            int s = base + slot[k];
+            switch (ops[k]) {
+            case MIN:
+                state[s] = Math.min(state[s], intValue(tup, k));
+                break;
+            case MAX:
+                state[s] = Math.max(state[s], intValue(tup, k));
+                break;
+            case SUM:
+                state[s] += intValue(tup, k);
+                break;
+            case COUNT:
+                state[s]++;
+                break;
+            case AVG:
+            case SUM_COUNT:
+                state[s] += intValue(tup, k);
+                state[s + 1]++;
+                break;
+            case SC_AVG:
+                state[s] += intValue(tup, k);
+                state[s + 1] += countValue(tup, k);
+                break;
+            case APPROX_COUNT_DISTINCT:
+                HyperLogLog.addHash(state, s, DISTINCT_PRECISION,
+                        HyperLogLog.hash(tup.getField(aggFields[k])));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sets fields offset.. of t to the values of the aggregates whose states
+     * are at state[base..).
+     */
+    void setResults(Tuple t, int offset, long[] state, int base) {
+        int f = offset;
+        for (int k = 0; k < ops.length; k++) {
+            int s = base + slot[k];
+            switch (ops[k]) {
+            case AVG:
+            case SC_AVG:
+                t.setField(f++, new IntField((int) (state[s] / state[s + 1])));
+                break;
+            case SUM_COUNT:
+                t.setField(f++, new IntField((int) state[s]));
+                t.setField(f++, new IntField((int) state[s + 1]));
+                break;
+            case APPROX_COUNT_DISTINCT:
+                t.setField(f++, new IntField((int) Math.round(
+                        HyperLogLog.estimate(state, s, DISTINCT_PRECISION))));
+                break;
+            default:
+                t.setField(f++, new IntField((int) state[s]));
+            }
+        }
+    }
+}
@@ -25,7 +25,13 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * APPROX_COUNT_DISTINCT: estimate the number of distinct values of
+         * the field with a {@link HyperLogLog} sketch, for
+         * APPROX_COUNT_DISTINCT(f).
+         * */
+        APPROX_COUNT_DISTINCT;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +69,8 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -15,8 +15,11 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
+	// the fields of the table this scan returns, or null for all of them
+	private final int[] fields;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -38,8 +41,32 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, null);
+	}
+
+	/**
+	 * Creates a B+ tree scan that returns only some fields of the specified
+	 * table. The returned tuples keep the record id of the tuple they were
+	 * read from.
+	 * 
+	 * @param fields
+	 *            the indexes in the table of the fields to return, in the
+	 *            order to return them; null to return all fields
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			int[] fields) {
 		this.tid = tid;
 		this.ipred = ipred;
+		if (fields != null) {
+			int n = Database.getCatalog().getTupleDesc(tableid).numFields();
+			for (int f : fields) {
+				if (f < 0 || f >= n)
+					throw new IllegalArgumentException("no field " + f + " in table " + tableid);
+			}
+			fields = fields.clone();
+		}
+		this.fields = fields;
 		reset(tableid,tableAlias);
 	}
 
@@ -52,6 +79,44 @@ public class BTreeScan implements OpIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the transaction this scan runs as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index predicate the scanned tuples match, or null if the
+	 *         scan returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the indexes in the table of the fields this scan returns, or
+	 *         null if it returns all fields
+	 */
+	public int[] getFields() {
+		return fields == null ? null : fields.clone();
+	}
+
+	/**
+	 * @return the index in the table of field i of the tuples this scan
+	 *         returns
+	 */
+	public int tableField(int i) {
+		return fields == null ? i : fields[i];
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -75,6 +140,7 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -92,6 +158,16 @@ public class BTreeScan implements OpIterator {
 			newNames[i] = tableAlias + "." + name;
 			newTypes[i] = t;
 		}
+		if (fields != null) {
+			String[] names = new String[fields.length];
+			Type[] types = new Type[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				names[i] = newNames[fields[i]];
+				types[i] = newTypes[fields[i]];
+			}
+			newNames = names;
+			newTypes = types;
+		}
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
@@ -131,7 +207,14 @@ public class BTreeScan implements OpIterator {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
 
-		return it.next();
+		Tuple t = it.next();
+		if (fields == null)
+			return t;
+		Tuple p = new Tuple(myTd);
+		for (int i = 0; i < fields.length; i++)
+			p.setField(i, t.getField(fields[i]));
+		p.setRecordId(t.getRecordId());
+		return p;
 	}
 
 	public void close() {
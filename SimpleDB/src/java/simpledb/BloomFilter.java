@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A Bloom filter over field values: a set that may report values it does
+ * not contain, but never misses a value that was added.
+ * <p>
+ * The filter has a power of two number of bits, {@link #BITS_PER_KEY} per
+ * expected value, and sets {@link #NUM_HASHES} bits per value. INT values
+ * are hashed from their int value, so testing an {@link IntField} does not
+ * allocate; other fields are hashed from their hashCode.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits of the filter per expected value. */
+    public static final int BITS_PER_KEY = 8;
+    /** Number of bits set for each value. */
+    public static final int NUM_HASHES = 4;
+
+    private final long[] words;
+    // numBits - 1; numBits is a power of two
+    private final int mask;
+
+    /**
+     * @param expectedKeys
+     *            the number of distinct values expected to be added
+     */
+    public BloomFilter(int expectedKeys) {
+        long bits = (long) expectedKeys * BITS_PER_KEY;
+        int numBits = 64;
+        while (numBits < bits && numBits < (1 << 30))
+            numBits <<= 1;
+        words = new long[numBits >>> 6];
+        mask = numBits - 1;
+    }
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+        this.mask = words.length * 64 - 1;
+    }
+
+    /**
+     * @return the number of bits of the filter
+     */
+    public int numBits() {
+        return mask + 1;
+    }
+
+    // the bits of a value are h1 + i * h2 for i < NUM_HASHES, in full int
+    // arithmetic and then masked, so that a bit of a filter of 2n bits maps
+    // to one bit of a filter of n bits (see merge)
+    private static int mix(int v) {
+        v *= 0x9E3779B9;
+        v ^= v >>> 16;
+        v *= 0x85EBCA6B;
+        return v ^ (v >>> 13);
+    }
+
+    private static int hash(Field f) {
+        return f instanceof IntField ? ((IntField) f).getValue() : f.hashCode();
+    }
+
+    /**
+     * Adds an int value.
+     */
+    public void add(int v) {
+        int h1 = mix(v);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            words[b >>> 6] |= 1L << b;
+        }
+    }
+
+    /**
+     * Adds a field value.
+     */
+    public void add(Field f) {
+        add(hash(f));
+    }
+
+    /**
+     * @return false if v was certainly not added
+     */
+    public boolean mightContain(int v) {
+        int h1 = mix(v);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((words[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if f was certainly not added
+     */
+    public boolean mightContain(Field f) {
+        return mightContain(hash(f));
+    }
+
+    /**
+     * @return a filter containing the values of this filter and of other,
+     *         with as many bits as the smaller of the two
+     */
+    public BloomFilter merge(BloomFilter other) {
+        long[] big = words.length >= other.words.length ? words : other.words;
+        long[] small = big == words ? other.words : words;
+        // bit b of the bigger filter is bit b & mask of the smaller one
+        long[] merged = small.clone();
+        for (int i = 0; i < big.length; i++)
+            merged[i % small.length] |= big[i];
+        return new BloomFilter(merged);
+    }
+}
@@ -32,6 +32,9 @@ public class BufferPool {
     private final int numPages; //页的数量
     private ConcurrentHashMap<PageId,Page> buffer;
     private LockManager lockManager;
+    // the updates of table statistics for the tuples each transaction
+    // inserted or deleted, applied when it commits
+    private final ConcurrentHashMap<TransactionId,ArrayList<Runnable>> statsUpdates=new ConcurrentHashMap<>();
 
     /**
      * Lab4
@@ -196,6 +199,13 @@ public class BufferPool {
             return false;
 
         }
+
+        //方法4：释放事务tid持有的所有锁，包括已被驱逐出buffer的页上的锁
+        public synchronized void releaseAll(TransactionId tid){
+            for(PageId pid:new ArrayList<>(lockMap.keySet())){
+                releasePage(tid,pid);
+            }
+        }
     }
 
 
@@ -275,22 +285,32 @@ public class BufferPool {
             }
         }
 
-        if(buffer.containsKey(pid)){ //若该页在buffer中就返回
-            return buffer.get(pid);
+        Page page=buffer.get(pid);
+        if(page!=null){ //若该页在buffer中就返回
+            return page;
         }
-        else if(buffer.size()<numPages){ //若该页不在buffer中，且buffer中空间充足
-            Page newPage=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            //通过目录定位文件，读取相应页
-            buffer.put(pid,newPage); //在buffer中添加该页,然后返回
-            return newPage;
+        //若该页不在buffer中，从磁盘读取后添加。读取时不持有BufferPool的锁，
+        //以便多个线程（如并行扫描的worker）同时读取不同的页
+        Page newPage=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return addPage(pid,newPage);
+    }
+
+    /**
+     * Adds a page just read from disk to the buffer pool, evicting a page if
+     * the pool is full. If another thread added the same page meanwhile, that
+     * page is kept and returned instead, so that every thread sees the same
+     * copy of a page.
+     */
+    private synchronized Page addPage(PageId pid, Page newPage) throws DbException {
+        Page page=buffer.get(pid);
+        if(page!=null){
+            return page;
         }
-        else{ //若该页不在buffer中，且buffer中空间不足
+        if(buffer.size()>=numPages){ //buffer中空间不足
             evictPage();
-            Page newPage=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            buffer.put(pid,newPage);
-            return newPage;
-            //throw new DbException("Buffer Pool is full"); //在本实验中只用抛出异常，不用写驱逐函数
         }
+        buffer.put(pid,newPage);
+        return newPage;
     }
 
     /**
@@ -375,9 +395,13 @@ public class BufferPool {
             restorePage(tid);
         }
         //释放所有与事务tid相关的锁
-        for(PageId pid: buffer.keySet()){
-            if(holdsLock(tid,pid)){
-                lockManager.releasePage(tid,pid);
+        lockManager.releaseAll(tid);
+        // after the locks are released, so that a rebuild of statistics it
+        // starts does not wait for them
+        ArrayList<Runnable> updates=statsUpdates.remove(tid);
+        if(commit && updates!=null){
+            for(Runnable u:updates){
+                u.run();
             }
         }
 
@@ -407,6 +431,9 @@ public class BufferPool {
         DbFile file=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pageList=new ArrayList<>();
         pageList= file.insertTuple(tid,t);
+        int pageNo = t.getRecordId() != null
+                ? t.getRecordId().getPageId().getPageNumber() : 0;
+        recordStatsUpdate(tid, () -> TableStats.recordInsert(tableId, t, pageNo));
         for(Page p:pageList){
             p.markDirty(true,tid); //标记脏页
             if(buffer.size()>numPages){
@@ -434,9 +461,11 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file=Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId=t.getRecordId().getPageId().getTableId();
+        DbFile file=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pageList=new ArrayList<>();
         pageList= file.deleteTuple(tid,t);
+        recordStatsUpdate(tid, () -> TableStats.recordDelete(tableId, t));
         for(Page p:pageList){
             p.markDirty(true,tid);
             if(buffer.size()>numPages){
@@ -447,6 +476,14 @@ public class BufferPool {
 
     }
 
+    /**
+     * Keeps an update of table statistics until tid commits; it is dropped if
+     * tid aborts.
+     */
+    private void recordStatsUpdate(TransactionId tid, Runnable update) {
+        statsUpdates.computeIfAbsent(tid, k -> new ArrayList<>()).add(update);
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
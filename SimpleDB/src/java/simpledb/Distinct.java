@@ -0,0 +1,272 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Distinct returns each distinct tuple of its child once.
+ * <p>
+ * If the child returns equal tuples next to each other, because it sorts on
+ * all fields (see {@link Aggregate#isGroupedOn}), Distinct streams: it drops
+ * every tuple equal to the one before it, and keeps no other state.
+ * <p>
+ * Otherwise the tuples seen so far are kept in a {@link TupleHashTable}, and
+ * each tuple is returned as soon as it is found not to be in the table, so
+ * the first tuples come out before the child is exhausted. The table is held
+ * within a memory budget. Once it is full, tuples already in it are still
+ * dropped, while any other tuple is written to one of
+ * {@link #SPILL_PARTITIONS} spill files chosen by its hash. All copies of a
+ * spilled tuple end up in the same partition, so once the child is exhausted
+ * each partition is made distinct in turn, by a new table that partitions
+ * again, on other bits of the hash, if it overflows too.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for the tuples held in memory, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** Number of spill files the overflowing tuples are split into. */
+    public static final int SPILL_PARTITIONS = 16;
+    private static final int PARTITION_BITS = 4;
+    // each level of partitioning uses the next PARTITION_BITS of the hash;
+    // past the last level there is nothing left to split on
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private OpIterator child;
+    private final long memoryBudget;
+    private boolean streaming;
+
+    // streaming: the last tuple returned
+    private transient Tuple last;
+
+    // hashing: the input being made distinct, which is child or the reader of
+    // a spill file, at the current level of partitioning
+    private transient TupleSpillFile.Reader reader;
+    private transient TupleSpillFile readFile;
+    private transient int level;
+    private transient TupleHashTable seen;
+    private transient TupleSpillFile[] partitions;
+    // spilled partitions not yet made distinct, and their levels
+    private transient ArrayDeque<TupleSpillFile> pending;
+    private transient ArrayDeque<Integer> pendingLevels;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     */
+    public Distinct(OpIterator child) {
+        this(child, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor for a Distinct that spills tuples to disk beyond the given
+     * memory budget.
+     *
+     * @param memoryBudget
+     *            the number of bytes the tuples held in memory may use
+     */
+    public Distinct(OpIterator child, long memoryBudget) {
+        this.child = child;
+        this.memoryBudget = memoryBudget;
+        this.streaming = isSorted(child);
+    }
+
+    private static boolean isSorted(OpIterator child) {
+        int[] all = new int[child.getTupleDesc().numFields()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        return Aggregate.isGroupedOn(child, all);
+    }
+
+    /**
+     * @return true if this operator only compares each tuple with the one
+     *         before it, because its child returns equal tuples together
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return the number of tuples written to spill files so far
+     */
+    public long numSpilled() {
+        long n = 0;
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions)
+                n += f.numTuples();
+        }
+        if (pending != null) {
+            for (TupleSpillFile f : pending)
+                n += f.numTuples();
+        }
+        return n;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        discardSpills();
+        last = null;
+        level = 0;
+        seen = streaming ? null : new TupleHashTable(getTupleDesc());
+        pending = new ArrayDeque<TupleSpillFile>();
+        pendingLevels = new ArrayDeque<Integer>();
+    }
+
+    private void discardSpills() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        if (readFile != null) {
+            readFile.delete();
+            readFile = null;
+        }
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions)
+                f.delete();
+            partitions = null;
+        }
+        if (pending != null) {
+            for (TupleSpillFile f : pending)
+                f.delete();
+            pending.clear();
+        }
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        discardSpills();
+        seen = null;
+        last = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple not returned before.
+     *
+     * @return The next distinct tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (streaming) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (last == null || !equal(last, t)) {
+                    last = t;
+                    return t;
+                }
+            }
+            return null;
+        }
+        while (true) {
+            Tuple t = nextInput();
+            if (t == null) {
+                if (!nextPartition())
+                    return null;
+                continue;
+            }
+            int hash = TupleHashTable.hash(t);
+            if (partitions == null && level <= MAX_LEVEL
+                    && seen.memoryBytes() >= memoryBudget)
+                startSpilling();
+            if (partitions == null) {
+                int before = seen.size();
+                seen.findOrInsert(t, hash);
+                if (seen.size() > before)
+                    return t;
+            } else if (seen.find(t, hash) < 0) {
+                spill(t, hash);
+            }
+        }
+    }
+
+    private static boolean equal(Tuple a, Tuple b) {
+        int n = a.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private Tuple nextInput() throws DbException, TransactionAbortedException {
+        if (reader != null)
+            return reader.next();
+        return child.hasNext() ? child.next() : null;
+    }
+
+    private void startSpilling() throws DbException {
+        partitions = new TupleSpillFile[SPILL_PARTITIONS];
+        for (int p = 0; p < SPILL_PARTITIONS; p++)
+            partitions[p] = new TupleSpillFile(getTupleDesc());
+    }
+
+    private void spill(Tuple t, int hash) throws DbException {
+        int h = hash * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        partitions[(h >>> (level * PARTITION_BITS)) & (SPILL_PARTITIONS - 1)].add(t);
+    }
+
+    /**
+     * Finishes the current input, queueing the partitions it spilled, and
+     * starts on the next queued partition with an empty table.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws DbException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readFile.delete();
+            readFile = null;
+        }
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions) {
+                if (f.numTuples() > 0) {
+                    pending.push(f);
+                    pendingLevels.push(level + 1);
+                } else {
+                    f.delete();
+                }
+            }
+            partitions = null;
+        }
+        if (pending.isEmpty())
+            return false;
+        readFile = pending.pop();
+        level = pendingLevels.pop();
+        reader = readFile.reader();
+        seen = new TupleHashTable(getTupleDesc());
+        return true;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+        this.streaming = isSorted(child);
+    }
+}
@@ -0,0 +1,429 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A histogram over an integer field made of a list of its most common
+ * values and an equi-depth histogram of the others.
+ * <p>
+ * It is built from a sample of the values of the field (see
+ * {@link #build}). The values that are frequent in the sample are counted
+ * one by one, so that a value holding most of the tuples, as in a skewed
+ * column, has its own count instead of making up most of a bucket. The
+ * remaining values are split into buckets that each hold about as many
+ * tuples, so that narrow ranges of dense values get narrow buckets. Each
+ * bucket keeps its range, its number of tuples and an estimate of the
+ * number of distinct values in it.
+ * <p>
+ * Counts are in tuples of the whole table. Values can be added and removed
+ * after the histogram is built: they change the count of their most common
+ * value or of their bucket, and widen the first or last bucket when out of
+ * range.
+ */
+public class EquiDepthHistogram {
+
+    // the most common values, in increasing order, and their counts
+    private final int[] mcvs;
+    private final double[] mcvCounts;
+    // bucket b holds the other values from lo[b] to hi[b]; buckets are in
+    // increasing order and do not overlap
+    private int[] lo;
+    private int[] hi;
+    private double[] counts;
+    private double[] ndvs;
+    private double total;
+
+    private EquiDepthHistogram(int[] mcvs, double[] mcvCounts, int[] lo,
+            int[] hi, double[] counts, double[] ndvs) {
+        this.mcvs = mcvs;
+        this.mcvCounts = mcvCounts;
+        this.lo = lo;
+        this.hi = hi;
+        this.counts = counts;
+        this.ndvs = ndvs;
+        for (double c : mcvCounts)
+            total += c;
+        for (double c : counts)
+            total += c;
+    }
+
+    /**
+     * @return a histogram with the same counts as this one
+     */
+    public EquiDepthHistogram copy() {
+        return new EquiDepthHistogram(mcvs.clone(), mcvCounts.clone(),
+                lo.clone(), hi.clone(), counts.clone(), ndvs.clone());
+    }
+
+    /**
+     * Builds a histogram from a uniform sample of the values of a field.
+     *
+     * @param sample
+     *            the sampled values; sorted in place
+     * @param tuples
+     *            the number of tuples of the table the sample is from
+     * @param buckets
+     *            the number of buckets of the values that are not most
+     *            common
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     */
+    public static EquiDepthHistogram build(int[] sample, long tuples,
+            int buckets, int maxMcvs) {
+        if (buckets < 1 || maxMcvs < 0)
+            throw new IllegalArgumentException("need at least one bucket");
+        Arrays.sort(sample);
+        int n = sample.length;
+        double scale = n == 0 ? 0 : (double) tuples / n;
+
+        // the distinct values and how many times each was sampled
+        int d = 0;
+        int[] values = new int[n];
+        int[] freqs = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || sample[i] != sample[i - 1]) {
+                values[d] = sample[i];
+                d++;
+            }
+            freqs[d - 1]++;
+        }
+
+        // most common values: all of them if there are few, else those
+        // sampled markedly more often than the average value
+        boolean[] common = new boolean[d];
+        int numMcvs;
+        if (d <= maxMcvs) {
+            Arrays.fill(common, true);
+            numMcvs = d;
+        } else {
+            Integer[] byFreq = new Integer[d];
+            for (int i = 0; i < d; i++)
+                byFreq[i] = i;
+            final int[] f = freqs;
+            Arrays.sort(byFreq, (a, b) -> f[b] - f[a]);
+            double threshold = Math.max(2, 1.25 * n / d);
+            numMcvs = 0;
+            while (numMcvs < maxMcvs && freqs[byFreq[numMcvs]] >= threshold)
+                common[byFreq[numMcvs++]] = true;
+        }
+        int[] mcvs = new int[numMcvs];
+        double[] mcvCounts = new double[numMcvs];
+        int rest = 0;
+        for (int i = 0, j = 0; i < d; i++) {
+            if (common[i]) {
+                mcvs[j] = values[i];
+                mcvCounts[j++] = freqs[i] * scale;
+            } else {
+                rest += freqs[i];
+            }
+        }
+
+        // equi-depth buckets of the other values, never splitting a value
+        int nb = Math.min(buckets, d - numMcvs);
+        int[] lo = new int[nb];
+        int[] hi = new int[nb];
+        double[] counts = new double[nb];
+        double[] ndvs = new double[nb];
+        int b = 0, inBucket = 0, distinct = 0, singles = 0, done = 0;
+        for (int i = 0; i < d; i++) {
+            if (common[i])
+                continue;
+            if (inBucket == 0)
+                lo[b] = values[i];
+            hi[b] = values[i];
+            inBucket += freqs[i];
+            distinct++;
+            if (freqs[i] == 1)
+                singles++;
+            done += freqs[i];
+            if (done >= (long) rest * (b + 1) / nb || done == rest) {
+                counts[b] = inBucket * scale;
+                // the GEE estimate: values sampled once stand for
+                // sqrt(tuples / n) values each
+                double ndv = scale <= 1 ? distinct
+                        : Math.sqrt(scale) * singles + (distinct - singles);
+                ndvs[b] = Math.max(1, Math.min(ndv,
+                        Math.min(counts[b], (double) hi[b] - lo[b] + 1)));
+                b++;
+                inBucket = distinct = singles = 0;
+            }
+        }
+        return new EquiDepthHistogram(mcvs, mcvCounts,
+                Arrays.copyOf(lo, b), Arrays.copyOf(hi, b),
+                Arrays.copyOf(counts, b), Arrays.copyOf(ndvs, b));
+    }
+
+    /**
+     * @return the bucket holding v, or -1
+     */
+    private int bucketOf(int v) {
+        int b = upperBucket(v);
+        return b >= 0 && v <= hi[b] ? b : -1;
+    }
+
+    /**
+     * @return the last bucket starting at or below v, or -1
+     */
+    private int upperBucket(int v) {
+        int l = 0, h = lo.length - 1, found = -1;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            if (lo[m] <= v) {
+                found = m;
+                l = m + 1;
+            } else {
+                h = m - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the estimated number of tuples with value v
+     */
+    private double countOf(int v) {
+        int m = Arrays.binarySearch(mcvs, v);
+        if (m >= 0)
+            return mcvCounts[m];
+        int b = bucketOf(v);
+        return b < 0 ? 0 : counts[b] / ndvs[b];
+    }
+
+    /**
+     * @return the estimated number of tuples with a value less than v
+     */
+    private double countBelow(int v) {
+        double c = 0;
+        for (int i = 0; i < mcvs.length && mcvs[i] < v; i++)
+            c += mcvCounts[i];
+        for (int b = 0; b < lo.length && lo[b] < v; b++) {
+            if (hi[b] < v)
+                c += counts[b];
+            else
+                c += counts[b] * ((double) v - lo[b]) / ((double) hi[b] - lo[b] + 1);
+        }
+        return c;
+    }
+
+    /**
+     * Estimate the selectivity of a predicate on the field.
+     *
+     * @param op
+     *            the operator of the predicate
+     * @param v
+     *            the value the field is compared to
+     * @return the estimated fraction of the tuples that satisfy
+     *         <tt>field op v</tt>
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (total <= 0)
+            return 0.0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = countOf(v) / total;
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - countOf(v) / total;
+            break;
+        case LESS_THAN:
+            sel = countBelow(v) / total;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = (countBelow(v) + countOf(v)) / total;
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - (countBelow(v) + countOf(v)) / total;
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - countBelow(v) / total;
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the selectivity of an equality with the value of a random
+     *         tuple
+     */
+    public double avgSelectivity() {
+        if (total <= 0)
+            return 1.0;
+        double sum = 0;
+        for (double c : mcvCounts)
+            sum += (c / total) * (c / total);
+        for (int b = 0; b < lo.length; b++)
+            sum += (counts[b] / total) * (counts[b] / total) / ndvs[b];
+        return sum;
+    }
+
+    /**
+     * @return the estimated number of distinct values
+     */
+    public double numDistinct() {
+        double d = mcvs.length;
+        for (double ndv : ndvs)
+            d += ndv;
+        return d;
+    }
+
+    /**
+     * @return the estimated number of tuples
+     */
+    public double numTuples() {
+        return total;
+    }
+
+    /**
+     * Estimates the selectivity of an equality join of this field with the
+     * field of another histogram: the fraction of the pairs of tuples of
+     * the two tables whose values are equal.
+     * <p>
+     * Most common values are matched one by one, with each other's most
+     * common values or with the bucket holding them; the other values are
+     * assumed to match as in a containment join, each distinct value of
+     * the side with fewer distinct values finding its match.
+     */
+    public double joinSelectivity(EquiDepthHistogram other) {
+        if (total <= 0 || other.total <= 0)
+            return 0.0;
+        double pairs = 0;
+        for (int i = 0; i < mcvs.length; i++)
+            pairs += mcvCounts[i] * other.countOf(mcvs[i]);
+        for (int i = 0; i < other.mcvs.length; i++) {
+            if (Arrays.binarySearch(mcvs, other.mcvs[i]) < 0)
+                pairs += other.mcvCounts[i] * countOf(other.mcvs[i]);
+        }
+        double rest = 0, ndv = 0, otherRest = 0, otherNdv = 0;
+        for (int b = 0; b < lo.length; b++) {
+            rest += counts[b];
+            ndv += ndvs[b];
+        }
+        for (int b = 0; b < other.lo.length; b++) {
+            otherRest += other.counts[b];
+            otherNdv += other.ndvs[b];
+        }
+        if (rest > 0 && otherRest > 0)
+            pairs += rest * otherRest / Math.max(ndv, otherNdv);
+        return Math.min(1.0, pairs / (total * other.total));
+    }
+
+    /**
+     * Adds a tuple with value v.
+     */
+    public void addValue(int v) {
+        total++;
+        int m = Arrays.binarySearch(mcvs, v);
+        if (m >= 0) {
+            mcvCounts[m]++;
+            return;
+        }
+        if (lo.length == 0) {
+            lo = new int[] { v };
+            hi = new int[] { v };
+            counts = new double[] { 1 };
+            ndvs = new double[] { 1 };
+            return;
+        }
+        int b = upperBucket(v);
+        if (b < 0) {
+            // below the first bucket
+            b = 0;
+            lo[0] = v;
+            ndvs[0]++;
+        } else if (v > hi[b]) {
+            // between buckets or past the last: widen the one below
+            hi[b] = v;
+            ndvs[b]++;
+        }
+        counts[b]++;
+    }
+
+    /**
+     * Removes a tuple with value v. Buckets are not narrowed.
+     */
+    public void removeValue(int v) {
+        int m = Arrays.binarySearch(mcvs, v);
+        if (m >= 0) {
+            if (mcvCounts[m] >= 1) {
+                mcvCounts[m]--;
+                total--;
+            }
+            return;
+        }
+        int b = bucketOf(v);
+        if (b >= 0 && counts[b] >= 1) {
+            counts[b]--;
+            total--;
+        }
+    }
+
+    /**
+     * Writes this histogram so that {@link #read} can recreate it.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(mcvs.length);
+        for (int i = 0; i < mcvs.length; i++) {
+            out.writeInt(mcvs[i]);
+            out.writeDouble(mcvCounts[i]);
+        }
+        out.writeInt(lo.length);
+        for (int b = 0; b < lo.length; b++) {
+            out.writeInt(lo[b]);
+            out.writeInt(hi[b]);
+            out.writeDouble(counts[b]);
+            out.writeDouble(ndvs[b]);
+        }
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     *
+     * @throws IOException
+     *             if the input does not hold a histogram
+     */
+    public static EquiDepthHistogram read(DataInput in) throws IOException {
+        int numMcvs = in.readInt();
+        if (numMcvs < 0)
+            throw new IOException("bad most common value count " + numMcvs);
+        int[] mcvs = new int[numMcvs];
+        double[] mcvCounts = new double[numMcvs];
+        for (int i = 0; i < numMcvs; i++) {
+            mcvs[i] = in.readInt();
+            mcvCounts[i] = in.readDouble();
+        }
+        int nb = in.readInt();
+        if (nb < 0)
+            throw new IOException("bad bucket count " + nb);
+        int[] lo = new int[nb];
+        int[] hi = new int[nb];
+        double[] counts = new double[nb];
+        double[] ndvs = new double[nb];
+        for (int b = 0; b < nb; b++) {
+            lo[b] = in.readInt();
+            hi[b] = in.readInt();
+            counts[b] = in.readDouble();
+            ndvs[b] = in.readDouble();
+        }
+        return new EquiDepthHistogram(mcvs, mcvCounts, lo, hi, counts, ndvs);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(
+                "EquiDepthHistogram(%.0f tuples, %d most common values, %d buckets:",
+                total, mcvs.length, lo.length));
+        for (int b = 0; b < lo.length; b++)
+            sb.append(String.format(" [%d, %d]=%.0f/%.0f", lo[b], hi[b],
+                    counts[b], ndvs[b]));
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,571 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Exchange connects producers, several copies of a sub-plan that each run on
+ * a thread of the {@link WorkerPool}, to consumers that read the tuples they
+ * produce, so that the copies run in parallel with each other and with the
+ * consumers.
+ * <p>
+ * Each Exchange object is one consumer. {@link #gather} makes a single
+ * consumer that returns the tuples of all producers, and
+ * {@link #gatherOrdered} one that returns them in the order of the pages of
+ * a scan the producers share; {@link #repartition}
+ * makes several consumers, each of which returns the tuples whose value of a
+ * field hashes to it, so that equal values end up at the same consumer; and
+ * {@link #broadcast} makes several consumers that each return every tuple.
+ * Producers hand over their tuples in batches of {@link #BATCH_SIZE} through
+ * bounded queues, one per consumer: a producer waits while the queue of a
+ * consumer is full, which bounds the tuples in flight.
+ * <p>
+ * The producers start when the first consumer is opened, and run until they
+ * are done or all consumers have been closed; closing the last consumer
+ * stops them and waits until they have closed their sub-plans, so that no
+ * page is requested on behalf of the transaction afterwards. Every consumer
+ * must be opened before it is closed. An error of a producer is thrown by
+ * the consumers. A gather can be rewound, by running the producers again; a
+ * consumer of a repartition or broadcast only if it was made to keep the
+ * tuples it returned in a spill file.
+ * <p>
+ * A consumer that stops reading its queue while another consumer of the
+ * same exchange waits for the producers would wait forever: the producers
+ * wait for room in the full queue. A consumer that may do so, such as the
+ * first child of a {@link HashEquiJoin}, which stops after a batch of its
+ * hash table to read its second child, must be materialized: it reads all
+ * of its tuples into a spill file when it is opened.
+ * <p>
+ * The producers of an exchange share the transaction of the query: locks
+ * are held by a transaction, whichever thread acquired them.
+ * <p>
+ * For cardinality estimation, the copies of a sub-plan and the consumers of
+ * an exchange are all estimated as the whole sub-plan.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How an exchange distributes the tuples of its producers. */
+    public enum Mode {
+        GATHER, GATHER_ORDERED, REPARTITION, BROADCAST;
+
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /** Number of tuples a producer hands over at a time. */
+    public static final int BATCH_SIZE = 256;
+
+    // number of batches that may wait in the queue of each consumer
+    private static final int QUEUE_BATCHES = 4;
+
+    private final Channel channel;
+    private final int port;
+    private final boolean spooled;
+    private final boolean materialized;
+
+    private transient boolean open = false;
+    private transient Iterator<Tuple> batch;
+    // the tuples returned so far, if spooled, and the reader replaying them
+    // after a rewind
+    private transient TupleSpillFile spool;
+    private transient TupleSpillFile.Reader replay;
+
+    private Exchange(Channel channel, int port, boolean spooled,
+            boolean materialized) {
+        this.channel = channel;
+        this.port = port;
+        this.spooled = spooled || materialized;
+        this.materialized = materialized;
+    }
+
+    /**
+     * @return a consumer that returns the tuples of all producers, in no
+     *         particular order
+     */
+    public static Exchange gather(OpIterator... producers) {
+        return new Exchange(new Channel(producers, Mode.GATHER, -1, 1), 0, false,
+                false);
+    }
+
+    /**
+     * Makes a consumer that returns the tuples of all producers in the order
+     * of the pages they were read from. Each producer must be a copy of a
+     * sub-plan of Filters, JoinFilters and Pipelines over one of the copies
+     * of a {@link MorselScan} split as ordered into as many copies as there
+     * are producers; the consumer returns the tuples read from each morsel
+     * of the scan in turn. A producer may run ahead of the consumer by the
+     * batches that fit in its queue.
+     *
+     * @throws IllegalArgumentException
+     *             if the producers are not such copies
+     */
+    public static Exchange gatherOrdered(OpIterator... producers) {
+        Channel.scans(producers);
+        return new Exchange(new Channel(producers, Mode.GATHER_ORDERED, -1, 1),
+                0, false, false);
+    }
+
+    /**
+     * Makes consumers that each return the tuples whose value of the given
+     * field hashes to them.
+     *
+     * @param producers
+     *            the copies of a sub-plan; all must have the same TupleDesc
+     * @param field
+     *            the field whose value decides the consumer of a tuple
+     * @param consumers
+     *            the number of consumers
+     * @param spooled
+     *            true if the consumers must support rewind
+     */
+    public static Exchange[] repartition(OpIterator[] producers, int field,
+            int consumers, boolean spooled) {
+        return consumers(new Channel(producers, Mode.REPARTITION, field,
+                consumers), spooled, false);
+    }
+
+    /**
+     * Makes consumers that each return the tuples whose value of the given
+     * field hashes to them, and that read all of these tuples into a spill
+     * file when they are opened. The consumers support rewind.
+     *
+     * @see #repartition
+     */
+    public static Exchange[] repartitionMaterialized(OpIterator[] producers,
+            int field, int consumers) {
+        return consumers(new Channel(producers, Mode.REPARTITION, field,
+                consumers), true, true);
+    }
+
+    /**
+     * Makes consumers that each return all tuples of the producers.
+     *
+     * @see #repartition
+     */
+    public static Exchange[] broadcast(OpIterator[] producers, int consumers,
+            boolean spooled) {
+        return consumers(new Channel(producers, Mode.BROADCAST, -1, consumers),
+                spooled, false);
+    }
+
+    private static Exchange[] consumers(Channel channel, boolean spooled,
+            boolean materialized) {
+        Exchange[] ports = new Exchange[channel.consumers];
+        for (int i = 0; i < ports.length; i++)
+            ports[i] = new Exchange(channel, i, spooled, materialized);
+        return ports;
+    }
+
+    public Mode getMode() {
+        return channel.mode;
+    }
+
+    /**
+     * @return the field tuples are repartitioned on, or -1 if they are not
+     */
+    public int getField() {
+        return channel.field;
+    }
+
+    /**
+     * @return true if this consumer reads all of its tuples when opened
+     */
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    /**
+     * @return the number of consumers of this exchange
+     */
+    public int numConsumers() {
+        return channel.consumers;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channel.producers[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (open)
+            throw new DbException("double open on one OpIterator.");
+        channel.open();
+        open = true;
+        batch = null;
+        if (spooled && !channel.gathers())
+            spool = new TupleSpillFile(getTupleDesc());
+        super.open();
+        if (materialized) {
+            for (Tuple t = take(); t != null; t = take())
+                spool.add(t);
+            spool.finish();
+            replay = spool.reader();
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (replay != null)
+            return replay.next();
+        Tuple t = take();
+        if (t != null && spool != null)
+            spool.add(t);
+        return t;
+    }
+
+    private Tuple take() throws DbException, TransactionAbortedException {
+        while (batch == null || !batch.hasNext()) {
+            List<Tuple> next = channel.take(port);
+            if (next == null)
+                return null;
+            batch = next.iterator();
+        }
+        return batch.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (channel.gathers()) {
+            channel.close(port);
+            channel.open();
+            batch = null;
+        } else if (spool != null) {
+            if (replay == null) {
+                // keep the rest of the input, then read it all again
+                for (Tuple t = take(); t != null; t = take())
+                    spool.add(t);
+                spool.finish();
+            } else {
+                replay.close();
+            }
+            replay = spool.reader();
+        } else {
+            throw new DbException("cannot rewind a consumer of a "
+                    + channel.mode + " that is not spooled");
+        }
+    }
+
+    public void close() {
+        super.close();
+        if (open) {
+            open = false;
+            channel.close(port);
+        }
+        batch = null;
+        if (replay != null) {
+            replay.close();
+            replay = null;
+        }
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+    }
+
+    /**
+     * @return the producers of this exchange
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return channel.producers;
+    }
+
+    /**
+     * Replaces the producers of this exchange, and so of all of its
+     * consumers; must not be called while a consumer is open.
+     */
+    @Override
+    public void setChildren(OpIterator[] children) {
+        System.arraycopy(children, 0, channel.producers, 0,
+                channel.producers.length);
+    }
+
+    /**
+     * A batch of tuples; in an ordered gather, all read from one morsel.
+     */
+    private static final class Batch extends ArrayList<Tuple> {
+
+        private static final long serialVersionUID = 1L;
+
+        final int morsel;
+
+        Batch(int morsel) {
+            super(BATCH_SIZE);
+            this.morsel = morsel;
+        }
+    }
+
+    /**
+     * The producers of an exchange and the queues to its consumers, shared by
+     * all consumers. The producers of an ordered gather each have a queue of
+     * their own.
+     */
+    private static final class Channel implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final OpIterator[] producers;
+        final Mode mode;
+        final int field;
+        final int consumers;
+
+        // the state of one run of the producers
+        private transient ArrayDeque<Batch>[] queues;
+        private transient boolean[] closed;
+        // of an ordered gather: the scan each producer reads, the producer
+        // reading each copy of the scan, the producers that are done and the
+        // morsel whose tuples are returned next
+        private transient MorselScan[] scans;
+        private transient int[] producerOf;
+        private transient boolean[] done;
+        private transient int morsel;
+        private transient int opened = 0;
+        private transient int numClosed;
+        private transient int running;
+        private transient boolean cancelled;
+        private transient Throwable error;
+
+        Channel(OpIterator[] producers, Mode mode, int field, int consumers) {
+            if (producers.length == 0)
+                throw new IllegalArgumentException("need at least one producer");
+            if (consumers < 1)
+                throw new IllegalArgumentException("need at least one consumer");
+            this.producers = producers;
+            this.mode = mode;
+            this.field = field;
+            this.consumers = consumers;
+        }
+
+        boolean gathers() {
+            return mode == Mode.GATHER || mode == Mode.GATHER_ORDERED;
+        }
+
+        /**
+         * @return the ordered MorselScan each of the producers of an ordered
+         *         gather reads
+         * @throws IllegalArgumentException
+         *             if a producer does not read one
+         */
+        static MorselScan[] scans(OpIterator[] producers) {
+            MorselScan[] scans = new MorselScan[producers.length];
+            for (int i = 0; i < producers.length; i++) {
+                OpIterator op = producers[i];
+                while (op instanceof Filter || op instanceof JoinFilter
+                        || op instanceof Pipeline)
+                    op = ((Operator) op).getChildren()[0];
+                if (!(op instanceof MorselScan) || !((MorselScan) op).isOrdered()
+                        || ((MorselScan) op).numCopies() != producers.length)
+                    throw new IllegalArgumentException("producer " + i
+                            + " does not read an ordered copy of a scan");
+                scans[i] = (MorselScan) op;
+            }
+            return scans;
+        }
+
+        /**
+         * Opens a consumer, starting the producers if it is the first.
+         */
+        @SuppressWarnings("unchecked")
+        synchronized void open() {
+            if (opened++ > 0)
+                return;
+            int n = mode == Mode.GATHER_ORDERED ? producers.length : consumers;
+            queues = new ArrayDeque[n];
+            for (int q = 0; q < n; q++)
+                queues[q] = new ArrayDeque<Batch>();
+            if (mode == Mode.GATHER_ORDERED) {
+                scans = scans(producers);
+                producerOf = new int[producers.length];
+                for (int i = 0; i < producers.length; i++)
+                    producerOf[scans[i].copyIndex()] = i;
+                done = new boolean[producers.length];
+                morsel = 0;
+            }
+            closed = new boolean[consumers];
+            numClosed = 0;
+            cancelled = false;
+            error = null;
+            running = producers.length;
+            for (int i = 0; i < producers.length; i++) {
+                final int producer = i;
+                WorkerPool.get().execute(new Runnable() {
+                    public void run() {
+                        produce(producer);
+                    }
+                });
+            }
+        }
+
+        private int consumerOf(Tuple t) {
+            int h = t.getField(field).hashCode();
+            h ^= h >>> 16;
+            return Math.floorMod(h, consumers);
+        }
+
+        private void produce(int i) {
+            OpIterator producer = producers[i];
+            MorselScan scan = mode == Mode.GATHER_ORDERED ? scans[i] : null;
+            // the producers of an ordered gather each put to their own queue
+            int q = scan == null ? 0 : i;
+            try {
+                producer.open();
+                try {
+                    int n = mode == Mode.REPARTITION ? consumers : 1;
+                    Batch[] out = new Batch[n];
+                    for (int c = 0; c < n; c++)
+                        out[c] = new Batch(-1);
+                    while (producer.hasNext()) {
+                        Tuple t = producer.next();
+                        int c = n == 1 ? 0 : consumerOf(t);
+                        if (scan != null && scan.morsel() != out[0].morsel) {
+                            if (!out[0].isEmpty() && !put(q, out[0]))
+                                return;
+                            out[0] = new Batch(scan.morsel());
+                        }
+                        out[c].add(t);
+                        if (out[c].size() == BATCH_SIZE) {
+                            if (!put(q + c, out[c]))
+                                return;
+                            out[c] = new Batch(out[c].morsel);
+                        }
+                    }
+                    for (int c = 0; c < n; c++) {
+                        if (!out[c].isEmpty() && !put(q + c, out[c]))
+                            return;
+                    }
+                } finally {
+                    producer.close();
+                }
+            } catch (Throwable e) {
+                synchronized (this) {
+                    if (error == null && !cancelled)
+                        error = e;
+                }
+            } finally {
+                synchronized (this) {
+                    if (done != null)
+                        done[i] = true;
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Adds a batch to queue q, or to the queue of every consumer of a
+         * broadcast, waiting while a queue is full; batches for consumers
+         * that have been closed are dropped.
+         *
+         * @return false if the producers should stop
+         */
+        private synchronized boolean put(int q, Batch batch)
+                throws InterruptedException {
+            int from = mode == Mode.BROADCAST ? 0 : q;
+            int to = mode == Mode.BROADCAST ? consumers : q + 1;
+            for (q = from; q < to; q++) {
+                int c = mode == Mode.GATHER_ORDERED ? 0 : q;
+                while (!cancelled && error == null && !closed[c]
+                        && queues[q].size() >= QUEUE_BATCHES)
+                    wait();
+                if (cancelled || error != null)
+                    return false;
+                if (!closed[c]) {
+                    queues[q].add(batch);
+                    notifyAll();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the next batch of an ordered gather, or null if it is not
+         *         there yet or the producers are done
+         */
+        private Batch pollOrdered() {
+            while (true) {
+                // the i-th copy of the scan reads morsels i, i + n, ...
+                ArrayDeque<Batch> queue = queues[producerOf[morsel
+                        % producers.length]];
+                Batch batch = queue.peek();
+                if (batch != null && batch.morsel == morsel)
+                    return queue.poll();
+                if (batch == null
+                        && !done[producerOf[morsel % producers.length]])
+                    return null;
+                // the producer has gone past the morsel
+                if (running == 0 && isEmpty())
+                    return null;
+                morsel++;
+            }
+        }
+
+        private boolean isEmpty() {
+            for (ArrayDeque<Batch> queue : queues) {
+                if (!queue.isEmpty())
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the next batch for consumer c, or null if the producers
+         *         are done
+         */
+        synchronized List<Tuple> take(int c) throws DbException,
+                TransactionAbortedException {
+            while (true) {
+                if (error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) error;
+                if (error instanceof DbException)
+                    throw (DbException) error;
+                if (error != null)
+                    throw new DbException("exchange producer failed: " + error);
+                List<Tuple> batch = mode == Mode.GATHER_ORDERED ? pollOrdered()
+                        : queues[c].poll();
+                if (batch != null) {
+                    notifyAll();
+                    return batch;
+                }
+                if (running == 0)
+                    return null;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while exchanging: " + e);
+                }
+            }
+        }
+
+        /**
+         * Closes consumer c. Once all consumers are closed, stops the
+         * producers and waits until they have closed their sub-plans.
+         */
+        synchronized void close(int c) {
+            if (closed[c])
+                return;
+            closed[c] = true;
+            if (mode == Mode.GATHER_ORDERED) {
+                for (ArrayDeque<Batch> queue : queues)
+                    queue.clear();
+            } else {
+                queues[c].clear();
+            }
+            notifyAll();
+            if (++numClosed < consumers)
+                return;
+            cancelled = true;
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            opened = 0;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples on one or more fields within a fixed
+ * memory budget.
+ * <p>
+ * Tuples are buffered until the buffer's estimated size reaches the budget;
+ * the buffer is then sorted and written out as a run to a
+ * {@link TupleSpillFile}. When the input ends, the runs are merged with a
+ * {@link LoserTree} (in several passes if there are more than
+ * {@link #MAX_MERGE_FANIN} runs). If the whole input fits in the budget no
+ * file is written at all.
+ * <p>
+ * When the sort key consists of one or two INT fields, the keys are
+ * normalized into a single long per tuple and runs are sorted on those longs
+ * instead of through {@link TupleComparator}, avoiding the Field virtual
+ * calls and boxing on every comparison. The sort is stable in both cases.
+ * <p>
+ * Usage: {@link #add} every tuple, call {@link #sort}, then read the result
+ * with {@link #next}; {@link #rewind} restarts the output and {@link #close}
+ * releases the runs.
+ */
+public class ExternalSort {
+
+    /** Default memory budget for the sort buffer, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** Maximum number of runs merged at once. */
+    public static final int MAX_MERGE_FANIN = 64;
+
+    private final TupleDesc td;
+    private final int[] fields;
+    private final boolean[] asc;
+    private final long memoryBudget;
+    private final TupleComparator comparator;
+    private final boolean intKeys;
+    private final long tupleBytes;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private long bufferBytes = 0;
+    private ArrayList<TupleSpillFile> runs = new ArrayList<TupleSpillFile>();
+
+    // output state: either an in-memory sorted array or a merge of the runs
+    private Tuple[] sorted = null;
+    private int sortedPos = 0;
+    private LoserTree merger = null;
+    private TupleSpillFile.Reader[] readers = null;
+
+    /**
+     * Constructor.
+     *
+     * @param td
+     *            the schema of the tuples to sort
+     * @param fields
+     *            the fields to sort on, most significant first
+     * @param asc
+     *            for each sort field, true if it is sorted in ascending order
+     * @param memoryBudget
+     *            the approximate number of bytes of tuples to buffer before
+     *            spilling a sorted run to disk
+     */
+    public ExternalSort(TupleDesc td, int[] fields, boolean[] asc,
+            long memoryBudget) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "need one sort direction per sort field");
+        this.td = td;
+        this.fields = fields;
+        this.asc = asc;
+        this.memoryBudget = memoryBudget;
+        this.comparator = new TupleComparator(fields, asc);
+
+        boolean ints = fields.length <= 2;
+        for (int f : fields)
+            ints = ints && td.getFieldType(f) == Type.INT_TYPE;
+        this.intKeys = ints;
+        this.tupleBytes = estimateTupleBytes(td);
+    }
+
+    /**
+     * @return a rough estimate of the heap footprint of a tuple of the given
+     *         schema, used to account for the memory budget
+     */
+    static long estimateTupleBytes(TupleDesc td) {
+        // Tuple, its field list and the list's backing array
+        long bytes = 64 + 4 * td.numFields();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                bytes += 16;
+            else
+                bytes += 64 + Type.STRING_LEN;
+        }
+        return bytes;
+    }
+
+    public Comparator<Tuple> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * @return the number of sorted runs that were spilled to disk
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Adds a tuple to the input of the sort.
+     */
+    public void add(Tuple t) throws DbException {
+        buffer.add(t);
+        bufferBytes += tupleBytes;
+        if (bufferBytes >= memoryBudget)
+            spillBuffer();
+    }
+
+    private void spillBuffer() throws DbException {
+        if (buffer.isEmpty())
+            return;
+        Tuple[] run = sortBuffer();
+        TupleSpillFile f = new TupleSpillFile(td);
+        for (Tuple t : run)
+            f.add(t);
+        f.finish();
+        runs.add(f);
+        buffer = new ArrayList<Tuple>();
+        bufferBytes = 0;
+    }
+
+    /**
+     * Ends the input and prepares the sorted output.
+     */
+    public void sort() throws DbException {
+        if (runs.isEmpty()) {
+            sorted = sortBuffer();
+            buffer = new ArrayList<Tuple>();
+            bufferBytes = 0;
+            sortedPos = 0;
+            return;
+        }
+        spillBuffer();
+        // reduce the number of runs until one merge can consume them all
+        while (runs.size() > MAX_MERGE_FANIN) {
+            ArrayList<TupleSpillFile> next = new ArrayList<TupleSpillFile>();
+            for (int i = 0; i < runs.size(); i += MAX_MERGE_FANIN) {
+                List<TupleSpillFile> group = runs.subList(i,
+                        Math.min(runs.size(), i + MAX_MERGE_FANIN));
+                if (group.size() == 1) {
+                    next.add(group.get(0));
+                    continue;
+                }
+                LoserTree lt = openMerge(group);
+                TupleSpillFile out = new TupleSpillFile(td);
+                Tuple t;
+                while ((t = lt.next()) != null)
+                    out.add(t);
+                out.finish();
+                for (TupleSpillFile f : group)
+                    f.delete();
+                next.add(out);
+            }
+            runs = next;
+        }
+        merger = openMerge(runs);
+    }
+
+    private LoserTree openMerge(List<TupleSpillFile> group) throws DbException {
+        closeReaders();
+        readers = new TupleSpillFile.Reader[group.size()];
+        LoserTree.Source[] sources = new LoserTree.Source[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            final TupleSpillFile.Reader r = group.get(i).reader();
+            readers[i] = r;
+            sources[i] = new LoserTree.Source() {
+                public Tuple next() throws DbException {
+                    return r.next();
+                }
+            };
+        }
+        return new LoserTree(sources, comparator);
+    }
+
+    private void closeReaders() {
+        if (readers == null)
+            return;
+        for (TupleSpillFile.Reader r : readers)
+            r.close();
+        readers = null;
+    }
+
+    /**
+     * @return the next tuple in sorted order, or null if there are no more
+     *         tuples
+     */
+    public Tuple next() throws DbException {
+        if (sorted != null)
+            return sortedPos < sorted.length ? sorted[sortedPos++] : null;
+        if (merger != null)
+            return merger.next();
+        return null;
+    }
+
+    /**
+     * Restarts the sorted output from the first tuple.
+     */
+    public void rewind() throws DbException {
+        if (sorted != null)
+            sortedPos = 0;
+        else if (merger != null)
+            merger = openMerge(runs);
+    }
+
+    /**
+     * Releases the buffered tuples and deletes the spilled runs.
+     */
+    public void close() {
+        closeReaders();
+        for (TupleSpillFile f : runs)
+            f.delete();
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+        bufferBytes = 0;
+        sorted = null;
+        merger = null;
+    }
+
+    // ===================== In-memory run sorting ===========================
+
+    /**
+     * Sorts the current buffer.
+     */
+    private Tuple[] sortBuffer() {
+        int n = buffer.size();
+        Tuple[] out = new Tuple[n];
+        if (!intKeys) {
+            Collections.sort(buffer, comparator);
+            return buffer.toArray(out);
+        }
+
+        if (fields.length == 1) {
+            // the 32-bit key in the high half and the input position in the
+            // low half: one primitive sort, stable because positions are
+            // unique
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++)
+                packed[i] = ((long) intKey(buffer.get(i), 0) << 32) | i;
+            Arrays.sort(packed);
+            for (int i = 0; i < n; i++)
+                out[i] = buffer.get((int) packed[i]);
+            return out;
+        }
+
+        // two keys fill the whole long, so sort positions by key instead
+        long[] keys = new long[n];
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) {
+            Tuple t = buffer.get(i);
+            keys[i] = ((long) intKey(t, 0) << 32)
+                    | ((intKey(t, 1) ^ 0x80000000) & 0xFFFFFFFFL);
+            idx[i] = i;
+        }
+        mergeSort(idx, new int[n], keys, 0, n);
+        for (int i = 0; i < n; i++)
+            out[i] = buffer.get(idx[i]);
+        return out;
+    }
+
+    /**
+     * @return the value of the k-th sort field of t, mapped so that signed
+     *         int order is the requested sort order
+     */
+    private int intKey(Tuple t, int k) {
+        int v = ((IntField) t.getField(fields[k])).getValue();
+        return asc[k] ? v : ~v;
+    }
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /**
+     * Stable merge sort of idx[lo, hi) by keys[idx[i]].
+     */
+    private static void mergeSort(int[] idx, int[] tmp, long[] keys, int lo,
+            int hi) {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                int x = idx[i];
+                long k = keys[x];
+                int j = i - 1;
+                while (j >= lo && keys[idx[j]] > k) {
+                    idx[j + 1] = idx[j];
+                    j--;
+                }
+                idx[j + 1] = x;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(idx, tmp, keys, lo, mid);
+        mergeSort(idx, tmp, keys, mid, hi);
+        if (keys[idx[mid - 1]] <= keys[idx[mid]])
+            return;
+        System.arraycopy(idx, lo, tmp, lo, hi - lo);
+        int i = lo, j = mid, o = lo;
+        while (i < mid && j < hi)
+            idx[o++] = keys[tmp[j]] < keys[tmp[i]] ? tmp[j++] : tmp[i++];
+        while (i < mid)
+            idx[o++] = tmp[i++];
+        while (j < hi)
+            idx[o++] = tmp[j++];
+    }
+}
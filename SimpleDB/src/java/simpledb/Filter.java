@@ -4,12 +4,16 @@ import java.util.*;
 
 /**
  * Filter is an operator that implements a relational select.
+ * <p>
+ * A Filter may apply a conjunction of predicates, which it compiles into one
+ * evaluator with {@link PredicateCompiler#and}.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private final Predicate p;
+    private final Predicate[] ps;
+    private transient PredicateCompiler.TupleTest test;
     private OpIterator child;
     //child方法参照OpIterator接口
     /**
@@ -22,14 +26,38 @@ public class Filter extends Operator {
      *            The child operator
      */
     public Filter(Predicate p, OpIterator child) {
-        // some code goes here
-        this.p=p;
+        this(new Predicate[]{p},child);
+    }
+
+    /**
+     * Constructor for a filter that returns the tuples satisfying all of the
+     * given predicates.
+     *
+     * @param ps
+     *            The predicates to filter tuples with; at least one
+     * @param child
+     *            The child operator
+     */
+    public Filter(Predicate[] ps, OpIterator child) {
+        if(ps.length==0){
+            throw new IllegalArgumentException("need at least one predicate");
+        }
+        this.ps=ps;
         this.child=child;
     }
 
+    /**
+     * @return the first predicate of this filter
+     */
     public Predicate getPredicate() {
-        // some code goes here
-        return p;
+        return ps[0];
+    }
+
+    /**
+     * @return all predicates of this filter
+     */
+    public Predicate[] getPredicates() {
+        return ps;
     }
 
     public TupleDesc getTupleDesc() {
@@ -70,8 +98,8 @@ public class Filter extends Operator {
 
     /**
      * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * child operator, applying the predicates to them and returning those that
+     * pass all predicates (i.e. for which the Predicate.filter() returns true.)
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
@@ -79,10 +107,12 @@ public class Filter extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        // some code goes here
+        if(test==null){
+            test=PredicateCompiler.and(ps);
+        }
         while(child.hasNext()){
             Tuple tuple=child.next();
-            if(p.filter(tuple)){
+            if(test.test(tuple)){
                 return tuple;
             }
         }
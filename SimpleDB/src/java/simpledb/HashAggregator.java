@@ -0,0 +1,440 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Computes any number of aggregates over a set of tuples, grouped by any
+ * number of fields, with a single hash table keyed on the group.
+ * <p>
+ * Each group gets a dense id. A single INT group-by field is mapped to ids by
+ * an {@link IntHashTable}; any other grouping by a {@link TupleHashTable}
+ * over the group-by fields, which looks a tuple up without building a key
+ * and keeps all-INT keys in an int array. The aggregate states of all groups
+ * live in one long array with a fixed number of slots per group, laid out by
+ * {@link AggregateStates}, so a tuple is merged into every aggregate of its
+ * group with one lookup.
+ * <p>
+ * The groups are held within a memory budget. Once the table is full, no new
+ * groups are added to it: tuples of groups already in the table are still
+ * merged in place, while tuples of any other group are written, reduced to
+ * their group-by and aggregate fields, to one of {@link #SPILL_PARTITIONS}
+ * spill files chosen by the hash of the group. Every group is then either
+ * entirely in memory or entirely in one partition, so the results are the
+ * groups in memory followed by the groups of each partition, aggregated in
+ * turn by a new HashAggregator that partitions again, on other bits of the
+ * hash, if it overflows too. Results are produced one group at a time by the
+ * iterator, not collected into a list.
+ * <p>
+ * INT fields support MIN, MAX, SUM, AVG, COUNT, SUM_COUNT, SC_AVG and
+ * APPROX_COUNT_DISTINCT; STRING fields only COUNT and APPROX_COUNT_DISTINCT. Result tuples hold the group-by values, in the order
+ * given to the constructor, followed by the aggregate values, two for a
+ * SUM_COUNT.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for the groups held in memory, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** Number of spill files the overflowing groups are split into. */
+    public static final int SPILL_PARTITIONS = 16;
+    private static final int PARTITION_BITS = 4;
+    // each level of partitioning uses the next PARTITION_BITS of the hash;
+    // past the last level there is nothing left to split on
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private final int[] gbFields;
+    private final Type[] gbTypes;
+    private final int[] aggFields;
+    private final Type[] aggTypes;
+    private final Op[] ops;
+    private final TupleDesc resultDesc;
+
+    private final AggregateStates states;
+    private final int width;
+
+    private final long memoryBudget;
+    private final int level;
+    // estimated bytes of table and state per group
+    private final long groupBytes;
+
+    private IntHashTable intGroups;
+    private TupleHashTable groups;
+    private int numGroups = 0;
+    private long[] state;
+    // hash of the group looked up last, to choose its partition
+    private int lastHash;
+
+    // the schema of spilled tuples: the group-by fields, then the aggregate
+    // fields; null until the table first overflows
+    private TupleDesc spillDesc;
+    // the fields of a tuple kept after its group-by fields when it is
+    // spilled: each aggregate field, and the count after an SC_AVG's sum
+    private final int[] spillFields;
+    private TupleSpillFile[] partitions;
+
+    /**
+     * Constructor.
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, or
+     *            an empty array if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws UnsupportedOperationException
+     *             if an operator is not supported for its field type
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] ops) {
+        this(gbfields, gbfieldtypes, afields, afieldtypes, ops,
+                DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor for an aggregator that spills groups to disk beyond the
+     * given memory budget.
+     *
+     * @param memoryBudget
+     *            the number of bytes the groups held in memory may use
+     * @see #HashAggregator(int[], Type[], int[], Type[], Op[])
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] ops, long memoryBudget) {
+        this(gbfields, gbfieldtypes, afields, afieldtypes, ops, memoryBudget, 0);
+    }
+
+    private HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] ops, long memoryBudget, int level) {
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException(
+                    "need one type per group-by field");
+        this.gbFields = gbfields;
+        this.gbTypes = gbfieldtypes;
+        this.aggFields = afields;
+        this.ops = ops;
+        this.aggTypes = afieldtypes;
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+
+        states = new AggregateStates(afields, afieldtypes, ops);
+        width = states.width();
+        state = new long[16 * width];
+
+        long bytes = 8L * width;
+        if (gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE) {
+            intGroups = new IntHashTable();
+            // the key, and two slots at the table's load factor
+            bytes += 12;
+        } else if (gbfields.length > 0) {
+            TupleDesc keyDesc = new TupleDesc(gbfieldtypes);
+            groups = new TupleHashTable(keyDesc);
+            // the cached hash and two slots at the table's load factor, and
+            // the key: its ints, or a reference to a copy of its fields
+            boolean ints = true;
+            for (Type t : gbfieldtypes)
+                ints &= t == Type.INT_TYPE;
+            bytes += 12 + (ints ? 4L * gbfields.length
+                    : 8 + ExternalSort.estimateTupleBytes(keyDesc));
+        }
+        groupBytes = bytes;
+
+        resultDesc = resultDesc(gbfieldtypes, states.numResults());
+
+        int nspill = afields.length;
+        for (int k = 0; k < afields.length; k++) {
+            if (states.readsNextField(k))
+                nspill++;
+        }
+        spillFields = new int[nspill];
+        for (int k = 0, i = 0; k < afields.length; k++) {
+            spillFields[i++] = afields[k];
+            if (states.readsNextField(k))
+                spillFields[i++] = afields[k] + 1;
+        }
+    }
+
+    /**
+     * @return the TupleDesc of the results of grouping by fields of the given
+     *         types and computing aggregates with numResults result fields
+     */
+    static TupleDesc resultDesc(Type[] gbfieldtypes, int numResults) {
+        int n = gbfieldtypes.length;
+        Type[] types = new Type[n + numResults];
+        String[] names = new String[types.length];
+        for (int i = 0; i < n; i++) {
+            types[i] = gbfieldtypes[i];
+            names[i] = n == 1 ? "groupByValue" : "groupByValue" + i;
+        }
+        for (int k = 0; k < numResults; k++) {
+            types[n + k] = Type.INT_TYPE;
+            names[n + k] = numResults == 1 ? "aggregateValue"
+                    : "aggregateValue" + k;
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the TupleDesc of the tuples returned by {@link #iterator()}
+     */
+    public TupleDesc getResultDesc() {
+        return resultDesc;
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Merge a new tuple into every aggregate of its group, creating the group
+     * if its group-by values have not been seen before.
+     * <p>
+     * Since this method cannot report I/O errors, a failure to spill is
+     * thrown as a RuntimeException; {@link #add} reports it as a DbException.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        try {
+            add(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge a new tuple into every aggregate of its group, or write it to a
+     * spill file if its group is new and the memory budget is used up.
+     * Tuples cannot be added once the results have been read, if any tuples
+     * were spilled.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void add(Tuple tup) throws DbException {
+        if (partitions == null && level <= MAX_LEVEL
+                && (long) numGroups * groupBytes >= memoryBudget)
+            startSpilling();
+        int group = groupId(tup, partitions == null);
+        if (group < 0) {
+            spill(tup);
+            return;
+        }
+        int base = group * width;
+        if (group == numGroups) {
+            // a new group: initialize its state from this tuple
+            numGroups++;
+            if (base + width > state.length)
+                state = Arrays.copyOf(state, state.length * 2);
+            states.init(state, base, tup);
+        } else {
+            states.merge(state, base, tup);
+        }
+    }
+
+    /**
+     * @return the id of the group tup belongs to, or -1 if it is not in the
+     *         table and insert is false; a new group gets id numGroups
+     */
+    private int groupId(Tuple tup, boolean insert) {
+        if (gbFields.length == 0)
+            return 0;
+        if (intGroups != null) {
+            int key = ((IntField) tup.getField(gbFields[0])).getValue();
+            lastHash = key;
+            return insert ? intGroups.findOrInsert(key) : intGroups.find(key);
+        }
+        lastHash = TupleHashTable.hash(tup, gbFields);
+        return insert ? groups.findOrInsert(tup, gbFields, lastHash)
+                : groups.find(tup, gbFields, lastHash);
+    }
+
+    private void startSpilling() throws DbException {
+        int n = gbFields.length;
+        Type[] types = new Type[n + spillFields.length];
+        System.arraycopy(gbTypes, 0, types, 0, n);
+        for (int k = 0, i = n; k < aggFields.length; k++) {
+            types[i++] = aggTypes[k];
+            if (states.readsNextField(k))
+                types[i++] = Type.INT_TYPE;
+        }
+        spillDesc = new TupleDesc(types);
+        partitions = new TupleSpillFile[SPILL_PARTITIONS];
+        for (int p = 0; p < SPILL_PARTITIONS; p++)
+            partitions[p] = new TupleSpillFile(spillDesc);
+    }
+
+    /**
+     * Writes the group-by and aggregate fields of tup to the partition of the
+     * group looked up last.
+     */
+    private void spill(Tuple tup) throws DbException {
+        int h = lastHash * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        int p = (h >>> (level * PARTITION_BITS)) & (SPILL_PARTITIONS - 1);
+        Tuple t = new Tuple(spillDesc);
+        int n = gbFields.length;
+        for (int i = 0; i < n; i++)
+            t.setField(i, tup.getField(gbFields[i]));
+        for (int i = 0; i < spillFields.length; i++)
+            t.setField(n + i, tup.getField(spillFields[i]));
+        partitions[p].add(t);
+    }
+
+    /**
+     * @return the number of tuples written to spill files
+     */
+    public long numSpilled() {
+        long n = 0;
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions)
+                n += f.numTuples();
+        }
+        return n;
+    }
+
+    /**
+     * @return a new aggregator over the tuples spilled to partition p, one
+     *         level of partitioning down
+     */
+    private HashAggregator aggregatePartition(int p) throws DbException {
+        int n = gbFields.length;
+        int[] gfields = new int[n];
+        for (int i = 0; i < n; i++)
+            gfields[i] = i;
+        int[] afields = new int[aggFields.length];
+        for (int k = 0, i = n; k < afields.length; k++) {
+            afields[k] = i++;
+            if (states.readsNextField(k))
+                i++;
+        }
+        HashAggregator agg = new HashAggregator(gfields, gbTypes, afields,
+                aggTypes, ops, memoryBudget, level + 1);
+        TupleSpillFile.Reader r = partitions[p].reader();
+        for (Tuple t = r.next(); t != null; t = r.next())
+            agg.add(t);
+        return agg;
+    }
+
+    /**
+     * Removes the spill files of this aggregator; the results cannot be read
+     * afterwards.
+     */
+    public void close() {
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions)
+                f.delete();
+            partitions = null;
+        }
+    }
+
+    /**
+     * @return the result tuple of the given group
+     */
+    private Tuple result(int group) {
+        Tuple t = new Tuple(resultDesc);
+        int n = gbFields.length;
+        if (intGroups != null) {
+            t.setField(0, new IntField(intGroups.keyAt(group)));
+        } else if (n > 0) {
+            for (int i = 0; i < n; i++)
+                t.setField(i, groups.keyField(group, i));
+        }
+        states.setResults(t, n, state, group * width);
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results. The groups in memory
+     * are returned first, then those of each spill file, which is aggregated
+     * when the iterator reaches it.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the aggregate values, one tuple per group; without grouping, a
+     *         single tuple unless no tuples were merged
+     */
+    public OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    /** Streams the result tuples, one group at a time. */
+    private class ResultIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private boolean open = false;
+        // the next group in memory to return
+        private int group;
+        // the next partition to aggregate, and the one being returned
+        private int partition;
+        private HashAggregator partitionAgg;
+        private OpIterator partitionIt;
+
+        public void open() {
+            open = true;
+            group = 0;
+            partition = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                throw new IllegalStateException("iterator is closed");
+            if (group < numGroups)
+                return true;
+            while (true) {
+                if (partitionIt != null && partitionIt.hasNext())
+                    return true;
+                closePartition();
+                if (partitions == null || partition == partitions.length)
+                    return false;
+                partitionAgg = aggregatePartition(partition++);
+                partitionIt = partitionAgg.iterator();
+                partitionIt.open();
+            }
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (group < numGroups)
+                return result(group++);
+            return partitionIt.next();
+        }
+
+        private void closePartition() {
+            if (partitionIt != null) {
+                partitionIt.close();
+                partitionAgg.close();
+                partitionIt = null;
+                partitionAgg = null;
+            }
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultDesc;
+        }
+
+        public void close() {
+            closePartition();
+            open = false;
+        }
+    }
+
+}
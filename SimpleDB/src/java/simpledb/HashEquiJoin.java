@@ -4,12 +4,17 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * When all of child1 fits in one batch of the hash table, the join values
+ * of child1 are published in a {@link RuntimeFilter} before child2 is
+ * opened, so that scans below child2 drop the tuples that cannot join.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
     private OpIterator child1, child2;
+    private final RuntimeFilter runtimeFilter;
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
@@ -26,9 +31,32 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, probeFilter(child2, p.getField2()));
+    }
+
+    /**
+     * @return a filter attached to the scans below probe, or null if there
+     *         are none it can be attached to
+     */
+    private static RuntimeFilter probeFilter(OpIterator probe, int field) {
+        RuntimeFilter filter = new RuntimeFilter(1);
+        return RuntimeFilter.pushDown(filter, probe, field) ? filter : null;
+    }
+
+    /**
+     * Constructor for a join that publishes its join values in a given
+     * runtime filter, which may be shared with other joins.
+     *
+     * @param filter
+     *            the filter to publish the join values of child1 in; null
+     *            for none
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            RuntimeFilter filter) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.runtimeFilter = filter;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,6 +67,14 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
+
+    /**
+     * @return the filter this join publishes its join values of child1 in,
+     *         or null
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
     
     public String getJoinField1Name()
     {
@@ -53,7 +89,23 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    // When both join fields are INTs, a batch of child1 is hashed into an
+    // IntHashTable instead of map: batch[] holds the tuples in input order,
+    // and the tuples with the same key are chained through first[]/last[]
+    // (indexed by the key's id) and next[] (indexed by position in batch).
+    transient private IntHashTable intMap;
+    transient private Tuple[] batch;
+    transient private int[] first, last, next;
+    transient private int chainPos = -1;
+
+    private boolean intKeys() {
+        return child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
+        if (intMap != null)
+            return loadIntMap();
         int cnt = 0;
         map.clear();
         while (child1.hasNext()) {
@@ -71,14 +123,65 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    private boolean loadIntMap() throws DbException, TransactionAbortedException {
+        int cnt = 0;
+        intMap.clear();
+        while (cnt <= MAP_SIZE && child1.hasNext()) {
+            t1 = child1.next();
+            int newId = intMap.size();
+            int id = intMap.findOrInsert(((IntField) t1.getField(pred
+                    .getField1())).getValue());
+            batch[cnt] = t1;
+            next[cnt] = -1;
+            if (id == newId)
+                first[id] = cnt;
+            else
+                next[last[id]] = cnt;
+            last[id] = cnt;
+            cnt++;
+        }
+        // drop references to the previous batch's tuples
+        Arrays.fill(batch, cnt, batch.length, null);
+        return cnt > 0;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
-        child2.open();
+        if (intKeys()) {
+            intMap = new IntHashTable(MAP_SIZE + 1);
+            batch = new Tuple[MAP_SIZE + 1];
+            first = new int[MAP_SIZE + 1];
+            last = new int[MAP_SIZE + 1];
+            next = new int[MAP_SIZE + 1];
+        }
         loadMap();
+        if (runtimeFilter != null)
+            publishRuntimeFilter();
+        child2.open();
         super.open();
     }
 
+    private void publishRuntimeFilter() throws DbException,
+            TransactionAbortedException {
+        if (child1.hasNext()) {
+            // later batches are not known yet
+            runtimeFilter.abandon();
+            return;
+        }
+        BloomFilter bf;
+        if (intMap != null) {
+            bf = new BloomFilter(intMap.size());
+            for (int id = 0; id < intMap.size(); id++)
+                bf.add(intMap.keyAt(id));
+        } else {
+            bf = new BloomFilter(map.size());
+            for (Object key : map.keySet())
+                bf.add((Field) key);
+        }
+        runtimeFilter.publish(bf);
+    }
+
     public void close() {
         super.close();
         child2.close();
@@ -87,11 +190,20 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.intMap=null;
+        this.batch=null;
+        this.first=null;
+        this.last=null;
+        this.next=null;
+        this.chainPos=-1;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        chainPos = -1;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -115,7 +227,12 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        if (intMap != null) {
+            t1 = batch[chainPos];
+            chainPos = next[chainPos];
+        } else {
+            t1 = listIt.next();
+        }
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,7 +248,7 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (intMap != null ? chainPos >= 0 : listIt != null && listIt.hasNext()) {
             return processList();
         }
 
@@ -141,6 +258,14 @@ public class HashEquiJoin extends Operator {
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
+            if (intMap != null) {
+                int id = intMap.find(((IntField) t2.getField(pred.getField2()))
+                        .getValue());
+                if (id < 0)
+                    continue;
+                chainPos = first[id];
+                return processList();
+            }
             ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
             if (l == null)
                 continue;
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashSemiJoin returns the tuples of its first child whose join field equals
+ * the join field of some tuple of its second child (a semi-join, as for
+ * "x IN (SELECT y ...)" or a correlated EXISTS), or, as an anti-join, the
+ * tuples for which there is no such tuple (NOT IN, NOT EXISTS).
+ * <p>
+ * The distinct join values of the second child are hashed when the operator
+ * is opened; each tuple of the first child is then returned or dropped after
+ * a single lookup, so it is returned at most once however many tuples of the
+ * second child it matches, and none of their fields are returned. INT join
+ * values are kept in an {@link IntHashTable}.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+
+    // the join values of child2, in intKeys if both join fields are INTs
+    // and in keys otherwise
+    transient private IntHashTable intKeys;
+    transient private HashSet<Field> keys;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to match the children; must be an
+     *            equality
+     * @param child1
+     *            Iterator for the relation whose tuples are returned
+     * @param child2
+     *            Iterator for the relation the tuples of child1 are matched
+     *            against
+     * @param anti
+     *            true to return the tuples of child1 that match no tuple of
+     *            child2, false to return those that match some tuple
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "hash semi-joins only support equality predicates");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if this is an anti-join
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the TupleDesc of the first child; no fields of the second child
+     *         are returned
+     */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    private boolean intKeyed() {
+        return child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        int f2 = pred.getField2();
+        if (intKeyed()) {
+            intKeys = new IntHashTable();
+            while (child2.hasNext())
+                intKeys.findOrInsert(((IntField) child2.next().getField(f2)).getValue());
+        } else {
+            keys = new HashSet<Field>();
+            while (child2.hasNext())
+                keys.add(child2.next().getField(f2));
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        intKeys = null;
+        keys = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the join values of child2 are kept
+        child1.rewind();
+    }
+
+    private boolean matches(Tuple t) {
+        Field f = t.getField(pred.getField1());
+        if (intKeys != null)
+            return intKeys.find(((IntField) f).getValue()) >= 0;
+        return keys.contains(f);
+    }
+
+    /**
+     * Returns the next tuple of child1 that has (or, for an anti-join, does
+     * not have) a match in child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (matches(t) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
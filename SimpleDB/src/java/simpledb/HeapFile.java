@@ -229,12 +229,22 @@ public class HeapFile implements DbFile {
         //需要通过BufferPool的getPage方法来获取页，需要tid和pid
         private final HeapFile heapFile;
         private final TransactionId tid;
+        // the fields to return and their TupleDesc, see HeapPage.iterator
+        private final int[] fields;
+        private final TupleDesc projected;
         private Iterator<Tuple> tupleIterator; //可以借助heapPage中的迭代器
         private Integer openPgNo; //打开iterator时需要的页数
 
         public HeapFileIterator(HeapFile heapFile,TransactionId tid){
+            this(heapFile,tid,null,null);
+        }
+
+        public HeapFileIterator(HeapFile heapFile,TransactionId tid,
+                int[] fields,TupleDesc projected){
             this.heapFile=heapFile;
             this.tid=tid;
+            this.fields=fields;
+            this.projected=projected;
             this.tupleIterator=null;
             this.openPgNo=null;
 
@@ -246,7 +256,7 @@ public class HeapFile implements DbFile {
             HeapPageId pid=new HeapPageId(tableId,pgNo); //生成寻找页时需要的HeapPageId
             HeapPage heapPage=(HeapPage)Database.getBufferPool().
                     getPage(tid,pid,Permissions.READ_ONLY); //通过BufferPool寻找页
-            return heapPage.iterator(); //调用给页写好的iterator即可返回元组的iterator
+            return heapPage.iterator(fields,projected); //调用给页写好的iterator即可返回元组的iterator
         }
 
         @Override
@@ -334,5 +344,22 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this,tid);
     }
 
+    /**
+     * Returns an iterator over some fields of the tuples stored in this
+     * file; the other fields are not decoded from pages whose tuples have
+     * not been read yet.
+     *
+     * @param fields
+     *            the indexes of the fields to return, in the order to return
+     *            them; null to return all fields
+     * @param projected
+     *            the TupleDesc of the returned tuples
+     * @see HeapPage#iterator(int[], TupleDesc)
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields,
+            TupleDesc projected) {
+        return new HeapFileIterator(this,tid,fields,projected);
+    }
+
 }
 
@@ -7,6 +7,10 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The tuples of a page are decoded from the bytes it was read from when they
+ * are first needed. Until then, {@link #iterator(int[], TupleDesc)} decodes
+ * only the fields it is asked for, straight from those bytes.
  *
  * @see HeapFile
  * @see BufferPool
@@ -17,7 +21,10 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // the tuples of the page, or null until they are decoded from data
+    private Tuple tuples[];
+    // the bytes the page was read from, until its tuples are decoded
+    private byte[] data;
     final int numSlots;
 
     byte[] oldData;
@@ -68,19 +75,34 @@ public class HeapPage implements Page {
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
 
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
         dis.close();
+        this.data = data;
 
         setBeforeImage();
     }
 
+    /**
+     * @return the tuples of this page, decoding them if this has not been
+     *         done yet
+     */
+    private synchronized Tuple[] tuples() {
+        if (tuples == null) {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    data, header.length, data.length - header.length));
+            Tuple[] decoded = new Tuple[numSlots];
+            try{
+                // allocate and read the actual records of this page
+                for (int i=0; i<decoded.length; i++)
+                    decoded[i] = readNextTuple(dis,i);
+            }catch(NoSuchElementException e){
+                e.printStackTrace();
+            }
+            tuples = decoded;
+            data = null;
+        }
+        return tuples;
+    }
+
     /** Retrieve the number of tuples on this page.
      @return the number of tuples on this page
      */
@@ -184,6 +206,13 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        Tuple[] tuples;
+        synchronized (this) {
+            // the page cannot have changed before its tuples were decoded
+            if (this.tuples == null)
+                return data.clone();
+            tuples = this.tuples;
+        }
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -269,6 +298,7 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         RecordId recordId=t.getRecordId(); //获取id
+        Tuple[] tuples = tuples();
         for (int i = 0; i < numSlots; i++) {
             if (isSlotUsed(i) && recordId.equals(tuples[i].getRecordId())) {
                 markSlotUsed(i, false);
@@ -295,6 +325,7 @@ public class HeapPage implements Page {
         if(!t.getTupleDesc().equals(td)){
             throw new DbException("TupleDesc mismatched");
         }
+        Tuple[] tuples = tuples();
         for(int i=0;i<numSlots;i++){
             if(!isSlotUsed(i)){
                 markSlotUsed(i,true);
@@ -385,6 +416,7 @@ public class HeapPage implements Page {
     protected class HeapPageTupleIterator implements Iterator{ //为了实现对于remove的要求
         private final Iterator<Tuple> tupleIterator;
         public HeapPageTupleIterator(){
+            Tuple[] tuples=tuples();
             ArrayList<Tuple> tupleArrayList=new ArrayList<>();
             for(int i=0;i<numSlots;i++){
                 if(isSlotUsed(i)){
@@ -416,5 +448,88 @@ public class HeapPage implements Page {
         return new HeapPageTupleIterator();
     }
 
+    /**
+     * @param fields
+     *            the indexes in the table of the fields to return, in the
+     *            order to return them; null to return all fields
+     * @param projected
+     *            the TupleDesc of the returned tuples, whose types must be
+     *            those of the given fields
+     * @return an iterator over the given fields of the tuples on this page
+     *         when it is called, each with the record id of the tuple it was
+     *         read from; the other fields are not decoded
+     */
+    public Iterator<Tuple> iterator(final int[] fields, final TupleDesc projected) {
+        if (fields == null)
+            return iterator();
+        // the slots and tuples as of now, so that the tuples inserted or
+        // deleted while iterating, which decode the page, are not seen
+        final Tuple[] decoded;
+        final byte[] bytes;
+        final byte[] used;
+        synchronized (this) {
+            decoded = tuples == null ? null : tuples.clone();
+            bytes = data;
+            used = header.clone();
+        }
+        final int[] offsets = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            for (int j = 0; j < fields[i]; j++)
+                offsets[i] += td.getFieldType(j).getLen();
+        }
+        return new Iterator<Tuple>() {
+            private int slot = nextSlot(0);
+
+            private int nextSlot(int i) {
+                while (i < numSlots && (used[i / 8] & (1 << (i % 8))) == 0)
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (slot >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(projected);
+                if (decoded != null) {
+                    for (int i = 0; i < fields.length; i++)
+                        t.setField(i, decoded[slot].getField(fields[i]));
+                } else {
+                    int start = header.length + slot * td.getSize();
+                    for (int i = 0; i < fields.length; i++)
+                        t.setField(i, readField(bytes, start + offsets[i],
+                                td.getFieldType(fields[i])));
+                }
+                t.setRecordId(new RecordId(pid, slot));
+                slot = nextSlot(slot + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("TupleIterator: remove not supported");
+            }
+        };
+    }
+
+    /**
+     * @return the field of the given type stored at offset off of bytes
+     */
+    private static Field readField(byte[] bytes, int off, Type type) {
+        if (type == Type.INT_TYPE) {
+            return new IntField((bytes[off] & 0xff) << 24
+                    | (bytes[off + 1] & 0xff) << 16
+                    | (bytes[off + 2] & 0xff) << 8 | bytes[off + 3] & 0xff);
+        }
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(
+                    bytes, off, type.getLen())));
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
 }
 
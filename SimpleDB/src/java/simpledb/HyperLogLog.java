@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values added to it.
+ * <p>
+ * Each value is hashed to 64 bits; the first precision bits choose one of
+ * 2^precision registers, which keeps the largest number of leading zeros
+ * (plus one) seen in the rest of the hashes. The estimate has a relative
+ * standard error of about 1.04 / sqrt(2^precision): 1.6% with a precision of
+ * 12. Sketches of the same precision merge by taking the larger of each
+ * register, so the sketch of a table is the same however its rows are split
+ * between workers. Values cannot be removed.
+ * <p>
+ * The one-byte registers are packed eight to a long. The static methods work
+ * on registers at any offset of a long array, so that {@link AggregateStates}
+ * can keep a sketch per group among its other states.
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final long[] words;
+
+    /**
+     * @param precision
+     *            the number of hash bits choosing a register, from 4 to 18
+     */
+    public HyperLogLog(int precision) {
+        this.precision = checkPrecision(precision);
+        this.words = new long[words(precision)];
+    }
+
+    private HyperLogLog(int precision, long[] words) {
+        this.precision = precision;
+        this.words = words;
+    }
+
+    private static int checkPrecision(int precision) {
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("precision must be from 4 to 18");
+        return precision;
+    }
+
+    /**
+     * @return the number of longs holding the registers of a sketch of the
+     *         given precision
+     */
+    static int words(int precision) {
+        return (1 << precision) / 8;
+    }
+
+    private static long mix(long x) {
+        // SplitMix64: adding the constant keeps 0 from hashing to 0
+        x += 0x9e3779b97f4a7c15L;
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * @return the 64-bit hash of a field's value added to a sketch
+     */
+    static long hash(Field f) {
+        if (f instanceof IntField)
+            return mix(((IntField) f).getValue());
+        String s = ((StringField) f).getValue();
+        // FNV-1a over the characters
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static int register(long[] words, int base, int i) {
+        return (int) (words[base + (i >>> 3)] >>> ((i & 7) * 8)) & 0xff;
+    }
+
+    /**
+     * Adds a hashed value to the sketch of the given precision whose
+     * registers are at words[base..base+words(precision)).
+     */
+    static void addHash(long[] words, int base, int precision, long hash) {
+        int i = (int) (hash >>> (64 - precision));
+        long rest = hash << precision;
+        int rank = rest == 0 ? 64 - precision + 1
+                : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > register(words, base, i)) {
+            int shift = (i & 7) * 8;
+            int w = base + (i >>> 3);
+            words[w] = (words[w] & ~(0xffL << shift)) | ((long) rank << shift);
+        }
+    }
+
+    /**
+     * Merges the sketch at from[fromBase..) into the one at into[intoBase..),
+     * both of the given precision.
+     */
+    static void merge(long[] into, int intoBase, long[] from, int fromBase,
+            int precision) {
+        for (int w = 0; w < words(precision); w++) {
+            long a = into[intoBase + w], b = from[fromBase + w];
+            if (a == b)
+                continue;
+            long m = 0;
+            for (int shift = 0; shift < 64; shift += 8) {
+                long ra = (a >>> shift) & 0xff, rb = (b >>> shift) & 0xff;
+                m |= Math.max(ra, rb) << shift;
+            }
+            into[intoBase + w] = m;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     *         of the given precision at words[base..)
+     */
+    static double estimate(long[] words, int base, int precision) {
+        int m = 1 << precision;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++) {
+            int r = register(words, base, i);
+            if (r == 0)
+                zeros++;
+            sum += Double.longBitsToDouble((1023L - r) << 52);
+        }
+        double alpha;
+        if (m == 16)
+            alpha = 0.673;
+        else if (m == 32)
+            alpha = 0.697;
+        else if (m == 64)
+            alpha = 0.709;
+        else
+            alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        // few values leave registers empty: count those instead
+        if (e <= 2.5 * m && zeros > 0)
+            return m * Math.log((double) m / zeros);
+        return e;
+    }
+
+    /**
+     * Adds a field's value to the sketch.
+     */
+    public void add(Field f) {
+        addHash(words, 0, precision, hash(f));
+    }
+
+    /**
+     * Adds the values of another sketch of the same precision to this one.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("cannot merge sketches of precision "
+                    + other.precision + " into " + precision);
+        merge(words, 0, other.words, 0, precision);
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public double estimate() {
+        return estimate(words, 0, precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public HyperLogLog copy() {
+        return new HyperLogLog(precision, words.clone());
+    }
+
+    /**
+     * Writes the sketch so that {@link #read} can recreate it.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(precision);
+        for (long w : words)
+            out.writeLong(w);
+    }
+
+    /**
+     * Reads a sketch written by {@link #write}.
+     *
+     * @throws IOException
+     *             if the input does not hold a sketch
+     */
+    static HyperLogLog read(DataInput in) throws IOException {
+        int precision = in.readByte();
+        if (precision < 4 || precision > 18)
+            throw new IOException("bad sketch precision " + precision);
+        long[] words = new long[words(precision)];
+        for (int w = 0; w < words.length; w++)
+            words[w] = in.readLong();
+        return new HyperLogLog(precision, words);
+    }
+
+    public String toString() {
+        return String.format("HyperLogLog(precision=%d, estimate=%.0f)",
+                precision, estimate());
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof HyperLogLog && ((HyperLogLog) o).precision == precision
+                && Arrays.equals(words, ((HyperLogLog) o).words);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
@@ -0,0 +1,324 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin implements an equi-join whose inner relation is a
+ * {@link BTreeFile} keyed on the join column. Instead of rescanning the inner
+ * table for every outer tuple, it probes the index with
+ * {@link BTreeFile#indexIterator} once per distinct outer key.
+ * <p>
+ * Outer tuples are read in batches of {@link #BATCH_SIZE} and sorted on the
+ * join key before probing, so that consecutive probes walk the tree in key
+ * order (and hit the same leaf pages in the buffer pool), and so that
+ * duplicate outer keys share a single probe. As a consequence, the output is
+ * ordered by the join key within each batch rather than by the outer input
+ * order.
+ * <p>
+ * The join may return only some fields of the inner table: the inner filters
+ * are tested on the tuples read from the index, and only the tuples that pass
+ * them are narrowed to the returned fields.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of outer tuples sorted and probed together. */
+    public static final int BATCH_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private final TransactionId tid;
+    private final int innerTableId;
+    private final String innerAlias;
+    // the fields of the inner table the join returns, or null for all
+    private final int[] innerFields;
+    private final Predicate[] innerFilters;
+    private final PredicateCompiler.TupleTest innerTest;
+    private final TupleDesc innerTD;
+    private final TupleDesc comboTD;
+
+    transient private ArrayList<Tuple> batch = new ArrayList<Tuple>();
+    transient private int batchPos = 0;
+    transient private Tuple t1 = null;
+    transient private Field matchesKey = null;
+    transient private ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    transient private int matchPos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            equality whose second field is the key field of the inner
+     *            BTreeFile
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the index probes run as a part of
+     * @param tableid
+     *            The id of the inner table, which must be a BTreeFile
+     * @param tableAlias
+     *            The alias of the inner table, used to name its fields
+     *            (alias.fieldName), as in {@link BTreeScan}
+     * @param innerFilters
+     *            Predicates over the inner table's fields that each probed
+     *            tuple must also satisfy (may be empty)
+     * @throws IllegalArgumentException
+     *             if the inner table is not a BTreeFile keyed on the join
+     *             field, or the predicate is not an equality
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1,
+            TransactionId tid, int tableid, String tableAlias,
+            Predicate... innerFilters) {
+        this(p, child1, tid, tableid, tableAlias, null, innerFilters);
+    }
+
+    /**
+     * Constructor for a join that returns only some fields of the inner
+     * table. The second field of the join predicate and the fields of the
+     * inner filters are indexes into the returned inner fields.
+     *
+     * @param innerFields
+     *            the indexes in the inner table of the fields to return, in
+     *            the order to return them; null to return all fields
+     * @see #IndexNestedLoopJoin(JoinPredicate, OpIterator, TransactionId,
+     *      int, String, Predicate...)
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1,
+            TransactionId tid, int tableid, String tableAlias,
+            int[] innerFields, Predicate... innerFilters) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile))
+            throw new IllegalArgumentException("inner table " + tableid
+                    + " is not a BTreeFile");
+        TupleDesc td = f.getTupleDesc();
+        if (innerFields != null) {
+            for (int i : innerFields) {
+                if (i < 0 || i >= td.numFields())
+                    throw new IllegalArgumentException("no field " + i
+                            + " in inner table " + tableid);
+            }
+            innerFields = innerFields.clone();
+        }
+        if (((BTreeFile) f).keyField() != tableField(innerFields, p.getField2()))
+            throw new IllegalArgumentException(
+                    "join field is not the key field of the inner BTreeFile");
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "index nested loop join only supports equality predicates");
+        this.pred = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.innerTableId = tableid;
+        this.innerAlias = tableAlias;
+        this.innerFields = innerFields;
+        this.innerFilters = innerFilters;
+        // the filters are tested on the whole tuples read from the index
+        Predicate[] tableFilters = new Predicate[innerFilters.length];
+        for (int i = 0; i < innerFilters.length; i++) {
+            Predicate ip = innerFilters[i];
+            tableFilters[i] = new Predicate(tableField(innerFields, ip.getField()),
+                    ip.getOp(), ip.getOperand());
+        }
+        this.innerTest = PredicateCompiler.and(tableFilters);
+
+        int n = innerFields == null ? td.numFields() : innerFields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            int tf = tableField(innerFields, i);
+            types[i] = td.getFieldType(tf);
+            names[i] = tableAlias + "." + td.getFieldName(tf);
+        }
+        this.innerTD = new TupleDesc(types, names);
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), innerTD);
+    }
+
+    private static int tableField(int[] fields, int i) {
+        return fields == null ? i : fields[i];
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the id of the inner (indexed) table
+     */
+    public int getInnerTableId() {
+        return innerTableId;
+    }
+
+    /**
+     * @return the alias of the inner (indexed) table
+     */
+    public String getInnerAlias() {
+        return innerAlias;
+    }
+
+    /**
+     * @return the indexes in the inner table of the inner fields the join
+     *         returns, or null if it returns all of them
+     */
+    public int[] getInnerFields() {
+        return innerFields == null ? null : innerFields.clone();
+    }
+
+    /**
+     * @return the transaction the index is probed as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the predicates applied to the probed inner tuples
+     */
+    public Predicate[] getInnerPredicates() {
+        return innerFilters;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return innerTD.getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        resetState();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        resetState();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        resetState();
+    }
+
+    private void resetState() {
+        batch.clear();
+        batchPos = 0;
+        t1 = null;
+        matchesKey = null;
+        matches.clear();
+        matchPos = 0;
+    }
+
+    /**
+     * Reads the next batch of outer tuples and sorts it on the join key.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext())
+            batch.add(child1.next());
+        final int f1 = pred.getField1();
+        Collections.sort(batch, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                Field x = a.getField(f1);
+                Field y = b.getField(f1);
+                if (x.compare(Predicate.Op.LESS_THAN, y))
+                    return -1;
+                return x.equals(y) ? 0 : 1;
+            }
+        });
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Probes the index for all inner tuples whose key equals the given key
+     * and which pass the inner filters.
+     */
+    private void probe(Field key) throws DbException,
+            TransactionAbortedException {
+        matches.clear();
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                innerTableId);
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(
+                Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (innerTest.test(t))
+                    matches.add(narrow(t));
+            }
+        } finally {
+            it.close();
+        }
+        matchesKey = key;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each result is the concatenation of an outer tuple and a
+     * matching inner tuple, as in {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && matchPos < matches.size())
+                return merge(t1, matches.get(matchPos++));
+
+            if (batchPos >= batch.size() && !loadBatch())
+                return null;
+
+            t1 = batch.get(batchPos++);
+            Field key = t1.getField(pred.getField1());
+            // the batch is sorted, so equal keys are adjacent and can reuse
+            // the matches of the previous probe
+            if (matchesKey == null || !matchesKey.equals(key))
+                probe(key);
+            matchPos = 0;
+        }
+    }
+
+    private Tuple narrow(Tuple t) {
+        if (innerFields == null)
+            return t;
+        Tuple p = new Tuple(innerTD);
+        for (int i = 0; i < innerFields.length; i++)
+            p.setField(i, t.getField(innerFields[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
+    private Tuple merge(Tuple outer, Tuple inner) {
+        int td1n = outer.getTupleDesc().numFields();
+        int td2n = innerTD.numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, outer.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, inner.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+    }
+
+}
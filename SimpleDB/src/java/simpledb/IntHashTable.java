@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from int keys to dense ids.
+ * <p>
+ * The i-th distinct key inserted gets id i, so callers keep whatever they
+ * need per key (aggregate states, chains of tuples, ...) in plain arrays
+ * indexed by id, instead of in boxed map values. Lookups use linear probing
+ * over a power-of-two array of ids, and keys are stored once, by id, so the
+ * table costs about 12 bytes per key at the maximum load factor, against
+ * roughly 50 for a HashMap&lt;Field,Integer&gt; entry with its boxed key and
+ * value.
+ * <p>
+ * Keys cannot be removed; {@link #clear()} empties the table.
+ */
+public class IntHashTable {
+
+    private static final int EMPTY = -1;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // slots[h] is the id of the key hashed to h, or EMPTY
+    private int[] slots;
+    private int mask;
+    // keys[id] is the key with that id
+    private int[] keys;
+    private int size = 0;
+    private int resizeAt;
+
+    public IntHashTable() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of keys the table should hold without resizing
+     */
+    public IntHashTable(int expectedSize) {
+        int cap = 16;
+        while (cap * LOAD_FACTOR < expectedSize)
+            cap <<= 1;
+        allocate(cap);
+        keys = new int[Math.max(16, expectedSize)];
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the key with the given id
+     */
+    public int keyAt(int id) {
+        return keys[id];
+    }
+
+    /**
+     * @return the id of key, or -1 if the key is not in the table
+     */
+    public int find(int key) {
+        for (int h = hash(key) & mask;; h = (h + 1) & mask) {
+            int id = slots[h];
+            if (id == EMPTY)
+                return -1;
+            if (keys[id] == key)
+                return id;
+        }
+    }
+
+    /**
+     * Returns the id of key, adding the key with the next id ({@link #size()}
+     * before the call) if it is not yet in the table.
+     */
+    public int findOrInsert(int key) {
+        int h = hash(key) & mask;
+        for (;; h = (h + 1) & mask) {
+            int id = slots[h];
+            if (id == EMPTY)
+                break;
+            if (keys[id] == key)
+                return id;
+        }
+        int id = size++;
+        if (id == keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        keys[id] = key;
+        slots[h] = id;
+        if (size > resizeAt)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        allocate(slots.length * 2);
+        for (int id = 0; id < size; id++) {
+            int h = hash(keys[id]) & mask;
+            while (slots[h] != EMPTY)
+                h = (h + 1) & mask;
+            slots[h] = id;
+        }
+    }
+
+    /**
+     * Removes all keys; ids are handed out from 0 again.
+     */
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the table
+     */
+    public long memoryBytes() {
+        return 4L * slots.length + 4L * keys.length + 32;
+    }
+}
@@ -1,27 +1,159 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
+ * <p>
+ * A histogram made with {@link #IntHistogram(int)} does not need to know the
+ * range of its values in advance, so that it can be filled in one pass over
+ * a table: its buckets are as narrow as the values seen so far allow, a power
+ * of two wide and aligned to a multiple of their width. When a value falls
+ * outside them, adjacent buckets are merged pairwise, doubling their width,
+ * until the buckets cover all values. Counts are never split, so the
+ * histogram is the same as one built over the final range with buckets of
+ * the final width.
  */
 public class IntHistogram {
 
+    private final int buckets;
+    private final boolean adaptive;
+    private final int[] counts;
+    // bucket i holds the values in [lo + i * width, lo + (i + 1) * width);
+    // when adaptive, lo and width are integers and lo is a multiple of width
+    private double lo;
+    private double width;
+    // the smallest and largest values that were added, or that can be added
+    private int min, max;
+    private int ntups = 0;
+
     /**
      * Create a new IntHistogram.
-     * 
+     *
      * This IntHistogram should maintain a histogram of integer values that it receives.
      * It should split the histogram into "buckets" buckets.
-     * 
+     *
      * The values that are being histogrammed will be provided one-at-a-time through the "addValue()" function.
-     * 
+     *
      * Your implementation should use space and have execution time that are both
-     * constant with respect to the number of values being histogrammed.  For example, you shouldn't 
+     * constant with respect to the number of values being histogrammed.  For example, you shouldn't
      * simply store every value that you see in a sorted list.
-     * 
+     *
      * @param buckets The number of buckets to split the input value into.
      * @param min The minimum integer value that will ever be passed to this class for histogramming
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
     	// some code goes here
+        if (buckets < 1 || min > max)
+            throw new IllegalArgumentException("need at least one bucket and min <= max");
+        this.buckets = buckets;
+        this.adaptive = false;
+        this.counts = new int[buckets];
+        this.lo = min;
+        this.width = ((double) max - min + 1) / buckets;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Create a new IntHistogram whose buckets adapt to the values added.
+     *
+     * @param buckets The number of buckets to split the input value into.
+     */
+    public IntHistogram(int buckets) {
+        if (buckets < 1)
+            throw new IllegalArgumentException("need at least one bucket");
+        this.buckets = buckets;
+        this.adaptive = true;
+        this.counts = new int[buckets];
+        this.lo = 0;
+        this.width = 1;
+        this.min = Integer.MAX_VALUE;
+        this.max = Integer.MIN_VALUE;
+    }
+
+    private IntHistogram(int buckets, boolean adaptive) {
+        this.buckets = buckets;
+        this.adaptive = adaptive;
+        this.counts = new int[buckets];
+    }
+
+    /**
+     * Writes this histogram so that {@link #read} can recreate it.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(buckets);
+        out.writeBoolean(adaptive);
+        out.writeDouble(lo);
+        out.writeDouble(width);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeInt(ntups);
+        for (int c : counts)
+            out.writeInt(c);
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     *
+     * @throws IOException
+     *             if the input does not hold a histogram
+     */
+    public static IntHistogram read(DataInput in) throws IOException {
+        int buckets = in.readInt();
+        if (buckets < 1)
+            throw new IOException("bad histogram bucket count " + buckets);
+        IntHistogram h = new IntHistogram(buckets, in.readBoolean());
+        h.lo = in.readDouble();
+        h.width = in.readDouble();
+        h.min = in.readInt();
+        h.max = in.readInt();
+        h.ntups = in.readInt();
+        for (int i = 0; i < buckets; i++)
+            h.counts[i] = in.readInt();
+        return h;
+    }
+
+    private int bucket(int v) {
+        int b = (int) Math.floor((v - lo) / width);
+        return Math.max(0, Math.min(buckets - 1, b));
+    }
+
+    /**
+     * @return the number of integers in bucket b that lie between min and
+     *         max, at least 1
+     */
+    private double valuesIn(int b) {
+        double from = Math.max(Math.ceil(lo + b * width), min);
+        double to = Math.min(Math.ceil(lo + (b + 1) * width), (double) max + 1);
+        return Math.max(1, to - from);
+    }
+
+    /**
+     * Widens the buckets of an adaptive histogram until they cover the
+     * values from newMin to newMax, and at least minWidth wide.
+     */
+    private void cover(int newMin, int newMax, long minWidth) {
+        long w = Math.max((long) width, minWidth);
+        while (Math.floorDiv(newMax, w) - Math.floorDiv(newMin, w) >= buckets)
+            w *= 2;
+        long newLo = Math.floorDiv(newMin, w) * w;
+        if (ntups > 0 && (w != (long) width || newLo != (long) lo)) {
+            int[] old = counts.clone();
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < buckets; i++) {
+                if (old[i] != 0)
+                    counts[(int) (Math.floorDiv((long) lo + i * (long) width, w)
+                            - newLo / w)] += old[i];
+            }
+        }
+        lo = newLo;
+        width = w;
+        min = newMin;
+        max = newMax;
     }
 
     /**
@@ -30,14 +162,106 @@ public class IntHistogram {
      */
     public void addValue(int v) {
     	// some code goes here
+        if (v < min || v > max) {
+            if (adaptive) {
+                cover(ntups == 0 ? v : Math.min(min, v),
+                        ntups == 0 ? v : Math.max(max, v), 1);
+            } else {
+                // out of the declared range: counted in the nearest bucket
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        counts[bucket(v)]++;
+        ntups++;
+    }
+
+    /**
+     * Removes a value that was added to the histogram. The range of the
+     * histogram is not narrowed, so min and max may be values that are no
+     * longer in it.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        if (ntups == 0 || v < min || v > max)
+            return;
+        int b = bucket(v);
+        if (counts[b] > 0) {
+            counts[b]--;
+            ntups--;
+        }
+    }
+
+    /**
+     * Adds the values of another histogram to this one. Both must be
+     * adaptive, or have the same buckets.
+     *
+     * @throws IllegalArgumentException
+     *             if the buckets of the histograms do not line up
+     */
+    public void merge(IntHistogram other) {
+        if (other.ntups == 0)
+            return;
+        if (adaptive && other.adaptive) {
+            if (ntups == 0)
+                cover(other.min, other.max, (long) other.width);
+            else
+                cover(Math.min(min, other.min), Math.max(max, other.max),
+                        (long) other.width);
+            // other's buckets are aligned on a divisor of this width
+            for (int i = 0; i < other.buckets; i++) {
+                if (other.counts[i] != 0)
+                    counts[(int) (Math.floorDiv((long) other.lo + i * (long) other.width,
+                            (long) width) - (long) lo / (long) width)] += other.counts[i];
+            }
+        } else if (!adaptive && !other.adaptive && buckets == other.buckets
+                && lo == other.lo && width == other.width) {
+            for (int i = 0; i < buckets; i++)
+                counts[i] += other.counts[i];
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        } else {
+            throw new IllegalArgumentException("histogram buckets do not line up");
+        }
+        ntups += other.ntups;
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public int numValues() {
+        return ntups;
+    }
+
+    /**
+     * @return the fraction of the values that are greater than v
+     */
+    private double greaterThan(int v) {
+        if (v < min)
+            return 1.0;
+        if (v >= max)
+            return 0.0;
+        int b = bucket(v);
+        double to = Math.min(Math.ceil(lo + (b + 1) * width), (double) max + 1);
+        double above = counts[b] * Math.max(0, to - v - 1) / valuesIn(b);
+        for (int i = b + 1; i < buckets; i++)
+            above += counts[i];
+        return Math.min(1.0, above / ntups);
+    }
+
+    private double equalTo(int v) {
+        if (v < min || v > max)
+            return 0.0;
+        int b = bucket(v);
+        return Math.min(1.0, counts[b] / valuesIn(b) / ntups);
     }
 
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
-     * 
-     * For example, if "op" is "GREATER_THAN" and "v" is 5, 
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
      * return your estimate of the fraction of elements that are greater than 5.
-     * 
+     *
      * @param op Operator
      * @param v Value
      * @return Predicted selectivity of this particular operator and value
@@ -45,13 +269,31 @@ public class IntHistogram {
     public double estimateSelectivity(Predicate.Op op, int v) {
 
     	// some code goes here
-        return -1.0;
+        if (ntups == 0)
+            return 0.0;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equalTo(v);
+        case NOT_EQUALS:
+            return 1.0 - equalTo(v);
+        case GREATER_THAN:
+            return greaterThan(v);
+        case GREATER_THAN_OR_EQ:
+            return v == Integer.MIN_VALUE ? 1.0 : greaterThan(v - 1);
+        case LESS_THAN:
+            return v == Integer.MIN_VALUE ? 0.0 : 1.0 - greaterThan(v - 1);
+        case LESS_THAN_OR_EQ:
+            return 1.0 - greaterThan(v);
+        default:
+            throw new IllegalArgumentException("unsupported operator " + op);
+        }
     }
-    
+
     /**
      * @return
      *     the average selectivity of this histogram.
-     *     
+     *
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
      *     implement a more efficient optimization
@@ -59,14 +301,23 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        if (ntups == 0)
+            return 1.0;
+        // the selectivity of an equality with the value of a random tuple
+        double sum = 0;
+        for (int i = 0; i < buckets; i++) {
+            double f = (double) counts[i] / ntups;
+            sum += f * f / valuesIn(i);
+        }
+        return sum;
     }
-    
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
         // some code goes here
-        return null;
+        return String.format("IntHistogram(%d values in [%d, %d], %d buckets of width %s from %s: %s)",
+                ntups, min, max, buckets, width, lo, Arrays.toString(counts));
     }
 }
@@ -0,0 +1,191 @@
+package simpledb;
+
+/**
+ * The join graph of a query: a node per relation, and an edge between two
+ * relations joined by a predicate. Sets of relations are bitmasks of their
+ * node numbers, so a graph has at most 64 nodes.
+ * <p>
+ * {@link #enumerateCsgCmpPairs} lists the pairs of sets of relations that a
+ * dynamic program over bushy join trees without cross products has to
+ * consider, following the DPccp algorithm of Moerkotte and Neumann
+ * ("Analysis of two existing and one new dynamic programming algorithm for
+ * the generation of optimal bushy join trees without cross products", VLDB
+ * 2006): each connected subgraph (csg) S1, and each connected subgraph S2
+ * disjoint from it but joined to it by an edge (its complement, cmp). Every
+ * such unordered pair is listed exactly once, and a pair is only listed
+ * once all pairs making up S1 and S2 have been, so that their best plans are
+ * known. Only connected sets are ever visited. The consumer may stop the
+ * enumeration early, when it has run out of time.
+ */
+final class JoinGraph {
+
+    /** Receives the csg-cmp pairs of a graph. */
+    interface PairConsumer {
+        /** @return false to stop the enumeration */
+        boolean pair(long s1, long s2);
+    }
+
+    private final long[] adj;
+
+    /**
+     * @param n
+     *            the number of relations, at most 64
+     */
+    JoinGraph(int n) {
+        if (n < 0 || n > 64)
+            throw new IllegalArgumentException("a join graph has at most 64 relations");
+        adj = new long[n];
+    }
+
+    int numRelations() {
+        return adj.length;
+    }
+
+    void addEdge(int a, int b) {
+        if (a != b) {
+            adj[a] |= 1L << b;
+            adj[b] |= 1L << a;
+        }
+    }
+
+    /**
+     * @return the set of relations joined to relation r
+     */
+    long neighbors(int r) {
+        return adj[r];
+    }
+
+    /**
+     * @return the relations joined to a relation of s that are neither in s
+     *         nor in x
+     */
+    long neighborhood(long s, long x) {
+        long n = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1)
+            n |= adj[Long.numberOfTrailingZeros(rest)];
+        return n & ~s & ~x;
+    }
+
+    /**
+     * @return true if s is not empty and its relations are connected by the
+     *         edges between them
+     */
+    boolean isConnected(long s) {
+        if (s == 0)
+            return false;
+        long reached = Long.lowestOneBit(s);
+        long frontier = reached;
+        while (frontier != 0) {
+            frontier = neighborhood(frontier, reached) & s;
+            reached |= frontier;
+        }
+        return reached == s;
+    }
+
+    /**
+     * @return true if an edge joins a relation of a to a relation of b
+     */
+    boolean joins(long a, long b) {
+        return (neighborhood(a, 0) & b) != 0;
+    }
+
+    /**
+     * @return the relations numbered up to and including i
+     */
+    private static long upTo(int i) {
+        return i == 63 ? -1L : (1L << (i + 1)) - 1;
+    }
+
+    /**
+     * Renumbers the relations in breadth-first order from relation 0, as
+     * DPccp requires; relations not connected to it follow, each component
+     * numbered breadth-first in turn.
+     *
+     * @return order[k], the relation numbered k
+     */
+    int[] breadthFirstOrder() {
+        int n = adj.length;
+        int[] order = new int[n];
+        long seen = 0;
+        int head = 0, tail = 0;
+        for (int start = 0; start < n; start++) {
+            if ((seen & (1L << start)) != 0)
+                continue;
+            seen |= 1L << start;
+            order[tail++] = start;
+            while (head < tail) {
+                int r = order[head++];
+                for (long next = adj[r] & ~seen; next != 0; next &= next - 1) {
+                    int b = Long.numberOfTrailingZeros(next);
+                    seen |= 1L << b;
+                    order[tail++] = b;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Lists the csg-cmp pairs of the graph, whose relations must be numbered
+     * breadth-first (see {@link #breadthFirstOrder}). For each pair (s1, s2),
+     * s1 holds the lowest-numbered relation of the two.
+     *
+     * @return false if the consumer stopped the enumeration
+     */
+    boolean enumerateCsgCmpPairs(PairConsumer out) {
+        for (int i = adj.length - 1; i >= 0; i--) {
+            long v = 1L << i;
+            if (!emitCsg(v, out) || !enumerateCsgRec(v, upTo(i), out))
+                return false;
+        }
+        return true;
+    }
+
+    /** Extends the csg s by neighbours not in x, emitting each extension. */
+    private boolean enumerateCsgRec(long s, long x, PairConsumer out) {
+        long n = neighborhood(s, x);
+        if (n == 0)
+            return true;
+        // the subsets of n in increasing order
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n) {
+            if (!emitCsg(s | sub, out))
+                return false;
+        }
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n) {
+            if (!enumerateCsgRec(s | sub, x | n, out))
+                return false;
+        }
+        return true;
+    }
+
+    /** Emits the pairs of the csg s1 with each of its complements. */
+    private boolean emitCsg(long s1, PairConsumer out) {
+        long x = upTo(Long.numberOfTrailingZeros(s1)) | s1;
+        long n = neighborhood(s1, x);
+        for (long rest = n; rest != 0; ) {
+            int i = 63 - Long.numberOfLeadingZeros(rest);
+            long v = 1L << i;
+            rest &= ~v;
+            if (!out.pair(s1, v)
+                    || !enumerateCmpRec(s1, v, x | (upTo(i) & n), out))
+                return false;
+        }
+        return true;
+    }
+
+    /** Extends the complement s2 of s1 by neighbours not in x. */
+    private boolean enumerateCmpRec(long s1, long s2, long x, PairConsumer out) {
+        long n = neighborhood(s2, x);
+        if (n == 0)
+            return true;
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n) {
+            if (!out.pair(s1, s2 | sub))
+                return false;
+        }
+        for (long sub = -n & n; sub != 0; sub = (sub - n) & n) {
+            if (!enumerateCmpRec(s1, s2 | sub, x | n, out))
+                return false;
+        }
+        return true;
+    }
+}
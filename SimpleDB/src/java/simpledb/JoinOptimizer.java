@@ -14,6 +14,45 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** Queries joining at most this many tables are ordered exhaustively */
+    public static final int DEFAULT_EXHAUSTIVE_LIMIT = 18;
+    /** The default time to spend ordering the joins of a query, in milliseconds */
+    public static final long DEFAULT_PLANNING_BUDGET = 1000;
+
+    private static volatile int exhaustiveLimit = DEFAULT_EXHAUSTIVE_LIMIT;
+    private static volatile long planningBudget = DEFAULT_PLANNING_BUDGET;
+
+    // the state of orderJoins: the tables by alias, the join graph, each
+    // predicate between two tables (an edge) with either table as t1, the
+    // tables it joins, whether its fields are their primary keys and its
+    // selectivity from histograms (-1 if none), the edges of each table, and
+    // the best plans found so far
+    private HashMap<String, Integer> relations;
+    private JoinGraph graph;
+    private LogicalJoinNode[] forward, backward;
+    private int[] edgeT1, edgeT2;
+    private boolean[] t1Pkey, t2Pkey;
+    private double[] edgeSelectivity;
+    private int[][] incident;
+    private Map<String, TableStats> stats;
+    // the selectivities of the predicates the tables read through an index
+    // are read with, by alias
+    private Map<String, Double> indexSelectivities;
+    private PlanCache pc;
+    // when planning started, and the pairs of plans joined since
+    private long planningStart;
+    private int pairsJoined;
+    private double planCost;
+
+    /** The cheapest join of the plans of two sets of tables found. */
+    private static class JoinChoice {
+        double cost;
+        int card;
+        long left;
+        LogicalJoinNode join;
+        LogicalJoinNode.Algorithm algorithm;
+    }
+
     /**
      * Constructor
      * 
@@ -27,6 +66,27 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Sets the largest number of tables whose joins {@link #orderJoins}
+     * orders exhaustively; it orders the joins of more tables greedily.
+     */
+    public static void setExhaustiveLimit(int tables) {
+        if (tables < 0)
+            throw new IllegalArgumentException("limit must be at least 0");
+        exhaustiveLimit = tables;
+    }
+
+    /**
+     * Sets the time {@link #orderJoins} may spend searching for the best
+     * order of the joins of a query, in milliseconds, after which it
+     * returns the best order found so far; Long.MAX_VALUE never stops it.
+     */
+    public static void setPlanningBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("budget must be at least 0");
+        planningBudget = millis;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,12 +128,122 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj instanceof LogicalSubplanJoinNode
+                && ((LogicalSubplanJoinNode) lj).kind != LogicalSubplanJoinNode.Kind.JOIN) {
+            // IN, EXISTS and their negations only filter plan1
+            j = new HashSemiJoin(p, plan1, plan2,
+                    ((LogicalSubplanJoinNode) lj).kind == LogicalSubplanJoinNode.Kind.ANTI);
+        } else {
+            j = instantiateJoin(algorithm(lj, plan2, t2id), p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Create a filter that applies a join between two tables that are both
+     * joined into plan already.
+     *
+     * @param lj
+     *            The join being applied; not a join with a subquery
+     * @param plan
+     *            The plan both tables of the join are read by
+     * @return A JoinFilter over plan
+     * @throws ParsingException
+     *             if a field of the join is not a field of plan
+     */
+    public static OpIterator instantiateJoinFilter(LogicalJoinNode lj,
+            OpIterator plan) throws ParsingException {
+        int[] ids = new int[2];
+        String[] names = { lj.f1QuantifiedName, lj.f2QuantifiedName };
+        for (int i = 0; i < 2; i++) {
+            try {
+                ids[i] = plan.getTupleDesc().fieldNameToIndex(names[i]);
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown field " + names[i]);
+            }
+        }
+        return new JoinFilter(new JoinPredicate(ids[0], lj.p, ids[1]), plan);
+    }
+
+    /**
+     * @return the algorithm to evaluate lj with: the one the optimizer chose,
+     *         or if it chose none, an index if the inner side can be probed
+     *         through one and nested loops otherwise
+     */
+    private static LogicalJoinNode.Algorithm algorithm(LogicalJoinNode lj,
+            OpIterator plan2, int t2id) {
+        boolean indexed = !(lj instanceof LogicalSubplanJoinNode)
+                && canUseIndex(lj.p, plan2, t2id);
+        LogicalJoinNode.Algorithm a = lj.algorithm;
+        if (a == null)
+            a = indexed ? LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS
+                    : LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        else if (a == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS && !indexed)
+            // the optimizer only chooses an index when the inner side is a
+            // table; hashing is the next best for an equality
+            a = LogicalJoinNode.Algorithm.HASH;
+        if (a == LogicalJoinNode.Algorithm.HASH && lj.p != Predicate.Op.EQUALS)
+            a = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        return a;
+    }
+
+    private static OpIterator instantiateJoin(LogicalJoinNode.Algorithm a,
+            JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        if (a == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS) {
+            // the inner side is a (possibly filtered) scan of a B+ tree keyed
+            // on the join field: probe the index instead of scanning it
+            ArrayList<Predicate> innerFilters = new ArrayList<Predicate>();
+            OpIterator inner = plan2;
+            while (inner instanceof Filter) {
+                innerFilters.addAll(Arrays.asList(((Filter) inner).getPredicates()));
+                inner = ((Filter) inner).getChildren()[0];
+            }
+            // the filters above a BTreeScan include the predicate it reads
+            // a range of the index with, so probing can replace it
+            Predicate[] preds = innerFilters.toArray(new Predicate[0]);
+            if (inner instanceof BTreeScan) {
+                BTreeScan bs = (BTreeScan) inner;
+                return new IndexNestedLoopJoin(p, plan1, bs.getTransactionId(),
+                        bs.getTableId(), bs.getAlias(), bs.getFields(), preds);
+            }
+            SeqScan ss = (SeqScan) inner;
+            return new IndexNestedLoopJoin(p, plan1, ss.getTransactionId(),
+                    ss.getTableId(), ss.getAlias(), ss.getFields(), preds);
+        } else if (a == LogicalJoinNode.Algorithm.HASH) {
+            return new HashEquiJoin(p, plan1, plan2);
+        } else {
+            return new Join(p, plan1, plan2);
+        }
+    }
+
+    /**
+     * Return true if the given subplan is a SeqScan or BTreeScan (optionally
+     * under a chain of filters) of a BTreeFile whose key field is innerField,
+     * so that an equality join on innerField can be evaluated with an
+     * {@link IndexNestedLoopJoin}. innerField is an index into the fields the
+     * scan returns.
+     */
+    static boolean canUseIndex(Predicate.Op op, OpIterator plan, int innerField) {
+        if (op != Predicate.Op.EQUALS)
+            return false;
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        int tableId, field;
+        if (plan instanceof SeqScan) {
+            tableId = ((SeqScan) plan).getTableId();
+            field = ((SeqScan) plan).tableField(innerField);
+        } else if (plan instanceof BTreeScan) {
+            tableId = ((BTreeScan) plan).getTableId();
+            field = ((BTreeScan) plan).tableField(innerField);
+        } else {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -82,6 +252,10 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * This is the cost of the cheapest algorithm that can evaluate the join
+     * (see {@link LogicalJoinNode.Algorithm}): nested loops, hashing for an
+     * equality, or probing an index on the right-hand table.
      * 
      * 
      * @param j
@@ -102,19 +276,150 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * @return the algorithm {@link #estimateJoinCost} costs the join with
+     */
+    public LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2) {
+        JoinChoice choice = new JoinChoice();
+        estimateJoinCost(j, card1, card2, cost1, cost2, true, choice);
+        return choice.algorithm;
+    }
+
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, innerIsTable, null);
+    }
+
+    /**
+     * Estimate the cost of a join whose inner input is a table, or the join
+     * of several; only a table can be probed through an index.
+     *
+     * @param choice
+     *            if not null, its algorithm is set to the cheapest one, or
+     *            to null for a join with a subquery
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable, JoinChoice choice) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
+            if (choice != null)
+                choice.algorithm = null;
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once and the inner once per outer
+            // tuple, applying the predicate to every pair
+            LogicalJoinNode.Algorithm algorithm = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+            double cost = cost1 + card1 * cost2 + (double) card1 * card2;
+            if (j.p == Predicate.Op.EQUALS) {
+                double hashCost = estimateHashJoinCost(card1, card2, cost1, cost2);
+                if (hashCost < cost) {
+                    algorithm = LogicalJoinNode.Algorithm.HASH;
+                    cost = hashCost;
+                }
+            }
+            double indexCost = innerIsTable
+                    ? estimateIndexJoinCost(j, card1, card2, cost1) : -1;
+            if (indexCost >= 0 && indexCost < cost) {
+                algorithm = LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS;
+                cost = indexCost;
+            }
+            if (choice != null)
+                choice.algorithm = algorithm;
+            return cost;
         }
     }
 
+    /**
+     * Estimate the cost of evaluating an equality join with a
+     * {@link HashEquiJoin}: the outer is read once and hashed in batches of
+     * at most {@link HashEquiJoin#MAP_SIZE} tuples, which bounds the memory
+     * the join takes, and the inner is scanned once per batch, each of its
+     * tuples probing the hash table once.
+     */
+    private static double estimateHashJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        double batches = Math.max(1,
+                Math.ceil(card1 / (HashEquiJoin.MAP_SIZE + 1.0)));
+        return cost1 + batches * cost2 + card1 + batches * card2;
+    }
+
+    /**
+     * @return the estimated cost of reading the table with the given alias,
+     *         through its index if orderJoins was told so
+     */
+    private double scanCost(String alias, TableStats ts) {
+        Double sel = indexSelectivities == null ? null
+                : indexSelectivities.get(alias);
+        return sel == null ? ts.estimateScanCost()
+                : ts.estimateIndexScanCost(sel);
+    }
+
+    /**
+     * @return the statistics of a table: those orderJoins is planning with,
+     *         or outside of it those of the catalog
+     */
+    private TableStats statsOf(int tableId) {
+        String name = Database.getCatalog().getTableName(tableId);
+        return stats != null ? stats.get(name) : TableStats.getTableStats(name);
+    }
+
+    /**
+     * Estimate the cost of evaluating j with an {@link IndexNestedLoopJoin},
+     * i.e. scanning the outer once and probing the B+ tree on the inner table
+     * once per outer tuple. Each probe reads one page per level of the tree
+     * plus the leaf pages holding the matching tuples.
+     * 
+     * @return the estimated cost, or -1 if j cannot be evaluated with an index
+     *         (the inner table is not a BTreeFile keyed on the join field, or
+     *         the predicate is not an equality)
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1) {
+        if (j.p != Predicate.Op.EQUALS || j.t2Alias == null)
+            return -1;
+        Integer t2id = p.getTableId(j.t2Alias);
+        if (t2id == null)
+            return -1;
+        DbFile f = Database.getCatalog().getDatabaseFile(t2id);
+        if (!(f instanceof BTreeFile))
+            return -1;
+        BTreeFile bf = (BTreeFile) f;
+        int keyField;
+        try {
+            keyField = bf.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        if (bf.keyField() != keyField)
+            return -1;
+
+        int height = TableStats.indexHeight(bf, bf.numPages());
+
+        // number of inner tuples matching each outer key
+        double matches;
+        if (isPkey(j.t2Alias, j.f2PureName)) {
+            matches = 1;
+        } else {
+            TableStats ts = statsOf(t2id);
+            double sel = ts == null ? 0 : ts.avgSelectivity(keyField,
+                    Predicate.Op.EQUALS);
+            matches = sel > 0 ? sel * card2 : Math.sqrt(card2);
+        }
+        int tuplesPerPage = Math.max(1, (BufferPool.getPageSize() * 8)
+                / (bf.getTupleDesc().getSize() * 8 + 1));
+        double leafPages = Math.ceil(matches / tuplesPerPage);
+
+        double probeCost = (height + leafPages) * TableStats.IOCOSTPERPAGE
+                + matches;
+        return cost1 + card1 * probeCost;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -156,10 +461,92 @@ public class JoinOptimizer {
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
         int card = 1;
-        // some code goes here
+        if (joinOp == Predicate.Op.EQUALS) {
+            // an equality on a primary key matches at most one tuple on that
+            // side, so the result is no larger than the other input
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else {
+                double sel = joinSelectivity(table1Alias, table2Alias,
+                        field1PureName, field2PureName, card1, card2, stats,
+                        tableAliasToId);
+                card = sel < 0 ? Math.max(card1, card2)
+                        : (int) Math.min(Integer.MAX_VALUE,
+                                Math.round(sel * card1 * card2));
+            }
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (int) Math.min(Integer.MAX_VALUE, (long) card1 * card2);
+        } else {
+            // range joins keep a fixed fraction of the cross product
+            card = (int) Math.min(Integer.MAX_VALUE, (long) card1 * card2 * 3 / 10);
+        }
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * @return the selectivity of an equality join of two fields estimated
+     *         from the histograms of their tables (see
+     *         {@link TableStats#estimateJoinSelectivity}), or else as
+     *         1 / max(ndv1, ndv2) from their numbers of distinct values, each
+     *         at most the size of its input; -1 if the tables have no
+     *         statistics
+     */
+    private static double joinSelectivity(String table1Alias,
+            String table2Alias, String field1PureName, String field2PureName,
+            int card1, int card2, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        double sel = histogramSelectivity(table1Alias, table2Alias,
+                field1PureName, field2PureName, stats, tableAliasToId);
+        if (sel >= 0)
+            return sel;
+        Integer id1 = tableAliasToId.get(table1Alias);
+        Integer id2 = tableAliasToId.get(table2Alias);
+        if (id1 == null || id2 == null)
+            return -1;
+        TableStats s1 = stats.get(Database.getCatalog().getTableName(id1));
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(id2));
+        if (s1 == null || s2 == null)
+            return -1;
+        try {
+            int f1 = Database.getCatalog().getTupleDesc(id1).fieldNameToIndex(field1PureName);
+            int f2 = Database.getCatalog().getTupleDesc(id2).fieldNameToIndex(field2PureName);
+            double ndv = Math.max(Math.min(s1.numDistinct(f1), card1),
+                    Math.min(s2.numDistinct(f2), card2));
+            return ndv < 1 ? -1 : 1 / ndv;
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the selectivity of an equality join of two fields estimated
+     *         from the histograms of their tables, which does not depend on
+     *         the sizes of the inputs; -1 if either field has none
+     */
+    private static double histogramSelectivity(String table1Alias,
+            String table2Alias, String field1PureName, String field2PureName,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer id1 = tableAliasToId.get(table1Alias);
+        Integer id2 = tableAliasToId.get(table2Alias);
+        if (id1 == null || id2 == null)
+            return -1;
+        TableStats s1 = stats.get(Database.getCatalog().getTableName(id1));
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(id2));
+        if (s1 == null || s2 == null)
+            return -1;
+        try {
+            int f1 = Database.getCatalog().getTupleDesc(id1).fieldNameToIndex(field1PureName);
+            int f2 = Database.getCatalog().getTupleDesc(id2).fieldNameToIndex(field2PureName);
+            return s1.estimateJoinSelectivity(f1, s2, f2);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -196,6 +583,22 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * The joins are first ordered greedily (see {@link #orderGreedily}),
+     * then, if the query joins at most {@link #setExhaustiveLimit} tables,
+     * by dynamic programming over bushy join trees without cross products
+     * (DPccp; see {@link JoinGraph}) until it completes or the planning
+     * budget (see {@link #setPlanningBudget}) runs out. Sets of tables are
+     * bitmasks of their numbers in the join graph, and the best plan found
+     * for each connected set is kept in a {@link PlanCache} keyed on them:
+     * the cheapest join of the best plans of two connected halves of the
+     * set, with either half as the outer, over any predicate connecting
+     * them. The dynamic program only replaces greedy plans by cheaper ones,
+     * so when it is stopped every set in the cache still has a complete
+     * plan. Joins with subqueries filter a single table, and are applied to
+     * it before it is joined. If a predicate joins two tables that the plan
+     * has already joined through others (the join graph has a cycle), it is
+     * placed at the end of the order.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -207,8 +610,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: each join after the joins of
+     *         both of its inputs.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,175 +621,378 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
-
-        // some code goes here
-        //Replace the following
-        return joins;
+        return orderJoins(stats, filterSelectivities,
+                new HashMap<String, Double>(), explain);
     }
 
-    // ===================== Private Methods =================================
-
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * Compute a logical, reasonably efficient join on the specified tables,
+     * some of which are read through their index rather than scanned.
+     *
+     * @param indexSelectivities
+     *            Selectivities of the predicates on the key with which the
+     *            tables read by a {@link BTreeScan} are read, referenced by
+     *            table alias; the other tables are costed as full scans
+     * @see #orderJoins(HashMap, HashMap, boolean)
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    public Vector<LogicalJoinNode> orderJoins(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+            Map<String, Double> indexSelectivities, boolean explain)
+            throws ParsingException {
+        planningStart = System.nanoTime();
+        pairsJoined = 0;
+        this.stats = stats;
+        this.indexSelectivities = indexSelectivities;
+        // number the tables in the order they appear in, then breadth-first
+        // as DPccp requires
+        ArrayList<String> seen = new ArrayList<String>();
+        HashMap<String, Integer> seenIndex = new HashMap<String, Integer>();
+        ArrayList<LogicalJoinNode> edges = new ArrayList<LogicalJoinNode>();
+        Vector<LogicalJoinNode> subplanJoins = new Vector<LogicalJoinNode>();
+        for (LogicalJoinNode j : joins) {
+            for (String alias : new String[] { j.t1Alias,
+                    j instanceof LogicalSubplanJoinNode ? null : j.t2Alias }) {
+                if (alias != null && !seenIndex.containsKey(alias)) {
+                    seenIndex.put(alias, seen.size());
+                    seen.add(alias);
+                }
+            }
+            if (j instanceof LogicalSubplanJoinNode)
+                subplanJoins.addElement(j);
+            else
+                edges.add(j);
+        }
+        int n = seen.size();
+        if (n > 64)
+            throw new ParsingException("Cannot order the joins of " + n
+                    + " tables; at most 64 are supported");
+        JoinGraph byAppearance = new JoinGraph(n);
+        for (LogicalJoinNode j : edges)
+            byAppearance.addEdge(seenIndex.get(j.t1Alias), seenIndex.get(j.t2Alias));
+        int[] bfs = byAppearance.breadthFirstOrder();
+        String[] aliases = new String[n];
+        relations = new HashMap<String, Integer>();
+        for (int r = 0; r < n; r++) {
+            aliases[r] = seen.get(bfs[r]);
+            relations.put(aliases[r], r);
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        int m = edges.size();
+        graph = new JoinGraph(n);
+        forward = new LogicalJoinNode[m];
+        backward = new LogicalJoinNode[m];
+        edgeT1 = new int[m];
+        edgeT2 = new int[m];
+        t1Pkey = new boolean[m];
+        t2Pkey = new boolean[m];
+        edgeSelectivity = new double[m];
+        int[] degree = new int[n];
+        for (int e = 0; e < m; e++) {
+            forward[e] = edges.get(e);
+            backward[e] = forward[e].swapInnerOuter();
+            edgeT1[e] = relations.get(forward[e].t1Alias);
+            edgeT2[e] = relations.get(forward[e].t2Alias);
+            t1Pkey[e] = isPkey(forward[e].t1Alias, forward[e].f1PureName);
+            t2Pkey[e] = isPkey(forward[e].t2Alias, forward[e].f2PureName);
+            edgeSelectivity[e] = histogramSelectivity(forward[e].t1Alias,
+                    forward[e].t2Alias, forward[e].f1PureName,
+                    forward[e].f2PureName, stats, p.getTableAliasToIdMapping());
+            graph.addEdge(edgeT1[e], edgeT2[e]);
+            degree[edgeT1[e]]++;
+            degree[edgeT2[e]]++;
+        }
+        incident = new int[n][];
+        for (int r = 0; r < n; r++)
+            incident[r] = new int[degree[r]];
+        for (int e = 0; e < m; e++) {
+            incident[edgeT1[e]][--degree[edgeT1[e]]] = e;
+            if (edgeT2[e] != edgeT1[e])
+                incident[edgeT2[e]][--degree[edgeT2[e]]] = e;
+        }
+
+        // a plan of each table: its filtered scan, filtered further by its
+        // joins with subqueries
+        pc = new PlanCache();
+        for (int r = 0; r < n; r++) {
+            String alias = aliases[r];
+            Integer tableId = p.getTableId(alias);
+            if (tableId == null)
+                throw new ParsingException("Unknown table " + alias);
+            TableStats ts = stats.get(Database.getCatalog().getTableName(tableId));
+            Double sel = filterSelectivities.get(alias);
+            if (ts == null || sel == null)
+                throw new ParsingException("No statistics for table " + alias);
+            double cost = scanCost(alias, ts);
+            int card = ts.estimateTableCardinality(sel);
+            for (LogicalJoinNode j : subplanJoins) {
+                if (j.t1Alias.equals(alias)) {
+                    cost = estimateJoinCost(j, card, 0, cost, 0);
+                    card = estimateJoinCardinality(j, card, 0,
+                            isPkey(j.t1Alias, j.f1PureName), false, stats);
+                }
             }
+            pc.addPlan(1L << r, cost, card, 0, null, null);
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        orderGreedily(n, false);
+        orderGreedily(n, true);
+        orderByAugmentation(n);
+        if (n <= exhaustiveLimit)
+            graph.enumerateCsgCmpPairs(this::joinHalves);
+
+        // the plan of each connected component, in turn
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>(subplanJoins);
+        planCost = 0;
+        long done = 0;
+        for (int r = 0; r < n; r++) {
+            if ((done & (1L << r)) != 0)
+                continue;
+            long component = 1L << r, frontier = component;
+            while (frontier != 0) {
+                frontier = graph.neighborhood(frontier, component);
+                component |= frontier;
+            }
+            done |= component;
+            order.addAll(pc.getOrder(component));
+            planCost += pc.getCost(component);
+        }
+        // predicates closing a cycle, not used by the plan
+        Set<String> used = new HashSet<String>();
+        for (LogicalJoinNode j : order)
+            used.add(predicate(j));
+        for (int e = 0; e < m; e++) {
+            if (!used.contains(predicate(forward[e]))
+                    && !used.contains(predicate(backward[e])))
+                order.addElement(forward[e]);
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
+
+    /**
+     * @return the estimated cost of the plan last returned by
+     *         {@link #orderJoins}, summed over its connected components
+     */
+    double getPlanCost() {
+        return planCost;
+    }
+
+    // ===================== Private Methods =================================
+
+    /**
+     * @return the predicate of a join, as text
+     */
+    private static String predicate(LogicalJoinNode j) {
+        return j.f1QuantifiedName + " " + j.p + " " + j.f2QuantifiedName;
+    }
+
+    /**
+     * Greedy operator ordering (Fegaras, "A new heuristic for optimizing
+     * large queries", DEXA 1998): starting from the plan of each table,
+     * repeatedly joins the two plans, connected by a predicate, whose join
+     * is the smallest, or the cheapest, until no predicate connects two
+     * plans. It takes polynomial time. The plans it finds for the sets of
+     * tables it joins are kept in the PlanCache where they are cheaper than
+     * those there.
+     * <p>
+     * The smallest join is the usual choice, but nested loops rescan their
+     * inner plan once per outer tuple, so joining two plans of many tables
+     * can cost far more than growing one of them a table at a time, which
+     * the cheapest join tends to do.
+     *
+     * @param n
+     *            the number of tables
+     * @param byCost
+     *            whether to join the cheapest pair of plans rather than the
+     *            smallest
+     */
+    private void orderGreedily(int n, boolean byCost) {
+        long[] plans = new long[n];
+        for (int r = 0; r < n; r++)
+            plans[r] = 1L << r;
+        int count = n;
+        while (true) {
+            JoinChoice best = null;
+            int bestI = -1, bestJ = -1;
+            for (int i = 0; i < count; i++) {
+                for (int j = i + 1; j < count; j++) {
+                    if (!graph.joins(plans[i], plans[j]))
+                        continue;
+                    JoinChoice c = cheapestJoin(plans[i], plans[j],
+                            Double.POSITIVE_INFINITY);
+                    if (c != null && (best == null || (byCost
+                            ? c.cost < best.cost || c.cost == best.cost && c.card < best.card
+                            : c.card < best.card || c.card == best.card && c.cost < best.cost))) {
+                        best = c;
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
             }
+            if (best == null)
+                return;
+            long s = plans[bestI] | plans[bestJ];
+            if (!pc.contains(s) || best.cost < pc.getCost(s))
+                pc.addPlan(s, best.cost, best.card, best.left, best.join,
+                        best.algorithm);
+            plans[bestI] = s;
+            plans[bestJ] = plans[--count];
         }
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /**
+     * Grows a left-deep plan from each table in turn, joining the cheapest
+     * of the tables connected to the plan next (Swami, "Optimization of
+     * large join queries", SIGMOD 1989), and keeps the plans found in the
+     * PlanCache where they are cheaper than those there. Each start takes
+     * polynomial time; once the planning budget has run out, no more are
+     * tried.
+     *
+     * @param n
+     *            the number of tables
+     */
+    private void orderByAugmentation(int n) {
+        for (int start = 0; start < n; start++) {
+            long s = 1L << start;
+            long next;
+            while ((next = graph.neighborhood(s, 0)) != 0) {
+                JoinChoice best = null;
+                long bestTable = 0;
+                for (; next != 0; next &= next - 1) {
+                    long t = Long.lowestOneBit(next);
+                    JoinChoice c = cheapestJoin(s, t, best == null
+                            ? Double.POSITIVE_INFINITY : best.cost);
+                    if (c != null) {
+                        best = c;
+                        bestTable = t;
+                    }
+                }
+                s |= bestTable;
+                if (!pc.contains(s) || best.cost < pc.getCost(s))
+                    pc.addPlan(s, best.cost, best.card, best.left, best.join,
+                        best.algorithm);
+            }
+            if (!withinBudget())
+                return;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+    }
 
-        CostCard cc = new CostCard();
+    /**
+     * @return true if planning has taken less than the planning budget
+     */
+    private boolean withinBudget() {
+        long budget = planningBudget;
+        return budget == Long.MAX_VALUE
+                || System.nanoTime() - planningStart < budget * 1000000;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+    /**
+     * Considers joining the best plans of the disjoint connected sets of
+     * tables s1 and s2, keeping the cheapest join in the PlanCache if it is
+     * better than the best plan of their union so far.
+     *
+     * @return false once the planning budget has run out
+     */
+    private boolean joinHalves(long s1, long s2) {
+        long s = s1 | s2;
+        JoinChoice c = cheapestJoin(s1, s2,
+                pc.contains(s) ? pc.getCost(s) : Double.POSITIVE_INFINITY);
+        if (c != null)
+            pc.addPlan(s, c.cost, c.card, c.left, c.join, c.algorithm);
+        // look at the clock now and then
+        return (++pairsJoined & 1023) != 0 || withinBudget();
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Finds the cheapest join of the best plans of the disjoint sets of
+     * tables s1 and s2, with either as the outer, over each predicate
+     * connecting them.
+     *
+     * @return the cheapest join, or null if none costs less than bound
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private JoinChoice cheapestJoin(long s1, long s2, double bound) {
+        long s = s1 | s2;
+        JoinChoice choice = null;
+        double best = bound;
+        // look for the edges from the smaller half
+        long from = Long.bitCount(s1) <= Long.bitCount(s2) ? s1 : s2;
+        for (long rest = from; rest != 0; rest &= rest - 1) {
+            int r = Long.numberOfTrailingZeros(rest);
+            for (int e : incident[r]) {
+                int other = edgeT1[e] == r ? edgeT2[e] : edgeT1[e];
+                if ((s & ~from & (1L << other)) == 0)
+                    continue;
+                // the edge with its t1 in s1, and with its t1 in s2
+                boolean t1InS1 = (s1 & (1L << edgeT1[e])) != 0;
+                LogicalJoinNode j1 = t1InS1 ? forward[e] : backward[e];
+                LogicalJoinNode j2 = t1InS1 ? backward[e] : forward[e];
+                JoinChoice c = computeCostAndCardOfSubplan(j1, s1, s2,
+                        t1InS1 ? t1Pkey[e] : t2Pkey[e],
+                        t1InS1 ? t2Pkey[e] : t1Pkey[e], edgeSelectivity[e],
+                        best);
+                if (c != null) {
+                    choice = c;
+                    best = c.cost;
+                }
+                c = computeCostAndCardOfSubplan(j2, s2, s1,
+                        t1InS1 ? t2Pkey[e] : t1Pkey[e],
+                        t1InS1 ? t1Pkey[e] : t2Pkey[e], edgeSelectivity[e],
+                        best);
+                if (c != null) {
+                    choice = c;
+                    best = c.cost;
+                }
+            }
         }
-        return false;
+        return choice;
+    }
+
+    /**
+     * This is a helper method that computes the cost and cardinality of
+     * joining the best plans of two disjoint sets of tables, whose plans are
+     * in the PlanCache.
+     * 
+     * @param j
+     *            the join, with its t1Alias in outer and its t2Alias in inner
+     * @param outer
+     *            the tables of the outer (left) input
+     * @param inner
+     *            the tables of the inner (right) input
+     * @param leftPkey
+     *            whether the field of j on the outer side is a primary key
+     * @param rightPkey
+     *            whether the field of j on the inner side is a primary key
+     * @param selectivity
+     *            the selectivity of j from the histograms of its fields, or
+     *            -1 if they have none
+     * @param bestCostSoFar
+     *            the cost of the best plan of the union of outer and inner
+     *            found so far
+     * @return the cost, cardinality and algorithm of the join, or null if
+     *         it costs no less than bestCostSoFar
+     */
+    private JoinChoice computeCostAndCardOfSubplan(LogicalJoinNode j,
+            long outer, long inner, boolean leftPkey, boolean rightPkey,
+            double selectivity, double bestCostSoFar) {
+        int card1 = pc.getCard(outer), card2 = pc.getCard(inner);
+        JoinChoice c = new JoinChoice();
+        c.cost = estimateJoinCost(j, card1, card2, pc.getCost(outer),
+                pc.getCost(inner), Long.bitCount(inner) == 1, c);
+        if (c.cost >= bestCostSoFar)
+            return null;
+        c.left = outer;
+        c.join = j;
+        if (selectivity >= 0 && j.p == Predicate.Op.EQUALS && !leftPkey
+                && !rightPkey)
+            c.card = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    Math.round(selectivity * card1 * card2)));
+        else
+            c.card = estimateJoinCardinality(j, card1, card2, leftPkey,
+                    rightPkey, stats);
+        return c;
     }
 
     /**
@@ -404,20 +1011,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -454,13 +1047,25 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
+        // the tables joined so far with each table, as a set of the
+        // PlanCache
+        HashMap<String, Long> joinedWith = new HashMap<String, Long>();
+        for (Map.Entry<String, Integer> e : relations.entrySet())
+            joinedWith.put(e.getKey(), 1L << e.getValue());
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            long pathSoFar = joinedWith.get(j.t1Alias);
+            if (!(j instanceof LogicalSubplanJoinNode))
+                pathSoFar |= joinedWith.get(j.t2Alias);
+            for (long rest = pathSoFar; rest != 0; rest &= rest - 1) {
+                for (Map.Entry<String, Integer> e : relations.entrySet()) {
+                    if (e.getValue() == Long.numberOfTrailingZeros(rest))
+                        joinedWith.put(e.getKey(), pathSoFar);
+                }
+            }
+            System.out.println("PATH SO FAR = " + Long.toBinaryString(pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -470,14 +1075,16 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+            root = new DefaultMutableTreeNode("Join " + j
+                    + (j.algorithm == null ? "" : " by " + j.algorithm)
+                    + (pc.contains(pathSoFar)
+                    ? " (Cost =" + pc.getCost(pathSoFar) + ", card = "
+                            + pc.getCard(pathSoFar) + ")" : ""));
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(j.t1Alias, stats.get(table1Name))
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -496,8 +1103,8 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + scanCost(j.t2Alias,
+                                                stats.get(table2Name))
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
@@ -14,6 +14,8 @@ public class JoinPredicate implements Serializable {
     private final int field1;
     private final int field2;
     private final Predicate.Op op;
+    // compiled for the field types of the first pair of tuples filtered
+    private transient PredicateCompiler.PairTest test;
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
      * 
@@ -42,8 +44,11 @@ public class JoinPredicate implements Serializable {
      * @return true if the tuples satisfy the predicate.
      */
     public boolean filter(Tuple t1, Tuple t2) {
-        // some code goes here
-        return t1.getField(field1).compare(op,t2.getField(field2));
+        PredicateCompiler.PairTest test = this.test;
+        if (test == null)
+            this.test = test = PredicateCompiler.compile(this,
+                    t1.getField(field1).getType(), t2.getField(field2).getType());
+        return test.test(t1, t2);
     }
     
     public int getField1()
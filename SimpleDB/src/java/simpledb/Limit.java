@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements LIMIT ... OFFSET ...: it skips the first offset tuples of
+ * its child and returns at most limit of the tuples that follow.
+ * <p>
+ * Once limit tuples have been returned, Limit stops pulling from its child and
+ * closes it, so the scans underneath release their iterators without reading
+ * the rest of their tables.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+
+    private int returned;
+    private boolean skipped;
+    private boolean childOpen;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of leading tuples of the child to skip
+     * @param child
+     *            the child operator
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException(
+                    "LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childOpen)
+            child.rewind();
+        else
+            child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+    }
+
+    /**
+     * Operator.fetchNext implementation.
+     *
+     * @return the next tuple within the limit, or null if limit tuples have
+     *         been returned or the child is exhausted
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        if (returned >= limit || !childOpen) {
+            done();
+            return null;
+        }
+        if (!skipped) {
+            for (int i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+            skipped = true;
+        }
+        if (!child.hasNext()) {
+            done();
+            return null;
+        }
+        Tuple t = child.next();
+        if (++returned >= limit)
+            done();
+        return t;
+    }
+
+    /** Releases the child as soon as no more tuples will be pulled from it. */
+    private void done() {
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
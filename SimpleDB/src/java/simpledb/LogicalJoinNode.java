@@ -4,6 +4,16 @@ package simpledb;
  * tables in a LogicalQueryPlan */
 public class LogicalJoinNode {
 
+    /** The physical operators a join of two tables can be evaluated with */
+    public enum Algorithm {
+        /** rescan t2 for each tuple of t1 ({@link Join}) */
+        NESTED_LOOPS,
+        /** hash batches of t1, scanning t2 once per batch ({@link HashEquiJoin}) */
+        HASH,
+        /** probe the B+ tree of t2 for each tuple of t1 ({@link IndexNestedLoopJoin}) */
+        INDEX_NESTED_LOOPS
+    }
+
     /** The first table to join (may be null). It's the alias of the table (if no alias, the true table name) */
     public String t1Alias;
 
@@ -23,6 +33,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The algorithm the optimizer chose for the join, with t1 as the
+     * outer; null to let {@link JoinOptimizer#instantiateJoin} choose */
+    public Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -62,6 +76,14 @@ public class LogicalJoinNode {
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
         return j2;
     }
+
+    /** Return a copy of this join to be evaluated with the given
+     * algorithm. */
+    public LogicalJoinNode withAlgorithm(Algorithm algorithm) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = algorithm;
+        return j2;
+    }
     
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
@@ -2,9 +2,12 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
@@ -29,12 +32,19 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    // the aggregate of the distinct values of its field, for each aggregate
+    private Vector<Boolean> aggDistincts = new Vector<Boolean>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = -1, offset = 0;
+    private boolean distinct = false;
+    private int parallelism = 1;
+    private boolean parallelOrdered = false;
     private String query;
 //    private Query owner;
 
@@ -156,6 +166,31 @@ public class LogicalPlan {
         joins.addElement(lj);
     }
 
+    /** Add a semi-join or anti-join between a field and a subquery, which
+     *  keeps the tuples whose field equals (or, for an anti-join, equals
+     *  none of) the values of the first field of the subquery's result, as
+     *  for "field IN (subquery)" and "field NOT IN (subquery)".
+     *  @param joinField1 The name of the field; this can
+     *  be a fully qualified name (e.g., tableName.field or
+     *  alias.field) or may be an unqualified unique field name.
+     *  @param subplan the subquery to match the field against
+     *  @param anti true for an anti-join
+     *  @throws ParsingException if the field is ambiguous, or is not in one
+     *      of the tables added via {@link #addScan}
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan,
+                Predicate.Op.EQUALS, anti ? LogicalSubplanJoinNode.Kind.ANTI
+                        : LogicalSubplanJoinNode.Kind.SEMI);
+        System.out.println("Added subplan " + (anti ? "anti-join" : "semi-join") + " on " + joinField1);
+        joins.addElement(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -186,36 +221,117 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Calling this several times computes each aggregate,
+        all of them in one pass over the same groups.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * to count tuples
+        @param gfield the field to group by, or null to leave the grouping unchanged
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, gfield, false);
+    }
+
+    /** Add an aggregate over the field, or over its distinct values, with the specified grouping
+        to the query.  The aggregates over distinct values must all be over the same field, and
+        cannot be combined with other aggregates.
+        @param distinct true to aggregate each distinct value of the field once, as for COUNT(DISTINCT f)
+     * @throws ParsingException 
+     * @see #addAggregate(String, String, String)
+    */
+    public void addAggregate(String op, String afield, String gfield, boolean distinct) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
+        aggDistincts.addElement(distinct);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field to the query.  Calling this several times
+        groups by the combination of the fields.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Calling this
+        several times sorts on each field in turn, the first call giving the most significant key.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause, returning at most limit result tuples after skipping the first offset.
+        @param limit the maximum number of tuples to return
+        @param offset the number of leading tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** Make the query return each distinct result tuple once, as for SELECT DISTINCT.
+        @param distinct true to remove duplicate result tuples
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** @return true if the query removes duplicate result tuples */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /** Set the degree of parallelism: the number of threads that run each part of the physical
+        plan that can work on a share of its input.  With a degree above 1, {@link #physicalPlan}
+        connects the copies of those parts with {@link Exchange}s.
+        @param parallelism the degree of parallelism; 1, the default, runs the plan on the caller's thread
+     * @throws IllegalArgumentException if parallelism is less than 1
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("degree of parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    /** Set the degree of parallelism, and whether a parallel physical plan must return its tuples
+        in the order the plan would on the caller's thread.  An ordered plan reads the pages of each
+        table in order, and runs in parallel only the scans and filters below the first other operator.
+        @param parallelism the degree of parallelism
+        @param ordered true if the plan must keep the order of its tuples
+     * @throws IllegalArgumentException if parallelism is less than 1
+     * @see #setParallelism(int)
+    */
+    public void setParallelism(int parallelism, boolean ordered) {
+        setParallelism(parallelism);
+        this.parallelOrdered = ordered;
+    }
+
+    /** @return the degree of parallelism of the physical plan */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return true if a parallel physical plan keeps the order of its tuples */
+    public boolean isParallelOrdered() {
+        return parallelOrdered;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -268,11 +384,25 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the index among the aggregates added via {@link #addAggregate}
+        of the one computing the select list entry si, or -1 if there is none */
+    private int aggregateIndex(LogicalSelectListNode si) {
+        String fname = si.fname.equals("null.*") ? "*" : si.fname;
+        for (int k = 0; k < aggOps.size(); k++) {
+            if (aggOps.elementAt(k).equalsIgnoreCase(si.aggOp)
+                    && aggFields.elementAt(k).equals(fname))
+                return k;
+        }
+        return -1;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
-     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan,
+     *   and reads a B+ tree through its index when a filter on its key makes that cheaper.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -289,23 +419,30 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 // only the fields the query refers to travel up the plan
+                 ss = new SeqScan(t, file.getId(), table.alias,
+                         referencedFields(table.alias, file.getTupleDesc()));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        // the predicates over each table are applied by a single Filter
+        HashMap<String,ArrayList<Predicate>> tablePredicates = new LinkedHashMap<String,ArrayList<Predicate>>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -334,20 +471,28 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!tablePredicates.containsKey(lf.tableAlias))
+                tablePredicates.put(lf.tableAlias, new ArrayList<Predicate>());
+            tablePredicates.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(scans.get(lf.tableAlias).tableField(p.getField()), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
+        for (Map.Entry<String,ArrayList<Predicate>> e : tablePredicates.entrySet()) {
+            subplanMap.put(e.getKey(), new Filter(e.getValue().toArray(new Predicate[0]),
+                    indexScan(t, scans.get(e.getKey()), e.getValue(), statsMap,
+                            indexSelectivities)));
+        }
         
         if (!joins.isEmpty()) {
             JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            joins = jo.orderJoins(statsMap,filterSelectivities,indexSelectivities,explain);
 
             Iterator<LogicalJoinNode> joinIt = joins.iterator();
             while (joinIt.hasNext()) {
@@ -369,6 +514,15 @@ public class LogicalPlan {
 
                 plan1 = subplanMap.get(t1name);
 
+                if (!isSubqueryJoin && t1name.equals(t2name)) {
+                    // both tables are already joined in plan1, as for the
+                    // predicate closing a cycle of joins: filter plan1 with it
+                    if (plan1 == null)
+                        throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                    subplanMap.put(t1name, JoinOptimizer.instantiateJoinFilter(lj, plan1));
+                    continue;
+                }
+
                 if (isSubqueryJoin) {
                     plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
                     if (plan2 == null) 
@@ -415,28 +569,32 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int k = aggregateIndex(si);
+                if (k < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                if (!aggFields.elementAt(k).equals("*")) {
+                    TupleDesc td = node.getTupleDesc();
+                    try {
+                        td.fieldNameToIndex(si.fname);
+                    } catch (NoSuchElementException e) {
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
                 }
+                outFields.add(groupByFields.size() + k);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -461,12 +619,45 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
+            int[] aggIdx = new int[aggFields.size()];
+            int[] groupIdx = new int[groupByFields.size()];
+            Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int k = 0; k < aggIdx.length; k++) {
+                    ops[k] = getAggOp(aggOps.elementAt(k));
+                    if (aggFields.elementAt(k).equals("*")) {
+                        if (ops[k] != Aggregator.Op.COUNT)
+                            throw new ParsingException("Only COUNT may be applied to *");
+                        // every tuple has its first field, so count that
+                        aggIdx[k] = 0;
+                    } else {
+                        aggIdx[k] = td.fieldNameToIndex(aggFields.elementAt(k));
+                    }
+                }
+                for (int g = 0; g < groupIdx.length; g++)
+                    groupIdx[g] = td.fieldNameToIndex(groupByFields.elementAt(g));
+                if (aggDistincts.contains(true)) {
+                    // the distinct combinations of the group fields and the
+                    // aggregated field are aggregated
+                    for (int k = 0; k < aggIdx.length; k++) {
+                        if (!aggDistincts.elementAt(k) || aggFields.elementAt(k).equals("*")
+                                || !aggFields.elementAt(k).equals(aggFields.elementAt(0)))
+                            throw new ParsingException("Aggregates of DISTINCT values must all be over the same field, with no other aggregates");
+                    }
+                    ArrayList<Integer> fields = new ArrayList<Integer>();
+                    ArrayList<Type> types = new ArrayList<Type>();
+                    for (int g = 0; g < groupIdx.length; g++) {
+                        fields.add(groupIdx[g]);
+                        types.add(td.getFieldType(groupIdx[g]));
+                        groupIdx[g] = g;
+                    }
+                    fields.add(aggIdx[0]);
+                    types.add(td.getFieldType(aggIdx[0]));
+                    Arrays.fill(aggIdx, groupIdx.length);
+                    node = new Distinct(new Project(fields, types, node));
+                }
+                aggNode = new Aggregate(node, aggIdx, groupIdx, ops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,11 +666,135 @@ public class LogicalPlan {
             node = aggNode;
         }
 
+        // duplicates are removed from the projected tuples, before the LIMIT;
+        // if the ORDER BY sorts on every output field, duplicates come out of
+        // the sort together and are removed after it, as they stream by
+        boolean distinctAfterSort = false;
+        if (distinct) {
+            node = new Project(outFields, outTypes, node);
+            if (hasOrderBy) {
+                HashSet<String> sortNames = new HashSet<String>(oByFields);
+                distinctAfterSort = true;
+                for (int i = 0; i < node.getTupleDesc().numFields(); i++)
+                    distinctAfterSort &= sortNames.contains(node.getTupleDesc().getFieldName(i));
+            }
+            if (!distinctAfterSort)
+                node = new Distinct(node);
+        }
+
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIdx = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int k = 0; k < oByIdx.length; k++) {
+                try {
+                    oByIdx[k] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(k));
+                } catch (NoSuchElementException e) {
+                    if (!distinct)
+                        throw e;
+                    throw new ParsingException("ORDER BY field " + oByFields.elementAt(k)
+                            + " of a SELECT DISTINCT is not in the SELECT list");
+                }
+                oByAsc[k] = oByAscs.elementAt(k);
+            }
+            if (limit >= 0 && !distinctAfterSort) {
+                // only the first offset + limit tuples of the order are needed
+                node = new TopN(oByIdx, oByAsc,
+                        (int) Math.min(Integer.MAX_VALUE, (long) limit + offset), node);
+            } else {
+                node = new OrderBy(oByIdx, oByAsc, node);
+            }
+        }
+
+        if (distinctAfterSort) {
+            node = new Distinct(node);
+        }
+
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
+        }
+
+        if (!distinct) {
+            node = new Project(outFields, outTypes, node);
         }
+        return ParallelPlanner.parallelize(PipelineCompiler.compile(node),
+                parallelism, parallelOrdered);
+    }
+
+    /**
+     * Chooses how to read the table of a scan under the given predicates.  If
+     * the table is a BTreeFile, the predicate over its key field that the
+     * statistics estimate selects the fewest tuples is read as a range of the
+     * tree with a {@link BTreeScan}, when that is estimated to cost less than
+     * scanning the whole file, and the selectivity of that predicate is put
+     * in indexSelectivities under the alias of the scan.  All the predicates
+     * are still applied above the scan, so that of a range bounded on both
+     * ends, the bound not read from the tree is filtered.
+     * @return a BTreeScan returning the same fields as ss, or ss
+     */
+    private OpIterator indexScan(TransactionId t, SeqScan ss, ArrayList<Predicate> predicates,
+            Map<String,TableStats> statsMap, Map<String,Double> indexSelectivities) {
+        DbFile file = Database.getCatalog().getDatabaseFile(ss.getTableId());
+        TableStats s = statsMap.get(ss.getTableName());
+        if (!(file instanceof BTreeFile) || s == null)
+            return ss;
+        int keyField = ((BTreeFile) file).keyField();
+        Predicate best = null;
+        double bestSel = 1.0;
+        for (Predicate p : predicates) {
+            if (ss.tableField(p.getField()) != keyField || p.getOp() == Predicate.Op.LIKE
+                    || p.getOp() == Predicate.Op.NOT_EQUALS)
+                continue;
+            double sel = s.estimateSelectivity(keyField, p.getOp(), p.getOperand());
+            if (best == null || sel < bestSel) {
+                best = p;
+                bestSel = sel;
+            }
+        }
+        if (best == null || s.estimateIndexScanCost(bestSel) >= s.estimateScanCost())
+            return ss;
+        indexSelectivities.put(ss.getAlias(), bestSel);
+        return new BTreeScan(t, ss.getTableId(), ss.getAlias(),
+                new IndexPredicate(best.getOp(), best.getOperand()), ss.getFields());
+    }
 
-        return new Project(outFields, outTypes, node);
+    /**
+     * @return the indexes of the fields of the table scanned as alias that
+     *   the query refers to, in table order, or null if it refers to all of
+     *   them.  A query that refers to none of them, such as a COUNT(*),
+     *   still reads the first field, so that every tuple is counted.
+     */
+    private int[] referencedFields(String alias, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        // the fields of aggregates, and COUNT(*), are in aggFields
+        for (LogicalSelectListNode si : selectList) {
+            if (si.aggOp == null)
+                names.add(si.fname);
+        }
+        names.addAll(aggFields);
+        names.addAll(groupByFields);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        if (names.contains("null.*") || names.contains(alias + ".*"))
+            return null;
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(alias + "." + td.getFieldName(i)))
+                fields.add(i);
+        }
+        if (fields.size() == td.numFields())
+            return null;
+        if (fields.isEmpty())
+            fields.add(0);
+        int[] result = new int[fields.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = fields.get(i);
+        return result;
     }
 
     public static void main(String argv[]) {
@@ -5,11 +5,28 @@ package simpledb;
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
+
+    /** How the tuples of the subplan are matched with those of the table */
+    public enum Kind {
+        /** join each tuple of the table with every matching subplan tuple */
+        JOIN,
+        /** keep the tuples of the table that match some subplan tuple (IN, EXISTS) */
+        SEMI,
+        /** keep the tuples of the table that match no subplan tuple (NOT IN, NOT EXISTS) */
+        ANTI
+    }
     
     /** The subplan (used on the inner) of the join */
     OpIterator subPlan;
+
+    /** How the subplan is matched */
+    Kind kind;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, Kind.JOIN);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred, Kind kind) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -19,6 +36,7 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.kind = kind;
     }
     
     @Override public int hashCode() {
@@ -30,11 +48,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan)
+                && ((LogicalSubplanJoinNode)o).kind == kind);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind);
         return j2;
     }
 
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * A tournament ("loser") tree that merges k sorted tuple streams into one.
+ * <p>
+ * Each internal node remembers the loser of the match played there, and the
+ * overall winner is kept at the root, so replacing the winner with the next
+ * tuple of its stream only replays the matches on the path from that stream's
+ * leaf to the root: log2(k) comparisons per output tuple, against roughly
+ * 2*log2(k) for a binary heap.
+ * <p>
+ * Ties are broken in favour of the lower-numbered stream, so merging runs
+ * that were produced in input order gives a stable sort.
+ */
+public class LoserTree {
+
+    /**
+     * A sorted stream of tuples. next() returns null once the stream is
+     * exhausted.
+     */
+    public interface Source {
+        Tuple next() throws DbException;
+    }
+
+    private final Source[] sources;
+    private final Comparator<Tuple> cmp;
+    private final Tuple[] heads;
+    // tree[0] is the index of the current winner, tree[1..k-1] hold the
+    // losers of the internal nodes; leaf i sits at (virtual) position k + i
+    private final int[] tree;
+
+    /**
+     * Builds the tree, reading the first tuple of every source.
+     *
+     * @param sources
+     *            the sorted streams to merge
+     * @param cmp
+     *            the order the streams are sorted in
+     */
+    public LoserTree(Source[] sources, Comparator<Tuple> cmp)
+            throws DbException {
+        this.sources = sources;
+        this.cmp = cmp;
+        int k = sources.length;
+        heads = new Tuple[k];
+        tree = new int[Math.max(1, k)];
+        for (int i = 0; i < k; i++)
+            heads[i] = sources[i].next();
+        if (k == 0)
+            return;
+
+        int[] winners = new int[2 * k];
+        for (int i = 0; i < k; i++)
+            winners[k + i] = i;
+        for (int n = k - 1; n >= 1; n--) {
+            int l = winners[2 * n];
+            int r = winners[2 * n + 1];
+            if (beats(l, r)) {
+                winners[n] = l;
+                tree[n] = r;
+            } else {
+                winners[n] = r;
+                tree[n] = l;
+            }
+        }
+        tree[0] = winners[1];
+    }
+
+    /**
+     * @return true if the head of stream a should be output before the head
+     *         of stream b; exhausted streams lose to everything
+     */
+    private boolean beats(int a, int b) {
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int c = cmp.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    /**
+     * @return the smallest remaining tuple over all streams, or null if all
+     *         streams are exhausted
+     */
+    public Tuple next() throws DbException {
+        if (sources.length == 0)
+            return null;
+        int w = tree[0];
+        Tuple t = heads[w];
+        if (t == null)
+            return null;
+        heads[w] = sources[w].next();
+        int k = sources.length;
+        for (int n = (w + k) / 2; n > 0; n /= 2) {
+            if (beats(tree[n], w)) {
+                int tmp = tree[n];
+                tree[n] = w;
+                w = tmp;
+            }
+        }
+        tree[0] = w;
+        return t;
+    }
+}
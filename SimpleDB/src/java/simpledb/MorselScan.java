@@ -0,0 +1,251 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * One of several copies of a scan of a {@link HeapFile} that together read
+ * each page of the file once, so that copies of a sub-plan over the scan can
+ * run in parallel under an {@link Exchange}.
+ * <p>
+ * The copies made by {@link #split} share a source of morsels of
+ * {@link #MORSEL_PAGES} consecutive pages. Whenever a copy has
+ * returned all tuples of its morsel it claims the next unread one, so copies
+ * that are consumed faster read more of the file. Each copy returns its
+ * tuples in page order, but which pages a copy returns is not determined.
+ * <p>
+ * Copies split as ordered instead read fixed morsels: of n copies, the i-th
+ * reads morsels i, i + n, i + 2n and so on, so that
+ * {@link Exchange#gatherOrdered} can return their tuples in page order, as a
+ * SeqScan would. A slow copy then holds up the others, which cannot take
+ * over its morsels.
+ * <p>
+ * A run of the copies starts when the first of them is opened and ends when
+ * all of them have been closed; the copies can then be opened again to read
+ * the file anew. A single copy cannot be rewound by itself.
+ */
+public class MorselScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of consecutive pages a copy claims at a time. */
+    public static final int MORSEL_PAGES = 64;
+
+    /** The morsels of one file, handed out to the copies of a scan. */
+    private static final class Source implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int tableId;
+        private final int copies;
+        private final boolean ordered;
+        private int numPages;
+        private int numMorsels;
+        private int next;
+        private int opened = 0;
+        private int closed = 0;
+
+        Source(int tableId, int copies, boolean ordered) {
+            this.tableId = tableId;
+            this.copies = copies;
+            this.ordered = ordered;
+        }
+
+        synchronized void open() {
+            if (opened++ == 0) {
+                numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(
+                        tableId)).numPages();
+                numMorsels = (numPages + MORSEL_PAGES - 1)
+                        / MORSEL_PAGES;
+                next = 0;
+            }
+        }
+
+        /**
+         * @param copy
+         *            the index of the claiming copy
+         * @param previous
+         *            the morsel the copy claimed last, or -1
+         * @return the next morsel for the copy, or -1 if there is none
+         */
+        synchronized int claim(int copy, int previous) {
+            if (ordered) {
+                int m = previous < 0 ? copy : previous + copies;
+                return m < numMorsels ? m : -1;
+            }
+            return next < numMorsels ? next++ : -1;
+        }
+
+        synchronized int numPages() {
+            return numPages;
+        }
+
+        synchronized void close() {
+            if (++closed == copies)
+                opened = closed = 0;
+        }
+    }
+
+    private final Source source;
+    private final int index;
+
+    // the morsel being read, or -1 if none has been claimed
+    private transient int morsel;
+    // the pages of the claimed morsel left to read are [page, end)
+    private transient int page;
+    private transient int end;
+    private transient Iterator<Tuple> tuples;
+    private transient Tuple ahead;
+    private transient boolean open = false;
+
+    private MorselScan(TransactionId tid, int tableid, String tableAlias,
+            int[] fields, Source source, int index) {
+        super(tid, tableid, tableAlias, fields);
+        this.source = source;
+        this.index = index;
+    }
+
+    /**
+     * Creates copies of a scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction the copies are running as a part of.
+     * @param tableid
+     *            the table to scan; must be a HeapFile
+     * @param tableAlias
+     *            the alias of this table, as for {@link SeqScan}
+     * @param copies
+     *            the number of copies
+     * @return copies scans that together return each tuple of the table once
+     */
+    public static MorselScan[] split(TransactionId tid, int tableid,
+            String tableAlias, int copies) {
+        return split(tid, tableid, tableAlias, null, copies);
+    }
+
+    /**
+     * Creates copies of a scan that return only some fields of the
+     * specified table.
+     *
+     * @param fields
+     *            the fields to return, as for {@link SeqScan}; null to return
+     *            all fields
+     * @see #split(TransactionId, int, String, int)
+     */
+    public static MorselScan[] split(TransactionId tid, int tableid,
+            String tableAlias, int[] fields, int copies) {
+        return split(tid, tableid, tableAlias, fields, copies, false);
+    }
+
+    /**
+     * Creates copies of a scan that return only some fields of the
+     * specified table, and that read fixed morsels if ordered.
+     *
+     * @param ordered
+     *            true if the i-th of n copies must read morsels i, i + n, and
+     *            so on, rather than claim whichever morsel is unread
+     * @see #split(TransactionId, int, String, int[], int)
+     */
+    public static MorselScan[] split(TransactionId tid, int tableid,
+            String tableAlias, int[] fields, int copies, boolean ordered) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("can only split scans of heap files");
+        if (copies < 1)
+            throw new IllegalArgumentException("need at least one copy");
+        Source source = new Source(tableid, copies, ordered);
+        MorselScan[] scans = new MorselScan[copies];
+        for (int i = 0; i < copies; i++)
+            scans[i] = new MorselScan(tid, tableid, tableAlias, fields, source, i);
+        return scans;
+    }
+
+    /**
+     * @return true if the copies read fixed morsels
+     */
+    public boolean isOrdered() {
+        return source.ordered;
+    }
+
+    /**
+     * @return the index of this copy among the copies of its scan
+     */
+    public int copyIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of copies of this scan
+     */
+    public int numCopies() {
+        return source.copies;
+    }
+
+    /**
+     * @return the morsel being read: that of the tuple found by the last
+     *         call to hasNext; -1 if no morsel has been claimed since the
+     *         copy was opened
+     */
+    public int morsel() {
+        return morsel;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (open)
+            throw new DbException("double open on one OpIterator.");
+        source.open();
+        open = true;
+        morsel = -1;
+        page = end = 0;
+        tuples = null;
+        ahead = null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!open)
+            throw new IllegalStateException("scan is not open");
+        while (ahead == null) {
+            while (tuples == null || !tuples.hasNext()) {
+                if (page == end) {
+                    int m = source.claim(index, morsel);
+                    if (m < 0)
+                        return false;
+                    morsel = m;
+                    page = m * MORSEL_PAGES;
+                    end = Math.min(source.numPages(), page + MORSEL_PAGES);
+                }
+                HeapPage p = (HeapPage) Database.getBufferPool().getPage(
+                        getTransactionId(), new HeapPageId(getTableId(), page++),
+                        Permissions.READ_ONLY);
+                tuples = pageIterator(p);
+            }
+            Tuple t = tuples.next();
+            if (passesRuntimeFilters(t))
+                ahead = t;
+        }
+        return true;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException("This is the last element");
+        Tuple t = ahead;
+        ahead = null;
+        return project(t);
+    }
+
+    public void close() {
+        if (open) {
+            open = false;
+            source.close();
+        }
+        tuples = null;
+        ahead = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        throw new DbException("a copy of a split scan cannot be rewound by itself");
+    }
+}
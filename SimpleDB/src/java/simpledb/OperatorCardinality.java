@@ -22,54 +22,90 @@ public class OperatorCardinality {
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         if (o instanceof Filter) {
-            return updateFilterCardinality((Filter) o, tableAliasToId,
-                    tableStats);
+            return updateFilterCardinality(o, ((Filter) o).getPredicates(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof Pipeline
+                && ((Pipeline) o).getPredicates().length > 0) {
+            return updateFilterCardinality(o, ((Pipeline) o).getPredicates(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof HashSemiJoin) {
+            return updateSemiJoinCardinality((HashSemiJoin) o, tableAliasToId,
+                    tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            return updateIndexNestedLoopJoinCardinality(
+                    (IndexNestedLoopJoin) o, tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
-        } else {
-            OpIterator[] children = o.getChildren();
-            int childC = 1;
-            boolean hasJoinPK = false;
-            if (children.length > 0 && children[0] != null) {
-                if (children[0] instanceof Operator) {
-                    hasJoinPK = updateOperatorCardinality(
-                            (Operator) children[0], tableAliasToId, tableStats);
-                    childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
-                }
-            }
-            o.setEstimatedCardinality(childC);
+        } else if (o instanceof Limit || o instanceof TopN) {
+            boolean hasJoinPK = updateUnaryCardinality(o, tableAliasToId,
+                    tableStats);
+            int max = o instanceof Limit ? ((Limit) o).getLimit()
+                    : ((TopN) o).getN();
+            o.setEstimatedCardinality(Math.min(max, o.getEstimatedCardinality()));
             return hasJoinPK;
+        } else {
+            return updateUnaryCardinality(o, tableAliasToId, tableStats);
         }
     }
 
-    private static boolean updateFilterCardinality(Filter f,
+    /**
+     * Estimates the cardinality of an operator that returns as many tuples as
+     * its (first) child.
+     */
+    private static boolean updateUnaryCardinality(Operator o,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
+        OpIterator[] children = o.getChildren();
+        int childC = 1;
+        boolean hasJoinPK = false;
+        if (children.length > 0 && children[0] != null) {
+            if (children[0] instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality(
+                        (Operator) children[0], tableAliasToId, tableStats);
+                childC = ((Operator) children[0]).getEstimatedCardinality();
+            } else if (children[0] instanceof SeqScan) {
+                childC = tableStats.get(
+                        ((SeqScan) children[0]).getTableName())
+                        .estimateTableCardinality(1.0);
+            }
+        }
+        o.setEstimatedCardinality(childC);
+        return hasJoinPK;
+    }
+
+    /**
+     * Estimates the cardinality of a Filter or Pipeline f that returns the
+     * tuples of its child satisfying the given predicates.
+     */
+    private static boolean updateFilterCardinality(Operator f,
+            Predicate[] predicates, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
-                .split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        Integer tableId = null;
         double selectivity = 1.0;
-        if (tableId != null) {
-            selectivity = tableStats.get(
+        // the predicates of a filter are assumed to be independent
+        for (Predicate pred : predicates) {
+            String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+                    .split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null)
+                break;
+            selectivity *= tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .estimateSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             pred.getOp(), pred.getOperand());
+        }
+        if (tableId != null) {
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -82,6 +118,13 @@ public class OperatorCardinality {
                         ((SeqScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
+            } else if (child instanceof BTreeScan) {
+                // the predicate the scan reads the index with is among the
+                // filter's
+                f.setEstimatedCardinality((int) (tableStats.get(
+                        ((BTreeScan) child).getTableName())
+                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                return false;
             }
         }
         f.setEstimatedCardinality(1);
@@ -201,6 +244,70 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    private static boolean updateIndexNestedLoopJoinCardinality(
+            IndexNestedLoopJoin j, Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+
+        OpIterator child1 = j.getChildren()[0];
+        int child1Card = 1;
+
+        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String tableAlias1 = tmp1[0];
+        String pureFieldName1 = tmp1[1];
+        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String tableAlias2 = tmp2[0];
+        String pureFieldName2 = tmp2[1];
+
+        boolean child1HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias1))
+                .equals(pureFieldName1);
+        boolean child2HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(j.getInnerTableId()).equals(pureFieldName2);
+
+        if (child1 instanceof Operator) {
+            Operator child1O = (Operator) child1;
+            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1HasJoinPK = pk || child1HasJoinPK;
+            child1Card = child1O.getEstimatedCardinality();
+            child1Card = child1Card > 0 ? child1Card : 1;
+        } else if (child1 instanceof SeqScan) {
+            child1Card = (int) (tableStats.get(((SeqScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0));
+        }
+
+        // the inner table is read through the index, with its filters folded
+        // into the join
+        TableStats innerStats = tableStats.get(Database.getCatalog()
+                .getTableName(j.getInnerTableId()));
+        double selectivity = 1.0;
+        for (Predicate p : j.getInnerPredicates())
+            selectivity *= innerStats.estimateSelectivity(p.getField(),
+                    p.getOp(), p.getOperand());
+        int child2Card = (int) (innerStats.estimateTableCardinality(1.0) * selectivity) + 1;
+
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
+                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+                pureFieldName1, pureFieldName2, child1Card, child2Card,
+                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
+        return child1HasJoinPK || child2HasJoinPK;
+    }
+
+    /**
+     * A semi-join or anti-join returns at most the tuples of its first child;
+     * without statistics on the subplan, all of them are assumed to be
+     * returned.
+     */
+    private static boolean updateSemiJoinCardinality(HashSemiJoin j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator child2 = j.getChildren()[1];
+        if (child2 instanceof Operator)
+            updateOperatorCardinality((Operator) child2, tableAliasToId,
+                    tableStats);
+        return updateUnaryCardinality(j, tableAliasToId, tableStats);
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -224,21 +331,27 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0));
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // each group-by column contributes its number of distinct values,
+        // estimated from its sketch;
+        // there cannot be more groups than input tuples
+        TupleDesc td = a.getTupleDesc();
+        double groups = 1.0;
+        boolean known = false;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = td.getFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null)
+                continue;
+            groups *= Math.max(1.0, tableStats.get(
                     Database.getCatalog().getTableName(tableId))
-                    .avgSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
+                    .numDistinct(Database.getCatalog().getTupleDesc(tableId)
+                            .fieldNameToIndex(pureFieldName)));
+            known = true;
+        }
+        if (known) {
+            a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
             return hasJoinPK;
         }
         a.setEstimatedCardinality(childCard);
@@ -3,18 +3,19 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields. Inputs larger than its memory budget are sorted externally, see
+ * {@link ExternalSort}.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private long memoryBudget;
+    transient private ExternalSort sorter;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,26 +28,79 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, ExternalSort.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields, spilling sorted
+     * runs to disk once more than memoryBudget bytes of tuples are buffered.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the approximate number of bytes the sort may buffer.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child,
+            long memoryBudget) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "need one sort direction per ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields;
+        this.ascs = asc;
+        this.memoryBudget = memoryBudget;
     }
     
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return the fields the output is sorted on, most significant first
+     */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields;
+    }
+
+    /**
+     * @return for each ORDER BY field, true if it is sorted ascending
+     */
+    public boolean[] getAscending()
+    {
+        return this.ascs;
     }
     
     public TupleDesc getTupleDesc() {
@@ -56,21 +110,24 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        sorter = new ExternalSort(td, orderByFields, ascs, memoryBudget);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sorter.add(child.next());
+        sorter.sort();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sorter.rewind();
     }
 
     /**
@@ -82,8 +139,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sorter != null) {
+            return sorter.next();
         } else
             return null;
     }
@@ -100,24 +157,47 @@ public class OrderBy extends Operator {
 
 }
 
+/**
+ * Orders tuples on a list of fields, each ascending or descending. Each field
+ * is compared once: INT and STRING fields are compared by value, other field
+ * types through {@link Field#compare}.
+ */
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
+        for (int i = 0; i < fields.length; i++) {
+            int c = compareFields(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as f1 is less
+     *         than, equal to, or greater than f2
+     */
+    static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof IntField && f2 instanceof IntField)
+            return Integer.compare(((IntField) f1).getValue(),
+                    ((IntField) f2).getValue());
+        if (f1 instanceof StringField && f2 instanceof StringField)
+            return ((StringField) f1).getValue().compareTo(
+                    ((StringField) f2).getValue());
+        if (f1.compare(Predicate.Op.EQUALS, f2))
             return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : -1;
     }
     
 }
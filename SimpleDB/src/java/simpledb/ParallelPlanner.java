@@ -0,0 +1,235 @@
+package simpledb;
+
+/**
+ * Rewrites a physical plan to run with a given degree of parallelism: the
+ * parts of the plan that can work on a share of their input are copied, and
+ * the copies are connected by {@link Exchange}s.
+ * <ul>
+ * <li>A SeqScan of a heap file is split into {@link MorselScan}s.</li>
+ * <li>A Filter, JoinFilter or Pipeline is applied by a copy over each copy
+ * of its child.</li>
+ * <li>Both inputs of a HashEquiJoin are repartitioned on the join fields, so
+ * that each copy of the join builds and probes one partition. The
+ * partitions of the build side are materialized, so that a copy whose
+ * partition needs several batches of the hash table does not hold up the
+ * producers of the other copies. The copies publish their join values in one {@link RuntimeFilter} for the copies of
+ * the probe side.</li>
+ * <li>An IndexNestedLoopJoin probes the index from each copy of its outer
+ * child.</li>
+ * <li>An Aggregate computes partial aggregates over each copy of its child,
+ * which are gathered and merged by a final Aggregate; an AVG is computed as a
+ * SUM_COUNT per copy and merged by an SC_AVG.</li>
+ * </ul>
+ * Any other operator, such as Join, OrderBy or Project, runs once, over the
+ * gathered copies of its children.
+ * <p>
+ * A plan parallelized as ordered returns its tuples in the same order as
+ * the plan itself. Its scans are split as ordered, only Filters, JoinFilters
+ * and Pipelines are copied, and the copies are gathered by
+ * {@link Exchange#gatherOrdered}; every other operator runs once.
+ */
+final class ParallelPlanner {
+
+    private final int dop;
+    private final boolean ordered;
+
+    private ParallelPlanner(int dop, boolean ordered) {
+        this.dop = dop;
+        this.ordered = ordered;
+    }
+
+    /**
+     * @param plan
+     *            a physical plan; its operators may be reused in the result
+     * @param dop
+     *            the number of copies of each part of the plan that runs in
+     *            parallel
+     * @return a plan returning the same tuples as plan
+     */
+    static OpIterator parallelize(OpIterator plan, int dop) {
+        return parallelize(plan, dop, false);
+    }
+
+    /**
+     * @param ordered
+     *            true if the result must return its tuples in the order plan
+     *            returns them
+     * @see #parallelize(OpIterator, int)
+     */
+    static OpIterator parallelize(OpIterator plan, int dop, boolean ordered) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be positive");
+        if (dop == 1)
+            return plan;
+        ParallelPlanner planner = new ParallelPlanner(dop, ordered);
+        return planner.gather(planner.copies(plan));
+    }
+
+    private OpIterator gather(OpIterator[] copies) {
+        if (copies.length == 1)
+            return copies[0];
+        return ordered ? Exchange.gatherOrdered(copies) : Exchange.gather(copies);
+    }
+
+    /**
+     * @return one or dop copies of node, which together return the tuples
+     *         of node
+     */
+    private OpIterator[] copies(OpIterator node) {
+        if (node.getClass() == SeqScan.class) {
+            SeqScan s = (SeqScan) node;
+            if (Database.getCatalog().getDatabaseFile(s.getTableId()) instanceof HeapFile)
+                return MorselScan.split(s.getTransactionId(), s.getTableId(),
+                        s.getAlias(), s.getFields(), dop, ordered);
+            return new OpIterator[] { node };
+        }
+        if (!(node instanceof Operator))
+            return new OpIterator[] { node };
+        Operator op = (Operator) node;
+        OpIterator[] children = op.getChildren();
+        if (op instanceof Filter) {
+            OpIterator[] in = copies(children[0]);
+            if (in.length == 1)
+                return once(op, in);
+            OpIterator[] out = new OpIterator[in.length];
+            for (int i = 0; i < in.length; i++)
+                out[i] = new Filter(((Filter) op).getPredicates(), in[i]);
+            return out;
+        }
+        if (op instanceof JoinFilter) {
+            OpIterator[] in = copies(children[0]);
+            if (in.length == 1)
+                return once(op, in);
+            OpIterator[] out = new OpIterator[in.length];
+            for (int i = 0; i < in.length; i++)
+                out[i] = new JoinFilter(((JoinFilter) op).getJoinPredicate(), in[i]);
+            return out;
+        }
+        if (op instanceof Pipeline) {
+            Pipeline p = (Pipeline) op;
+            OpIterator[] in = copies(children[0]);
+            if (in.length == 1)
+                return once(op, in);
+            OpIterator[] out = new OpIterator[in.length];
+            for (int i = 0; i < in.length; i++)
+                out[i] = new Pipeline(in[i], p.getPredicates(), p.getFields(),
+                        p.getTupleDesc());
+            return out;
+        }
+        if (ordered) {
+            // the copies of the other operators would reorder the tuples
+            OpIterator[][] in = new OpIterator[children.length][];
+            for (int c = 0; c < children.length; c++)
+                in[c] = copies(children[c]);
+            return once(op, in);
+        }
+        if (op instanceof HashEquiJoin) {
+            JoinPredicate p = ((HashEquiJoin) op).getJoinPredicate();
+            OpIterator[] left = copies(children[0]);
+            OpIterator[] right = copies(children[1]);
+            if (left.length == 1 && right.length == 1)
+                return once(op, left, right);
+            // each copy reads its whole share of the first child before any
+            // copy stops to read the second, which it rescans once per batch
+            // of the first
+            Exchange[] build = Exchange.repartitionMaterialized(left,
+                    p.getField1(), dop);
+            // the copies of the join share one runtime filter, tested by the
+            // producers of the probe side before their tuples are exchanged
+            RuntimeFilter filter = new RuntimeFilter(dop);
+            boolean pushed = false;
+            for (OpIterator r : right)
+                pushed |= RuntimeFilter.pushDown(filter, r, p.getField2());
+            Exchange[] probe = Exchange.repartition(right, p.getField2(), dop, true);
+            OpIterator[] out = new OpIterator[dop];
+            for (int i = 0; i < dop; i++)
+                out[i] = new HashEquiJoin(p, build[i], probe[i], pushed ? filter : null);
+            return out;
+        }
+        if (op instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) op;
+            OpIterator[] in = copies(children[0]);
+            if (in.length == 1)
+                return once(op, in);
+            OpIterator[] out = new OpIterator[in.length];
+            for (int i = 0; i < in.length; i++)
+                out[i] = new IndexNestedLoopJoin(j.getJoinPredicate(), in[i],
+                        j.getTransactionId(), j.getInnerTableId(),
+                        j.getInnerAlias(), j.getInnerFields(),
+                        j.getInnerPredicates());
+            return out;
+        }
+        if (op instanceof Aggregate && !((Aggregate) op).isStreaming()
+                && splittable(((Aggregate) op).aggregateOps())) {
+            OpIterator[] in = copies(children[0]);
+            if (in.length == 1)
+                return once(op, in);
+            return new OpIterator[] { partialAggregates((Aggregate) op, in) };
+        }
+        OpIterator[][] in = new OpIterator[children.length][];
+        for (int c = 0; c < children.length; c++)
+            in[c] = copies(children[c]);
+        return once(op, in);
+    }
+
+    /**
+     * @return op, run once over the gathered copies of its children
+     */
+    private OpIterator[] once(Operator op, OpIterator[]... children) {
+        OpIterator[] gathered = new OpIterator[children.length];
+        for (int c = 0; c < children.length; c++)
+            gathered[c] = gather(children[c]);
+        op.setChildren(gathered);
+        return new OpIterator[] { op };
+    }
+
+    private static boolean splittable(Aggregator.Op[] ops) {
+        for (Aggregator.Op aop : ops) {
+            // an APPROX_COUNT_DISTINCT returns an estimate, not its sketch,
+            // so partial results cannot be merged
+            if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG
+                    || aop == Aggregator.Op.APPROX_COUNT_DISTINCT)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return an Aggregate merging the partial aggregates of agg over each of
+     *         the given copies of its child
+     */
+    private static Aggregate partialAggregates(Aggregate agg, OpIterator[] in) {
+        int[] gfields = agg.groupFields();
+        int[] afields = agg.aggregateFields();
+        Aggregator.Op[] ops = agg.aggregateOps();
+        Aggregator.Op[] partialOps = new Aggregator.Op[ops.length];
+        Aggregator.Op[] finalOps = new Aggregator.Op[ops.length];
+        int[] finalAfields = new int[ops.length];
+        int f = gfields.length;
+        for (int k = 0; k < ops.length; k++) {
+            finalAfields[k] = f++;
+            switch (ops[k]) {
+            case AVG:
+                partialOps[k] = Aggregator.Op.SUM_COUNT;
+                finalOps[k] = Aggregator.Op.SC_AVG;
+                f++;
+                break;
+            case COUNT:
+                partialOps[k] = Aggregator.Op.COUNT;
+                finalOps[k] = Aggregator.Op.SUM;
+                break;
+            default:
+                partialOps[k] = ops[k];
+                finalOps[k] = ops[k];
+            }
+        }
+        OpIterator[] partial = new OpIterator[in.length];
+        for (int i = 0; i < in.length; i++)
+            partial[i] = new Aggregate(in[i], afields, gfields, partialOps);
+        int[] finalGfields = new int[gfields.length];
+        for (int g = 0; g < gfields.length; g++)
+            finalGfields[g] = g;
+        return new Aggregate(Exchange.gather(partial), finalAfields,
+                finalGfields, finalOps);
+    }
+}
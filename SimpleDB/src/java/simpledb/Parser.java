@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +13,12 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int parallelism = 1;
+
+    static {
+        // so that Zql parses APPROX_COUNT_DISTINCT(f) as an aggregate
+        ZUtils.addCustomFunction("approx_count_distinct", 1);
+    }
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -50,6 +58,26 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("IN")
+                || wx.getOperator().equals("NOT IN")) {
+            if (wx.nbOperands() != 2 || !(wx.getOperand(0) instanceof ZConstant)
+                    || !(wx.getOperand(1) instanceof ZQuery)) {
+                throw new simpledb.ParsingException(
+                        "Only expressions of the form field IN (subquery) are supported.");
+            }
+            lp.addSemiJoin(((ZConstant) wx.getOperand(0)).getValue(),
+                    subqueryPlan(tid, (ZQuery) wx.getOperand(1)),
+                    wx.getOperator().equals("NOT IN"));
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processExists(tid, (ZQuery) wx.getOperand(0), lp, false);
+        } else if (wx.getOperator().equals("NOT")) {
+            if (!(wx.getOperand(0) instanceof ZExpression)
+                    || !((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+                throw new simpledb.ParsingException(
+                        "NOT is only supported before EXISTS.");
+            }
+            processExists(tid,
+                    (ZQuery) ((ZExpression) wx.getOperand(0)).getOperand(0), lp, true);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -94,19 +122,8 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    try {
-                        LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                                (ZQuery) ops.elementAt(1));
-                        OpIterator pp = sublp.physicalPlan(tid,
-                                TableStats.getStatsMap(), explain);
-                        lp.addJoin(tab1field, pp, op);
-                    } catch (IOException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    } catch (Zql.ParseException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    }
+                    lp.addJoin(tab1field,
+                            subqueryPlan(tid, (ZQuery) ops.elementAt(1)), op);
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -132,6 +149,113 @@ public class Parser {
 
     }
 
+    private OpIterator subqueryPlan(TransactionId tid, ZQuery q)
+            throws simpledb.ParsingException {
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+            return sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        }
+    }
+
+    /**
+     * Plans "[NOT] EXISTS (subquery)" as a semi-join (anti-join) of the outer
+     * query with the subquery. The subquery must be correlated with the outer
+     * query by a single equality between one of its fields and an outer
+     * field; the equality is taken out of the subquery, which then returns
+     * its side of it for the outer field to be matched against.
+     */
+    private void processExists(TransactionId tid, ZQuery q, LogicalPlan lp,
+            boolean anti) throws simpledb.ParsingException {
+        @SuppressWarnings("unchecked")
+        Vector<ZFromItem> from = q.getFrom();
+        HashSet<String> inner = new HashSet<String>();
+        for (ZFromItem f : from)
+            inner.add(f.getAlias() != null ? f.getAlias() : f.getTable());
+
+        ArrayList<ZExp> conjuncts = new ArrayList<ZExp>();
+        if (q.getWhere() != null)
+            addConjuncts(q.getWhere(), conjuncts);
+        String outerField = null, innerField = null;
+        ArrayList<ZExp> rest = new ArrayList<ZExp>();
+        for (ZExp c : conjuncts) {
+            String[] fields = correlation(c, inner);
+            if (fields == null) {
+                rest.add(c);
+            } else if (outerField != null) {
+                throw new simpledb.ParsingException(
+                        "EXISTS subqueries may only be correlated by a single equality.");
+            } else {
+                outerField = fields[0];
+                innerField = fields[1];
+            }
+        }
+        if (outerField == null) {
+            throw new simpledb.ParsingException(
+                    "EXISTS subqueries must be correlated with the outer query by an equality.");
+        }
+        if (q.getGroupBy() != null) {
+            throw new simpledb.ParsingException(
+                    "GROUP BY in EXISTS subqueries is not supported.");
+        }
+
+        ZQuery sub = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<ZSelectItem>();
+        select.addElement(new ZSelectItem(innerField));
+        sub.addSelect(select);
+        sub.addFrom(from);
+        if (rest.size() == 1) {
+            sub.addWhere(rest.get(0));
+        } else if (rest.size() > 1) {
+            ZExpression and = new ZExpression("AND");
+            for (ZExp c : rest)
+                and.addOperand(c);
+            sub.addWhere(and);
+        }
+        lp.addSemiJoin(outerField, subqueryPlan(tid, sub), anti);
+    }
+
+    private static void addConjuncts(ZExp e, List<ZExp> conjuncts) {
+        if (e instanceof ZExpression
+                && ((ZExpression) e).getOperator().equals("AND")) {
+            ZExpression and = (ZExpression) e;
+            for (int i = 0; i < and.nbOperands(); i++)
+                addConjuncts(and.getOperand(i), conjuncts);
+        } else {
+            conjuncts.add(e);
+        }
+    }
+
+    /**
+     * @return the outer and the inner field of e if e is an equality between
+     *         a field of the tables in inner and a field qualified by any
+     *         other table, or null otherwise
+     */
+    private static String[] correlation(ZExp e, Set<String> inner) {
+        if (!(e instanceof ZExpression))
+            return null;
+        ZExpression x = (ZExpression) e;
+        if (!x.getOperator().equals("=") || x.nbOperands() != 2)
+            return null;
+        boolean[] outer = new boolean[2];
+        for (int i = 0; i < 2; i++) {
+            if (!(x.getOperand(i) instanceof ZConstant)
+                    || ((ZConstant) x.getOperand(i)).getType() != ZConstant.COLUMNNAME)
+                return null;
+            // unqualified fields are taken to be fields of the subquery
+            String[] name = ((ZConstant) x.getOperand(i)).getValue().split("[.]");
+            outer[i] = name.length == 2 && !inner.contains(name[0]);
+        }
+        if (outer[0] == outer[1])
+            return null;
+        String f0 = ((ZConstant) x.getOperand(0)).getValue();
+        String f1 = ((ZConstant) x.getOperand(1)).getValue();
+        return outer[0] ? new String[] { f0, f1 } : new String[] { f1, f0 };
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -182,23 +306,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -207,8 +328,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +338,27 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                // Zql prefixes the field of an aggregate of DISTINCT f or
+                // ALL f with the keyword
+                boolean aggDistinct = aggField.startsWith("distinct ");
+                if (aggDistinct) {
+                    aggField = aggField.substring("distinct ".length());
+                } else if (aggField.startsWith("all ")) {
+                    aggField = aggField.substring("all ".length());
+                }
                 System.out.println("Aggregate field is " + aggField
-                        + ", agg fun is : " + aggFun);
+                        + ", agg fun is : " + aggFun
+                        + (aggDistinct ? " of distinct values" : ""));
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null, aggDistinct);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,44 +368,90 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
+        lp.setDistinct(q.isDistinct());
         return lp;
     }
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * A trailing "LIMIT n [OFFSET m]" clause of a SELECT statement. Zql does
+     * not know LIMIT, so the clause is cut from the statement text before it
+     * is parsed and applied to the resulting logical plan.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private int pendingLimit = -1;
+    private int pendingOffset = 0;
+
+    /**
+     * Removes a trailing LIMIT clause from the first statement of s,
+     * remembering its values for {@link #applyLimit}.
+     *
+     * @return the statement text without the LIMIT clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        pendingLimit = -1;
+        pendingOffset = 0;
+        int end = s.indexOf(';');
+        String stmt = end < 0 ? s : s.substring(0, end + 1);
+        String rest = end < 0 ? "" : s.substring(end + 1);
+        if (!stmt.trim().toLowerCase().startsWith("select"))
+            return s;
+        Matcher m = LIMIT_CLAUSE.matcher(stmt);
+        if (!m.find())
+            return s;
+        try {
+            pendingLimit = Integer.parseInt(m.group(1));
+            pendingOffset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT value out of range");
+        }
+        return stmt.substring(0, m.start()) + m.group(3) + rest;
+    }
+
+    /**
+     * Adds the LIMIT clause removed by the last {@link #stripLimit} call, if
+     * any, to the plan of the statement.
+     */
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (pendingLimit >= 0)
+            lp.addLimit(pendingLimit, pendingOffset);
+        pendingLimit = -1;
+        pendingOffset = 0;
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
+        lp.setParallelism(parallelism);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +638,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s)
+                .getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,9 +676,70 @@ public class Parser {
         }
     }
 
+    private static final Pattern ANALYZE_STATEMENT = Pattern.compile(
+            "\\s*analyze(?:\\s+(\\w+))?"
+                    + "(?:\\s+sample\\s+(\\d+(?:\\.\\d*)?)\\s*(%|rows?))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Rebuilds the statistics of a table, or of all tables, for a statement
+     * <tt>analyze [table] [sample N% | sample N rows];</tt>, reading only a
+     * sample of their pages if asked to.
+     *
+     * @return false if s is not an analyze statement
+     */
+    boolean handleAnalyzeStatement(String s) throws simpledb.ParsingException,
+            DbException {
+        Matcher m = ANALYZE_STATEMENT.matcher(s);
+        if (!m.matches())
+            return false;
+        List<Integer> tableIds = new ArrayList<Integer>();
+        if (m.group(1) != null) {
+            try {
+                tableIds.add(Database.getCatalog().getTableId(m.group(1)));
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown table " + m.group(1));
+            }
+        } else {
+            Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+            while (it.hasNext())
+                tableIds.add(it.next());
+        }
+        TableStatsBuilder.Sample sample = null;
+        if (m.group(2) != null) {
+            double amount = Double.parseDouble(m.group(2));
+            if (m.group(3).equals("%")) {
+                if (!(amount > 0 && amount <= 100))
+                    throw new simpledb.ParsingException(
+                            "Sample percentage must be in (0, 100]");
+                sample = TableStatsBuilder.Sample.ofFraction(amount / 100);
+            } else {
+                if (amount < 1 || amount != Math.floor(amount))
+                    throw new simpledb.ParsingException(
+                            "Sample row count must be a positive integer");
+                sample = TableStatsBuilder.Sample.ofRows((long) amount);
+            }
+        }
+        System.out.println("Computing table stats.");
+        TableStats.setTableStats(TableStatsBuilder.build(tableIds,
+                TableStats.IOCOSTPERPAGE, WorkerPool.defaultParallelism(),
+                sample));
+        System.out.println("Done.");
+        StatsCatalog.save();
+        return true;
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            if (handleAnalyzeStatement(text.toString("UTF-8")))
+                return;
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(
+                    text.toString("UTF-8")).getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -580,12 +816,14 @@ public class Parser {
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
-            "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "group by", "max(", "min(", "avg(", "count",
+            "approx_count_distinct(", "rollback", "commit",
+            "insert", "delete", "values", "into", "analyze", "sample" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        // the flags after the catalog file are checked by start
+        if (argv.length < 1) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,10 +833,11 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel n] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        StatsCatalog.save();
         System.out.println("Bye");
     }
 
@@ -607,7 +846,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        StatsCatalog.loadOrCompute(argv[0]);
 
         String queryFile = null;
 
@@ -616,9 +855,21 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    try {
+                        parallelism = Integer.parseInt(argv[++i]);
+                    } catch (RuntimeException e) {
+                        parallelism = 0;
+                    }
+                    if (parallelism < 1) {
+                        System.out.println("Expected a positive number of threads after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Running queries on " + parallelism + " threads.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
-                    if (i++ == argv.length) {
+                    if (++i == argv.length) {
                         System.out.println("Expected file name after -f\n"
                                 + usage);
                         System.exit(0);
@@ -628,6 +879,7 @@ public class Parser {
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
+                    System.exit(0);
                 }
             }
         }
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Pipeline applies a chain of Filters and Projects in one operator: it
+ * returns the tuples of its source that satisfy all of a set of
+ * predicates, narrowed to some of their fields.
+ * <p>
+ * A chain of N such operators makes N calls of hasNext and next, N
+ * look-ahead tuples and one new tuple per Project for each tuple that
+ * reaches the top. A Pipeline reads its source in a single loop, tests the
+ * tuples with one evaluator compiled by {@link PredicateCompiler#and}, and
+ * builds at most one tuple per returned tuple. Pipelines are made by
+ * {@link PipelineCompiler}.
+ */
+public class Pipeline extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator source;
+    private final Predicate[] predicates;
+    // the fields of the source to return, or null to return its tuples
+    private final int[] fields;
+    private final TupleDesc td;
+    private transient PredicateCompiler.TupleTest test;
+
+    /**
+     * Constructor.
+     *
+     * @param source
+     *            the operator whose tuples are filtered and projected
+     * @param predicates
+     *            conditions on fields of source the returned tuples satisfy;
+     *            may be empty
+     * @param fields
+     *            the indexes in source's tuples of the fields to return, or
+     *            null to return the tuples of source as they are
+     * @param td
+     *            the TupleDesc of the returned tuples
+     */
+    public Pipeline(OpIterator source, Predicate[] predicates, int[] fields,
+            TupleDesc td) {
+        if (fields == null ? !td.equals(source.getTupleDesc())
+                : fields.length != td.numFields())
+            throw new IllegalArgumentException("fields do not match the TupleDesc");
+        this.source = source;
+        this.predicates = predicates.clone();
+        this.fields = fields == null ? null : fields.clone();
+        this.td = td;
+    }
+
+    /**
+     * @return the predicates, on fields of the source
+     */
+    public Predicate[] getPredicates() {
+        return predicates.clone();
+    }
+
+    /**
+     * @return the indexes in the source's tuples of the returned fields, or
+     *         null if the source's tuples are returned as they are
+     */
+    public int[] getFields() {
+        return fields == null ? null : fields.clone();
+    }
+
+    /**
+     * @return the index in the source's tuples of field i of the returned
+     *         tuples
+     */
+    public int sourceField(int i) {
+        return fields == null ? i : fields[i];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        source.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        source.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        source.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the source that satisfies the predicates,
+     * with the returned fields.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (test == null)
+            test = PredicateCompiler.and(predicates);
+        final OpIterator in = source;
+        final PredicateCompiler.TupleTest tt = test;
+        while (in.hasNext()) {
+            Tuple t = in.next();
+            if (!tt.test(t))
+                continue;
+            if (fields == null)
+                return t;
+            Tuple out = new Tuple(td);
+            out.setRecordId(t.getRecordId());
+            for (int i = 0; i < fields.length; i++)
+                out.setField(i, t.getField(fields[i]));
+            return out;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.source };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.source = children[0];
+    }
+}
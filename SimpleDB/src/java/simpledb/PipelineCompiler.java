@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Fuses chains of stateless operators of a physical plan into
+ * {@link Pipeline}s.
+ * <p>
+ * A chain is a run of two or more Filters and Projects, each the only child
+ * of the one above it. Its predicates and projections are rewritten in terms
+ * of the fields of the operator below the chain, so that the chain becomes
+ * one Pipeline over that operator: the predicates of all Filters are tested
+ * by one compiled evaluator, and the Projects are composed into a single
+ * list of fields. A single Filter or Project is left as it is.
+ */
+public class PipelineCompiler {
+
+    private PipelineCompiler() {
+    }
+
+    /**
+     * Replaces the chains of Filters and Projects of a plan by Pipelines.
+     *
+     * @param plan
+     *            a physical plan; its operators may be reused in the result
+     * @return a plan returning the same tuples as plan
+     */
+    public static OpIterator compile(OpIterator plan) {
+        if (!(plan instanceof Operator))
+            return plan;
+        int length = 0;
+        OpIterator below = plan;
+        while (below instanceof Filter || below instanceof Project) {
+            below = ((Operator) below).getChildren()[0];
+            length++;
+        }
+        if (length < 2) {
+            Operator op = (Operator) plan;
+            OpIterator[] children = op.getChildren();
+            OpIterator[] compiled = new OpIterator[children.length];
+            boolean changed = false;
+            for (int i = 0; i < children.length; i++) {
+                compiled[i] = compile(children[i]);
+                changed |= compiled[i] != children[i];
+            }
+            if (changed)
+                op.setChildren(compiled);
+            return op;
+        }
+        Pipeline p = fuse(plan, compile(below));
+        p.setEstimatedCardinality(((Operator) plan).getEstimatedCardinality());
+        return p;
+    }
+
+    /**
+     * @return a Pipeline over source doing the work of the chain of Filters
+     *         and Projects from top down to source
+     */
+    private static Pipeline fuse(OpIterator top, OpIterator source) {
+        // the chain, bottom first
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        for (OpIterator o = top; o instanceof Filter || o instanceof Project;
+                o = ((Operator) o).getChildren()[0])
+            chain.add(0, (Operator) o);
+
+        // fields[i] is the field of source that is field i of the tuples of
+        // the current operator, or null while the chain has not projected
+        int[] fields = null;
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+        for (Operator op : chain) {
+            if (op instanceof Filter) {
+                for (Predicate p : ((Filter) op).getPredicates())
+                    predicates.add(fields == null ? p : new Predicate(
+                            fields[p.getField()], p.getOp(), p.getOperand()));
+            } else {
+                int[] out = ((Project) op).getOutFields();
+                int[] narrowed = new int[out.length];
+                for (int i = 0; i < out.length; i++)
+                    narrowed[i] = fields == null ? out[i] : fields[out[i]];
+                fields = narrowed;
+            }
+        }
+        return new Pipeline(source, predicates.toArray(new Predicate[0]),
+                fields, top.getTupleDesc());
+    }
+}
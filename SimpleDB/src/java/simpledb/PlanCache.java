@@ -1,50 +1,168 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.
+ * <p>
+ * Sets of relations are bitmasks of their numbers in the join graph (see
+ * {@link JoinGraph}), and the plans are kept in an open-addressing hash
+ * table keyed on them, in parallel primitive arrays: a plan is its cost,
+ * its cardinality, and, unless it is a single relation, the join of the
+ * plans of two disjoint subsets, whose plans are in the cache too, and the
+ * algorithm evaluating it. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final long EMPTY = 0;
+
+    private long[] keys = new long[64];
+    private double[] costs = new double[64];
+    private int[] cards = new int[64];
+    private long[] lefts = new long[64];
+    private LogicalJoinNode[] joins = new LogicalJoinNode[64];
+    private LogicalJoinNode.Algorithm[] algorithms = new LogicalJoinNode.Algorithm[64];
+    private int size = 0;
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /** @return the slot of s, or of the empty slot where it would go */
+    private int slot(long s) {
+        int mask = keys.length - 1;
+        int i = hash(s) & mask;
+        while (keys[i] != EMPTY && keys[i] != s)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        long[] oldLefts = lefts;
+        LogicalJoinNode[] oldJoins = joins;
+        LogicalJoinNode.Algorithm[] oldAlgorithms = algorithms;
+        int n = oldKeys.length * 2;
+        keys = new long[n];
+        costs = new double[n];
+        cards = new int[n];
+        lefts = new long[n];
+        joins = new LogicalJoinNode[n];
+        algorithms = new LogicalJoinNode.Algorithm[n];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                costs[j] = oldCosts[i];
+                cards[j] = oldCards[i];
+                lefts[j] = oldLefts[i];
+                joins[j] = oldJoins[i];
+                algorithms[j] = oldAlgorithms[i];
+            }
+        }
+    }
+
+    /** Add a new cost, cardinality and plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added; not empty
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param left the subset of s whose plan is the outer (left) child of the join, or 0 if s is a single relation
+        @param join the join of the plan of left with that of s minus left, its t1Alias in left; null if s is a single relation
+        @param algorithm the algorithm evaluating join, with the plan of left as its outer
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    void addPlan(long s, double cost, int card, long left, LogicalJoinNode join,
+            LogicalJoinNode.Algorithm algorithm) {
+        if (s == EMPTY)
+            throw new IllegalArgumentException("cannot add a plan for no relations");
+        int i = slot(s);
+        if (keys[i] == EMPTY) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(s);
+            }
+            keys[i] = s;
+            size++;
+        }
+        costs[i] = cost;
+        cards[i] = card;
+        lefts[i] = left;
+        joins[i] = join;
+        algorithms[i] = algorithm;
+    }
+
+    /** @return true if the cache holds a plan for s */
+    boolean contains(long s) {
+        return s != EMPTY && keys[slot(s)] == s;
+    }
+
+    private int find(long s) {
+        int i = slot(s);
+        if (s == EMPTY || keys[i] != s)
+            throw new IllegalArgumentException("no plan for relations " + Long.toBinaryString(s));
+        return i;
+    }
+
+    /** Find the cost of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cost for
+        @return the cost of the best plan for s in the cache
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    double getCost(long s) {
+        return costs[find(s)];
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    int getCard(long s) {
+        return cards[find(s)];
+    }
+
+    /** @return the subset of s joined as the outer (left) child in its best plan, or 0 if s is a single relation */
+    long getLeft(long s) {
+        return lefts[find(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** @return the join at the root of the best plan for s, or null if s is a single relation */
+    LogicalJoinNode getJoin(long s) {
+        return joins[find(s)];
+    }
+
+    /** Find the best join order in the cache for the specified set: the
+        joins of its plan, each after the joins of both of its children, as
+        {@link LogicalPlan#physicalPlan} applies them, and each a copy with
+        its algorithm set
+        @param s the set of relations to look up the best order for
+        @return the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    Vector<LogicalJoinNode> getOrder(long s) {
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        addOrder(s, order);
+        return order;
+    }
+
+    private void addOrder(long s, Vector<LogicalJoinNode> order) {
+        int i = find(s);
+        if (joins[i] == null)
+            return;
+        addOrder(lefts[i], order);
+        addOrder(s & ~lefts[i], order);
+        order.addElement(joins[i].withAlgorithm(algorithms[i]));
+    }
+
+    /** @return the number of sets in the cache */
+    int size() {
+        return size;
+    }
+
+    /** Removes all plans. */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(joins, null);
+        Arrays.fill(algorithms, null);
+        size = 0;
     }
 }
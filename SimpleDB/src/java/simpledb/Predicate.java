@@ -50,6 +50,8 @@ public class Predicate implements Serializable {
     private final int field;
     private final Op op;
     private final Field operand;
+    // compiled on first use; see PredicateCompiler
+    private transient PredicateCompiler.TupleTest test;
     
     /**
      * Constructor.
@@ -110,10 +112,10 @@ public class Predicate implements Serializable {
      */
     //比较t中构造函数字段编号中的内容与构造函数指定字段数内容，用op比较。
     public boolean filter(Tuple t) {
-        // some code goes here
-        return t.getField(field).compare(op,operand);
-        //通过t.getField获取t中field字段内容
-        //compare(op,operand)是Field中定义的方法
+        PredicateCompiler.TupleTest test = this.test;
+        if (test == null)
+            this.test = test = PredicateCompiler.compile(this);
+        return test.test(t);
     }
 
     /**
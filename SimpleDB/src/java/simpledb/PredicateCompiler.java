@@ -0,0 +1,267 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Compiles predicates into evaluators specialized for the types of the
+ * compared fields and for the operator.
+ * <p>
+ * {@link Predicate#filter} compares a field with {@link Field#compare}, which
+ * dispatches on the class of the field and then switches on the operator for
+ * every tuple. A compiled evaluator makes those choices once: an INT field is
+ * read as a primitive int and compared by a lambda that only does the
+ * comparison of its operator. A conjunction tests all comparisons of one INT
+ * field against a single range, so that "a &gt; 10 AND a &lt;= 20" reads a once;
+ * a disjunction of equalities of one INT field looks the value up in a set.
+ */
+public class PredicateCompiler {
+
+    /** A compiled test of one tuple. */
+    public interface TupleTest extends Serializable {
+        boolean test(Tuple t);
+    }
+
+    /** A compiled test of a pair of tuples. */
+    public interface PairTest extends Serializable {
+        boolean test(Tuple t1, Tuple t2);
+    }
+
+    private static final TupleTest TRUE = t -> true;
+    private static final TupleTest FALSE = t -> false;
+
+    private PredicateCompiler() {
+    }
+
+    private static int intValue(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static String stringValue(Tuple t, int field) {
+        return ((StringField) t.getField(field)).getValue();
+    }
+
+    /**
+     * @return an evaluator equivalent to p.filter
+     */
+    public static TupleTest compile(Predicate p) {
+        final int f = p.getField();
+        if (p.getOperand() instanceof IntField) {
+            final int c = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return t -> intValue(t, f) == c;
+            case NOT_EQUALS:
+                return t -> intValue(t, f) != c;
+            case GREATER_THAN:
+                return t -> intValue(t, f) > c;
+            case GREATER_THAN_OR_EQ:
+                return t -> intValue(t, f) >= c;
+            case LESS_THAN:
+                return t -> intValue(t, f) < c;
+            case LESS_THAN_OR_EQ:
+                return t -> intValue(t, f) <= c;
+            }
+        } else if (p.getOperand() instanceof StringField) {
+            final String c = ((StringField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+                return t -> stringValue(t, f).equals(c);
+            case NOT_EQUALS:
+                return t -> !stringValue(t, f).equals(c);
+            case LIKE:
+                return t -> stringValue(t, f).contains(c);
+            case GREATER_THAN:
+                return t -> stringValue(t, f).compareTo(c) > 0;
+            case GREATER_THAN_OR_EQ:
+                return t -> stringValue(t, f).compareTo(c) >= 0;
+            case LESS_THAN:
+                return t -> stringValue(t, f).compareTo(c) < 0;
+            case LESS_THAN_OR_EQ:
+                return t -> stringValue(t, f).compareTo(c) <= 0;
+            }
+        }
+        final Predicate.Op op = p.getOp();
+        final Field operand = p.getOperand();
+        return t -> t.getField(f).compare(op, operand);
+    }
+
+    /**
+     * @return an evaluator that is true if all predicates are; true if there
+     *         are none
+     */
+    public static TupleTest and(Predicate... preds) {
+        // the inclusive range each INT field must lie in, by field
+        LinkedHashMap<Integer, long[]> ranges = new LinkedHashMap<Integer, long[]>();
+        ArrayList<TupleTest> tests = new ArrayList<TupleTest>();
+        for (Predicate p : preds) {
+            if (!(p.getOperand() instanceof IntField)
+                    || p.getOp() == Predicate.Op.NOT_EQUALS) {
+                tests.add(compile(p));
+                continue;
+            }
+            long c = ((IntField) p.getOperand()).getValue();
+            long[] range = ranges.get(p.getField());
+            if (range == null) {
+                range = new long[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+                ranges.put(p.getField(), range);
+            }
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                range[0] = Math.max(range[0], c);
+                range[1] = Math.min(range[1], c);
+                break;
+            case GREATER_THAN:
+                range[0] = Math.max(range[0], c + 1);
+                break;
+            case GREATER_THAN_OR_EQ:
+                range[0] = Math.max(range[0], c);
+                break;
+            case LESS_THAN:
+                range[1] = Math.min(range[1], c - 1);
+                break;
+            case LESS_THAN_OR_EQ:
+                range[1] = Math.min(range[1], c);
+                break;
+            default:
+                break;
+            }
+        }
+        ArrayList<TupleTest> all = new ArrayList<TupleTest>();
+        for (Map.Entry<Integer, long[]> e : ranges.entrySet()) {
+            long[] range = e.getValue();
+            if (range[0] > range[1])
+                return FALSE;
+            all.add(inRange(e.getKey(), (int) range[0], (int) range[1]));
+        }
+        // range tests first: they are the cheapest
+        all.addAll(tests);
+        return all(all.toArray(new TupleTest[0]));
+    }
+
+    private static TupleTest inRange(final int f, final int lo, final int hi) {
+        if (lo == hi)
+            return t -> intValue(t, f) == lo;
+        if (lo == Integer.MIN_VALUE)
+            return t -> intValue(t, f) <= hi;
+        if (hi == Integer.MAX_VALUE)
+            return t -> intValue(t, f) >= lo;
+        return t -> {
+            int v = intValue(t, f);
+            return v >= lo && v <= hi;
+        };
+    }
+
+    private static TupleTest all(final TupleTest[] tests) {
+        switch (tests.length) {
+        case 0:
+            return TRUE;
+        case 1:
+            return tests[0];
+        case 2: {
+            final TupleTest a = tests[0], b = tests[1];
+            return t -> a.test(t) && b.test(t);
+        }
+        default:
+            return t -> {
+                for (TupleTest test : tests) {
+                    if (!test.test(t))
+                        return false;
+                }
+                return true;
+            };
+        }
+    }
+
+    /**
+     * @return an evaluator that is true if any of the predicates is; false
+     *         if there are none
+     */
+    public static TupleTest or(Predicate... preds) {
+        // the values each INT field may equal, by field
+        LinkedHashMap<Integer, HashSet<Integer>> values = new LinkedHashMap<Integer, HashSet<Integer>>();
+        ArrayList<TupleTest> tests = new ArrayList<TupleTest>();
+        for (Predicate p : preds) {
+            if (p.getOperand() instanceof IntField
+                    && (p.getOp() == Predicate.Op.EQUALS || p.getOp() == Predicate.Op.LIKE)) {
+                HashSet<Integer> set = values.get(p.getField());
+                if (set == null) {
+                    set = new HashSet<Integer>();
+                    values.put(p.getField(), set);
+                }
+                set.add(((IntField) p.getOperand()).getValue());
+            } else {
+                tests.add(compile(p));
+            }
+        }
+        ArrayList<TupleTest> any = new ArrayList<TupleTest>();
+        for (Map.Entry<Integer, HashSet<Integer>> e : values.entrySet())
+            any.add(in(e.getKey(), e.getValue()));
+        any.addAll(tests);
+        return any(any.toArray(new TupleTest[0]));
+    }
+
+    private static TupleTest in(final int f, Set<Integer> set) {
+        if (set.size() == 1) {
+            final int c = set.iterator().next();
+            return t -> intValue(t, f) == c;
+        }
+        final IntHashTable table = new IntHashTable(set.size());
+        for (int v : set)
+            table.findOrInsert(v);
+        return t -> table.find(intValue(t, f)) >= 0;
+    }
+
+    private static TupleTest any(final TupleTest[] tests) {
+        switch (tests.length) {
+        case 0:
+            return FALSE;
+        case 1:
+            return tests[0];
+        case 2: {
+            final TupleTest a = tests[0], b = tests[1];
+            return t -> a.test(t) || b.test(t);
+        }
+        default:
+            return t -> {
+                for (TupleTest test : tests) {
+                    if (test.test(t))
+                        return true;
+                }
+                return false;
+            };
+        }
+    }
+
+    /**
+     * @param type1
+     *            the type of field p.getField1() of the first tuples
+     * @param type2
+     *            the type of field p.getField2() of the second tuples
+     * @return an evaluator equivalent to p.filter
+     */
+    public static PairTest compile(JoinPredicate p, Type type1, Type type2) {
+        final int f1 = p.getField1(), f2 = p.getField2();
+        if (type1 == Type.INT_TYPE && type2 == Type.INT_TYPE) {
+            switch (p.getOperator()) {
+            case EQUALS:
+            case LIKE:
+                return (t1, t2) -> intValue(t1, f1) == intValue(t2, f2);
+            case NOT_EQUALS:
+                return (t1, t2) -> intValue(t1, f1) != intValue(t2, f2);
+            case GREATER_THAN:
+                return (t1, t2) -> intValue(t1, f1) > intValue(t2, f2);
+            case GREATER_THAN_OR_EQ:
+                return (t1, t2) -> intValue(t1, f1) >= intValue(t2, f2);
+            case LESS_THAN:
+                return (t1, t2) -> intValue(t1, f1) < intValue(t2, f2);
+            case LESS_THAN_OR_EQ:
+                return (t1, t2) -> intValue(t1, f1) <= intValue(t2, f2);
+            }
+        }
+        final Predicate.Op op = p.getOperator();
+        return (t1, t2) -> t1.getField(f1).compare(op, t2.getField(f2));
+    }
+}
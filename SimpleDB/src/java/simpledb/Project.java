@@ -45,6 +45,16 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the indexes in the child's tuples of the projected fields
+     */
+    public int[] getOutFields() {
+        int[] out = new int[outFieldIds.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = outFieldIds.get(i);
+        return out;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
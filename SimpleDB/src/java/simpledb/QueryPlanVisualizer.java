@@ -9,12 +9,21 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index_scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
+    static final String TOPN = "top";
+    static final String DISTINCT = "δ";
+    static final String PIPELINE = "pipeline";
+    static final String EXCHANGE = "exchange";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +35,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,24 +74,37 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String scan = SCAN, range = "", tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                // a range of the index: the key field's predicate
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ip = s.getIndexPredicate();
+                if (ip != null) {
+                    scan = INDEX_SCAN;
+                    range = "," + ip.getOp() + ip.getField();
+                }
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias + range);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -165,6 +187,32 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof HashSemiJoin) {
+                HashSemiJoin j = (HashSemiJoin) plan;
+                String name = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name,
+                        j.getJoinField1Name() + j.getJoinPredicate().getOperator()
+                                + j.getJoinField2Name(), j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
@@ -172,14 +220,29 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                StringBuilder aggs = new StringBuilder();
+                int[] gfields = a.groupFields();
+                Aggregator.Op[] aops = a.aggregateOps();
+                for (int k = 0; k < aops.length; k++) {
+                    if (k > 0)
+                        aggs.append(", ");
+                    aggs.append(aops[k]).append('(')
+                            .append(td.getFieldName(gfields.length + k)).append(')');
+                }
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < gfields.length; i++) {
+                        if (i > 0)
+                            groups.append(", ");
+                        groups.append(td.getFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s%4$s,card:%5$d",
+                            GROUPBY, groups, aggs, a.isStreaming() ? ",streaming" : "",
+                            a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -198,11 +261,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                String conds = "";
+                for (Predicate p : f.getPredicates()) {
+                    conds += (conds.isEmpty() ? "" : " and ") + children[0]
+                            .getTupleDesc().getFieldName(p.getField())
+                            + p.getOp()
+                            + p.getOperand();
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        conds, f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -219,11 +286,13 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
+                String fields = "";
+                for (int f : o.getOrderByFields())
+                    fields += children[0].getTupleDesc().getFieldName(f) + ",";
+                fields = fields.substring(0, fields.length() - 1);
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        ORDERBY, fields, o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -261,6 +330,96 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof Pipeline) {
+                // the fused filters and projection, in terms of the fields
+                // of the source
+                Pipeline pl = (Pipeline) plan;
+                TupleDesc in = children[0].getTupleDesc();
+                String conds = "";
+                for (Predicate p : pl.getPredicates()) {
+                    conds += (conds.isEmpty() ? "" : " and ")
+                            + in.getFieldName(p.getField()) + p.getOp()
+                            + p.getOperand();
+                }
+                String fields = "";
+                if (pl.getFields() != null) {
+                    for (int f : pl.getFields())
+                        fields += (fields.isEmpty() ? "" : ",") + in.getFieldName(f);
+                }
+                thisNode.text = String.format("%1$s(%2$s%3$s%4$s),card:%5$d",
+                        PIPELINE,
+                        conds.isEmpty() ? "" : SELECT + "(" + conds + ")",
+                        conds.isEmpty() || fields.isEmpty() ? "" : " ",
+                        fields.isEmpty() ? "" : PROJECT + "(" + fields + ")",
+                        pl.getEstimatedCardinality());
+                buildUnaryTree(thisNode, PIPELINE, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
+            else if (plan instanceof IndexNestedLoopJoin) {
+                // the inner table is probed through its index rather than
+                // read by a child operator, so it is drawn as part of the
+                // join's label
+                IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", INDEX_JOIN,
+                        j.getJoinField1Name() + jp.getOperator()
+                                + j.getJoinField2Name(), j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (INDEX_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = INDEX_JOIN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - INDEX_JOIN.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
+            else if (plan instanceof TopN) {
+                TopN t = (TopN) plan;
+                String fields = "";
+                for (int f : t.getOrderByFields())
+                    fields += children[0].getTupleDesc().getFieldName(f) + ",";
+                fields = fields.substring(0, fields.length() - 1);
+                thisNode.text = String.format("%1$s%2$d(%3$s),card:%4$d", TOPN,
+                        t.getN(), fields, t.getEstimatedCardinality());
+                buildUnaryTree(thisNode, TOPN, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
+            else if (plan instanceof Distinct) {
+                Distinct d = (Distinct) plan;
+                thisNode.text = String.format("%1$s%2$s,card:%3$d", DISTINCT,
+                        d.isStreaming() ? "(sorted)" : "", d.getEstimatedCardinality());
+                buildUnaryTree(thisNode, DISTINCT, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
+            else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d,offset %3$d),card:%4$d",
+                        LIMIT, l.getLimit(), l.getOffset(), l.getEstimatedCardinality());
+                buildUnaryTree(thisNode, LIMIT, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
+            else if (plan instanceof Exchange) {
+                Exchange e = (Exchange) plan;
+                String mode = e.getMode().toString();
+                if (e.getMode() == Exchange.Mode.REPARTITION)
+                    mode += " on " + children[0].getTupleDesc().getFieldName(e.getField());
+                thisNode.text = String.format("%1$s(%2$s,%3$d->%4$d),card:%5$d",
+                        EXCHANGE, mode, children.length, e.numConsumers(),
+                        e.getEstimatedCardinality());
+                buildUnaryTree(thisNode, EXCHANGE, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
             else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
@@ -330,10 +489,42 @@ public class QueryPlanVisualizer {
                 }
                 thisNode.height = currentDepth;
             }
+            else if (children != null && children.length > 0
+                    && children[0] != null) {
+                // any other operator is drawn by name over its first input
+                String name = plan.getClass().getSimpleName();
+                thisNode.text = String.format("%1$s,card:%2$d", name,
+                        plan.getEstimatedCardinality());
+                buildUnaryTree(thisNode, name, queryPlanDepth, currentDepth,
+                        adjustDepth, children[0], currentStartPosition,
+                        parentUpperBarStartShift);
+            }
         }
         return thisNode;
     }
 
+    /**
+     * Lays out a node with a single child whose text has already been set,
+     * aligning the child's bar under the given symbol.
+     */
+    private void buildUnaryTree(SubTreeDescriptor thisNode, String symbol,
+            int queryPlanDepth, int currentDepth, int adjustDepth,
+            OpIterator child, int currentStartPosition,
+            int parentUpperBarStartShift) {
+        int upBarShift = parentUpperBarStartShift;
+        if (symbol.length() / 2 > parentUpperBarStartShift)
+            upBarShift = symbol.length() / 2;
+        SubTreeDescriptor c = this.buildTree(queryPlanDepth, currentDepth + 2
+                + adjustDepth, child, currentStartPosition, upBarShift);
+        thisNode.upBarPosition = c.upBarPosition;
+        thisNode.textStartPosition = thisNode.upBarPosition - symbol.length()
+                / 2;
+        thisNode.width = Math.max(c.width, thisNode.textStartPosition
+                + thisNode.text.length() - currentStartPosition);
+        thisNode.leftChild = c;
+        thisNode.height = currentDepth;
+    }
+
     private void printTree(SubTreeDescriptor root, char[] buffer, int width) {
         if (root == null)
             return;
@@ -0,0 +1,144 @@
+package simpledb;
+
+/**
+ * A uniform sample of at most a fixed number of the rows of a table,
+ * holding the values of its INT fields.
+ * <p>
+ * The sample keeps the rows whose record ids hash lowest (a bottom-k
+ * sample), so that it is the same whatever order the rows are added in and
+ * however they are split between samples that are then merged: the
+ * statistics built from it by several workers are those a single thread
+ * would build.
+ */
+final class RowSample {
+
+    /** The number of rows sampled from a table. */
+    static final int DEFAULT_SIZE = 30000;
+
+    private final int size;
+    // the sampled fields
+    private final int[] fields;
+    // a max-heap of the hashes of the sampled rows, and their values
+    private final long[] hashes;
+    private final int[][] rows;
+    private int n = 0;
+    // the rows added, to hash rows without record ids
+    private long seen = 0;
+
+    /**
+     * @param size
+     *            the largest number of rows to keep
+     * @param fields
+     *            the indexes of the INT fields whose values to keep
+     */
+    RowSample(int size, int[] fields) {
+        this.size = size;
+        this.fields = fields.clone();
+        this.hashes = new long[size];
+        this.rows = new int[size][];
+    }
+
+    /**
+     * @return the indexes of the INT fields of td
+     */
+    static int[] intFields(TupleDesc td) {
+        int count = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                count++;
+        }
+        int[] fields = new int[count];
+        for (int i = 0, j = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                fields[j++] = i;
+        }
+        return fields;
+    }
+
+    private static long hash(long x) {
+        // the finalizer of SplitMix64
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    void add(Tuple t) {
+        RecordId rid = t.getRecordId();
+        long key = rid == null ? seen
+                : ((long) rid.getPageId().getPageNumber() << 32)
+                        | (rid.getTupleNumber() & 0xffffffffL);
+        seen++;
+        long h = hash(key);
+        if (n == size && h >= hashes[0])
+            return;
+        int[] row = new int[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            row[i] = ((IntField) t.getField(fields[i])).getValue();
+        offer(h, row);
+    }
+
+    private void offer(long h, int[] row) {
+        if (n < size) {
+            // sift up
+            int i = n++;
+            while (i > 0 && hashes[(i - 1) / 2] < h) {
+                hashes[i] = hashes[(i - 1) / 2];
+                rows[i] = rows[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            hashes[i] = h;
+            rows[i] = row;
+        } else if (h < hashes[0]) {
+            // replace the root and sift down
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= n)
+                    break;
+                if (c + 1 < n && hashes[c + 1] > hashes[c])
+                    c++;
+                if (hashes[c] <= h)
+                    break;
+                hashes[i] = hashes[c];
+                rows[i] = rows[c];
+                i = c;
+            }
+            hashes[i] = h;
+            rows[i] = row;
+        }
+    }
+
+    /**
+     * Adds the rows of another sample of the same fields.
+     */
+    void merge(RowSample other) {
+        for (int i = 0; i < other.n; i++)
+            offer(other.hashes[i], other.rows[i]);
+        seen += other.seen;
+    }
+
+    /**
+     * @return the number of rows in the sample
+     */
+    int numRows() {
+        return n;
+    }
+
+    /**
+     * @return the values of a field in the sampled rows, in no particular
+     *         order
+     * @param field
+     *            the index of the field in the tuples
+     */
+    int[] values(int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field) {
+                int[] values = new int[n];
+                for (int r = 0; r < n; r++)
+                    values[r] = rows[r][i];
+                return values;
+            }
+        }
+        throw new IllegalArgumentException("field " + field + " is not sampled");
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A filter on the join field of the probe side of a hash join, built at run
+ * time from the join values of its build side, so that scans below the
+ * probe side drop tuples that cannot join as soon as they are read from a
+ * page, before any operator or {@link Exchange} handles them.
+ * <p>
+ * The filter is built by one or several joins (the copies of a parallel
+ * join, each of which hashes a partition of the build side), each adding a
+ * {@link BloomFilter} of its join values with {@link #publish}. Scans test
+ * it only once every builder has published; until then, and for good if a
+ * builder calls {@link #abandon} because it cannot see its whole build side
+ * at once, every tuple passes. A tuple a scan drops thus never matches any
+ * tuple of the build side.
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int builders;
+    private int published = 0;
+    private boolean abandoned = false;
+    private BloomFilter pending;
+    private transient volatile BloomFilter filter;
+
+    /**
+     * @param builders
+     *            the number of joins that each publish part of the filter
+     */
+    public RuntimeFilter(int builders) {
+        if (builders < 1)
+            throw new IllegalArgumentException("need at least one builder");
+        this.builders = builders;
+    }
+
+    /**
+     * Adds the join values of one builder. Once all builders have
+     * published, scans start testing the filter; a builder that publishes
+     * again, when it is reopened, adds to it.
+     */
+    public synchronized void publish(BloomFilter values) {
+        if (abandoned)
+            return;
+        pending = pending == null ? values : pending.merge(values);
+        if (++published >= builders)
+            filter = pending;
+    }
+
+    /**
+     * Disables the filter: every tuple passes from now on.
+     */
+    public synchronized void abandon() {
+        abandoned = true;
+        pending = null;
+        filter = null;
+    }
+
+    /**
+     * @return true if scans are testing the filter
+     */
+    public boolean isActive() {
+        return filter != null;
+    }
+
+    /**
+     * @return false if no tuple of the build side has the join value f
+     */
+    public boolean mightMatch(Field f) {
+        BloomFilter bf = filter;
+        return bf == null || bf.mightContain(f);
+    }
+
+    /**
+     * Attaches a filter to the scans below plan that return field of
+     * plan's tuples, looking through the operators that return some of
+     * their input tuples unchanged, extended or narrowed: Filters,
+     * Pipelines, joins, and the
+     * first child of a semi-join or index nested loops join.
+     *
+     * @param field
+     *            the index in plan's tuples of the field to test
+     * @return true if the filter was attached to some scan
+     */
+    static boolean pushDown(RuntimeFilter rf, OpIterator plan, int field) {
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).addRuntimeFilter(field, rf);
+            return true;
+        }
+        if (plan instanceof Filter || plan instanceof HashSemiJoin)
+            return pushDown(rf, ((Operator) plan).getChildren()[0], field);
+        if (plan instanceof Pipeline)
+            return pushDown(rf, ((Pipeline) plan).getChildren()[0],
+                    ((Pipeline) plan).sourceField(field));
+        if (plan instanceof Join || plan instanceof HashEquiJoin) {
+            OpIterator[] children = ((Operator) plan).getChildren();
+            int n1 = children[0].getTupleDesc().numFields();
+            return field < n1 ? pushDown(rf, children[0], field)
+                    : pushDown(rf, children[1], field - n1);
+        }
+        if (plan instanceof IndexNestedLoopJoin) {
+            OpIterator outer = ((Operator) plan).getChildren()[0];
+            if (field < outer.getTupleDesc().numFields())
+                return pushDown(rf, outer, field);
+        }
+        return false;
+    }
+}
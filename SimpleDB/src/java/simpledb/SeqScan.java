@@ -16,6 +16,17 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
     private DbFile dbFile;
     private DbFileIterator dbFileIterator;
+    // the fields of the table this scan returns, or null for all of them
+    private final int[] fields;
+    // true if the pages of the table decode only the fields returned, see
+    // HeapPage.iterator
+    private final boolean decodesFields;
+    private TupleDesc tupleDesc;
+    // runtime filters on fields of the tuples read, see addRuntimeFilter
+    private RuntimeFilter[] runtimeFilters = new RuntimeFilter[0];
+    private int[] runtimeFilterFields = new int[0];
+    private transient Tuple ahead;
+    private transient long runtimeFiltered;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -34,12 +45,58 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that returns only some fields of the
+     * specified table, so that operators above it handle narrow tuples.
+     * The returned tuples keep the record id of the tuple they were read
+     * from. Pages of a {@link HeapFile} that were not decoded yet are only
+     * decoded for the returned fields.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, as for the constructor above
+     * @param fields
+     *            the indexes in the table of the fields to return, in the
+     *            order to return them; null to return all fields
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
         // some code goes here
         this.tid=tid;
         this.tableId=tableid;
         this.tableAlias=tableAlias;
         this.dbFile=Database.getCatalog().getDatabaseFile(tableid);
-        this.dbFileIterator=dbFile.iterator(tid);
+        if (fields != null) {
+            int n = dbFile.getTupleDesc().numFields();
+            for (int f : fields) {
+                if (f < 0 || f >= n)
+                    throw new IllegalArgumentException("no field " + f + " in table " + tableid);
+            }
+            fields = fields.clone();
+        }
+        this.fields=fields;
+        this.decodesFields=fields!=null && dbFile instanceof HeapFile;
+        this.tupleDesc=describe();
+        this.dbFileIterator=fileIterator();
+    }
+
+    private DbFileIterator fileIterator() {
+        if (decodesFields)
+            return ((HeapFile) dbFile).iterator(tid, fields, tupleDesc);
+        return dbFile.iterator(tid);
+    }
+
+    /**
+     * @return an iterator over the tuples of a page of the table, narrowed to
+     *         the fields this scan returns
+     */
+    protected final Iterator<Tuple> pageIterator(HeapPage page) {
+        return page.iterator(fields, tupleDesc);
     }
 
     /**
@@ -48,7 +105,74 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableId);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the indexes in the table of the fields this scan returns, or
+     *         null if it returns all fields
+     * */
+    public int[] getFields() {
+        return fields == null ? null : fields.clone();
+    }
+
+    /**
+     * @return the index in the table of field i of the tuples this scan
+     *         returns
+     * */
+    public int tableField(int i) {
+        return fields == null ? i : fields[i];
+    }
+
+    /**
+     * Makes this scan drop the tuples whose value of a field the given
+     * filter rules out, as soon as they are read.
+     *
+     * @param field
+     *            the index of the field in the tuples this scan returns
+     */
+    public void addRuntimeFilter(int field, RuntimeFilter filter) {
+        int n = runtimeFilters.length;
+        runtimeFilters = Arrays.copyOf(runtimeFilters, n + 1);
+        runtimeFilterFields = Arrays.copyOf(runtimeFilterFields, n + 1);
+        runtimeFilters[n] = filter;
+        runtimeFilterFields[n] = decodesFields ? field : tableField(field);
+    }
+
+    /**
+     * @return the number of tuples dropped by runtime filters since this
+     *         scan was created
+     */
+    public long numRuntimeFiltered() {
+        return runtimeFiltered;
+    }
+
+    /**
+     * @return true if the tuple t read from the table passes the runtime
+     *         filters of this scan; t is counted if it does not
+     */
+    protected final boolean passesRuntimeFilters(Tuple t) {
+        for (int i = 0; i < runtimeFilters.length; i++) {
+            if (!runtimeFilters[i].mightMatch(t.getField(runtimeFilterFields[i]))) {
+                runtimeFiltered++;
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -76,6 +200,8 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableId=tableid;
         this.tableAlias=tableAlias;
+        this.tupleDesc=describe();
+        this.dbFileIterator=fileIterator();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -97,8 +223,12 @@ public class SeqScan implements OpIterator {
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
      */
-    //TupleDesc包括类型和域名，其中对于域名为其添加alias.作为前缀
     public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    //TupleDesc包括类型和域名，其中对于域名为其添加alias.作为前缀
+    private TupleDesc describe() {
         // some code goes here
         final TupleDesc tupleDesc=dbFile.getTupleDesc();
         Type[] typeAr=new Type[tupleDesc.numFields()];
@@ -118,37 +248,76 @@ public class SeqScan implements OpIterator {
             fieldName=prefix+"."+fieldName;
             fieldAr[i]=fieldName;
         }
+        if (fields != null) {
+            Type[] types = new Type[fields.length];
+            String[] names = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = typeAr[fields[i]];
+                names[i] = fieldAr[fields[i]];
+            }
+            return new TupleDesc(types, names);
+        }
         return new TupleDesc(typeAr,fieldAr);
 
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(dbFileIterator!=null){
+        if(dbFileIterator==null){
+            throw new TransactionAbortedException();
+        }
+        if(runtimeFilters.length==0){
             return dbFileIterator.hasNext();
         }
-        throw new TransactionAbortedException();
+        while(ahead==null && dbFileIterator.hasNext()){
+            Tuple t=dbFileIterator.next();
+            if(passesRuntimeFilters(t)){
+                ahead=t;
+            }
+        }
+        return ahead!=null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        Tuple tuple=dbFileIterator.next();
+        Tuple tuple;
+        if(runtimeFilters.length==0){
+            tuple=dbFileIterator.next();
+        } else {
+            tuple=hasNext() ? ahead : null;
+            ahead=null;
+        }
         if(tuple != null){
-            return tuple;
+            return project(tuple);
         } else {
             throw new NoSuchElementException("This is the last element");
         }
     }
 
+    /**
+     * @return the fields of t this scan returns, with the record id of t
+     */
+    protected final Tuple project(Tuple t) {
+        if (fields == null || decodesFields)
+            return t;
+        Tuple p = new Tuple(tupleDesc);
+        for (int i = 0; i < fields.length; i++)
+            p.setField(i, t.getField(fields[i]));
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+
     public void close() {
         // some code goes here
         dbFileIterator.close();
+        ahead=null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         dbFileIterator.rewind();
+        ahead=null;
     }
 }
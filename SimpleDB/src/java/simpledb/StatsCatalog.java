@@ -0,0 +1,254 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Keeps the {@link TableStats} of the tables of a database in a file next
+ * to its catalog, so that they need not be rebuilt by a scan of every
+ * table each time the database starts.
+ * <p>
+ * The file holds, for each table by name, its statistics (histograms,
+ * distinct-value sketches, number of tuples and pages, and the modification
+ * count of the table when they were built; see
+ * {@link TableStats#recordModifications}) and the
+ * modification count of the table when the file was written. When the
+ * database starts, the statistics of a table are reused unless its schema
+ * changed, its number of pages drifted from the one the statistics were
+ * built with, or it had more tuples inserted or deleted since they were
+ * built, by more than a fraction of its size. The other tables are read
+ * again.
+ * <p>
+ * The file starts with a format version; a file of another version is
+ * ignored, and all tables are read again.
+ */
+public class StatsCatalog {
+
+    private static final int MAGIC = 0x53444253;
+    static final int VERSION = 3;
+
+    /**
+     * The fraction of the pages or tuples of a table that may change before
+     * its saved statistics are rebuilt.
+     */
+    public static final double DEFAULT_DRIFT = 0.1;
+
+    // the file of the database that was loaded, where statistics are saved
+    private static volatile File current;
+
+    private StatsCatalog() {
+    }
+
+    /**
+     * @return the statistics file of a catalog file: the same name with
+     *         the extension .stats, in the same directory
+     */
+    public static File fileFor(String catalogFile) {
+        File f = new File(catalogFile).getAbsoluteFile();
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(f.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".stats");
+    }
+
+    /**
+     * Sets the statistics of the tables of the catalog, from the statistics
+     * file of catalogFile where they are fresh and by reading the tables
+     * otherwise, and saves them.
+     *
+     * @param catalogFile
+     *            the file the catalog was loaded from
+     */
+    public static void loadOrCompute(String catalogFile) {
+        try {
+            loadOrCompute(fileFor(catalogFile), DEFAULT_DRIFT,
+                    WorkerPool.defaultParallelism());
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the statistics of the tables of the catalog, from a statistics
+     * file where they are fresh and by reading the tables otherwise, and
+     * saves them to the file. The file is where {@link #save()} saves
+     * statistics from now on.
+     *
+     * @param file
+     *            the statistics file; it need not exist
+     * @param drift
+     *            the fraction of the pages or tuples of a table that may
+     *            change before its statistics are rebuilt
+     * @param parallelism
+     *            the number of workers reading the tables to rebuild
+     * @return the ids of the tables whose statistics were rebuilt
+     * @throws DbException
+     *             if a table cannot be read
+     */
+    public static List<Integer> loadOrCompute(File file, double drift,
+            int parallelism) throws DbException {
+        Map<String, TableStats> saved = Collections.emptyMap();
+        if (file.exists()) {
+            try {
+                saved = read(file);
+            } catch (IOException e) {
+                System.out.println("Ignoring table stats in " + file + ": " + e.getMessage());
+            }
+        }
+
+        System.out.println("Computing table stats.");
+        List<Integer> stale = new ArrayList<Integer>();
+        int reused = 0;
+        for (int tableId : tableIds()) {
+            String name = Database.getCatalog().getTableName(tableId);
+            TableStats s = saved.get(name);
+            if (s != null && isFresh(tableId, s, drift)) {
+                TableStats.setTableStats(name, s);
+                reused++;
+            } else {
+                stale.add(tableId);
+            }
+        }
+        if (reused > 0)
+            System.out.println(String.format("  reused the stats of %d table(s) from %s", reused, file));
+        TableStats.setTableStats(TableStatsBuilder.build(stale,
+                TableStats.IOCOSTPERPAGE, parallelism));
+        System.out.println("Done.");
+
+        current = file;
+        try {
+            save(file);
+        } catch (IOException e) {
+            System.out.println("Cannot save table stats to " + file + ": " + e.getMessage());
+        }
+        return stale;
+    }
+
+    /**
+     * @return the ids of the tables of the catalog, each once
+     */
+    private static Set<Integer> tableIds() {
+        // a table added again under another name is listed under both
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext())
+            ids.add(it.next());
+        return ids;
+    }
+
+    /**
+     * @return true if the saved statistics s still describe a table
+     */
+    static boolean isFresh(int tableId, TableStats s, double drift) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!s.describes(file.getTupleDesc()))
+            return false;
+        int pages = TableStatsBuilder.numPages(file);
+        if (Math.abs(pages - s.numPages()) > drift * Math.max(1, s.numPages()))
+            return false;
+        long changed = TableStats.getModificationCount(tableId)
+                - s.getBuildModificationCount();
+        return changed <= drift * Math.max(1, s.totalTuples());
+    }
+
+    /**
+     * Saves the statistics of the tables to the file they were loaded
+     * from, if any.
+     */
+    public static void save() {
+        File f = current;
+        if (f == null)
+            return;
+        try {
+            save(f);
+        } catch (IOException e) {
+            System.out.println("Cannot save table stats to " + f + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the statistics of the tables of the catalog to a file,
+     * replacing it. Saves are serialized, and each writes a temporary file
+     * of its own next to the file before moving it into place, so that
+     * readers see either the old or the new file.
+     */
+    public static synchronized void save(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        Path tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+        boolean moved = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp.toFile())));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Map<String, TableStats> stats = TableStats.getStatsMap();
+            List<Integer> ids = new ArrayList<Integer>();
+            for (int tableId : tableIds()) {
+                if (stats.get(Database.getCatalog().getTableName(tableId)) != null)
+                    ids.add(tableId);
+            }
+            out.writeInt(ids.size());
+            for (int tableId : ids) {
+                String name = Database.getCatalog().getTableName(tableId);
+                out.writeUTF(name);
+                out.writeLong(TableStats.getModificationCount(tableId));
+                stats.get(name).write(out);
+            }
+            out.close();
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            out.close();
+            if (!moved)
+                Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads the statistics saved in a file, by table name, for the tables
+     * of the catalog, and restores their modification counts.
+     *
+     * @throws IOException
+     *             if the file cannot be read or has another format
+     */
+    static Map<String, TableStats> read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a table stats file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("format version " + version
+                        + ", expected " + VERSION);
+            Map<String, TableStats> stats = new HashMap<String, TableStats>();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                long modifications = in.readLong();
+                Integer tableId;
+                try {
+                    tableId = Database.getCatalog().getTableId(name);
+                } catch (NoSuchElementException e) {
+                    // dropped from the catalog; its record is read and
+                    // forgotten
+                    tableId = null;
+                }
+                TableStats s = TableStats.read(in, tableId == null ? 0 : tableId);
+                if (tableId != null) {
+                    TableStats.setModificationCount(tableId, Math.max(
+                            modifications, TableStats.getModificationCount(tableId)));
+                    stats.put(name, s);
+                }
+            }
+            return stats;
+        } catch (EOFException e) {
+            throw new IOException("truncated table stats file");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * Computes aggregates over tuples that arrive grouped: all tuples of a group
+ * are adjacent, as when the input is sorted on the group-by fields. Only the
+ * group being read is kept, so memory use does not depend on the number of
+ * groups, and each group's result is available as soon as the first tuple of
+ * the next group arrives.
+ * <p>
+ * Supports the same operators, and produces result tuples of the same form,
+ * as {@link HashAggregator}.
+ */
+public class StreamAggregator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbFields;
+    private final AggregateStates states;
+    private final TupleDesc resultDesc;
+
+    private final long[] state;
+    // the group-by values of the group being read, or null before the first
+    // tuple and after the last group was returned
+    private Field[] current;
+
+    /**
+     * Constructor.
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, or
+     *            an empty array if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws UnsupportedOperationException
+     *             if an operator is not supported for its field type
+     */
+    public StreamAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Aggregator.Op[] ops) {
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException(
+                    "need one type per group-by field");
+        this.gbFields = gbfields;
+        this.states = new AggregateStates(afields, afieldtypes, ops);
+        this.resultDesc = HashAggregator.resultDesc(gbfieldtypes, states.numResults());
+        this.state = new long[states.width()];
+    }
+
+    /**
+     * @return the TupleDesc of the result tuples
+     */
+    public TupleDesc getResultDesc() {
+        return resultDesc;
+    }
+
+    /**
+     * Merges the next tuple of the input.
+     *
+     * @return the result of the previous group if tup starts a new group,
+     *         otherwise null
+     */
+    public Tuple add(Tuple tup) {
+        if (current != null && inCurrentGroup(tup)) {
+            states.merge(state, 0, tup);
+            return null;
+        }
+        Tuple result = finish();
+        current = new Field[gbFields.length];
+        for (int i = 0; i < gbFields.length; i++)
+            current[i] = tup.getField(gbFields[i]);
+        states.init(state, 0, tup);
+        return result;
+    }
+
+    private boolean inCurrentGroup(Tuple tup) {
+        for (int i = 0; i < gbFields.length; i++) {
+            if (!current[i].equals(tup.getField(gbFields[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends the input.
+     *
+     * @return the result of the last group, or null if there were no tuples
+     *         or it has already been returned
+     */
+    public Tuple finish() {
+        if (current == null)
+            return null;
+        Tuple t = new Tuple(resultDesc);
+        for (int i = 0; i < current.length; i++)
+            t.setField(i, current[i]);
+        states.setResults(t, current.length, state, 0);
+        current = null;
+        return t;
+    }
+
+    /**
+     * Discards the group being read, to start over on a new input.
+     */
+    public void reset() {
+        current = null;
+    }
+}
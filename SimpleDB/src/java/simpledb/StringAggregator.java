@@ -1,8 +1,5 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
@@ -10,34 +7,8 @@ public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
-    private abstract class AggHandler{
-        HashMap<Field,Integer> aggResult;
-        abstract void handle(Field gbField, StringField aggField);
-        public AggHandler(){
-            aggResult = new HashMap<>();
-        }
-        public HashMap<Field,Integer> getAggResult(){
-            return aggResult;
-        }
-    }
-    private class CountHandler extends AggHandler {
-        @Override
-        void handle(Field gbField, StringField aggField) {
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + 1);
-            }
-            else {
-                aggResult.put(gbField, 1);
-            }
-        }
-    }
-
-    private int gbFieldIndex;
-    private Type gbFieldType;
-    private int aggFieldIndex;
-    private AggHandler aggHandler;
-
-
+    // all of the work is done by a HashAggregator with a single aggregate
+    private final HashAggregator agg;
 
     /**
      * Aggregate constructor
@@ -50,16 +21,12 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
-        this.gbFieldIndex=gbfield;
-        this.gbFieldType=gbfieldtype;
-        this.aggFieldIndex=afield;
-        switch(what){
-            case COUNT:
-                aggHandler=new CountHandler();
-                break;
-            default:
-                throw new UnsupportedOperationException("Unsupported aggregation operator ");
-        }
+        if (gbfield == NO_GROUPING)
+            agg = new HashAggregator(new int[0], new Type[0], new int[]{afield},
+                    new Type[]{Type.STRING_TYPE}, new Op[]{what});
+        else
+            agg = new HashAggregator(new int[]{gbfield}, new Type[]{gbfieldtype},
+                    new int[]{afield}, new Type[]{Type.STRING_TYPE}, new Op[]{what});
     }
 
     /**
@@ -68,15 +35,7 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field gbField;
-        StringField aggField = (StringField) tup.getField(aggFieldIndex);
-        if(gbFieldIndex == NO_GROUPING){
-            gbField = null;
-        }
-        else {
-            gbField = tup.getField(gbFieldIndex);
-        }
-        aggHandler.handle(gbField,aggField);
+        agg.mergeTupleIntoGroup(tup);
     }
 
     /**
@@ -89,41 +48,7 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        HashMap<Field, Integer> result = aggHandler.getAggResult();
-        Type[] fieldTypes;
-        String[] fieldNames;
-        TupleDesc tupleDesc;
-        ArrayList<Tuple> tuples = new ArrayList<>();
-        if (gbFieldIndex == NO_GROUPING) {
-            fieldTypes = new Type[]{Type.INT_TYPE};
-            fieldNames = new String[]{"aggregateValue"};
-            tupleDesc = new TupleDesc(fieldTypes, fieldNames);
-            Tuple tuple = new Tuple(tupleDesc);
-            IntField resultField = new IntField(result.get(null));
-            tuple.setField(0, resultField);
-            tuples.add(tuple);
-        }
-        else {
-            fieldTypes = new Type[]{gbFieldType, Type.INT_TYPE};
-            fieldNames = new String[]{"groupByValue", "aggregateValue"};
-            tupleDesc = new TupleDesc(fieldTypes, fieldNames);
-            for (Field field : result.keySet()) {
-                Tuple tuple = new Tuple(tupleDesc);
-                if (gbFieldType == Type.INT_TYPE) {
-                    IntField gbField = (IntField) field;
-                    tuple.setField(0, gbField);
-                }
-                else {
-                    StringField gbField = (StringField) field;
-                    tuple.setField(0, gbField);
-                }
-                IntField resultField = new IntField(result.get(field));
-                tuple.setField(1, resultField);
-                tuples.add(tuple);
-            }
-        }
-
-        return new TupleIterator(tupleDesc, tuples);
+        return agg.iterator();
     }
 
 }
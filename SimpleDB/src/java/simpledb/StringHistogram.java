@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
@@ -20,6 +24,24 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /**
+     * Writes this histogram so that {@link #read} can recreate it.
+     */
+    public void write(DataOutput out) throws IOException {
+        hist.write(out);
+    }
+
+    /**
+     * Reads a histogram written by {@link #write}.
+     */
+    public static StringHistogram read(DataInput in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -65,6 +87,23 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /** @return the number of values added */
+    public int numValues() {
+        return hist.numValues();
+    }
+
+    /** Remove a value added to the histogram */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /**
+     * Adds the values of another StringHistogram with as many buckets.
+     */
+    public void merge(StringHistogram other) {
+        hist.merge(other.hist);
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -1,15 +1,42 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
  * 
  * This class is not needed in implementing lab1 and lab2.
+ * <p>
+ * An INT field is described by an {@link EquiDepthHistogram}, with a list
+ * of its most common values, and a STRING field by a
+ * {@link StringHistogram}. Every field also has a {@link HyperLogLog} sketch
+ * of its distinct values, from which the sizes of equality joins and the
+ * number of groups of an aggregate are estimated.
+ * <p>
+ * The statistics of a table in {@link #getStatsMap} follow the tuples the
+ * {@link BufferPool} inserts into and deletes from it: its number of tuples
+ * and pages is kept exact, and each value is added to or removed from the
+ * histograms of its fields (for the histogram of a STRING field built from
+ * a sample, with the probability that a tuple of the table is in the
+ * sample). Histograms are
+ * widened for new values but never narrowed, and the distinct-value
+ * sketches only count inserted values, since values cannot be removed from
+ * them. Once more tuples than a
+ * fraction of the table (see {@link #setReanalyzeDrift}) have changed since
+ * the statistics were built, they are rebuilt in the background, sampling
+ * as many pages as they did before.
  */
 public class TableStats {
 
@@ -17,6 +44,117 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    // the number of tuples inserted into or deleted from each table, by
+    // table id
+    private static final ConcurrentHashMap<Integer, AtomicLong> modifications = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /**
+     * Counts tuples inserted into or deleted from a table, so that its
+     * statistics can tell how much it changed since they were built.
+     */
+    public static void recordModifications(int tableid, long n) {
+        modifications.computeIfAbsent(tableid, k -> new AtomicLong()).addAndGet(n);
+    }
+
+    /**
+     * @return the number of tuples inserted into or deleted from a table
+     */
+    public static long getModificationCount(int tableid) {
+        AtomicLong n = modifications.get(tableid);
+        return n == null ? 0 : n.get();
+    }
+
+    /**
+     * Restores the modification count of a table, as saved by a
+     * {@link StatsCatalog}.
+     */
+    static void setModificationCount(int tableid, long n) {
+        modifications.computeIfAbsent(tableid, k -> new AtomicLong()).set(n);
+    }
+
+    private static volatile double reanalyzeDrift = StatsCatalog.DEFAULT_DRIFT;
+
+    // the tables whose statistics are being rebuilt in the background
+    private static final Set<Integer> reanalyzing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Sets the fraction of the tuples of a table that may be inserted or
+     * deleted after its statistics were built before they are rebuilt in the
+     * background; Double.POSITIVE_INFINITY never rebuilds them.
+     */
+    public static void setReanalyzeDrift(double drift) {
+        if (!(drift >= 0))
+            throw new IllegalArgumentException("drift must be at least 0");
+        reanalyzeDrift = drift;
+    }
+
+    /**
+     * @return the statistics of a table in the stats map, if any
+     */
+    private static TableStats current(int tableid) {
+        String name = Database.getCatalog().getTableName(tableid);
+        TableStats s = name == null ? null : statsMap.get(name);
+        return s != null && s.tableid == tableid ? s : null;
+    }
+
+    /**
+     * Updates the statistics of a table for a tuple inserted into it; called
+     * by the buffer pool when the inserting transaction commits.
+     *
+     * @param pageNo
+     *            the number of the page the tuple was inserted on
+     */
+    static void recordInsert(int tableid, Tuple t, int pageNo) {
+        recordModifications(tableid, 1);
+        TableStats s = current(tableid);
+        if (s != null) {
+            s.inserted(t, pageNo);
+            s.checkDrift();
+        }
+    }
+
+    /**
+     * Updates the statistics of a table for a tuple deleted from it; called
+     * by the buffer pool when the deleting transaction commits.
+     */
+    static void recordDelete(int tableid, Tuple t) {
+        recordModifications(tableid, 1);
+        TableStats s = current(tableid);
+        if (s != null) {
+            s.deleted(t);
+            s.checkDrift();
+        }
+    }
+
+    /**
+     * Rebuilds these statistics in the background if the table has changed
+     * too much since they were built.
+     */
+    private void checkDrift() {
+        long changed = getModificationCount(tableid) - buildModifications;
+        if (changed <= reanalyzeDrift * Math.max(1, totalTuples())
+                || !reanalyzing.add(tableid))
+            return;
+        WorkerPool.get().submit(() -> {
+            try {
+                TableStatsBuilder.Sample sample = isSampled()
+                        ? TableStatsBuilder.Sample.ofFraction((double) sampledPages / numPages)
+                        : null;
+                TableStats fresh = TableStatsBuilder.build(
+                        Collections.singletonList(tableid), ioCostPerPage, 1,
+                        sample).get(tableid);
+                String name = Database.getCatalog().getTableName(tableid);
+                if (name != null && statsMap.replace(name, this, fresh))
+                    StatsCatalog.save();
+            } catch (DbException | RuntimeException e) {
+                // the next change past the threshold tries again
+                System.out.println("Cannot rebuild table stats of table " + tableid + ": " + e.getMessage());
+            } finally {
+                reanalyzing.remove(tableid);
+            }
+        });
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -49,16 +187,41 @@ public class TableStats {
 
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
+        while (tableIt.hasNext())
+            tableIds.add(tableIt.next());
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        Map<Integer, TableStats> built;
+        try {
+            built = TableStatsBuilder.build(tableIds, IOCOSTPERPAGE,
+                    WorkerPool.defaultParallelism());
+        } catch (DbException e) {
+            throw new RuntimeException(e);
         }
+        setTableStats(built);
         System.out.println("Done.");
     }
 
+    /**
+     * Makes some statistics built by {@link TableStatsBuilder} the
+     * statistics of their tables, printing a line about each.
+     *
+     * @param built
+     *            the statistics, by table id
+     */
+    public static void setTableStats(Map<Integer, TableStats> built) {
+        for (Map.Entry<Integer, TableStats> e : built.entrySet()) {
+            String name = Database.getCatalog().getTableName(e.getKey());
+            TableStats s = e.getValue();
+            setTableStats(name, s);
+            System.out.println(String.format("  %s: %d tuples, %d pages%s, %d ms",
+                    name, s.totalTuples(), s.numPages, s.isSampled()
+                            ? String.format(" (%d sampled)", s.sampledPages) : "",
+                    s.getBuildMillis()));
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,6 +229,37 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * The largest number of most common values of an INT field whose counts
+     * are kept apart from its histogram.
+     */
+    static final int NUM_MCVS = 100;
+
+    /**
+     * The precision of the distinct-value sketch of each field: 4096
+     * registers, for a standard error of about 1.6%.
+     */
+    static final int SKETCH_PRECISION = 12;
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    // the number of pages of the table when the statistics were built, and
+    // now
+    private final int numPages;
+    private int pages;
+    // the number of pages the statistics were built from
+    private final int sampledPages;
+    private int ntups;
+    // the histogram of each field, in ints if it is an INT field and in
+    // strings otherwise
+    private final EquiDepthHistogram[] ints;
+    private final StringHistogram[] strings;
+    // the distinct values of each field
+    private final HyperLogLog[] distinct;
+    private final long buildMillis;
+    // the modification count of the table when the statistics were built
+    private final long buildModifications;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -85,6 +279,224 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
+        this(TableStatsBuilder.build(tableid, ioCostPerPage));
+    }
+
+    private TableStats(TableStats s) {
+        this(s.tableid, s.ioCostPerPage, s.numPages, s.sampledPages, s.ntups,
+                s.ints, s.strings, s.distinct, s.buildMillis,
+                s.buildModifications);
+    }
+
+    /**
+     * Creates the statistics of a table from the histograms collected by a
+     * {@link TableStatsBuilder} over sampledPages of its numPages pages; the
+     * number of tuples read is scaled up to the whole table.
+     *
+     * @param buildModifications
+     *            the modification count of the table when it was read
+     */
+    TableStats(int tableid, int ioCostPerPage, int numPages, int sampledPages,
+            TableStatsBuilder.Columns columns, long buildMillis,
+            long buildModifications) {
+        this(tableid, ioCostPerPage, numPages, sampledPages,
+                scaledTuples(columns, numPages, sampledPages),
+                histograms(columns, scaledTuples(columns, numPages, sampledPages)),
+                columns.strings, columns.distinct, buildMillis,
+                buildModifications);
+    }
+
+    private static int scaledTuples(TableStatsBuilder.Columns columns,
+            int numPages, int sampledPages) {
+        return sampledPages < numPages && sampledPages > 0
+                ? (int) Math.min(Integer.MAX_VALUE, Math.round(
+                        (double) columns.ntups * numPages / sampledPages))
+                : columns.ntups;
+    }
+
+    /**
+     * @return the histograms of the INT fields, built from the sample of
+     *         their values, by field index
+     */
+    private static EquiDepthHistogram[] histograms(
+            TableStatsBuilder.Columns columns, int ntups) {
+        EquiDepthHistogram[] ints = new EquiDepthHistogram[columns.strings.length];
+        for (int i = 0; i < ints.length; i++) {
+            if (columns.strings[i] == null)
+                ints[i] = EquiDepthHistogram.build(columns.sample.values(i),
+                        ntups, NUM_HIST_BINS, NUM_MCVS);
+        }
+        return ints;
+    }
+
+    private TableStats(int tableid, int ioCostPerPage, int numPages,
+            int sampledPages, int ntups, EquiDepthHistogram[] ints,
+            StringHistogram[] strings, HyperLogLog[] distinct, long buildMillis,
+            long buildModifications) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.numPages = numPages;
+        this.pages = numPages;
+        this.sampledPages = sampledPages;
+        this.ntups = ntups;
+        this.ints = ints;
+        this.strings = strings;
+        this.distinct = distinct;
+        this.buildMillis = buildMillis;
+        this.buildModifications = buildModifications;
+    }
+
+    /**
+     * @return true if the histograms of STRING fields should count a tuple
+     *         inserted into or deleted from the table: always, unless they
+     *         were built from a sample. (Those of INT fields count tuples of
+     *         the whole table.)
+     */
+    private boolean inStringHistograms() {
+        if (!isSampled() || ntups <= 0)
+            return true;
+        for (StringHistogram h : strings) {
+            if (h != null)
+                return ThreadLocalRandom.current().nextInt(ntups) < h.numValues();
+        }
+        return true;
+    }
+
+    private synchronized void inserted(Tuple t, int pageNo) {
+        pages = Math.max(pages, pageNo + 1);
+        boolean inStrings = inStringHistograms();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i].addValue(((IntField) t.getField(i)).getValue());
+            else if (inStrings)
+                strings[i].addValue(((StringField) t.getField(i)).getValue());
+            distinct[i].add(t.getField(i));
+        }
+        ntups++;
+    }
+
+    private synchronized void deleted(Tuple t) {
+        boolean inStrings = inStringHistograms();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i].removeValue(((IntField) t.getField(i)).getValue());
+            else if (inStrings)
+                strings[i].removeValue(((StringField) t.getField(i)).getValue());
+        }
+        ntups = Math.max(0, ntups - 1);
+    }
+
+    /**
+     * Writes these statistics so that {@link #read} can recreate them.
+     */
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(ioCostPerPage);
+        out.writeInt(numPages);
+        out.writeInt(sampledPages);
+        out.writeInt(ntups);
+        out.writeLong(buildMillis);
+        out.writeLong(buildModifications);
+        out.writeInt(ints.length);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                out.writeByte(Type.INT_TYPE.ordinal());
+                ints[i].write(out);
+            } else {
+                out.writeByte(Type.STRING_TYPE.ordinal());
+                strings[i].write(out);
+            }
+            distinct[i].write(out);
+        }
+    }
+
+    /**
+     * Reads statistics written by {@link #write}.
+     *
+     * @param tableid
+     *            the table the statistics are about
+     * @throws IOException
+     *             if the input does not hold statistics
+     */
+    static TableStats read(DataInput in, int tableid) throws IOException {
+        int ioCostPerPage = in.readInt();
+        int numPages = in.readInt();
+        int sampledPages = in.readInt();
+        int ntups = in.readInt();
+        long buildMillis = in.readLong();
+        long buildModifications = in.readLong();
+        int numFields = in.readInt();
+        if (numFields < 0)
+            throw new IOException("bad field count " + numFields);
+        EquiDepthHistogram[] ints = new EquiDepthHistogram[numFields];
+        StringHistogram[] strings = new StringHistogram[numFields];
+        HyperLogLog[] distinct = new HyperLogLog[numFields];
+        for (int i = 0; i < numFields; i++) {
+            int type = in.readByte();
+            if (type == Type.INT_TYPE.ordinal())
+                ints[i] = EquiDepthHistogram.read(in);
+            else if (type == Type.STRING_TYPE.ordinal())
+                strings[i] = StringHistogram.read(in);
+            else
+                throw new IOException("bad field type " + type);
+            distinct[i] = HyperLogLog.read(in);
+        }
+        return new TableStats(tableid, ioCostPerPage, numPages, sampledPages,
+                ntups, ints, strings, distinct, buildMillis, buildModifications);
+    }
+
+    /**
+     * @return true if these statistics have a histogram of the right type
+     *         for each field of td
+     */
+    boolean describes(TupleDesc td) {
+        if (td.numFields() != ints.length)
+            return false;
+        for (int i = 0; i < ints.length; i++) {
+            if ((ints[i] != null) != (td.getFieldType(i) == Type.INT_TYPE))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the modification count of the table (see
+     *         {@link #getModificationCount}) when the statistics were built
+     */
+    public long getBuildModificationCount() {
+        return buildModifications;
+    }
+
+    /**
+     * @return the number of pages of the table when the statistics were
+     *         built
+     */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the time it took to read the table and build its statistics,
+     *         in milliseconds
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * @return the number of pages the statistics were built from; less than
+     *         the number of pages of the table if they were built from a
+     *         sample
+     */
+    public int getSampledPages() {
+        return sampledPages;
+    }
+
+    /**
+     * @return true if the statistics were built from a sample of the pages
+     *         of the table
+     */
+    public boolean isSampled() {
+        return sampledPages < numPages;
     }
 
     /**
@@ -99,9 +511,42 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
+    public synchronized double estimateScanCost() {
         // some code goes here
-        return 0;
+        return (double) pages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading, through the B+ tree of the table, the
+     * tuples whose key satisfies a predicate of the given selectivity, as a
+     * {@link BTreeScan} does: one page per level of the tree to find the
+     * first of them, then the leaf pages holding them, which follow each
+     * other in key order.
+     *
+     * @param selectivity
+     *            the selectivity of the predicate over the key
+     * @return the estimated cost, or that of a full scan if the table is not
+     *         a BTreeFile
+     */
+    public synchronized double estimateIndexScanCost(double selectivity) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile))
+            return estimateScanCost();
+        return (indexHeight((BTreeFile) f, pages)
+                + Math.ceil(selectivity * pages)) * ioCostPerPage;
+    }
+
+    /**
+     * @return the estimated number of levels, leaves included, of the B+
+     *         tree f of the given number of pages, from the fanout of an
+     *         internal page
+     */
+    static int indexHeight(BTreeFile f, int pages) {
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        int fanout = Math.max(2, (BufferPool.getPageSize() * 8)
+                / (keySize * 8 + BTreePage.INDEX_SIZE * 8 + 1));
+        return 1 + (int) Math.ceil(Math.log(Math.max(1, pages))
+                / Math.log(fanout));
     }
 
     /**
@@ -113,9 +558,9 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-        return 0;
+        return (int) Math.round(ntups * selectivityFactor);
     }
 
     /**
@@ -128,9 +573,20 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        double eq = ints[field] != null ? ints[field].avgSelectivity()
+                : strings[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            // a range comparison with a random value of the field
+            return 0.5;
+        }
     }
 
     /**
@@ -146,17 +602,67 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        return 1.0;
+        if (ints[field] != null)
+            return ints[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        return strings[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * Estimates the number of distinct values of a field from its sketch.
+     * The sketch of statistics built from a sample of the pages only saw the
+     * values on those pages; for an INT field, the number of distinct values
+     * its histogram extrapolates from its sample is used if larger.
+     *
+     * @param field
+     *            the index of the field
+     * @return the estimated number of distinct values, at most the number
+     *         of tuples
+     */
+    public synchronized double numDistinct(int field) {
+        double d = distinct[field].estimate();
+        if (isSampled() && ints[field] != null)
+            d = Math.max(d, ints[field].numDistinct());
+        return Math.min(d, ntups);
+    }
+
+    /**
+     * @return a copy of the distinct-value sketch of a field
+     */
+    public synchronized HyperLogLog getDistinctSketch(int field) {
+        return distinct[field].copy();
+    }
+
+    /**
+     * Estimates the selectivity of the equality join of a field of this
+     * table with a field of another.
+     *
+     * @return the estimated fraction of the pairs of tuples of the two
+     *         tables whose fields are equal, or -1 if there are no
+     *         histograms to estimate it from
+     */
+    public double estimateJoinSelectivity(int field, TableStats other,
+            int otherField) {
+        // copies, since either table may change meanwhile
+        EquiDepthHistogram h1, h2;
+        synchronized (this) {
+            h1 = ints[field] == null ? null : ints[field].copy();
+        }
+        synchronized (other) {
+            h2 = other.ints[otherField] == null ? null : other.ints[otherField].copy();
+        }
+        if (h1 == null || h2 == null)
+            return -1;
+        return h1.joinSelectivity(h2);
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
-        return 0;
+        return ntups;
     }
 
 }
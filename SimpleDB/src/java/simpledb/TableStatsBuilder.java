@@ -0,0 +1,376 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the {@link TableStats} of several tables in one pass over each.
+ * <p>
+ * The histograms of INT columns ({@link EquiDepthHistogram}s) are built
+ * from a {@link RowSample} of the table, which does not depend on how the
+ * rows were split between workers. A fixed number of workers read the
+ * pages of a {@link HeapFile} in morsels of
+ * {@link MorselScan#MORSEL_PAGES} pages, each filling its own sample,
+ * histograms of other columns and {@link HyperLogLog} sketches, which are
+ * merged when the table has been read. The workers
+ * take on the tables in turn: when all morsels of a table have been
+ * claimed, a worker moves on to the next table while the others finish
+ * theirs, so that small tables are built side by side. Other files are read
+ * by a single worker.
+ * <p>
+ * Pages are read through the buffer pool by a transaction of the builder,
+ * which commits when all tables are built. The lock on a page of a heap
+ * file is released as soon as its tuples are read: statistics need not be
+ * a consistent snapshot, and writers should not wait for a build.
+ * <p>
+ * With a {@link Sample}, only a random subset of the pages of each heap
+ * file is read, chosen by page number, and the number of tuples of the
+ * table is scaled up from the pages read (see
+ * {@link TableStats#getSampledPages}). The histograms estimate fractions of
+ * the tuples, so they need no scaling.
+ */
+public class TableStatsBuilder {
+
+    /**
+     * How much of each table to read: a fraction of its pages, or enough
+     * pages to hold a number of rows.
+     */
+    public static final class Sample {
+        private final double fraction;
+        private final long rows;
+        private final Random random;
+
+        private Sample(double fraction, long rows, Random random) {
+            this.fraction = fraction;
+            this.rows = rows;
+            this.random = random;
+        }
+
+        /**
+         * @param fraction
+         *            the fraction of the pages of a table to read, more than
+         *            0 and at most 1
+         */
+        public static Sample ofFraction(double fraction) {
+            return ofFraction(fraction, new Random());
+        }
+
+        /**
+         * As {@link #ofFraction(double)}, choosing the pages with random.
+         */
+        public static Sample ofFraction(double fraction, Random random) {
+            if (!(fraction > 0 && fraction <= 1))
+                throw new IllegalArgumentException("sample fraction must be in (0, 1]");
+            return new Sample(fraction, -1, random);
+        }
+
+        /**
+         * @param rows
+         *            the number of rows to read from a table, at least 1; as
+         *            many pages are read as would hold that many rows when
+         *            full
+         */
+        public static Sample ofRows(long rows) {
+            return ofRows(rows, new Random());
+        }
+
+        /**
+         * As {@link #ofRows(long)}, choosing the pages with random.
+         */
+        public static Sample ofRows(long rows, Random random) {
+            if (rows < 1)
+                throw new IllegalArgumentException("need to sample at least one row");
+            return new Sample(-1, rows, random);
+        }
+
+        /**
+         * @return the number of pages to read out of the numPages pages of a
+         *         heap file of tuples td
+         */
+        int numPages(int numPages, TupleDesc td) {
+            long k;
+            if (rows < 0) {
+                k = (long) Math.ceil(numPages * fraction);
+            } else {
+                // as HeapPage.getNumTuples
+                long perPage = Math.max(1, (BufferPool.getPageSize() * 8L)
+                        / (td.getSize() * 8L + 1));
+                k = (rows + perPage - 1) / perPage;
+            }
+            return (int) Math.min(numPages, Math.max(1, k));
+        }
+
+        /**
+         * @return k distinct page numbers below numPages, chosen at random,
+         *         in increasing order
+         */
+        int[] choosePages(int numPages, int k) {
+            // selection sampling: page p is taken with probability
+            // (pages still needed) / (pages left)
+            int[] pages = new int[k];
+            int taken = 0;
+            for (int p = 0; p < numPages && taken < k; p++) {
+                if (random.nextInt(numPages - p) < k - taken)
+                    pages[taken++] = p;
+            }
+            return pages;
+        }
+    }
+
+    /** The statistics of one table being built. */
+    private static final class Job {
+        final int tableId;
+        final DbFile file;
+        final int numPages;
+        // the pages of a heap file to read, in increasing order, or null to
+        // read them all
+        final int[] pages;
+        final int numMorsels;
+        // the modification count of the table when it started to be read
+        final long modifications;
+        final AtomicInteger nextMorsel = new AtomicInteger();
+        // the merged columns of the workers that are done with the table
+        Columns columns;
+        long start = -1, end = -1;
+
+        Job(int tableId, Sample sample) {
+            this.tableId = tableId;
+            this.file = Database.getCatalog().getDatabaseFile(tableId);
+            this.modifications = TableStats.getModificationCount(tableId);
+            numPages = numPages(file);
+            if (file instanceof HeapFile) {
+                int k = sample == null ? numPages
+                        : sample.numPages(numPages, file.getTupleDesc());
+                pages = k < numPages ? sample.choosePages(numPages, k) : null;
+                numMorsels = (k + MorselScan.MORSEL_PAGES - 1)
+                        / MorselScan.MORSEL_PAGES;
+            } else {
+                pages = null;
+                numMorsels = 1;
+            }
+        }
+
+        /**
+         * @return the number of pages read
+         */
+        int sampledPages() {
+            return pages == null ? numPages : pages.length;
+        }
+
+        synchronized void started(long now) {
+            if (start < 0)
+                start = now;
+        }
+
+        synchronized void done(Columns c, long now) {
+            if (columns == null)
+                columns = c;
+            else
+                columns.merge(c);
+            end = Math.max(end, now);
+        }
+    }
+
+    /**
+     * A sample of the rows of a table, for the histograms of its INT
+     * fields, the histograms of its other fields, a distinct-value sketch
+     * of each field, and its number of tuples.
+     */
+    static final class Columns {
+        final RowSample sample;
+        final StringHistogram[] strings;
+        final HyperLogLog[] distinct;
+        int ntups = 0;
+
+        Columns(TupleDesc td) {
+            sample = new RowSample(RowSample.DEFAULT_SIZE, RowSample.intFields(td));
+            strings = new StringHistogram[td.numFields()];
+            distinct = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) != Type.INT_TYPE)
+                    strings[i] = new StringHistogram(TableStats.NUM_HIST_BINS);
+                distinct[i] = new HyperLogLog(TableStats.SKETCH_PRECISION);
+            }
+        }
+
+        void add(Tuple t) {
+            sample.add(t);
+            for (int i = 0; i < strings.length; i++) {
+                if (strings[i] != null)
+                    strings[i].addValue(((StringField) t.getField(i)).getValue());
+                distinct[i].add(t.getField(i));
+            }
+            ntups++;
+        }
+
+        void merge(Columns other) {
+            sample.merge(other.sample);
+            for (int i = 0; i < strings.length; i++) {
+                if (strings[i] != null)
+                    strings[i].merge(other.strings[i]);
+                distinct[i].merge(other.distinct[i]);
+            }
+            ntups += other.ntups;
+        }
+    }
+
+    /**
+     * @return the number of pages of a heap or B+ tree file, or 0 for other
+     *         files
+     */
+    static int numPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return (int) (((BTreeFile) file).getFile().length()
+                    / BufferPool.getPageSize());
+        return 0;
+    }
+
+    private final List<Job> jobs = new ArrayList<Job>();
+    private final int ioCostPerPage;
+    private final TransactionId tid = new TransactionId();
+
+    private TableStatsBuilder(Collection<Integer> tableIds, int ioCostPerPage,
+            Sample sample) {
+        for (int tableId : tableIds)
+            jobs.add(new Job(tableId, sample));
+        this.ioCostPerPage = ioCostPerPage;
+    }
+
+    /**
+     * Builds the statistics of some tables.
+     *
+     * @param tableIds
+     *            the tables, in the order to build them in
+     * @param ioCostPerPage
+     *            the cost per page of IO, as for {@link TableStats}
+     * @param parallelism
+     *            the number of workers reading the tables
+     * @return the statistics of each table, by table id, in the order of
+     *         tableIds
+     * @throws DbException
+     *             if a table cannot be read
+     */
+    public static LinkedHashMap<Integer, TableStats> build(
+            Collection<Integer> tableIds, int ioCostPerPage, int parallelism)
+            throws DbException {
+        return build(tableIds, ioCostPerPage, parallelism, null);
+    }
+
+    /**
+     * Builds the statistics of some tables from a sample of their pages.
+     *
+     * @param sample
+     *            the pages of each heap file to read, or null to read them
+     *            all
+     * @see #build(Collection, int, int)
+     */
+    public static LinkedHashMap<Integer, TableStats> build(
+            Collection<Integer> tableIds, int ioCostPerPage, int parallelism,
+            Sample sample) throws DbException {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("need at least one worker");
+        return new TableStatsBuilder(tableIds, ioCostPerPage, sample)
+                .run(parallelism);
+    }
+
+    /**
+     * @return the statistics of one table, read by a single thread
+     */
+    static TableStats build(int tableId, int ioCostPerPage) {
+        try {
+            return build(Collections.singletonList(tableId), ioCostPerPage, 1)
+                    .get(tableId);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private LinkedHashMap<Integer, TableStats> run(int parallelism)
+            throws DbException {
+        try {
+            if (parallelism == 1) {
+                work();
+            } else {
+                List<Future<?>> workers = new ArrayList<Future<?>>();
+                for (int i = 0; i < parallelism; i++) {
+                    workers.add(WorkerPool.get().submit(() -> {
+                        work();
+                        return null;
+                    }));
+                }
+                for (Future<?> w : workers)
+                    w.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof DbException ? (DbException) cause
+                    : new DbException("cannot build table statistics: " + cause);
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while building table statistics");
+        } catch (TransactionAbortedException e) {
+            throw new DbException("cannot build table statistics: " + e);
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                throw new DbException("cannot release the pages read: " + e);
+            }
+        }
+        LinkedHashMap<Integer, TableStats> stats = new LinkedHashMap<Integer, TableStats>();
+        for (Job job : jobs) {
+            Columns c = job.columns != null ? job.columns
+                    : new Columns(job.file.getTupleDesc());
+            stats.put(job.tableId, new TableStats(job.tableId, ioCostPerPage,
+                    job.numPages, job.sampledPages(), c,
+                    Math.max(0, job.end - job.start) / 1000000, job.modifications));
+        }
+        return stats;
+    }
+
+    /**
+     * The loop of a worker: reads the unclaimed morsels of each table in
+     * turn.
+     */
+    private void work() throws DbException, TransactionAbortedException {
+        for (Job job : jobs) {
+            Columns c = null;
+            int m;
+            while ((m = job.nextMorsel.getAndIncrement()) < job.numMorsels) {
+                if (c == null) {
+                    job.started(System.nanoTime());
+                    c = new Columns(job.file.getTupleDesc());
+                }
+                read(job, m, c);
+            }
+            if (c != null)
+                job.done(c, System.nanoTime());
+        }
+    }
+
+    private void read(Job job, int morsel, Columns c) throws DbException,
+            TransactionAbortedException {
+        if (!(job.file instanceof HeapFile)) {
+            DbFileIterator it = job.file.iterator(tid);
+            it.open();
+            while (it.hasNext())
+                c.add(it.next());
+            it.close();
+            return;
+        }
+        int end = Math.min(job.sampledPages(), (morsel + 1) * MorselScan.MORSEL_PAGES);
+        for (int i = morsel * MorselScan.MORSEL_PAGES; i < end; i++) {
+            int p = job.pages == null ? i : job.pages[i];
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(job.tableId, p), Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                c.add(it.next());
+            Database.getBufferPool().releasePage(tid, page.getId());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN returns the first n tuples of its child in the order given by one or
+ * more sort fields, i.e. ORDER BY ... LIMIT n, without sorting the whole
+ * input.
+ * <p>
+ * The child is read once while a bounded max-heap keeps the n best tuples
+ * seen so far; each further tuple costs one comparison against the current
+ * worst of them and, if it is better, O(log n) to replace it. Memory use is
+ * proportional to n rather than to the input size. Tuples with equal keys are
+ * returned in input order, as with {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int[] fields;
+    private final boolean[] asc;
+    private final int n;
+    private final TupleDesc td;
+
+    transient private ArrayList<Tuple> result;
+    transient private Iterator<Tuple> it;
+
+    /** A retained tuple together with its position in the input. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fields
+     *            the fields to order by, most significant first
+     * @param asc
+     *            for each field, true if its order is ascending
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to choose from
+     */
+    public TopN(int[] fields, boolean[] asc, int n, OpIterator child) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "need one sort direction per ORDER BY field");
+        if (n < 0)
+            throw new IllegalArgumentException("n must not be negative");
+        this.fields = fields;
+        this.asc = asc;
+        this.n = n;
+        this.child = child;
+        this.td = child.getTupleDesc();
+    }
+
+    public int[] getOrderByFields() {
+        return fields;
+    }
+
+    public boolean[] getAscending() {
+        return asc;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator cmp = new TupleComparator(fields, asc);
+        // orders entries from best to worst; ties are broken by input order
+        final Comparator<Entry> order = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(a.t, b.t);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        };
+
+        result = new ArrayList<Tuple>();
+        if (n > 0) {
+            // max-heap: the worst retained entry is at the head
+            PriorityQueue<Entry> heap = new PriorityQueue<Entry>(
+                    Math.min(n, 1024) + 1, Collections.reverseOrder(order));
+            long seq = 0;
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    heap.add(new Entry(t, seq++));
+                } else if (cmp.compare(t, heap.peek().t) < 0) {
+                    // strictly better than the worst: later tuples with an
+                    // equal key lose to the earlier one already retained
+                    heap.poll();
+                    heap.add(new Entry(t, seq++));
+                } else {
+                    seq++;
+                }
+            }
+            Entry[] entries = heap.toArray(new Entry[heap.size()]);
+            Arrays.sort(entries, order);
+            for (Entry e : entries)
+                result.add(e.t);
+        }
+        // everything needed has been read
+        child.close();
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        result = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = result.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in order.
+     *
+     * @return the next tuple, or null if n tuples have been returned or the
+     *         input had fewer than n tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
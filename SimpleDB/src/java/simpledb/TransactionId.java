@@ -5,6 +5,10 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TransactionId is a class that contains the identifier of a transaction.
+ * <p>
+ * A TransactionId is immutable, so the worker threads of a parallel query
+ * share their transaction's id; locks are held by the transaction, not by
+ * the thread that acquired them, and are all released when it completes.
  */
 public class TransactionId implements Serializable {
 
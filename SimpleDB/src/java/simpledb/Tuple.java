@@ -1,7 +1,6 @@
 package simpledb;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -14,7 +13,7 @@ public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc tupleDesc; //声明Schema对象
-    private ArrayList<Field> tupleField;
+    private Field[] tupleField;
     private RecordId recordId;
 
     /**
@@ -27,10 +26,7 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         this.tupleDesc=td;
-        tupleField=new ArrayList<>(td.numFields());
-        for(int i=0;i< td.numFields();i++){
-            tupleField.add(null);
-        }
+        tupleField=new Field[td.numFields()];
 
     }
 
@@ -72,7 +68,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        tupleField.set(i,f);
+        tupleField[i]=f;
     }
 
     /**
@@ -83,7 +79,7 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return tupleField.get(i);
+        return tupleField[i];
     }
 
     /**
@@ -97,10 +93,10 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         String str = new String();
-        for (int i = 0; i < tupleField.size() - 1; i++) {
-            str += tupleField.get(i).toString() + "\t";
+        for (int i = 0; i < tupleField.length - 1; i++) {
+            str += tupleField[i].toString() + "\t";
         }
-        str += tupleField.get(tupleField.size()-1) + "\n";
+        str += tupleField[tupleField.length-1] + "\n";
         return str;
         //throw new UnsupportedOperationException("Implement this");
     }
@@ -112,7 +108,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return tupleField.iterator();
+        return Arrays.asList(tupleField).iterator();
     }
 
     /**
@@ -122,9 +118,6 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         this.tupleDesc = td;
-        this.tupleField = new ArrayList<>(td.numFields());
-        for (int i = 0; i < td.numFields(); i++) {
-            this.tupleField.add(null);
-        }
+        this.tupleField = new Field[td.numFields()];
     }
 }
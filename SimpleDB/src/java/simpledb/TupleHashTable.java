@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from whole tuples of one TupleDesc to dense
+ * ids, the multi-field counterpart of {@link IntHashTable}.
+ * <p>
+ * Tuples are hashed and compared field by field, without building a key
+ * object per lookup. The key of a tuple is either the whole tuple or the
+ * given fields of it, in order. When all fields are INTs the values of each key are
+ * copied into one int array, {@code width} ints per id, so a key costs its
+ * values plus a cached hash and the slots at the table's load factor; for
+ * other schemas the table keeps a reference to the inserted tuple.
+ * <p>
+ * Keys cannot be removed; {@link #clear()} empties the table.
+ */
+public class TupleHashTable {
+
+    private static final int EMPTY = -1;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final TupleDesc td;
+    private final int width;
+    private final boolean allInts;
+    // estimated bytes of a referenced tuple, if not allInts
+    private final long tupleBytes;
+
+    // slots[h] is the id of the key hashed to h, or EMPTY
+    private int[] slots;
+    private int mask;
+    private int resizeAt;
+    // the key with id i is ints[i * width ..] if allInts, tuples[i] otherwise
+    private int[] ints;
+    private Tuple[] tuples;
+    private int[] hashes;
+    private int size = 0;
+
+    /**
+     * @param td
+     *            the TupleDesc of the keys
+     */
+    public TupleHashTable(TupleDesc td) {
+        this.td = td;
+        width = td.numFields();
+        boolean ints = true;
+        for (int i = 0; i < width; i++)
+            ints &= td.getFieldType(i) == Type.INT_TYPE;
+        allInts = ints;
+        tupleBytes = allInts ? 0 : ExternalSort.estimateTupleBytes(td);
+        allocate(16);
+        hashes = new int[16];
+        if (allInts)
+            this.ints = new int[16 * width];
+        else
+            tuples = new Tuple[16];
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @return a hash of all fields of t, the one the table uses
+     */
+    public static int hash(Tuple t) {
+        return hash(t, null, t.getTupleDesc().numFields());
+    }
+
+    /**
+     * @return a hash of the given fields of t, the one the table uses for
+     *         keys made of them
+     */
+    public static int hash(Tuple t, int[] fields) {
+        return hash(t, fields, fields.length);
+    }
+
+    private static int hash(Tuple t, int[] fields, int n) {
+        int h = 1;
+        for (int i = 0; i < n; i++) {
+            Field f = t.getField(fields == null ? i : fields[i]);
+            h = 31 * h + (f instanceof IntField ? ((IntField) f).getValue()
+                    : f.hashCode());
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the key with the given id equals the given fields of
+     *         t, or all of them if fields is null
+     */
+    private boolean matches(int id, Tuple t, int[] fields) {
+        if (allInts) {
+            int base = id * width;
+            for (int i = 0; i < width; i++) {
+                int f = fields == null ? i : fields[i];
+                if (ints[base + i] != ((IntField) t.getField(f)).getValue())
+                    return false;
+            }
+            return true;
+        }
+        Tuple key = tuples[id];
+        for (int i = 0; i < width; i++) {
+            if (!key.getField(i).equals(t.getField(fields == null ? i : fields[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of the key equal to t, or -1 if there is none
+     */
+    public int find(Tuple t) {
+        return find(t, hash(t));
+    }
+
+    /**
+     * @param hash
+     *            the value of {@link #hash}(t)
+     * @return the id of the key equal to t, or -1 if there is none
+     */
+    public int find(Tuple t, int hash) {
+        return find(t, null, hash);
+    }
+
+    /**
+     * @param fields
+     *            the fields of t making up its key
+     * @param hash
+     *            the value of {@link #hash(Tuple, int[])}
+     * @return the id of the key equal to those fields of t, or -1 if there
+     *         is none
+     */
+    public int find(Tuple t, int[] fields, int hash) {
+        for (int h = hash & mask;; h = (h + 1) & mask) {
+            int id = slots[h];
+            if (id == EMPTY)
+                return -1;
+            if (hashes[id] == hash && matches(id, t, fields))
+                return id;
+        }
+    }
+
+    /**
+     * Returns the id of the key equal to t, adding t with the next id
+     * ({@link #size()} before the call) if there is none.
+     */
+    public int findOrInsert(Tuple t) {
+        return findOrInsert(t, hash(t));
+    }
+
+    /**
+     * @param hash
+     *            the value of {@link #hash}(t)
+     * @see #findOrInsert(Tuple)
+     */
+    public int findOrInsert(Tuple t, int hash) {
+        return findOrInsert(t, null, hash);
+    }
+
+    /**
+     * Returns the id of the key equal to the given fields of t, adding them
+     * as a key with the next id if there is none; a key that is not all INTs
+     * is then copied into a new tuple.
+     *
+     * @param fields
+     *            the fields of t making up its key, or null for all of them
+     * @param hash
+     *            the value of {@link #hash(Tuple, int[])}
+     */
+    public int findOrInsert(Tuple t, int[] fields, int hash) {
+        int h = hash & mask;
+        for (;; h = (h + 1) & mask) {
+            int id = slots[h];
+            if (id == EMPTY)
+                break;
+            if (hashes[id] == hash && matches(id, t, fields))
+                return id;
+        }
+        int id = size++;
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+            if (allInts)
+                ints = Arrays.copyOf(ints, id * 2 * width);
+            else
+                tuples = Arrays.copyOf(tuples, id * 2);
+        }
+        hashes[id] = hash;
+        if (allInts) {
+            int base = id * width;
+            for (int i = 0; i < width; i++) {
+                int f = fields == null ? i : fields[i];
+                ints[base + i] = ((IntField) t.getField(f)).getValue();
+            }
+        } else if (fields == null) {
+            tuples[id] = t;
+        } else {
+            Tuple key = new Tuple(td);
+            for (int i = 0; i < width; i++)
+                key.setField(i, t.getField(fields[i]));
+            tuples[id] = key;
+        }
+        slots[h] = id;
+        if (size > resizeAt)
+            rehash();
+        return id;
+    }
+
+    /**
+     * @return field i of the key with the given id
+     */
+    public Field keyField(int id, int i) {
+        if (allInts)
+            return new IntField(ints[id * width + i]);
+        return tuples[id].getField(i);
+    }
+
+    private void rehash() {
+        allocate(slots.length * 2);
+        for (int id = 0; id < size; id++) {
+            int h = hashes[id] & mask;
+            while (slots[h] != EMPTY)
+                h = (h + 1) & mask;
+            slots[h] = id;
+        }
+    }
+
+    /**
+     * Removes all keys; ids are handed out from 0 again.
+     */
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        if (tuples != null)
+            Arrays.fill(tuples, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the table, including
+     *         the tuples it references
+     */
+    public long memoryBytes() {
+        long bytes = 4L * slots.length + 4L * hashes.length + 32;
+        if (allInts)
+            return bytes + 4L * ints.length;
+        // the reference, and the tuple with its fields
+        return bytes + 8L * tuples.length + size * tupleBytes;
+    }
+}
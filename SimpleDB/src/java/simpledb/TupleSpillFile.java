@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A temporary file of tuples used by operators that must spill intermediate
+ * state to disk (sort runs, hash partitions, ...).
+ * <p>
+ * Unlike the page format used by {@link HeapFile}, tuples are written in a
+ * compact, variable-length binary form: an INT field is written as 4 bytes and
+ * a STRING field as a 2-byte length followed by its characters, without the
+ * padding to {@link Type#STRING_LEN}. The file is written once, sequentially,
+ * then read back any number of times with {@link #reader()}. It is deleted by
+ * {@link #delete()}, or when the JVM exits.
+ */
+public class TupleSpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long numTuples = 0;
+
+    /**
+     * Creates a new, empty spill file for tuples of the given TupleDesc.
+     *
+     * @param td
+     *            the schema of the tuples written to this file
+     */
+    public TupleSpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e);
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Appends a tuple to the file. Must not be called after {@link #finish()}.
+     */
+    public void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(((IntField) f).getValue());
+                } else {
+                    String s = ((StringField) f).getValue();
+                    out.writeShort(s.length());
+                    out.writeBytes(s);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        numTuples++;
+    }
+
+    /**
+     * Flushes and closes the file for writing; it can be read afterwards.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        out = null;
+    }
+
+    /**
+     * @return a new reader positioned at the first tuple of the file
+     */
+    public Reader reader() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    /**
+     * Closes the file and removes it from disk.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is being discarded anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader over the tuples of a spill file.
+     */
+    public class Reader {
+        private DataInputStream in;
+        private long remaining;
+        private final byte[] buf = new byte[Type.STRING_LEN];
+
+        private Reader() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file: " + e);
+            }
+            remaining = numTuples;
+        }
+
+        /**
+         * @return the next tuple of the file, or null if there are no more
+         *         tuples (in which case the reader has been closed)
+         */
+        public Tuple next() throws DbException {
+            if (remaining == 0) {
+                close();
+                return null;
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        t.setField(i, new IntField(in.readInt()));
+                    } else {
+                        int len = in.readUnsignedShort();
+                        in.readFully(buf, 0, len);
+                        t.setField(i, new StringField(new String(buf, 0, len,
+                                StandardCharsets.ISO_8859_1), Type.STRING_LEN));
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e);
+            }
+            remaining--;
+            return t;
+        }
+
+        public void close() {
+            if (in == null)
+                return;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written, so nothing can be lost
+            }
+            in = null;
+        }
+    }
+}
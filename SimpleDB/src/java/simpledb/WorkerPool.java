@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by operators that run parts of a query in parallel.
+ * <p>
+ * Threads are created on demand and kept for a minute when idle, so that
+ * the workers of consecutive queries are reused. They are daemon threads and
+ * do not keep the JVM alive.
+ */
+public class WorkerPool {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-worker-"
+                            + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private WorkerPool() {
+    }
+
+    /**
+     * @return the executor workers are submitted to
+     */
+    public static ExecutorService get() {
+        return pool;
+    }
+
+    /**
+     * @return the default number of workers of a parallel operator: the
+     *         number of available processors
+     */
+    public static int defaultParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  private static OpIterator input() {
+    return TestUtil.createTupleList(2,
+        new int[] { 3, 1,
+                    1, 2,
+                    3, 1,
+                    3, 2,
+                    1, 2,
+                    2, 2 });
+  }
+
+  /**
+   * Each distinct tuple is returned once, in the order it was first seen
+   */
+  @Test public void hashDistinct() throws Exception {
+    Distinct op = new Distinct(input());
+    assertFalse(op.isStreaming());
+    assertEquals(Utility.getTupleDesc(2), op.getTupleDesc());
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 3, 1, 1, 2, 3, 2, 2, 2 });
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * String fields are compared by value
+   */
+  @Test public void stringFields() throws Exception {
+    Distinct op = new Distinct(TestUtil.createTupleList(1,
+        new Object[] { "ann", "bob", "ann", "cy", "bob" }));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1,
+        new Object[] { "ann", "bob", "cy" }), op);
+    op.close();
+  }
+
+  /**
+   * An input sorted on all fields is made distinct by comparing each tuple
+   * with the one before it
+   */
+  @Test public void streaming() throws Exception {
+    OpIterator sorted = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true },
+        input());
+    Distinct op = new Distinct(sorted);
+    assertTrue(op.isStreaming());
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 2, 2, 2, 3, 1, 3, 2 }), op);
+    op.close();
+
+    // sorting on some of the fields is not enough
+    assertFalse(new Distinct(new OrderBy(0, true, input())).isStreaming());
+  }
+
+  /**
+   * With a small memory budget, tuples spill to disk and still come out
+   * exactly once
+   */
+  @Test public void spill() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 60, null, rows, "c");
+    HashSet<ArrayList<Integer>> expected = new HashSet<ArrayList<Integer>>(rows);
+    TransactionId tid = new TransactionId();
+    Distinct op = new Distinct(new SeqScan(tid, f.getId(), "t"), 4096);
+    op.open();
+    HashSet<ArrayList<Integer>> actual = new HashSet<ArrayList<Integer>>();
+    long spilled = 0;
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      spilled = Math.max(spilled, op.numSpilled());
+      actual.add(new ArrayList<Integer>(Arrays.asList(
+          ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue())));
+      n++;
+    }
+    op.close();
+    assertTrue(spilled > 0);
+    assertEquals(expected.size(), n);
+    assertEquals(expected, actual);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static int count(OpIterator plan) throws Exception {
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    return n;
+  }
+
+  /**
+   * SELECT DISTINCT removes duplicate result tuples, before any LIMIT
+   */
+  @Test public void selectDistinct() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 30, null, rows, "c");
+    Database.getCatalog().addTable(f, "distinct_t");
+    TableStats.setTableStats("distinct_t", new TableStats(f.getId(), 1));
+    HashSet<Integer> values = new HashSet<Integer>();
+    for (ArrayList<Integer> row : rows)
+      values.add(row.get(1));
+
+    Parser p = new Parser();
+    TransactionId tid = new TransactionId();
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "select distinct t.c1 from distinct_t t;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof Distinct);
+    assertEquals(values.size(), count(plan));
+
+    plan = p.generateLogicalPlan(tid,
+        "select distinct t.c1 from distinct_t t order by t.c1 limit 5;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(Math.min(5, values.size()), count(plan));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
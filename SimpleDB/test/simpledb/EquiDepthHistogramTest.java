@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EquiDepthHistogramTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 200000;
+
+  private static Map<Integer, Integer> frequencies(int[] values) {
+    Map<Integer, Integer> freq = new HashMap<Integer, Integer>();
+    for (int v : values)
+      freq.merge(v, 1, Integer::sum);
+    return freq;
+  }
+
+  /**
+   * The most frequent values of a skewed column are estimated closely, where
+   * an equi-width histogram spreads them over their bucket
+   */
+  @Test public void skewedEqualities() {
+    int[] data = HistogramBenchmark.zipf(ROWS, 10000, 1.2, 1);
+    Map<Integer, Integer> freq = frequencies(data);
+    EquiDepthHistogram h = EquiDepthHistogram.build(
+        Arrays.copyOf(data, RowSample.DEFAULT_SIZE), ROWS, 100, 100);
+    IntHistogram w = new IntHistogram(100);
+    for (int v : data)
+      w.addValue(v);
+
+    List<Map.Entry<Integer, Integer>> byFreq = new ArrayList<Map.Entry<Integer, Integer>>(freq.entrySet());
+    byFreq.sort((a, b) -> b.getValue() - a.getValue());
+    for (int i = 0; i < 10; i++) {
+      int v = byFreq.get(i).getKey();
+      double truth = (double) byFreq.get(i).getValue() / ROWS;
+      double est = h.estimateSelectivity(Predicate.Op.EQUALS, v);
+      assertEquals(truth, est, truth * 0.15);
+      assertEquals(1 - truth, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, v), truth * 0.15);
+    }
+    // the most frequent value alone is beyond the equi-width estimate
+    double top = (double) byFreq.get(0).getValue() / ROWS;
+    assertTrue(w.estimateSelectivity(Predicate.Op.EQUALS, byFreq.get(0).getKey()) < top / 10);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, -5), 0);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, 20000), 0);
+  }
+
+  /**
+   * Range selectivities agree with the data, and the operators are
+   * consistent with each other
+   */
+  @Test public void ranges() {
+    int[] data = HistogramBenchmark.zipf(ROWS, 10000, 1.2, 2);
+    int[] sorted = data.clone();
+    Arrays.sort(sorted);
+    EquiDepthHistogram h = EquiDepthHistogram.build(
+        Arrays.copyOf(data, RowSample.DEFAULT_SIZE), ROWS, 100, 100);
+    for (int v = -10; v <= 10010; v += 97) {
+      int lt = lowerBound(sorted, v);
+      assertEquals((double) lt / ROWS, h.estimateSelectivity(Predicate.Op.LESS_THAN, v), 0.02);
+      assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, v)
+          + h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, v), 1e-9);
+      assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, v)
+          + h.estimateSelectivity(Predicate.Op.GREATER_THAN, v), 1e-9);
+    }
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 10001), 1e-9);
+    assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 10001), 1e-9);
+  }
+
+  private static int lowerBound(int[] sorted, int v) {
+    int l = 0, h = sorted.length;
+    while (l < h) {
+      int m = (l + h) >>> 1;
+      if (sorted[m] < v)
+        l = m + 1;
+      else
+        h = m;
+    }
+    return l;
+  }
+
+  /**
+   * The size of a join of skewed columns is estimated from their most
+   * common values
+   */
+  @Test public void skewedJoin() {
+    int[] r = HistogramBenchmark.zipf(ROWS, 10000, 1.2, 3);
+    int[] s = HistogramBenchmark.zipf(ROWS / 4, 10000, 1.2, 3);
+    Map<Integer, Integer> fr = frequencies(r), fs = frequencies(s);
+    double truth = 0;
+    for (Map.Entry<Integer, Integer> e : fr.entrySet()) {
+      Integer c = fs.get(e.getKey());
+      if (c != null)
+        truth += (double) e.getValue() * c;
+    }
+    EquiDepthHistogram hr = EquiDepthHistogram.build(
+        Arrays.copyOf(r, RowSample.DEFAULT_SIZE), r.length, 100, 100);
+    EquiDepthHistogram hs = EquiDepthHistogram.build(
+        Arrays.copyOf(s, RowSample.DEFAULT_SIZE), s.length, 100, 100);
+    double est = hr.joinSelectivity(hs) * r.length * (double) s.length;
+    assertEquals(truth, est, truth * 0.2);
+    assertEquals(est, hs.joinSelectivity(hr) * r.length * (double) s.length, est * 1e-9);
+  }
+
+  /**
+   * Values added and removed after the build change the counts, and the
+   * histogram survives being written and read
+   */
+  @Test public void updateAndPersist() throws IOException {
+    int[] sample = new int[1000];
+    for (int i = 0; i < sample.length; i++)
+      sample[i] = i % 10 == 0 ? 7 : 1000 + i;
+    EquiDepthHistogram h = EquiDepthHistogram.build(sample, 1000, 10, 5);
+    assertEquals(0.1, h.estimateSelectivity(Predicate.Op.EQUALS, 7), 1e-9);
+    assertEquals(1000, h.numTuples(), 1e-9);
+
+    for (int i = 0; i < 100; i++)
+      h.addValue(7);
+    h.addValue(5000);
+    h.removeValue(1001);
+    assertEquals(1100, h.numTuples(), 1e-9);
+    assertEquals(200.0 / 1100, h.estimateSelectivity(Predicate.Op.EQUALS, 7), 1e-9);
+    // the last bucket was widened to hold 5000
+    assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 5000), 1e-9);
+    assertTrue(h.estimateSelectivity(Predicate.Op.GREATER_THAN, 1999) > 0);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    h.write(new DataOutputStream(bytes));
+    EquiDepthHistogram read = EquiDepthHistogram.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(h.toString(), read.toString());
+    for (int v = 0; v < 2100; v += 7) {
+      assertEquals(h.estimateSelectivity(Predicate.Op.LESS_THAN, v),
+          read.estimateSelectivity(Predicate.Op.LESS_THAN, v), 0);
+    }
+  }
+
+  /**
+   * The join optimizer estimates the size of a join on skewed columns from
+   * the histograms of its tables
+   */
+  @Test public void joinCardinality() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    int[] data = HistogramBenchmark.zipf(20000, 1000, 1.3, 4);
+    for (int v : data)
+      rows.add(new ArrayList<Integer>(Arrays.asList(v, v)));
+    File temp = File.createTempFile("skew", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(rows, temp, BufferPool.getPageSize(), 2);
+    HeapFile f = Utility.openHeapFile(2, "c", temp);
+    Database.getCatalog().addTable(f, "skew_t");
+    Map<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("skew_t", new TableStats(f.getId(), 1));
+    Map<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("a", f.getId());
+    aliases.put("b", f.getId());
+
+    double truth = 0;
+    for (int c : frequencies(data).values())
+      truth += (double) c * c;
+    int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "c0", "c1", 20000, 20000, false, false, stats, aliases);
+    assertEquals(truth, card, truth * 0.1);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(EquiDepthHistogramTest.class);
+  }
+}
@@ -0,0 +1,321 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  // enough rows for several morsels per copy
+  private static final int ROWS = 60000;
+
+  /**
+   * @return the tuples of an open iterator as sorted strings
+   */
+  private static List<String> sorted(OpIterator it) throws Exception {
+    ArrayList<String> tuples = new ArrayList<String>();
+    while (it.hasNext())
+      tuples.add(it.next().toString());
+    Collections.sort(tuples);
+    return tuples;
+  }
+
+  private static List<String> sortedRows(List<ArrayList<Integer>> rows) {
+    ArrayList<String> tuples = new ArrayList<String>();
+    for (ArrayList<Integer> row : rows) {
+      StringBuilder s = new StringBuilder();
+      for (int i = 0; i < row.size(); i++)
+        s.append(i == 0 ? "" : "\t").append(row.get(i));
+      tuples.add(s.append("\n").toString());
+    }
+    Collections.sort(tuples);
+    return tuples;
+  }
+
+  /**
+   * Gathering split scans returns every tuple once, also after a rewind
+   */
+  @Test public void gatherSplitScans() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, rows);
+    TransactionId tid = new TransactionId();
+    Exchange gather = Exchange.gather(MorselScan.split(tid, f.getId(), "t", 4));
+    assertEquals(Exchange.Mode.GATHER, gather.getMode());
+    assertEquals(4, gather.getChildren().length);
+    gather.open();
+    assertEquals(sortedRows(rows), sorted(gather));
+    gather.rewind();
+    assertEquals(sortedRows(rows), sorted(gather));
+    gather.close();
+    // pages read by the workers are locked by the transaction
+    assertTrue(Database.getBufferPool().holdsLock(tid,
+        new HeapPageId(f.getId(), f.numPages() - 1)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Each value of the repartitioning field goes to exactly one consumer;
+   * spooled consumers can be rewound
+   */
+  @Test public void repartition() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, 500, null, rows);
+    TransactionId tid = new TransactionId();
+    final Exchange[] ports = Exchange.repartition(
+        MorselScan.split(tid, f.getId(), "t", 3), 1, 4, true);
+    assertEquals(4, ports[0].numConsumers());
+    // the consumers must be read concurrently, or the producers would wait
+    // on the full queues of the others
+    final List<List<String>> read = new ArrayList<List<String>>();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread[] threads = new Thread[ports.length];
+    for (int c = 0; c < ports.length; c++) {
+      final int port = c;
+      read.add(null);
+      threads[c] = new Thread() {
+        public void run() {
+          try {
+            ports[port].open();
+            // rewinding part way through keeps the rest of the input
+            for (int i = 0; i < 100 && ports[port].hasNext(); i++)
+              ports[port].next();
+            ports[port].rewind();
+            List<String> first = sorted(ports[port]);
+            ports[port].rewind();
+            assertEquals(first, sorted(ports[port]));
+            read.set(port, first);
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      threads[c].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals(Collections.emptyList(), errors);
+    for (Exchange p : ports)
+      p.close();
+
+    HashMap<String, Integer> consumerOf = new HashMap<String, Integer>();
+    ArrayList<String> all = new ArrayList<String>();
+    for (int c = 0; c < ports.length; c++) {
+      for (String t : read.get(c)) {
+        Integer prev = consumerOf.put(t.split("\t")[1], c);
+        assertTrue(prev == null || prev == c);
+      }
+      all.addAll(read.get(c));
+    }
+    Collections.sort(all);
+    assertEquals(sortedRows(rows), all);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Every consumer of a broadcast returns all tuples
+   */
+  @Test public void broadcast() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, rows);
+    TransactionId tid = new TransactionId();
+    final Exchange[] ports = Exchange.broadcast(
+        MorselScan.split(tid, f.getId(), "t", 2), 3, false);
+    ArrayList<OpIterator> readers = new ArrayList<OpIterator>();
+    for (Exchange p : ports)
+      readers.add(p);
+    // the consumers are read in parallel, as the copies of a plan would be
+    Exchange gather = Exchange.gather(readers.toArray(new OpIterator[0]));
+    gather.open();
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < ports.length; i++)
+      expected.addAll(sortedRows(rows));
+    Collections.sort(expected);
+    assertEquals(expected, sorted(gather));
+    gather.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A parallel plan returns the same tuples as the serial one: filters,
+   * a repartitioned hash join whose partitions are too large to build at
+   * once, and partial aggregation
+   */
+  @Test public void parallelPlan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows1 = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> rows2 = new ArrayList<ArrayList<Integer>>();
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, ROWS, 50000, null, rows1);
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 20000, 50000, null, rows2);
+    TransactionId tid = new TransactionId();
+
+    List<String> serial = null;
+    for (int dop : new int[] { 1, 2 }) {
+      Operator join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+          new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(100)),
+              new SeqScan(tid, f1.getId(), "a")),
+          new SeqScan(tid, f2.getId(), "b"));
+      Operator agg = new Aggregate(join, new int[] { 1, 3, 3, 1, 0 }, new int[] { 2 },
+          new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG,
+              Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.MIN });
+      OpIterator plan = ParallelPlanner.parallelize(agg, dop);
+      assertEquals(agg.getTupleDesc(), plan.getTupleDesc());
+      plan.open();
+      List<String> result = sorted(plan);
+      plan.close();
+      if (serial == null) {
+        assertTrue(result.size() > 100);
+        serial = result;
+      } else {
+        assertTrue(plan instanceof Aggregate);
+        assertTrue(((Aggregate) plan).getChildren()[0] instanceof Exchange);
+        assertEquals(serial, result);
+      }
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return a heap file of the given rows of (key, 0)
+   */
+  private static HeapFile keys(List<Integer> keys) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int k : keys)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(k, 0)));
+    java.io.File temp = java.io.File.createTempFile("exchange_keys", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+    return Utility.openHeapFile(2, temp);
+  }
+
+  /**
+   * A copy of a hash join whose share of the first child needs several
+   * batches of the hash table does not stall the other copies
+   */
+  @Test(timeout = 60000) public void skewedHashJoin() throws Exception {
+    ArrayList<Integer> build = new ArrayList<Integer>();
+    for (int i = 0; i < 25000; i++)
+      build.add(2 * i);
+    for (int i = 0; i < 5000; i++)
+      build.add(2 * i + 1);
+    ArrayList<Integer> probe = new ArrayList<Integer>();
+    for (int i = 0; i < 20000; i++)
+      probe.add(i);
+    HeapFile f1 = keys(build);
+    HeapFile f2 = keys(probe);
+    TransactionId tid = new TransactionId();
+    for (int dop : new int[] { 1, 2, 4 }) {
+      OpIterator plan = ParallelPlanner.parallelize(new HashEquiJoin(
+          new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+          new SeqScan(tid, f1.getId(), "a"), new SeqScan(tid, f2.getId(), "b")),
+          dop);
+      plan.open();
+      int count = 0;
+      while (plan.hasNext()) {
+        Tuple t = plan.next();
+        assertEquals(t.getField(0), t.getField(2));
+        count++;
+      }
+      plan.close();
+      assertEquals(15000, count);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Operators that cannot run on a share of their input run once over the
+   * gathered copies of their children, and may rewind them
+   */
+  @Test public void serialOperators() throws Exception {
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, null);
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 100, null, null);
+    TransactionId tid = new TransactionId();
+    List<String> serial = null;
+    for (int dop : new int[] { 1, 4 }) {
+      OpIterator plan = new Limit(50, 10, new OrderBy(new int[] { 0, 1, 2, 3 },
+          new boolean[] { true, true, true, true },
+          new Join(new JoinPredicate(1, Predicate.Op.LESS_THAN, 1),
+              new SeqScan(tid, f1.getId(), "a"), new SeqScan(tid, f2.getId(), "b"))));
+      plan = ParallelPlanner.parallelize(plan, dop);
+      plan.open();
+      ArrayList<String> result = new ArrayList<String>();
+      while (plan.hasNext())
+        result.add(plan.next().toString());
+      plan.close();
+      assertEquals(50, result.size());
+      if (serial == null)
+        serial = result;
+      else
+        assertEquals(serial, result);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * An Error thrown by a producer, not only an Exception, fails the
+   * consumers instead of ending their input early
+   */
+  @Test public void producerError() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    TransactionId tid = new TransactionId();
+    MorselScan[] scans = MorselScan.split(tid, f.getId(), "t", 4);
+    OpIterator[] producers = new OpIterator[scans.length];
+    for (int i = 0; i < scans.length; i++) {
+      producers[i] = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+          new IntField(Integer.MIN_VALUE)), scans[i]) {
+        private static final long serialVersionUID = 1L;
+        private int n = 0;
+
+        protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+          if (++n > 1000)
+            throw new AssertionError("producer failed");
+          return super.fetchNext();
+        }
+      };
+    }
+    Exchange gather = Exchange.gather(producers);
+    gather.open();
+    try {
+      while (gather.hasNext())
+        gather.next();
+      fail("expected the error of a producer");
+    } catch (DbException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("producer failed"));
+    }
+    gather.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Closing a gather early stops its producers; the transaction can then
+   * complete and release its locks
+   */
+  @Test public void closeEarly() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    TransactionId tid = new TransactionId();
+    Exchange gather = Exchange.gather(MorselScan.split(tid, f.getId(), "t", 4));
+    gather.open();
+    for (int i = 0; i < 10; i++)
+      gather.next();
+    gather.close();
+    Database.getBufferPool().transactionComplete(tid);
+    assertFalse(Database.getBufferPool().holdsLock(tid,
+        new HeapPageId(f.getId(), f.numPages() - 1)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,191 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+  /**
+   * @return the tuples of an open iterator as strings, sorted, so results
+   *         can be compared regardless of the order of the groups
+   */
+  private static List<String> sortedTuples(OpIterator it) throws Exception {
+    ArrayList<String> tuples = new ArrayList<String>();
+    while (it.hasNext())
+      tuples.add(it.next().toString());
+    Collections.sort(tuples);
+    return tuples;
+  }
+
+  /**
+   * Unit test for several aggregates grouped by two INT columns, checked
+   * against aggregates computed separately for each group
+   */
+  @Test public void multiGroupMultiAggregate() throws Exception {
+    Random r = new Random(5);
+    int rows = 2000;
+    int[] data = new int[rows * 3];
+    for (int i = 0; i < data.length; i += 3) {
+      data[i] = r.nextInt(4);
+      data[i + 1] = r.nextInt(3);
+      data[i + 2] = r.nextInt(1000) - 500;
+    }
+
+    // expected (x, y, sum(v), count(v), max(v), min(v), avg(v)) per group
+    TreeMap<Integer, int[]> expected = new TreeMap<Integer, int[]>();
+    for (int i = 0; i < data.length; i += 3) {
+      int key = data[i] * 10 + data[i + 1];
+      int[] e = expected.get(key);
+      int v = data[i + 2];
+      if (e == null) {
+        expected.put(key, new int[] { data[i], data[i + 1], v, 1, v, v });
+      } else {
+        e[2] += v;
+        e[3]++;
+        e[4] = Math.max(e[4], v);
+        e[5] = Math.min(e[5], v);
+      }
+    }
+    int[] exp = new int[expected.size() * 7];
+    int j = 0;
+    for (int[] e : expected.values()) {
+      System.arraycopy(e, 0, exp, j, 6);
+      exp[j + 6] = e[2] / e[3];
+      j += 7;
+    }
+
+    Aggregate op = new Aggregate(TestUtil.createTupleList(3, data),
+        new int[] { 2, 2, 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT,
+            Aggregator.Op.MAX, Aggregator.Op.MIN, Aggregator.Op.AVG });
+    assertEquals(7, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(7, exp), op);
+    op.rewind();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(7, exp), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for grouping on a STRING and an INT column, with COUNT over
+   * a STRING field
+   */
+  @Test public void stringGroups() throws Exception {
+    OpIterator child = TestUtil.createTupleList(3, new Object[] {
+        "a", 1, "x",
+        "b", 1, "y",
+        "a", 1, "z",
+        "a", 2, "x",
+        "b", 1, "x" });
+    HashAggregator agg = new HashAggregator(new int[] { 0, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new int[] { 2, 1 },
+        new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM });
+    child.open();
+    while (child.hasNext())
+      agg.mergeTupleIntoGroup(child.next());
+    assertEquals(3, agg.numGroups());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4, new Object[] {
+        "a", 1, 2, 2,
+        "b", 1, 2, 2,
+        "a", 2, 1, 2 }), it);
+  }
+
+  /**
+   * Aggregates data with far more groups than fit in the budget, partitioning
+   * the spilled groups more than once, and checks the result against an
+   * aggregation in memory
+   */
+  @Test public void spillToDisk() throws Exception {
+    Random r = new Random(9);
+    int rows = 30000;
+    Object[] data = new Object[rows * 3];
+    for (int i = 0; i < data.length; i += 3) {
+      data[i] = r.nextInt(5000);
+      data[i + 1] = "k" + r.nextInt(3);
+      data[i + 2] = r.nextInt(100);
+    }
+    int[] gfields = new int[] { 0, 1 };
+    Type[] gtypes = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+    int[] afields = new int[] { 2, 2, 0 };
+    Type[] atypes = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+    Aggregator.Op[] ops = new Aggregator.Op[] {
+        Aggregator.Op.AVG, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+
+    HashAggregator inMemory = new HashAggregator(gfields, gtypes, afields, atypes, ops);
+    // room for a few hundred groups out of about 12000
+    HashAggregator spilling = new HashAggregator(gfields, gtypes, afields,
+        atypes, ops, 64 * 1024);
+    OpIterator child = TestUtil.createTupleList(3, data);
+    child.open();
+    while (child.hasNext()) {
+      Tuple t = child.next();
+      inMemory.add(t);
+      spilling.add(t);
+    }
+    assertEquals(0, inMemory.numSpilled());
+    assertTrue(spilling.numSpilled() > rows / 2);
+    assertTrue(spilling.numGroups() < inMemory.numGroups());
+
+    OpIterator expected = inMemory.iterator();
+    OpIterator actual = spilling.iterator();
+    expected.open();
+    actual.open();
+    List<String> tuples = sortedTuples(expected);
+    assertEquals(inMemory.numGroups(), tuples.size());
+    assertEquals(tuples, sortedTuples(actual));
+    actual.rewind();
+    assertEquals(tuples, sortedTuples(actual));
+    actual.close();
+    spilling.close();
+  }
+
+  /**
+   * Unit test for an Aggregate operator with a memory budget
+   */
+  @Test public void aggregateWithBudget() throws Exception {
+    int[] data = new int[2 * 10000];
+    for (int i = 0; i < data.length; i += 2) {
+      data[i] = i % 3001;
+      data[i + 1] = i;
+    }
+    Aggregate expected = new Aggregate(TestUtil.createTupleList(2, data),
+        new int[] { 1 }, new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    Aggregate actual = new Aggregate(TestUtil.createTupleList(2, data),
+        new int[] { 1 }, new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM },
+        4096);
+    expected.open();
+    actual.open();
+    List<String> tuples = sortedTuples(expected);
+    assertEquals(3001, tuples.size());
+    assertEquals(tuples, sortedTuples(actual));
+    expected.close();
+    actual.close();
+  }
+
+  /**
+   * Only COUNT is defined over STRING fields
+   */
+  @Test(expected = UnsupportedOperationException.class)
+  public void stringSumRejected() {
+    new HashAggregator(new int[0], new Type[0], new int[] { 0 },
+        new Type[] { Type.STRING_TYPE }, new Aggregator.Op[] { Aggregator.Op.SUM });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregatorTest.class);
+  }
+}
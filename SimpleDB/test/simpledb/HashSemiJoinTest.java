@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  private static OpIterator outer() {
+    return TestUtil.createTupleList(2,
+        new int[] { 1, 10,
+                    2, 20,
+                    2, 21,
+                    3, 30,
+                    4, 40 });
+  }
+
+  // duplicate values must not duplicate the tuples of the outer relation
+  private static OpIterator inner() {
+    return TestUtil.createTupleList(2,
+        new int[] { 7, 2,
+                    8, 2,
+                    9, 4,
+                    9, 5 });
+  }
+
+  /**
+   * A semi-join returns each matching tuple of its first child once, with
+   * the fields of the first child only
+   */
+  @Test public void semiJoin() throws Exception {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        outer(), inner(), false);
+    assertEquals(Utility.getTupleDesc(2), op.getTupleDesc());
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 2, 20, 2, 21, 4, 40 });
+    TestUtil.compareDbIterators(expected, op);
+    // a rewind reads the first child again and keeps the hashed values
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * An anti-join returns the tuples of its first child that match nothing
+   */
+  @Test public void antiJoin() throws Exception {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        outer(), inner(), true);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 10, 3, 30 }), op);
+    op.close();
+  }
+
+  /**
+   * String join fields are matched by value
+   */
+  @Test public void stringKeys() throws Exception {
+    OpIterator names = TestUtil.createTupleList(1,
+        new Object[] { "ann", "bob", "cy" });
+    OpIterator banned = TestUtil.createTupleList(1,
+        new Object[] { "bob", "dee" });
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        names, banned, true);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1,
+        new Object[] { "ann", "cy" }), op);
+    op.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nonEquality() {
+    new HashSemiJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        outer(), inner(), false);
+  }
+
+  private static int count(OpIterator plan) throws Exception {
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    return n;
+  }
+
+  /**
+   * IN, NOT IN, EXISTS and NOT EXISTS subqueries are planned as semi-joins
+   * and anti-joins
+   */
+  @Test public void subqueries() throws Exception {
+    ArrayList<ArrayList<Integer>> rowsR = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> rowsS = new ArrayList<ArrayList<Integer>>();
+    HeapFile r = SystemTestUtil.createRandomHeapFile(2, 500, 50, null, rowsR, "r");
+    HeapFile s = SystemTestUtil.createRandomHeapFile(2, 300, 50, null, rowsS, "s");
+    Database.getCatalog().addTable(r, "semi_r");
+    Database.getCatalog().addTable(s, "semi_s");
+    TableStats.setTableStats("semi_r", new TableStats(r.getId(), 1));
+    TableStats.setTableStats("semi_s", new TableStats(s.getId(), 1));
+
+    int in = 0, exists = 0;
+    for (ArrayList<Integer> row : rowsR) {
+      boolean anyIn = false, anyExists = false;
+      for (ArrayList<Integer> other : rowsS) {
+        anyIn |= other.get(0).equals(row.get(1)) && other.get(1) < 3;
+        anyExists |= other.get(1).equals(row.get(0)) && other.get(0) > 10;
+      }
+      in += anyIn ? 1 : 0;
+      exists += anyExists ? 1 : 0;
+    }
+    assertTrue(in > 0 && in < rowsR.size());
+
+    Parser p = new Parser();
+    TransactionId tid = new TransactionId();
+    String[] queries = new String[] {
+        "select r.r0 from semi_r r where r.r1 in (select s.s0 from semi_s s where s.s1 < 3);",
+        "select r.r0 from semi_r r where r.r1 not in (select s.s0 from semi_s s where s.s1 < 3);",
+        "select r.r0 from semi_r r where exists (select s.s0 from semi_s s where s.s1 = r.r0 and s.s0 > 10);",
+        "select r.r0 from semi_r r where not exists (select s.s0 from semi_s s where r.r0 = s.s1 and s.s0 > 10);" };
+    int[] expected = new int[] { in, rowsR.size() - in, exists, rowsR.size() - exists };
+    for (int i = 0; i < queries.length; i++) {
+      LogicalPlan lp = p.generateLogicalPlan(tid, queries[i]);
+      OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+      OpIterator join = ((Operator) plan).getChildren()[0];
+      assertTrue(queries[i], join instanceof HashSemiJoin);
+      assertEquals(queries[i], i % 2 == 1, ((HashSemiJoin) join).isAnti());
+      assertEquals(queries[i], expected[i], count(plan));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Measures how well histograms estimate selectivities on a skewed column:
+ * an equi-width {@link IntHistogram} against an {@link EquiDepthHistogram}
+ * with most common values, built as {@link TableStats} builds them.
+ * <p>
+ * Usage: java simpledb.HistogramBenchmark [rows] [domain] [skew]
+ * <p>
+ * The benchmark is built with the tests (ant testcompile); run it with
+ * bin/test on the classpath.
+ * <p>
+ * Draws rows (default 1,000,000) values from a Zipfian distribution over 1
+ * to domain (default 100,000) with exponent skew (default 1.1), scattered
+ * over the domain so that frequent values are not all small. It then
+ * reports the median, 90th percentile and largest q-error (the factor
+ * between estimate and truth, at least 1) of each histogram over
+ * equalities with present values, equalities with the most frequent
+ * values, and ranges, and of the estimated size of a self-join.
+ */
+public class HistogramBenchmark {
+
+    /**
+     * @return rows values drawn from a Zipfian distribution over 1 to
+     *         domain with exponent skew: the k-th most frequent value is
+     *         drawn with probability proportional to 1 / k^skew
+     */
+    static int[] zipf(int rows, int domain, double skew, long seed) {
+        double[] cdf = new double[domain];
+        double sum = 0;
+        for (int k = 0; k < domain; k++) {
+            sum += 1 / Math.pow(k + 1, skew);
+            cdf[k] = sum;
+        }
+        // the value of rank k; a fixed permutation of the domain
+        int[] value = new int[domain];
+        for (int k = 0; k < domain; k++)
+            value[k] = k + 1;
+        Random r = new Random(seed);
+        for (int k = domain - 1; k > 0; k--) {
+            int j = r.nextInt(k + 1);
+            int t = value[k];
+            value[k] = value[j];
+            value[j] = t;
+        }
+        int[] out = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            int k = Arrays.binarySearch(cdf, r.nextDouble() * sum);
+            out[i] = value[Math.min(domain - 1, k < 0 ? -k - 1 : k)];
+        }
+        return out;
+    }
+
+    private static double qError(double estimate, double truth) {
+        estimate = Math.max(estimate, 1);
+        truth = Math.max(truth, 1);
+        return Math.max(estimate / truth, truth / estimate);
+    }
+
+    private static String summary(List<Double> errors) {
+        Collections.sort(errors);
+        return String.format("median %8.2f  p90 %10.2f  max %12.2f",
+                errors.get(errors.size() / 2),
+                errors.get(errors.size() * 9 / 10),
+                errors.get(errors.size() - 1));
+    }
+
+    public static void main(String[] argv) {
+        int rows = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000000;
+        int domain = argv.length > 1 ? Integer.parseInt(argv[1]) : 100000;
+        double skew = argv.length > 2 ? Double.parseDouble(argv[2]) : 1.1;
+
+        int[] data = zipf(rows, domain, skew, 42);
+        TreeMap<Integer, Integer> freq = new TreeMap<Integer, Integer>();
+        for (int v : data)
+            freq.merge(v, 1, Integer::sum);
+
+        IntHistogram width = new IntHistogram(TableStats.NUM_HIST_BINS);
+        for (int v : data)
+            width.addValue(v);
+        // a uniform sample of the size TableStats uses
+        int[] sample = new int[Math.min(rows, RowSample.DEFAULT_SIZE)];
+        Random r = new Random(7);
+        int[] shuffled = data.clone();
+        for (int i = 0; i < sample.length; i++) {
+            int j = i + r.nextInt(rows - i);
+            int t = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = t;
+            sample[i] = shuffled[i];
+        }
+        EquiDepthHistogram depth = EquiDepthHistogram.build(sample, rows,
+                TableStats.NUM_HIST_BINS, TableStats.NUM_MCVS);
+
+        // equalities with values drawn from the table, and with the most
+        // frequent values
+        List<Double> eqWidth = new ArrayList<Double>(), eqDepth = new ArrayList<Double>();
+        for (int i = 0; i < 2000; i++) {
+            int v = data[r.nextInt(rows)];
+            eqWidth.add(qError(width.estimateSelectivity(Predicate.Op.EQUALS, v) * rows, freq.get(v)));
+            eqDepth.add(qError(depth.estimateSelectivity(Predicate.Op.EQUALS, v) * rows, freq.get(v)));
+        }
+        List<Map.Entry<Integer, Integer>> byFreq = new ArrayList<Map.Entry<Integer, Integer>>(freq.entrySet());
+        byFreq.sort((a, b) -> b.getValue() - a.getValue());
+        List<Double> topWidth = new ArrayList<Double>(), topDepth = new ArrayList<Double>();
+        for (int i = 0; i < Math.min(50, byFreq.size()); i++) {
+            int v = byFreq.get(i).getKey();
+            topWidth.add(qError(width.estimateSelectivity(Predicate.Op.EQUALS, v) * rows, byFreq.get(i).getValue()));
+            topDepth.add(qError(depth.estimateSelectivity(Predicate.Op.EQUALS, v) * rows, byFreq.get(i).getValue()));
+        }
+
+        // ranges [a, b) between random values of the domain
+        int[] below = new int[domain + 2];
+        for (Map.Entry<Integer, Integer> e : freq.entrySet())
+            below[e.getKey() + 1] += e.getValue();
+        for (int v = 1; v < below.length; v++)
+            below[v] += below[v - 1];
+        List<Double> rangeWidth = new ArrayList<Double>(), rangeDepth = new ArrayList<Double>();
+        for (int i = 0; i < 2000; i++) {
+            int a = 1 + r.nextInt(domain), b = 1 + r.nextInt(domain);
+            int lo = Math.min(a, b), hi = Math.max(a, b) + 1;
+            double truth = below[hi] - below[lo];
+            double w = width.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, lo)
+                    - width.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, hi);
+            double d = depth.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, lo)
+                    - depth.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, hi);
+            rangeWidth.add(qError(w * rows, truth));
+            rangeDepth.add(qError(d * rows, truth));
+        }
+
+        // a self-join on the column
+        double joinTruth = 0;
+        for (int c : freq.values())
+            joinTruth += (double) c * c;
+        double joinWidth = width.avgSelectivity() * rows * (double) rows;
+        double joinDepth = depth.joinSelectivity(depth) * rows * (double) rows;
+        double joinMax = (double) rows * rows / freq.size();
+
+        System.out.println(String.format("rows=%d domain=%d skew=%.2f distinct=%d",
+                rows, domain, skew, freq.size()));
+        System.out.println("equality, present values (q-error)");
+        System.out.println("  equi-width   " + summary(eqWidth));
+        System.out.println("  equi-depth   " + summary(eqDepth));
+        System.out.println("equality, 50 most frequent values (q-error)");
+        System.out.println("  equi-width   " + summary(topWidth));
+        System.out.println("  equi-depth   " + summary(topDepth));
+        System.out.println("ranges (q-error)");
+        System.out.println("  equi-width   " + summary(rangeWidth));
+        System.out.println("  equi-depth   " + summary(rangeDepth));
+        System.out.println(String.format("self-join size: true %.0f", joinTruth));
+        System.out.println(String.format("  |R|^2/ndv   %.0f  (q-error %.2f)", joinMax, qError(joinMax, joinTruth)));
+        System.out.println(String.format("  equi-width  %.0f  (q-error %.2f)", joinWidth, qError(joinWidth, joinTruth)));
+        System.out.println(String.format("  equi-depth  %.0f  (q-error %.2f)", joinDepth, qError(joinDepth, joinTruth)));
+    }
+}
@@ -0,0 +1,202 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+  @After public void restoreDrift() {
+    TableStats.setReanalyzeDrift(StatsCatalog.DEFAULT_DRIFT);
+  }
+
+  /**
+   * The estimates are within a few percent of the number of distinct
+   * values, from a handful to many, of INT and STRING fields
+   */
+  @Test public void accuracy() {
+    for (int n : new int[] { 10, 1000, 100000 }) {
+      HyperLogLog h = new HyperLogLog(TableStats.SKETCH_PRECISION);
+      for (int rep = 0; rep < 3; rep++) {
+        for (int i = 0; i < n; i++)
+          h.add(new IntField(i));
+      }
+      assertEquals(n, h.estimate(), n * 0.05);
+    }
+    HyperLogLog s = new HyperLogLog(TableStats.SKETCH_PRECISION);
+    for (int i = 0; i < 50000; i++)
+      s.add(new StringField("value " + (i % 20000), Type.STRING_LEN));
+    assertEquals(20000, s.estimate(), 20000 * 0.05);
+    assertEquals(0.0, new HyperLogLog(4).estimate(), 0);
+  }
+
+  /**
+   * Merged sketches equal the sketch of all of their values, and sketches
+   * survive being written and read
+   */
+  @Test public void mergeAndPersist() throws IOException {
+    HyperLogLog a = new HyperLogLog(10), b = new HyperLogLog(10),
+        all = new HyperLogLog(10);
+    for (int i = 0; i < 30000; i++) {
+      (i % 3 == 0 ? a : b).add(new IntField(i % 20000));
+      all.add(new IntField(i % 20000));
+    }
+    assertFalse(a.equals(all));
+    a.merge(b);
+    assertEquals(all, a);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    a.write(new DataOutputStream(bytes));
+    HyperLogLog read = HyperLogLog.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(a, read);
+    assertEquals(a.estimate(), read.estimate(), 0);
+  }
+
+  private static HeapFile stringTable(int rows, int keys) throws IOException {
+    File text = File.createTempFile("ndv", ".txt");
+    text.deleteOnExit();
+    PrintWriter w = new PrintWriter(text);
+    for (int i = 0; i < rows; i++)
+      w.println("key" + (i % keys) + "," + i);
+    w.close();
+    File temp = File.createTempFile("ndv", ".dat");
+    temp.deleteOnExit();
+    Type[] types = new Type[] { Type.STRING_TYPE, Type.INT_TYPE };
+    HeapFileEncoder.convert(text, temp, BufferPool.getPageSize(), 2, types);
+    return new HeapFile(temp, new TupleDesc(types, new String[] { "s", "v" }));
+  }
+
+  /**
+   * The number of distinct values of each field is kept with the
+   * statistics of a table, follows inserts, and estimates the size of an
+   * equality join on a STRING field and the number of groups of an
+   * aggregate
+   */
+  @Test public void tableStats() throws Exception {
+    TableStats.setReanalyzeDrift(Double.POSITIVE_INFINITY);
+    HeapFile f = stringTable(2000, 100);
+    Database.getCatalog().addTable(f, "ndv_t");
+    TableStats.setTableStats("ndv_t", new TableStats(f.getId(), 1));
+    TableStats s = TableStats.getTableStats("ndv_t");
+    assertEquals(100, s.numDistinct(0), 5);
+    assertEquals(2000, s.numDistinct(1), 100);
+
+    Map<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("a", f.getId());
+    aliases.put("b", f.getId());
+    int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+        "a", "b", "s", "s", 2000, 2000, false, false,
+        TableStats.getStatsMap(), aliases);
+    assertEquals(2000 * 2000 / 100, card, 2000 * 2000 / 100 * 0.05);
+
+    TransactionId tid = new TransactionId();
+    Aggregate agg = new Aggregate(new SeqScan(tid, f.getId(), "a"), 1, 0,
+        Aggregator.Op.COUNT);
+    OperatorCardinality.updateOperatorCardinality(agg, aliases,
+        TableStats.getStatsMap());
+    assertEquals(100, agg.getEstimatedCardinality(), 5);
+
+    for (int i = 0; i < 50; i++) {
+      Tuple t = new Tuple(f.getTupleDesc());
+      t.setField(0, new StringField("new key" + i, Type.STRING_LEN));
+      t.setField(1, new IntField(i));
+      Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(150, s.numDistinct(0), 8);
+  }
+
+  /**
+   * APPROX_COUNT_DISTINCT estimates the number of distinct values of each
+   * group, while COUNT(DISTINCT) counts them exactly
+   */
+  @Test public void countDistinct() throws Exception {
+    int[] data = new int[2 * 3000 * 2];
+    for (int i = 0; i < 3000; i++) {
+      // group 0 has 3000 distinct values, group 1 has 30
+      data[4 * i] = 0;
+      data[4 * i + 1] = i;
+      data[4 * i + 2] = 1;
+      data[4 * i + 3] = i % 30;
+    }
+    Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+        Aggregator.Op.APPROX_COUNT_DISTINCT);
+    agg.open();
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    while (agg.hasNext()) {
+      Tuple t = agg.next();
+      counts.put(((IntField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue());
+    }
+    agg.close();
+    assertEquals(3000, counts.get(0), 3000 * 0.05);
+    assertEquals(30, counts.get(1), 1);
+
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 1000; i++)
+      rows.add(new ArrayList<Integer>(Arrays.asList(i, i * 7 % 250)));
+    File temp = File.createTempFile("count_distinct", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(rows, temp, BufferPool.getPageSize(), 2);
+    HeapFile f = Utility.openHeapFile(2, "c", temp);
+    Database.getCatalog().addTable(f, "count_distinct_t");
+    TableStats.setTableStats("count_distinct_t", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid,
+        "select approx_count_distinct(t.c1), count(t.c1) from count_distinct_t t;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertTrue(plan.hasNext());
+    Tuple t = plan.next();
+    assertEquals(250, ((IntField) t.getField(0)).getValue(), 250 * 0.05);
+    assertEquals(1000, ((IntField) t.getField(1)).getValue());
+    plan.close();
+
+    plan = new Parser().generateLogicalPlan(tid,
+        "select t.c0, count(distinct t.c1) from count_distinct_t t group by t.c0;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    int groups = 0;
+    while (plan.hasNext()) {
+      assertEquals(1, ((IntField) plan.next().getField(1)).getValue());
+      groups++;
+    }
+    assertEquals(1000, groups);
+    plan.close();
+
+    plan = new Parser().generateLogicalPlan(tid,
+        "select count(distinct t.c1) from count_distinct_t t;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertEquals(250, ((IntField) plan.next().getField(0)).getValue());
+    plan.close();
+
+    try {
+      new Parser().generateLogicalPlan(tid,
+          "select count(distinct t.c1), count(t.c1) from count_distinct_t t;")
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HyperLogLogTest.class);
+  }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IncrementalStatsTest extends SimpleDbTestBase {
+
+  @After public void restoreDrift() {
+    TableStats.setReanalyzeDrift(StatsCatalog.DEFAULT_DRIFT);
+  }
+
+  private static Tuple tuple(HeapFile f, int a, int b) {
+    Tuple t = new Tuple(f.getTupleDesc());
+    t.setField(0, new IntField(a));
+    t.setField(1, new IntField(b));
+    return t;
+  }
+
+  /**
+   * Inserts and deletes through the buffer pool update the tuple count and
+   * histograms of the table's statistics
+   */
+  @Test public void insertAndDelete() throws Exception {
+    TableStats.setReanalyzeDrift(Double.POSITIVE_INFINITY);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "inc_t");
+    TableStats.setTableStats("inc_t", new TableStats(f.getId(), 10));
+    TableStats s = TableStats.getTableStats("inc_t");
+    assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(500)), 0);
+    long modifications = TableStats.getModificationCount(f.getId());
+
+    // values beyond the range the histogram was built with widen it
+    TransactionId tid = new TransactionId();
+    Tuple[] inserted = new Tuple[1000];
+    for (int i = 0; i < inserted.length; i++) {
+      inserted[i] = tuple(f, 1000 + i, i);
+      Database.getBufferPool().insertTuple(tid, f.getId(), inserted[i]);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(2000, s.totalTuples());
+    assertEquals(1000, s.estimateTableCardinality(
+        s.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000))), 50);
+    assertTrue(s.estimateScanCost() >= f.numPages() * 10.0);
+    assertEquals(modifications + 1000, TableStats.getModificationCount(f.getId()));
+
+    tid = new TransactionId();
+    for (int i = 0; i < 500; i++)
+      Database.getBufferPool().deleteTuple(tid, inserted[i]);
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(1500, s.totalTuples());
+    assertEquals(500, s.estimateTableCardinality(
+        s.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000))), 50);
+    assertEquals(modifications + 1500, TableStats.getModificationCount(f.getId()));
+  }
+
+  /**
+   * The tuples of an aborted transaction leave the statistics as they were,
+   * and do not start a rebuild
+   */
+  @Test public void abortedInsert() throws Exception {
+    TableStats.setReanalyzeDrift(0.1);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "aborted_t");
+    TableStats built = new TableStats(f.getId(), 10);
+    TableStats.setTableStats("aborted_t", built);
+    long modifications = TableStats.getModificationCount(f.getId());
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 500; i++)
+      Database.getBufferPool().insertTuple(tid, f.getId(), tuple(f, 1000 + i, i));
+    assertEquals(1000, built.totalTuples());
+    Database.getBufferPool().transactionComplete(tid, false);
+    assertEquals(1000, built.totalTuples());
+    assertEquals(0.0, built.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000)), 0);
+    assertEquals(modifications, TableStats.getModificationCount(f.getId()));
+    assertSame(built, TableStats.getTableStats("aborted_t"));
+  }
+
+  /**
+   * Statistics are rebuilt in the background once the table changed by more
+   * than the drift threshold
+   */
+  @Test public void reanalyzeInBackground() throws Exception {
+    TableStats.setReanalyzeDrift(0.1);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "reanalyze_t");
+    TableStats built = new TableStats(f.getId(), 10);
+    TableStats.setTableStats("reanalyze_t", built);
+
+    for (int i = 0; i < 150; i++) {
+      TransactionId tid = new TransactionId();
+      Database.getBufferPool().insertTuple(tid, f.getId(), tuple(f, i, i));
+      Database.getBufferPool().transactionComplete(tid);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (TableStats.getTableStats("reanalyze_t") == built
+        && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    TableStats fresh = TableStats.getTableStats("reanalyze_t");
+    assertNotSame(built, fresh);
+    assertTrue(fresh.getBuildModificationCount() > built.getBuildModificationCount());
+    assertTrue(fresh.totalTuples() > 1100);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IncrementalStatsTest.class);
+  }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexScanPlanTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 20000;
+
+  /**
+   * Creates index_scan_keyed, a B+ tree keyed on c0 of ROWS rows (i, i % 100),
+   * and index_scan_small, a heap file of 20 rows (10 * i, i)
+   */
+  @Before public void createTables() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 100)));
+    File hFile = File.createTempFile("index_scan_keyed", ".dat");
+    hFile.deleteOnExit();
+    File bFile = File.createTempFile("index_scan_keyed", ".btree");
+    bFile.deleteOnExit();
+    BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 2,
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 0);
+    BTreeFile keyed = BTreeUtility.openBTreeFile(2, "c", bFile, 0);
+    Database.getCatalog().addTable(keyed, "index_scan_keyed", "c0");
+    TableStats.setTableStats("index_scan_keyed",
+        new TableStats(keyed.getId(), TableStats.IOCOSTPERPAGE));
+
+    tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 20; i++)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(10 * i, i)));
+    File temp = File.createTempFile("index_scan_small", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+    HeapFile small = Utility.openHeapFile(2, "c", temp);
+    Database.getCatalog().addTable(small, "index_scan_small");
+    TableStats.setTableStats("index_scan_small",
+        new TableStats(small.getId(), TableStats.IOCOSTPERPAGE));
+  }
+
+  private TransactionId tid;
+  private LogicalPlan lp;
+  private OpIterator plan;
+
+  private void plan(String where) throws Exception {
+    tid = new TransactionId();
+    lp = new Parser().generateLogicalPlan(tid,
+        "SELECT COUNT(k.c1) FROM index_scan_keyed k WHERE " + where + ";");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+  }
+
+  /** @return the operators of the plan that read tables */
+  private List<OpIterator> scans() {
+    List<OpIterator> scans = new ArrayList<OpIterator>();
+    LinkedList<OpIterator> todo = new LinkedList<OpIterator>(
+        Collections.singleton(plan));
+    while (!todo.isEmpty()) {
+      OpIterator o = todo.removeFirst();
+      if (o instanceof Operator)
+        todo.addAll(Arrays.asList(((Operator) o).getChildren()));
+      else
+        scans.add(o);
+    }
+    return scans;
+  }
+
+  private IndexPredicate indexPredicate() {
+    List<OpIterator> scans = scans();
+    assertEquals(1, scans.size());
+    if (scans.get(0) instanceof SeqScan)
+      return null;
+    return ((BTreeScan) scans.get(0)).getIndexPredicate();
+  }
+
+  private int count() throws Exception {
+    plan.open();
+    int count = ((IntField) plan.next().getField(0)).getValue();
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    return count;
+  }
+
+  /** An equality on the key reads the one matching leaf */
+  @Test public void pointLookup() throws Exception {
+    plan("k.c0 = 1234");
+    IndexPredicate ip = indexPredicate();
+    assertEquals(Predicate.Op.EQUALS, ip.getOp());
+    assertEquals(new IntField(1234), ip.getField());
+    assertEquals(1, count());
+  }
+
+  /**
+   * Of two bounds on the key, the index is read from the one selecting fewer
+   * tuples, and the other is applied by a filter
+   */
+  @Test public void range() throws Exception {
+    plan("k.c0 > 15000 AND k.c0 < 15500");
+    IndexPredicate ip = indexPredicate();
+    assertEquals(Predicate.Op.GREATER_THAN, ip.getOp());
+    assertEquals(new IntField(15000), ip.getField());
+    OperatorCardinality.updateOperatorCardinality((Operator) plan,
+        lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+    String tree = new QueryPlanVisualizer().getQueryPlanTree(plan);
+    assertTrue(tree, tree.contains("index_scan(index_scan_keyed k,>15000)"));
+    assertEquals(499, count());
+
+    plan("k.c0 <= 300 AND k.c0 >= 100");
+    ip = indexPredicate();
+    assertEquals(Predicate.Op.LESS_THAN_OR_EQ, ip.getOp());
+    assertEquals(201, count());
+  }
+
+  /**
+   * A predicate selecting most of the table, or none on the key, is
+   * evaluated over a full scan
+   */
+  @Test public void fullScan() throws Exception {
+    plan("k.c0 >= 100");
+    assertNull(indexPredicate());
+    assertEquals(ROWS - 100, count());
+
+    plan("k.c1 = 7");
+    assertNull(indexPredicate());
+    assertEquals(ROWS / 100, count());
+
+    plan("k.c0 <> 5");
+    assertNull(indexPredicate());
+    assertEquals(ROWS - 1, count());
+  }
+
+  /**
+   * A table read through a range of its index can still be the inner side
+   * of a join probing the index
+   */
+  @Test public void joinInner() throws Exception {
+    tid = new TransactionId();
+    lp = new Parser().generateLogicalPlan(tid,
+        "SELECT COUNT(k.c1) FROM index_scan_small s, index_scan_keyed k "
+            + "WHERE s.c0 = k.c0 AND k.c0 < 100;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(10, count());
+
+    OpIterator inner = new Filter(new Predicate[] {
+        new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)) },
+        new BTreeScan(tid, Database.getCatalog().getTableId("index_scan_keyed"),
+            "k", new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100))));
+    assertTrue(JoinOptimizer.canUseIndex(Predicate.Op.EQUALS, inner, 0));
+  }
+
+  /**
+   * The join order is costed with the access path chosen for each table: a
+   * table read through a range of its index costs less than a full scan
+   */
+  @Test public void joinCostsIndexScan() throws Exception {
+    LogicalPlan joined = new LogicalPlan();
+    joined.addScan(Database.getCatalog().getTableId("index_scan_small"), "s");
+    joined.addScan(Database.getCatalog().getTableId("index_scan_keyed"), "k");
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("s", "k", "c1", "c1", Predicate.Op.EQUALS));
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    selectivities.put("s", 1.0);
+    selectivities.put("k", 0.025);
+    HashMap<String, TableStats> stats =
+        new HashMap<String, TableStats>(TableStats.getStatsMap());
+    JoinOptimizer jo = new JoinOptimizer(joined, joins);
+    jo.orderJoins(stats, selectivities, false);
+    double scanned = jo.getPlanCost();
+    HashMap<String, Double> index = new HashMap<String, Double>();
+    index.put("k", 0.025);
+    jo.orderJoins(stats, selectivities, index, false);
+    TableStats ts = stats.get("index_scan_keyed");
+    assertTrue(ts.estimateIndexScanCost(0.025) < ts.estimateScanCost());
+    assertTrue(jo.getPlanCost() < scanned);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexScanPlanTest.class);
+  }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+  /**
+   * Ids are dense and handed out in insertion order, across resizes
+   */
+  @Test public void insertAndFind() {
+    IntHashTable t = new IntHashTable(4);
+    HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    Random r = new Random(5);
+    for (int i = 0; i < 100000; i++) {
+      int key = r.nextInt(50000) - 25000;
+      Integer id = expected.get(key);
+      if (id == null) {
+        id = expected.size();
+        expected.put(key, id);
+      }
+      assertEquals((int) id, t.findOrInsert(key));
+    }
+    assertEquals(expected.size(), t.size());
+    for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+      assertEquals((int) e.getValue(), t.find(e.getKey()));
+      assertEquals((int) e.getKey(), t.keyAt(e.getValue()));
+    }
+    assertEquals(-1, t.find(25000));
+  }
+
+  /**
+   * Extreme and colliding keys
+   */
+  @Test public void extremeKeys() {
+    IntHashTable t = new IntHashTable();
+    int[] keys = new int[] { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 16, 1 << 20, 1 << 24 };
+    for (int i = 0; i < keys.length; i++)
+      assertEquals(i, t.findOrInsert(keys[i]));
+    for (int i = 0; i < keys.length; i++)
+      assertEquals(i, t.find(keys[i]));
+    t.clear();
+    assertEquals(0, t.size());
+    assertEquals(-1, t.find(0));
+    assertEquals(0, t.findOrInsert(Integer.MAX_VALUE));
+  }
+
+  /**
+   * HashEquiJoin on INT keys, over several batches of the build side, must
+   * return the same tuples as a nested loops Join
+   */
+  @Test public void hashEquiJoinIntKeys() throws Exception {
+    Random r = new Random(9);
+    int outerRows = HashEquiJoin.MAP_SIZE * 2 + 123;
+    int[] outer = new int[outerRows * 2];
+    for (int i = 0; i < outer.length; i++)
+      outer[i] = r.nextInt(5000);
+    int[] inner = new int[300 * 2];
+    for (int i = 0; i < inner.length; i++)
+      inner[i] = r.nextInt(5000);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+
+    Join expected = new Join(pred, TestUtil.createTupleList(2, outer),
+        TestUtil.createTupleList(2, inner));
+    HashEquiJoin actual = new HashEquiJoin(pred, TestUtil.createTupleList(2, outer),
+        TestUtil.createTupleList(2, inner));
+    expected.open();
+    actual.open();
+    List<String> e = sortedRows(expected);
+    assertEquals(e, sortedRows(actual));
+    actual.rewind();
+    assertEquals(e, sortedRows(actual));
+    expected.close();
+    actual.close();
+  }
+
+  private static List<String> sortedRows(OpIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IntHashTableTest.class);
+  }
+}
@@ -174,4 +174,52 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * An adaptive histogram needs no range up front, and gives the same
+	 * estimates as a histogram over the range of the values it was given.
+	 */
+	@Test public void adaptiveTest() {
+		IntHistogram a = new IntHistogram(10);
+		IntHistogram f = new IntHistogram(10, -50, 1229);
+		java.util.Random r = new java.util.Random(7);
+		for (int c = 0; c < 10000; c++) {
+			int v = r.nextInt(1280) - 50;
+			a.addValue(v);
+			f.addValue(v);
+		}
+		Assert.assertEquals(10000, a.numValues());
+		for (int v = -60; v < 1300; v += 7) {
+			Assert.assertEquals(f.estimateSelectivity(Op.LESS_THAN, v),
+					a.estimateSelectivity(Op.LESS_THAN, v), 0.1);
+			Assert.assertEquals(f.estimateSelectivity(Op.EQUALS, v),
+					a.estimateSelectivity(Op.EQUALS, v), 0.002);
+		}
+		Assert.assertTrue(a.estimateSelectivity(Op.GREATER_THAN, 1229) < 0.001);
+		Assert.assertTrue(a.estimateSelectivity(Op.GREATER_THAN_OR_EQ, -50) > 0.999);
+	}
+
+	/**
+	 * Merging adaptive histograms over different ranges gives the histogram
+	 * of all their values.
+	 */
+	@Test public void mergeTest() {
+		IntHistogram low = new IntHistogram(100);
+		IntHistogram high = new IntHistogram(100);
+		IntHistogram all = new IntHistogram(100);
+		for (int c = 0; c < 50; c++) {
+			low.addValue(c);
+			all.addValue(c);
+		}
+		for (int c = 5000; c < 6000; c++) {
+			high.addValue(c);
+			all.addValue(c);
+		}
+		low.merge(high);
+		Assert.assertEquals(all.numValues(), low.numValues());
+		for (int v = -10; v < 6100; v += 50) {
+			Assert.assertEquals(all.estimateSelectivity(Op.GREATER_THAN, v),
+					low.estimateSelectivity(Op.GREATER_THAN, v), 1e-9);
+		}
+	}
 }
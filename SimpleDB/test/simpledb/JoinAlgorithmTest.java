@@ -0,0 +1,215 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class JoinAlgorithmTest extends SimpleDbTestBase {
+
+  private HeapFile big, small;
+  private BTreeFile indexed;
+  private LogicalPlan lp;
+  private HashMap<String, TableStats> stats;
+
+  private static ArrayList<ArrayList<Integer>> rows(int n, int domain) {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < n; i++)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(i % domain, i)));
+    return tuples;
+  }
+
+  private HeapFile heapTable(String name, int n, int domain) throws Exception {
+    File temp = File.createTempFile(name, ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(rows(n, domain), temp, BufferPool.getPageSize(), 2);
+    HeapFile f = Utility.openHeapFile(2, "c", temp);
+    Database.getCatalog().addTable(f, name);
+    stats.put(name, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+    TableStats.setTableStats(name, stats.get(name));
+    return f;
+  }
+
+  /**
+   * Creates big (5000 rows, c0 in 0..499), small (20 rows) and indexed, a
+   * B+ tree of 50000 rows keyed on c0, scanned as b, s and i
+   */
+  @Before public void createTables() throws Exception {
+    stats = new HashMap<String, TableStats>();
+    big = heapTable("join_algorithm_big", 5000, 500);
+    small = heapTable("join_algorithm_small", 20, 500);
+    File hFile = File.createTempFile("join_algorithm_indexed", ".dat");
+    hFile.deleteOnExit();
+    File bFile = File.createTempFile("join_algorithm_indexed", ".btree");
+    bFile.deleteOnExit();
+    Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+    BTreeFileEncoder.convert(rows(50000, 50000), hFile, bFile,
+        BufferPool.getPageSize(), 2, types, ',', 0);
+    indexed = BTreeUtility.openBTreeFile(2, "c", bFile, 0);
+    Database.getCatalog().addTable(indexed, "join_algorithm_indexed", "c0");
+    stats.put("join_algorithm_indexed",
+        new TableStats(indexed.getId(), TableStats.IOCOSTPERPAGE));
+    TableStats.setTableStats("join_algorithm_indexed",
+        stats.get("join_algorithm_indexed"));
+
+    lp = new LogicalPlan();
+    lp.addScan(big.getId(), "b");
+    lp.addScan(small.getId(), "s");
+    lp.addScan(indexed.getId(), "i");
+  }
+
+  private LogicalJoinNode.Algorithm choose(String t1, String t2,
+      Predicate.Op op) {
+    JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+    LogicalJoinNode j = new LogicalJoinNode(t1, t2, "c0", "c0", op);
+    TableStats s1 = stats.get(Database.getCatalog().getTableName(lp.getTableId(t1)));
+    TableStats s2 = stats.get(Database.getCatalog().getTableName(lp.getTableId(t2)));
+    return jo.chooseJoinAlgorithm(j, s1.estimateTableCardinality(1.0),
+        s2.estimateTableCardinality(1.0), s1.estimateScanCost(),
+        s2.estimateScanCost());
+  }
+
+  /**
+   * Equality joins of large inputs are hashed, a small outer probes the
+   * index of its inner, and other predicates are evaluated with nested loops
+   */
+  @Test public void chooseAlgorithm() {
+    assertEquals(LogicalJoinNode.Algorithm.HASH,
+        choose("b", "s", Predicate.Op.EQUALS));
+    assertEquals(LogicalJoinNode.Algorithm.HASH,
+        choose("s", "b", Predicate.Op.EQUALS));
+    assertEquals(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS,
+        choose("s", "i", Predicate.Op.EQUALS));
+    assertEquals(LogicalJoinNode.Algorithm.HASH,
+        choose("i", "s", Predicate.Op.EQUALS));
+    assertEquals(LogicalJoinNode.Algorithm.NESTED_LOOPS,
+        choose("b", "s", Predicate.Op.LESS_THAN));
+  }
+
+  /**
+   * Each hashed batch of the outer rescans the inner
+   */
+  @Test public void hashBatches() {
+    JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+    LogicalJoinNode j = new LogicalJoinNode("b", "s", "c0", "c0",
+        Predicate.Op.EQUALS);
+    int batch = HashEquiJoin.MAP_SIZE + 1;
+    double one = jo.estimateJoinCost(j, batch, 10, 0, 1000);
+    double two = jo.estimateJoinCost(j, batch + 1, 10, 0, 1000);
+    assertEquals(1000 + 10, two - one, 1.0 + 1e-9);
+  }
+
+  /**
+   * instantiateJoin builds the operator of the join's algorithm, and falls
+   * back to another when the inner side cannot be probed through an index
+   */
+  @Test public void instantiate() throws Exception {
+    TransactionId tid = new TransactionId();
+    LogicalJoinNode j = new LogicalJoinNode("s", "b", "c0", "c0",
+        Predicate.Op.EQUALS);
+    LogicalJoinNode toIndex = new LogicalJoinNode("s", "i", "c0", "c0",
+        Predicate.Op.EQUALS);
+    SeqScan s = new SeqScan(tid, small.getId(), "s");
+    SeqScan b = new SeqScan(tid, big.getId(), "b");
+    SeqScan i = new SeqScan(tid, indexed.getId(), "i");
+
+    assertTrue(JoinOptimizer.instantiateJoin(
+        j.withAlgorithm(LogicalJoinNode.Algorithm.HASH), s, b) instanceof HashEquiJoin);
+    assertTrue(JoinOptimizer.instantiateJoin(
+        j.withAlgorithm(LogicalJoinNode.Algorithm.NESTED_LOOPS), s, b) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(
+        j.withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS), s, b) instanceof HashEquiJoin);
+    assertTrue(JoinOptimizer.instantiateJoin(j, s, b) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(
+        toIndex.withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS), s, i) instanceof IndexNestedLoopJoin);
+    assertTrue(JoinOptimizer.instantiateJoin(
+        toIndex.withAlgorithm(LogicalJoinNode.Algorithm.HASH), s, i) instanceof HashEquiJoin);
+    LogicalJoinNode range = new LogicalJoinNode("s", "b", "c0", "c0",
+        Predicate.Op.LESS_THAN);
+    assertTrue(JoinOptimizer.instantiateJoin(
+        range.withAlgorithm(LogicalJoinNode.Algorithm.HASH), s, b) instanceof Join);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * orderJoins costs probing an index with the statistics it is given, not
+   * with those of the catalog
+   */
+  @Test public void indexCostUsesPlanStats() throws Exception {
+    // without a primary key, the matches of a probe are estimated from the
+    // statistics of i; those of the catalog say c0 takes only 2 values
+    Database.getCatalog().addTable(indexed, "join_algorithm_indexed");
+    heapTable("join_algorithm_dups", 5000, 2);
+    TableStats.setTableStats("join_algorithm_indexed", stats.get("join_algorithm_dups"));
+    try {
+      Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+      joins.add(new LogicalJoinNode("s", "i", "c0", "c0", Predicate.Op.EQUALS));
+      HashMap<String, Double> selectivities = new HashMap<String, Double>();
+      selectivities.put("s", 1.0);
+      selectivities.put("i", 1.0);
+      Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(
+          stats, selectivities, false);
+      assertEquals(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS,
+          order.get(0).algorithm);
+    } finally {
+      TableStats.setTableStats("join_algorithm_indexed",
+          stats.get("join_algorithm_indexed"));
+    }
+  }
+
+  /**
+   * orderJoins records the algorithm of each join it costs, and the query
+   * runs with those operators
+   */
+  @Test public void planRunsChosenAlgorithms() throws Exception {
+    TransactionId tid = new TransactionId();
+    LogicalPlan plan = new Parser().generateLogicalPlan(tid,
+        "SELECT COUNT(b.c1) FROM join_algorithm_big b, join_algorithm_small s, "
+            + "join_algorithm_indexed i WHERE b.c0 = s.c0 AND s.c1 = i.c0;");
+    Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+    joins.add(new LogicalJoinNode("b", "s", "c0", "c0", Predicate.Op.EQUALS));
+    joins.add(new LogicalJoinNode("s", "i", "c1", "c0", Predicate.Op.EQUALS));
+    HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    for (String alias : new String[] { "b", "s", "i" })
+      selectivities.put(alias, 1.0);
+    for (LogicalJoinNode j : new JoinOptimizer(plan, joins).orderJoins(stats,
+        selectivities, false))
+      assertTrue(j.algorithm != null);
+
+    OpIterator op = plan.physicalPlan(tid, TableStats.getStatsMap(), false);
+    List<OpIterator> operators = new ArrayList<OpIterator>();
+    LinkedList<OpIterator> todo = new LinkedList<OpIterator>(Collections.singleton(op));
+    while (!todo.isEmpty()) {
+      OpIterator o = todo.removeFirst();
+      operators.add(o);
+      if (o instanceof Operator)
+        todo.addAll(Arrays.asList(((Operator) o).getChildren()));
+    }
+    boolean hashed = false;
+    for (OpIterator o : operators)
+      hashed |= o instanceof HashEquiJoin;
+    assertTrue(hashed);
+
+    // s.c0 takes 20 of the 500 values of b.c0, each in 10 rows of b, and
+    // s.c1 matches one row of i
+    op.open();
+    assertEquals(200, ((IntField) op.next().getField(0)).getValue());
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinAlgorithmTest.class);
+  }
+}
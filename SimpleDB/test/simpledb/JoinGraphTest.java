@@ -0,0 +1,250 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class JoinGraphTest extends SimpleDbTestBase {
+
+  private static JoinGraph randomGraph(Random r, int n) {
+    JoinGraph g = new JoinGraph(n);
+    // a random spanning tree, so that the graph is connected, and some more
+    for (int i = 1; i < n; i++)
+      g.addEdge(i, r.nextInt(i));
+    for (int e = r.nextInt(n + 1); e > 0; e--)
+      g.addEdge(r.nextInt(n), r.nextInt(n));
+    int[] order = g.breadthFirstOrder();
+    int[] number = new int[n];
+    for (int k = 0; k < n; k++)
+      number[order[k]] = k;
+    JoinGraph renumbered = new JoinGraph(n);
+    for (int a = 0; a < n; a++)
+      for (long b = g.neighbors(a); b != 0; b &= b - 1)
+        renumbered.addEdge(number[a], number[Long.numberOfTrailingZeros(b)]);
+    return renumbered;
+  }
+
+  /**
+   * The csg-cmp pairs of random graphs are the pairs of disjoint connected
+   * sets joined by an edge, each listed once, and only after every pair
+   * making up either half
+   */
+  @Test public void csgCmpPairs() {
+    Random r = new Random(1);
+    for (int round = 0; round < 500; round++) {
+      int n = 1 + r.nextInt(9);
+      final JoinGraph g = randomGraph(r, n);
+      final Set<Long> listed = new HashSet<Long>();
+      final Set<Long> known = new HashSet<Long>();
+      final Set<Long> used = new HashSet<Long>();
+      for (int i = 0; i < n; i++)
+        known.add(1L << i);
+      g.enumerateCsgCmpPairs(new JoinGraph.PairConsumer() {
+        public boolean pair(long s1, long s2) {
+          assertEquals(0, s1 & s2);
+          assertTrue(g.isConnected(s1) && g.isConnected(s2));
+          assertTrue(g.joins(s1, s2));
+          assertTrue(Long.numberOfTrailingZeros(s1) < Long.numberOfTrailingZeros(s2));
+          assertTrue(listed.add(s1 << 32 | s2));
+          assertTrue(known.contains(s1) && known.contains(s2));
+          assertFalse(used.contains(s1 | s2));
+          used.add(s1);
+          used.add(s2);
+          known.add(s1 | s2);
+          return true;
+        }
+      });
+
+      int expected = 0;
+      for (long s1 = 1; s1 < (1L << n); s1++)
+        for (long s2 = s1 + 1; s2 < (1L << n); s2++)
+          if ((s1 & s2) == 0 && g.isConnected(s1) && g.isConnected(s2)
+              && g.joins(s1, s2))
+            expected++;
+      assertEquals(expected, listed.size());
+    }
+  }
+
+  @Test public void connectivity() {
+    JoinGraph g = new JoinGraph(4);
+    g.addEdge(0, 1);
+    g.addEdge(2, 3);
+    g.addEdge(1, 1);
+    assertTrue(g.isConnected(0x3));
+    assertFalse(g.isConnected(0x6));
+    assertFalse(g.isConnected(0));
+    assertEquals(0x2, g.neighbors(0));
+    assertEquals(0x8, g.neighborhood(0x7, 0));
+    assertTrue(g.joins(0x4, 0x8));
+    assertFalse(g.joins(0x3, 0xc));
+  }
+
+  private LogicalPlan lp;
+  private HashMap<String, TableStats> stats;
+  private HashMap<String, Double> selectivities;
+
+  @After public void restoreLimits() {
+    JoinOptimizer.setExhaustiveLimit(JoinOptimizer.DEFAULT_EXHAUSTIVE_LIMIT);
+    JoinOptimizer.setPlanningBudget(JoinOptimizer.DEFAULT_PLANNING_BUDGET);
+  }
+
+  /** Creates n tables t0 to t(n-1) of random sizes, with statistics */
+  private void createTables(int n) throws Exception {
+    lp = new LogicalPlan();
+    stats = new HashMap<String, TableStats>();
+    selectivities = new HashMap<String, Double>();
+    Random r = new Random(3);
+    for (int t = 0; t < n; t++) {
+      ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+      int rows = 100 + r.nextInt(500);
+      for (int i = 0; i < rows; i++)
+        tuples.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(rows),
+            r.nextInt(100))));
+      File temp = File.createTempFile("join_graph", ".dat");
+      temp.deleteOnExit();
+      HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+      HeapFile f = Utility.openHeapFile(2, "c", temp);
+      Database.getCatalog().addTable(f, "join_graph_" + t);
+      stats.put("join_graph_" + t, new TableStats(f.getId(), 1000));
+      lp.addScan(f.getId(), "t" + t);
+      selectivities.put("t" + t, 1.0);
+    }
+  }
+
+  /**
+   * Checks that the order applies each join once, as LogicalPlan.physicalPlan
+   * applies them: each merges the two plans holding its tables, into one
+   */
+  private static void checkOrder(Vector<LogicalJoinNode> joins,
+      Vector<LogicalJoinNode> order, int n) {
+    assertEquals(joins.size(), order.size());
+    Map<String, Set<String>> plans = new HashMap<String, Set<String>>();
+    for (int t = 0; t < n; t++)
+      plans.put("t" + t, new HashSet<String>(Collections.singleton("t" + t)));
+    int merges = 0;
+    for (LogicalJoinNode j : order) {
+      Set<String> a = plans.get(j.t1Alias), b = plans.get(j.t2Alias);
+      if (a == b)
+        continue; // a predicate closing a cycle
+      merges++;
+      a.addAll(b);
+      for (String t : b)
+        plans.put(t, a);
+    }
+    assertEquals(n - 1, merges);
+    assertEquals(n, plans.get("t0").size());
+  }
+
+  /**
+   * orderJoins plans a star join of 16 tables at once
+   */
+  @Test public void largeStarJoin() throws Exception {
+    int n = 16;
+    createTables(n);
+    Vector<LogicalJoinNode> joins = JoinOrderBenchmark.joins(
+        JoinOrderBenchmark.Shape.STAR, n);
+    long start = System.currentTimeMillis();
+    Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(
+        stats, selectivities, false);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    checkOrder(joins, order, n);
+  }
+
+  /**
+   * Joins of more tables than the exhaustive limit are ordered greedily,
+   * and a plan is returned once the planning budget runs out; neither is
+   * better than the exhaustive plan
+   */
+  @Test public void greedyAndBudgeted() throws Exception {
+    createTables(60);
+    for (JoinOrderBenchmark.Shape shape : JoinOrderBenchmark.Shape.values()) {
+      Vector<LogicalJoinNode> joins = JoinOrderBenchmark.joins(shape, 60);
+      JoinOptimizer jo = new JoinOptimizer(lp, joins);
+      long start = System.currentTimeMillis();
+      checkOrder(joins, jo.orderJoins(stats, selectivities, false), 60);
+      assertTrue(System.currentTimeMillis() - start < 5000);
+
+      joins = JoinOrderBenchmark.joins(shape, 14);
+      jo = new JoinOptimizer(lp, joins);
+      JoinOptimizer.setExhaustiveLimit(64);
+      JoinOptimizer.setPlanningBudget(Long.MAX_VALUE);
+      checkOrder(joins, jo.orderJoins(stats, selectivities, false), 14);
+      double best = jo.getPlanCost();
+      JoinOptimizer.setPlanningBudget(0);
+      checkOrder(joins, jo.orderJoins(stats, selectivities, false), 14);
+      assertTrue(jo.getPlanCost() >= best);
+      JoinOptimizer.setExhaustiveLimit(0);
+      checkOrder(joins, jo.orderJoins(stats, selectivities, false), 14);
+      assertTrue(jo.getPlanCost() >= best);
+      restoreLimits();
+    }
+  }
+
+  /**
+   * A query whose join predicates form a cycle applies the predicate closing
+   * it to the plan joining all three tables
+   */
+  @Test public void cyclicQuery() throws Exception {
+    Random r = new Random(5);
+    List<List<ArrayList<Integer>>> tables = new ArrayList<List<ArrayList<Integer>>>();
+    for (String name : new String[] { "a", "b", "c" }) {
+      ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+      for (int i = 0; i < 200; i++)
+        tuples.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(20), r.nextInt(20))));
+      tables.add(tuples);
+      File temp = File.createTempFile("join_graph", ".dat");
+      temp.deleteOnExit();
+      HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+      HeapFile f = Utility.openHeapFile(2, name, temp);
+      Database.getCatalog().addTable(f, "c" + name);
+      TableStats.setTableStats("c" + name, new TableStats(f.getId(), 1000));
+    }
+    int expected = 0;
+    for (ArrayList<Integer> a : tables.get(0))
+      for (ArrayList<Integer> b : tables.get(1))
+        for (ArrayList<Integer> c : tables.get(2))
+          if (a.get(0).equals(b.get(0)) && b.get(1).equals(c.get(1))
+              && c.get(0).equals(a.get(1)))
+            expected++;
+    assertTrue(expected > 0);
+
+    for (int dop : new int[] { 1, 4 }) {
+      TransactionId tid = new TransactionId();
+      LogicalPlan plan = new Parser().generateLogicalPlan(tid,
+          "select ca.a0 from ca, cb, cc where ca.a0 = cb.b0 and cb.b1 = cc.c1 "
+              + "and cc.c0 = ca.a1;");
+      plan.setParallelism(dop);
+      OpIterator it = plan.physicalPlan(tid, TableStats.getStatsMap(), false);
+      OperatorCardinality.updateOperatorCardinality((Operator) it,
+          plan.getTableAliasToIdMapping(), TableStats.getStatsMap());
+      String tree = new QueryPlanVisualizer().getQueryPlanTree(it);
+      assertTrue(tree, tree.contains("JoinFilter"));
+      it.open();
+      int count = 0;
+      while (it.hasNext()) {
+        it.next();
+        count++;
+      }
+      it.close();
+      Database.getBufferPool().transactionComplete(tid);
+      assertEquals(expected, count);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinGraphTest.class);
+  }
+}
@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Times {@link JoinOptimizer#orderJoins} on chain, star and cycle joins of
+ * many tables, and compares the plans it finds: exhaustively, greedily, and
+ * by default (exhaustively up to {@link JoinOptimizer#DEFAULT_EXHAUSTIVE_LIMIT}
+ * tables, within the default planning budget). Costs are multiples of the
+ * exhaustive plan's. It also times the dynamic program over sets of joins
+ * that orderJoins replaced: left-deep plans only, each subset of the joins a
+ * HashSet, found by {@link JoinOptimizer#enumerateSubsets} and kept in a
+ * HashMap.
+ * <p>
+ * Usage: java simpledb.JoinOrderBenchmark [maxTables] [rows]
+ * <p>
+ * The benchmark is built with the tests (ant testcompile); run it with
+ * bin/test on the classpath.
+ * <p>
+ * Creates maxTables (default 20, at most 64) two-column tables of rows
+ * (default 1,000) rows each, and orders joins of 12 to maxTables of them.
+ * The old dynamic program enumerates every subset of the joins whatever the
+ * shape of the query, so it is only run up to 15 tables, and star joins are
+ * only ordered exhaustively up to 20.
+ */
+public class JoinOrderBenchmark {
+
+    enum Shape {
+        CHAIN, STAR, CYCLE
+    }
+
+    /**
+     * @return the joins of tables t0 to t(n-1): t(i).c1 = t(i+1).c0 along a
+     *         chain or cycle, or t0.c1 = t(i).c0 for a star around t0
+     */
+    static Vector<LogicalJoinNode> joins(Shape shape, int n) {
+        Vector<LogicalJoinNode> js = new Vector<LogicalJoinNode>();
+        for (int i = 1; i < n; i++) {
+            String t1 = shape == Shape.STAR ? "t0" : "t" + (i - 1);
+            js.addElement(new LogicalJoinNode(t1, "t" + i, t1 + ".c1",
+                    "t" + i + ".c0", Predicate.Op.EQUALS));
+        }
+        if (shape == Shape.CYCLE && n > 2)
+            js.addElement(new LogicalJoinNode("t" + (n - 1), "t0",
+                    "t" + (n - 1) + ".c1", "t0.c0", Predicate.Op.EQUALS));
+        return js;
+    }
+
+    /** The best left-deep plan found for a set of joins. */
+    private static class Plan {
+        double cost;
+        int card;
+        Set<String> tables;
+    }
+
+    /**
+     * Orders the joins as JoinOptimizer did before it enumerated connected
+     * subgraphs: for each subset of the joins, by increasing size, the best
+     * plan joining one of them to the best plan of the others.
+     *
+     * @return the cost of the best plan
+     */
+    static double setBasedOrder(JoinOptimizer jo, LogicalPlan lp,
+            Vector<LogicalJoinNode> js, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) {
+        HashMap<Set<LogicalJoinNode>, Plan> best = new HashMap<Set<LogicalJoinNode>, Plan>();
+        Plan plan = null;
+        for (int size = 1; size <= js.size(); size++) {
+            for (Set<LogicalJoinNode> s : jo.enumerateSubsets(js, size)) {
+                Plan bestOfS = null;
+                for (LogicalJoinNode j : s) {
+                    Set<LogicalJoinNode> rest = new HashSet<LogicalJoinNode>(s);
+                    rest.remove(j);
+                    Plan p = extend(jo, lp, j, rest.isEmpty() ? null : best.get(rest),
+                            rest.isEmpty(), stats, filterSelectivities);
+                    if (p != null && (bestOfS == null || p.cost < bestOfS.cost))
+                        bestOfS = p;
+                }
+                if (bestOfS != null) {
+                    best.put(s, bestOfS);
+                    plan = bestOfS;
+                }
+            }
+        }
+        return plan.cost;
+    }
+
+    /**
+     * @return the cheaper of joining the plan of the other joins to the new
+     *         table of j as the outer or as the inner, or null if j joins no
+     *         table of the plan
+     */
+    private static Plan extend(JoinOptimizer jo, LogicalPlan lp,
+            LogicalJoinNode j, Plan rest, boolean first,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) {
+        if (!first && rest == null)
+            return null;
+        TableStats s1 = stats.get(Database.getCatalog().getTableName(lp.getTableId(j.t1Alias)));
+        TableStats s2 = stats.get(Database.getCatalog().getTableName(lp.getTableId(j.t2Alias)));
+        double cost1, cost2;
+        int card1, card2;
+        Set<String> tables;
+        if (first) {
+            cost1 = s1.estimateScanCost();
+            card1 = s1.estimateTableCardinality(filterSelectivities.get(j.t1Alias));
+            cost2 = s2.estimateScanCost();
+            card2 = s2.estimateTableCardinality(filterSelectivities.get(j.t2Alias));
+            tables = new HashSet<String>();
+        } else if (rest.tables.contains(j.t1Alias) && !rest.tables.contains(j.t2Alias)) {
+            cost1 = rest.cost;
+            card1 = rest.card;
+            cost2 = s2.estimateScanCost();
+            card2 = s2.estimateTableCardinality(filterSelectivities.get(j.t2Alias));
+            tables = new HashSet<String>(rest.tables);
+        } else if (rest.tables.contains(j.t2Alias) && !rest.tables.contains(j.t1Alias)) {
+            cost2 = rest.cost;
+            card2 = rest.card;
+            cost1 = s1.estimateScanCost();
+            card1 = s1.estimateTableCardinality(filterSelectivities.get(j.t1Alias));
+            tables = new HashSet<String>(rest.tables);
+        } else {
+            return null;
+        }
+        tables.add(j.t1Alias);
+        tables.add(j.t2Alias);
+        Plan p = new Plan();
+        p.tables = tables;
+        double forward = jo.estimateJoinCost(j, card1, card2, cost1, cost2);
+        double backward = jo.estimateJoinCost(j.swapInnerOuter(), card2, card1, cost2, cost1);
+        p.cost = Math.min(forward, backward);
+        p.card = jo.estimateJoinCardinality(j, card1, card2, false, false, stats);
+        return p;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int maxTables = argv.length > 0 ? Integer.parseInt(argv[0]) : 20;
+        int rows = argv.length > 1 ? Integer.parseInt(argv[1]) : 1000;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Random r = new Random(42);
+        for (int t = 0; t < maxTables; t++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            // tables of varied sizes and key domains, so that plans differ
+            int n = rows / 2 + r.nextInt(rows);
+            int domain = 1 + r.nextInt(rows);
+            for (int i = 0; i < n; i++)
+                tuples.add(new ArrayList<Integer>(Arrays.asList(
+                        r.nextInt(domain), r.nextInt(domain))));
+            File temp = File.createTempFile("join_order", ".dat");
+            temp.deleteOnExit();
+            HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+            HeapFile f = Utility.openHeapFile(2, "c", temp);
+            String name = "join_order_" + t;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 1000));
+            lp.addScan(f.getId(), "t" + t);
+            filterSelectivities.put("t" + t, 1.0);
+        }
+
+        System.out.println("tables  shape   exhaustive ms     greedy ms (cost)"
+                + "    default ms (cost)  set-based ms");
+        for (int n = Math.min(12, maxTables); n <= maxTables; n++) {
+            for (Shape shape : Shape.values()) {
+                Vector<LogicalJoinNode> js = joins(shape, n);
+                JoinOptimizer jo = new JoinOptimizer(lp, js);
+
+                // a star of n tables has about n 2^n pairs of connected sets
+                String exhaustive = "-";
+                double best = Double.NaN;
+                if (shape != Shape.STAR || n <= 20) {
+                    JoinOptimizer.setExhaustiveLimit(64);
+                    JoinOptimizer.setPlanningBudget(Long.MAX_VALUE);
+                    exhaustive = String.format("%.2f", time(jo, js, stats, filterSelectivities) / 1e6);
+                    best = jo.getPlanCost();
+                }
+                JoinOptimizer.setExhaustiveLimit(0);
+                long greedy = time(jo, js, stats, filterSelectivities);
+                double greedyCost = jo.getPlanCost();
+                JoinOptimizer.setExhaustiveLimit(JoinOptimizer.DEFAULT_EXHAUSTIVE_LIMIT);
+                JoinOptimizer.setPlanningBudget(JoinOptimizer.DEFAULT_PLANNING_BUDGET);
+                long budgeted = time(jo, js, stats, filterSelectivities);
+                double budgetedCost = jo.getPlanCost();
+
+                String old = "-";
+                if (n <= 15) {
+                    long start = System.nanoTime();
+                    setBasedOrder(jo, lp, js, stats, filterSelectivities);
+                    old = String.format("%.1f", (System.nanoTime() - start) / 1e6);
+                }
+                System.out.println(String.format("%6d  %-6s %14s  %9.2f (%s)  %9.2f (%s)  %12s",
+                        n, shape.toString().toLowerCase(), exhaustive,
+                        greedy / 1e6, ratio(greedyCost, best),
+                        budgeted / 1e6, ratio(budgetedCost, best), old));
+            }
+        }
+    }
+
+    /**
+     * @return the least time of a few runs of orderJoins, in nanoseconds
+     */
+    private static long time(JoinOptimizer jo, Vector<LogicalJoinNode> js,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        long fastest = Long.MAX_VALUE;
+        for (int rep = 0; rep < 3; rep++) {
+            long start = System.nanoTime();
+            Vector<LogicalJoinNode> order = jo.orderJoins(stats, filterSelectivities, false);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+            if (order.size() != js.size())
+                throw new RuntimeException("orderJoins lost a join");
+        }
+        return fastest;
+    }
+
+    /**
+     * @return the cost of a plan as a multiple of the best plan's, or its
+     *         cost if the best plan is unknown
+     */
+    private static String ratio(double cost, double best) {
+        return Double.isNaN(best) ? String.format("%.3g", cost)
+                : String.format("x%.2f", cost / best);
+    }
+}
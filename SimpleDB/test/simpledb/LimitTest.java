@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /**
+   * Wraps an iterator, counting the tuples pulled from it and whether it is
+   * open.
+   */
+  private static class CountingIterator implements OpIterator {
+    private static final long serialVersionUID = 1L;
+    final OpIterator child;
+    int pulled = 0;
+    boolean open = false;
+
+    CountingIterator(OpIterator child) {
+      this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      child.open();
+      open = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+      return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException {
+      pulled++;
+      return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+      return child.getTupleDesc();
+    }
+
+    public void close() {
+      child.close();
+      open = false;
+    }
+  }
+
+  private static int[] sequence(int n) {
+    int[] data = new int[n];
+    for (int i = 0; i < n; i++)
+      data[i] = i;
+    return data;
+  }
+
+  /**
+   * Unit test for Limit with an offset; the child must be closed as soon as
+   * the last tuple has been returned
+   */
+  @Test public void limitOffset() throws Exception {
+    CountingIterator child = new CountingIterator(
+        TestUtil.createTupleList(1, sequence(100)));
+    Limit op = new Limit(5, 10, child);
+    op.open();
+    TestUtil.compareDbIterators(
+        TestUtil.createTupleList(1, new int[] { 10, 11, 12, 13, 14 }), op);
+    assertEquals(15, child.pulled);
+    assertFalse(child.open);
+
+    op.rewind();
+    assertTrue(child.open);
+    TestUtil.compareDbIterators(
+        TestUtil.createTupleList(1, new int[] { 10, 11, 12, 13, 14 }), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for limits past the end of the input, and LIMIT 0
+   */
+  @Test public void limitPastEnd() throws Exception {
+    Limit op = new Limit(10, 7, TestUtil.createTupleList(1, sequence(9)));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 7, 8 }), op);
+    op.close();
+
+    CountingIterator child = new CountingIterator(
+        TestUtil.createTupleList(1, sequence(9)));
+    op = new Limit(0, 0, child);
+    op.open();
+    assertFalse(op.hasNext());
+    assertEquals(0, child.pulled);
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN: the first n tuples in order, ties in input order
+   */
+  @Test public void topN() throws Exception {
+    int[] data = new int[] {
+        5, 0, 3, 1, 9, 2, 3, 3, 1, 4, 5, 5, 0, 6, 3, 7, 8, 8, 1, 9 };
+    TopN op = new TopN(new int[] { 0 }, new boolean[] { true }, 5,
+        TestUtil.createTupleList(2, data));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] {
+        0, 6, 1, 4, 1, 9, 3, 1, 3, 3 }), op);
+    op.rewind();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(5, n);
+    op.close();
+
+    op = new TopN(new int[] { 0, 1 }, new boolean[] { false, true }, 3,
+        TestUtil.createTupleList(2, data));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] {
+        9, 2, 8, 8, 5, 0 }), op);
+    op.close();
+  }
+
+  /**
+   * TopN must return the same tuples as a full sort followed by a limit
+   */
+  @Test public void topNMatchesOrderBy() throws Exception {
+    Random r = new Random(11);
+    int[] data = new int[3000];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(100);
+    int[] fields = new int[] { 1, 2 };
+    boolean[] asc = new boolean[] { true, false };
+    for (int n : new int[] { 0, 1, 17, 999, 1000, 2000 }) {
+      Limit expected = new Limit(n, 0, new OrderBy(fields, asc,
+          TestUtil.createTupleList(3, data)));
+      TopN actual = new TopN(fields, asc, n, TestUtil.createTupleList(3, data));
+      expected.open();
+      actual.open();
+      TestUtil.compareDbIterators(expected, actual);
+      expected.close();
+      actual.close();
+    }
+  }
+
+  /**
+   * Unit test for removing LIMIT clauses from statements before parsing
+   */
+  @Test public void stripLimit() throws Exception {
+    Parser p = new Parser();
+    assertEquals("select * from t order by t.a;",
+        p.stripLimit("select * from t order by t.a limit 20;"));
+    assertEquals("SELECT * FROM t;",
+        p.stripLimit("SELECT * FROM t LIMIT 5 OFFSET 10 ;"));
+    assertEquals("select * from t",
+        p.stripLimit("select * from t\n  Limit 3"));
+    // no LIMIT, or not a query: left alone
+    assertEquals("select * from t where t.limit = 5;",
+        p.stripLimit("select * from t where t.limit = 5;"));
+    assertEquals("delete from t where t.a = 1;",
+        p.stripLimit("delete from t where t.a = 1;"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MorselScanTest extends SimpleDbTestBase {
+    // enough rows for several morsels, and more pages than the buffer pool
+    private static final int ROWS = 120000;
+
+    private static List<ArrayList<Integer>> scan(OpIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    private static List<String> sorted(List<ArrayList<Integer>> rows) {
+        ArrayList<String> s = new ArrayList<String>();
+        for (ArrayList<Integer> row : rows)
+            s.add(row.toString());
+        Collections.sort(s);
+        return s;
+    }
+
+    /**
+     * The copies of a split scan read disjoint morsels of the file, however
+     * their reads interleave, and can be read again once all of them were
+     * closed
+     */
+    @Test public void splitScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        assertTrue(f.numPages() > 3 * MorselScan.MORSEL_PAGES);
+        TransactionId tid = new TransactionId();
+        MorselScan[] copies = MorselScan.split(tid, f.getId(), "t", 4);
+        assertTrue(copies[0].getTupleDesc().getFieldName(0).startsWith("t."));
+        for (int run = 0; run < 2; run++) {
+            ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>();
+            for (MorselScan copy : copies)
+                copy.open();
+            // copy i reads i + 1 tuples at a time, until all are exhausted
+            boolean more = true;
+            while (more) {
+                more = false;
+                for (int i = 0; i < copies.length; i++) {
+                    for (int j = 0; j <= i && copies[i].hasNext(); j++)
+                        all.add(SystemTestUtil.tupleToList(copies[i].next()));
+                    more |= copies[i].hasNext();
+                }
+            }
+            for (MorselScan copy : copies)
+                copy.close();
+            assertEquals(sorted(tuples), sorted(all));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A filtered scan planned with several workers runs the filter on each
+     * copy of the scan and returns the tuples of the serial plan
+     */
+    @Test public void parallelFilteredScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, tuples);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 100 && t.get(2) >= 500)
+                expected.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        OpIterator plan = ParallelPlanner.parallelize(new Filter(new Predicate[] {
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)),
+                new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(500)) },
+                new SeqScan(tid, f.getId(), "t")), 8);
+        assertTrue(plan instanceof Exchange);
+        OpIterator[] copies = ((Exchange) plan).getChildren();
+        assertEquals(8, copies.length);
+        for (OpIterator copy : copies) {
+            assertTrue(copy instanceof Filter);
+            assertTrue(((Filter) copy).getChildren()[0] instanceof MorselScan);
+        }
+        plan.open();
+        assertEquals(sorted(expected), sorted(scan(plan)));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A filtered scan planned as ordered returns the tuples of the serial
+     * plan in the same order, also after a rewind
+     */
+    @Test public void orderedParallelScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, tuples);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 300)
+                expected.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        OpIterator plan = ParallelPlanner.parallelize(new Filter(
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)),
+                new SeqScan(tid, f.getId(), "t")), 4, true);
+        assertTrue(plan instanceof Exchange);
+        assertEquals(Exchange.Mode.GATHER_ORDERED, ((Exchange) plan).getMode());
+        plan.open();
+        assertEquals(expected, scan(plan));
+        plan.rewind();
+        assertEquals(expected, scan(plan));
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Closing a parallel scan early stops the workers; the transaction can
+     * then complete and release its locks
+     */
+    @Test public void closeEarly() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = ParallelPlanner.parallelize(
+                new SeqScan(tid, f.getId(), "t"), 4);
+        plan.open();
+        for (int i = 0; i < 10; i++)
+            plan.next();
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        HeapPageId pid = new HeapPageId(f.getId(), f.numPages() - 1);
+        assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MorselScanTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Times OrderBy over a large generated input.
+ * <p>
+ * Usage: java simpledb.OrderByBenchmark [rows] [memoryBudgetMB]
+ * <p>
+ * The benchmark is built with the tests (ant testcompile); run it with
+ * bin/test on the classpath.
+ * <p>
+ * Sorts rows (default 10,000,000) random two-column INT tuples on one key,
+ * on two keys (both using the normalized long fast path), and on one key
+ * through the generic comparator (by sorting a STRING column), checking that
+ * each output is ordered and complete.
+ */
+public class OrderByBenchmark {
+
+    /**
+     * Generates a fixed number of pseudo-random tuples without materializing
+     * them; rewinding replays the same sequence.
+     */
+    static class RandomTuples implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final int rows;
+        private final long seed;
+        private Random r;
+        private int produced;
+
+        RandomTuples(TupleDesc td, int rows, long seed) {
+            this.td = td;
+            this.rows = rows;
+            this.seed = seed;
+        }
+
+        public void open() {
+            r = new Random(seed);
+            produced = 0;
+        }
+
+        public boolean hasNext() {
+            return produced < rows;
+        }
+
+        public Tuple next() {
+            if (produced >= rows)
+                throw new NoSuchElementException();
+            produced++;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                int v = r.nextInt(1 << 20);
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    t.setField(i, new IntField(v));
+                else
+                    t.setField(i, new StringField("k" + v, Type.STRING_LEN));
+            }
+            return t;
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            r = null;
+        }
+    }
+
+    private static void run(String name, TupleDesc td, int rows,
+            int[] fields, boolean[] asc, long budget) throws Exception {
+        OrderBy ob = new OrderBy(fields, asc, new RandomTuples(td, rows, 42),
+                budget);
+        TupleComparator cmp = new TupleComparator(fields, asc);
+
+        long start = System.nanoTime();
+        ob.open();
+        long sorted = System.nanoTime();
+        int n = 0;
+        Tuple prev = null;
+        while (ob.hasNext()) {
+            Tuple t = ob.next();
+            if (prev != null && cmp.compare(prev, t) > 0)
+                throw new RuntimeException(name + ": output out of order at row " + n);
+            prev = t;
+            n++;
+        }
+        long end = System.nanoTime();
+        ob.close();
+        if (n != rows)
+            throw new RuntimeException(name + ": expected " + rows + " rows, got " + n);
+
+        System.out.println(String.format(
+                "%-24s rows=%d  sort=%.2fs  output=%.2fs  total=%.2fs",
+                name, n, (sorted - start) / 1e9, (end - sorted) / 1e9,
+                (end - start) / 1e9));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int rows = argv.length > 0 ? Integer.parseInt(argv[0]) : 10000000;
+        long budget = (argv.length > 1 ? Long.parseLong(argv[1]) : 64) * 1024 * 1024;
+        System.out.println("rows=" + rows + " memoryBudget=" + budget / (1024 * 1024) + "MB");
+
+        TupleDesc ints = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "a", "b" });
+        TupleDesc strs = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "s", "b" });
+
+        run("int key", ints, rows, new int[] { 0 }, new boolean[] { true }, budget);
+        run("int key desc, int key", ints, rows, new int[] { 0, 1 },
+                new boolean[] { false, true }, budget);
+        run("string key", strs, rows, new int[] { 0 }, new boolean[] { true }, budget);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /**
+   * @return width-column tuples with random values in [0, maxValue)
+   */
+  private static int[] randomData(int rows, int width, int maxValue) {
+    Random r = new Random(7);
+    int[] data = new int[rows * width];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(maxValue) - maxValue / 2;
+    return data;
+  }
+
+  /**
+   * Sorts the rows of data with a reference comparator and checks that op
+   * returns exactly those rows in that order.
+   */
+  private static void checkSorted(int[] data, int width, final int[] fields,
+      final boolean[] asc, OrderBy op) throws Exception {
+    ArrayList<int[]> rows = new ArrayList<int[]>();
+    for (int i = 0; i < data.length; i += width)
+      rows.add(Arrays.copyOfRange(data, i, i + width));
+    // stable, so ties keep their input order
+    Collections.sort(rows, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        for (int k = 0; k < fields.length; k++) {
+          int c = Integer.compare(a[fields[k]], b[fields[k]]);
+          if (c != 0)
+            return asc[k] ? c : -c;
+        }
+        return 0;
+      }
+    });
+    int[] expected = new int[data.length];
+    for (int i = 0; i < rows.size(); i++)
+      System.arraycopy(rows.get(i), 0, expected, i * width, width);
+
+    OpIterator exp = TestUtil.createTupleList(width, expected);
+    op.open();
+    TestUtil.compareDbIterators(exp, op);
+    op.rewind();
+    exp.rewind();
+    TestUtil.compareDbIterators(exp, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for a single ascending key, sorted in memory
+   */
+  @Test public void singleKeyInMemory() throws Exception {
+    int[] data = randomData(500, 2, 50);
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+    checkSorted(data, 2, new int[] { 0 }, new boolean[] { true }, op);
+  }
+
+  /**
+   * Unit test for descending, multi-column keys
+   */
+  @Test public void multiKeyInMemory() throws Exception {
+    int[] data = randomData(500, 3, 10);
+    int[] fields = new int[] { 1, 0, 2 };
+    boolean[] asc = new boolean[] { false, true, false };
+    OrderBy op = new OrderBy(fields, asc, TestUtil.createTupleList(3, data));
+    checkSorted(data, 3, fields, asc, op);
+  }
+
+  /**
+   * Unit test for the two-INT-key fast path, including extreme values
+   */
+  @Test public void twoIntKeys() throws Exception {
+    int[] data = randomData(300, 2, 20);
+    data[0] = Integer.MIN_VALUE;
+    data[3] = Integer.MAX_VALUE;
+    data[5] = Integer.MIN_VALUE;
+    int[] fields = new int[] { 0, 1 };
+    boolean[] asc = new boolean[] { true, false };
+    OrderBy op = new OrderBy(fields, asc, TestUtil.createTupleList(2, data));
+    checkSorted(data, 2, fields, asc, op);
+  }
+
+  /**
+   * Unit test for an input larger than the memory budget, which is sorted
+   * in runs on disk and merged (in more than one pass)
+   */
+  @Test public void spillToDisk() throws Exception {
+    int rows = 20000;
+    int[] data = randomData(rows, 3, 1000);
+    int[] fields = new int[] { 2, 0, 1 };
+    boolean[] asc = new boolean[] { true, false, true };
+    long budget = ExternalSort.estimateTupleBytes(Utility.getTupleDesc(3)) * 100;
+    OrderBy op = new OrderBy(fields, asc, TestUtil.createTupleList(3, data), budget);
+    checkSorted(data, 3, fields, asc, op);
+
+    ExternalSort sort = new ExternalSort(Utility.getTupleDesc(3), fields, asc, budget);
+    OpIterator it = TestUtil.createTupleList(3, data);
+    while (it.hasNext())
+      sort.add(it.next());
+    assertTrue(sort.numRuns() > ExternalSort.MAX_MERGE_FANIN);
+    sort.close();
+  }
+
+  /**
+   * Unit test for sorting STRING keys through spill files
+   */
+  @Test public void stringKeySpill() throws Exception {
+    Object[] data = new Object[2 * 1000];
+    Random r = new Random(3);
+    for (int i = 0; i < data.length; i += 2) {
+      data[i] = "s" + r.nextInt(200);
+      data[i + 1] = i;
+    }
+    OpIterator child = TestUtil.createTupleList(2, data);
+    long budget = ExternalSort.estimateTupleBytes(child.getTupleDesc()) * 64;
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { true }, child, budget);
+    op.open();
+    int n = 0;
+    Tuple prev = null;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      if (prev != null) {
+        String a = ((StringField) prev.getField(0)).getValue();
+        String b = ((StringField) t.getField(0)).getValue();
+        assertTrue(a.compareTo(b) <= 0);
+        // stable within equal keys
+        if (a.equals(b))
+          assertTrue(((IntField) prev.getField(1)).getValue()
+              < ((IntField) t.getField(1)).getValue());
+      }
+      prev = t;
+      n++;
+    }
+    assertEquals(1000, n);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Times a chain of Filters and Projects against the Pipeline it is fused
+ * into by {@link PipelineCompiler}.
+ * <p>
+ * Usage: java simpledb.PipelineBenchmark [rows] [runs]
+ * <p>
+ * The benchmark is built with the tests (ant testcompile); run it with
+ * bin/test on the classpath.
+ * <p>
+ * Evaluates Project(Filter(Filter(Project(input)))) over rows (default
+ * 2,000,000) random four-column INT tuples held in memory, runs (default 5)
+ * times each way, and reports the best time of each, checking that both
+ * plans return the same number of tuples.
+ */
+public class PipelineBenchmark {
+
+    private static OpIterator chain(OpIterator input) {
+        ArrayList<Integer> reorder = new ArrayList<Integer>(Arrays.asList(3, 0, 1, 2));
+        Type[] four = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+                Type.INT_TYPE };
+        OpIterator p = new Project(reorder, four, input);
+        // about half of the tuples pass each filter
+        p = new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+                new IntField(1 << 19)), p);
+        p = new Filter(new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1 << 18)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3 << 18)) }, p);
+        return new Project(new ArrayList<Integer>(Arrays.asList(2, 0)),
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, p);
+    }
+
+    /**
+     * @return the nanoseconds taken by the fastest of runs runs of plan
+     */
+    private static long time(String name, OpIterator plan, int runs,
+            int expectedRows) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime();
+            plan.open();
+            int n = 0;
+            while (plan.hasNext()) {
+                plan.next();
+                n++;
+            }
+            plan.close();
+            best = Math.min(best, System.nanoTime() - start);
+            if (expectedRows >= 0 && n != expectedRows)
+                throw new RuntimeException(name + ": expected " + expectedRows
+                        + " rows, got " + n);
+        }
+        return best;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int rows = argv.length > 0 ? Integer.parseInt(argv[0]) : 2000000;
+        int runs = argv.length > 1 ? Integer.parseInt(argv[1]) : 5;
+
+        TupleDesc td = Utility.getTupleDesc(4);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(rows);
+        OpIterator gen = new OrderByBenchmark.RandomTuples(td, rows, 42);
+        gen.open();
+        while (gen.hasNext())
+            tuples.add(gen.next());
+        gen.close();
+        TupleIterator input = new TupleIterator(td, tuples);
+
+        OpIterator unfused = chain(input);
+        OpIterator fused = PipelineCompiler.compile(chain(input));
+        // count the result once, and warm up both plans
+        unfused.open();
+        int expected = 0;
+        while (unfused.hasNext()) {
+            unfused.next();
+            expected++;
+        }
+        unfused.close();
+        time("fused", fused, 1, expected);
+
+        long u = time("unfused", unfused, runs, expected);
+        long f = time("fused", fused, runs, expected);
+        System.out.println("rows=" + rows + " result=" + expected + " runs=" + runs);
+        System.out.println(String.format("%-8s %.2fms  %.1fns/row", "unfused",
+                u / 1e6, (double) u / rows));
+        System.out.println(String.format("%-8s %.2fms  %.1fns/row  (%.2fx)",
+                "fused", f / 1e6, (double) f / rows, (double) u / f));
+    }
+}
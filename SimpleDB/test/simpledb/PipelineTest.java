@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PipelineTest extends SimpleDbTestBase {
+
+  private static OpIterator input() {
+    return TestUtil.createTupleList(3,
+        new int[] { 1, 10, 100,
+                    2, 20, 200,
+                    3, 30, 300,
+                    4, 40, 400,
+                    5, 50, 500 });
+  }
+
+  /**
+   * Project(Filter(Filter(Project(input)))): the second Project swaps the
+   * first two fields of the input and drops the third
+   */
+  private static OpIterator chain(OpIterator in) {
+    OpIterator p = new Project(new ArrayList<Integer>(Arrays.asList(1, 0, 2)),
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, in);
+    p = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(1)), p);
+    p = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(500)), p);
+    return new Project(new ArrayList<Integer>(Arrays.asList(1, 0)),
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, p);
+  }
+
+  /**
+   * A chain of Filters and Projects becomes one Pipeline over its source,
+   * with the predicates and fields in terms of the source
+   */
+  @Test public void fuse() throws Exception {
+    OpIterator in = input();
+    OpIterator plan = chain(in);
+    OpIterator fused = PipelineCompiler.compile(plan);
+    assertTrue(fused instanceof Pipeline);
+    Pipeline p = (Pipeline) fused;
+    assertSame(in, p.getChildren()[0]);
+    assertArrayEquals(new int[] { 0, 1 }, p.getFields());
+    assertEquals(plan.getTupleDesc(), p.getTupleDesc());
+    assertEquals(2, p.getPredicates().length);
+    assertEquals(0, p.getPredicates()[0].getField());
+    assertEquals(2, p.getPredicates()[1].getField());
+
+    p.open();
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 2, 20, 3, 30, 4, 40 });
+    TestUtil.compareDbIterators(expected, p);
+    p.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, p);
+    p.close();
+  }
+
+  /**
+   * A chain of Filters returns the source's tuples as they are
+   */
+  @Test public void filtersOnly() throws Exception {
+    OpIterator plan = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3)),
+        new Filter(new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(100)), input()));
+    Pipeline p = (Pipeline) PipelineCompiler.compile(plan);
+    assertNull(p.getFields());
+    p.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(3, new int[] { 2, 20, 200 }), p);
+    p.close();
+  }
+
+  /**
+   * Single operators are kept; chains below other operators are fused
+   */
+  @Test public void nested() throws Exception {
+    Filter single = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3)),
+        input());
+    assertSame(single, PipelineCompiler.compile(single));
+
+    Join join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        chain(input()), input());
+    assertSame(join, PipelineCompiler.compile(join));
+    assertTrue(join.getChildren()[0] instanceof Pipeline);
+    assertTrue(join.getChildren()[1] instanceof TupleIterator);
+    join.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(5,
+        new int[] { 2, 20, 2, 20, 200,
+                    3, 30, 3, 30, 300,
+                    4, 40, 4, 40, 400 }), join);
+    join.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PipelineTest.class);
+  }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PredicateCompilerTest extends SimpleDbTestBase {
+
+  private static final int[] INTS = new int[] { Integer.MIN_VALUE, -7, -1, 0,
+      1, 2, 3, 10, 11, 99, Integer.MAX_VALUE };
+
+  private static final String[] STRINGS = new String[] { "", "a", "ab", "abc",
+      "b", "ba", "zz" };
+
+  private static Tuple intTuple(int a, int b) {
+    Tuple t = new Tuple(Utility.getTupleDesc(2));
+    t.setField(0, new IntField(a));
+    t.setField(1, new IntField(b));
+    return t;
+  }
+
+  private static Tuple stringTuple(String s) {
+    Tuple t = new Tuple(new TupleDesc(new Type[] { Type.STRING_TYPE }));
+    t.setField(0, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  /**
+   * A compiled predicate agrees with Field.compare for every operator
+   */
+  @Test public void singlePredicates() {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int c : INTS) {
+        Predicate p = new Predicate(1, op, new IntField(c));
+        PredicateCompiler.TupleTest test = PredicateCompiler.compile(p);
+        for (int v : INTS) {
+          Tuple t = intTuple(0, v);
+          assertEquals(op + " " + c + " on " + v,
+              new IntField(v).compare(op, new IntField(c)), test.test(t));
+          assertEquals(test.test(t), p.filter(t));
+        }
+      }
+      for (String c : STRINGS) {
+        Predicate p = new Predicate(0, op, new StringField(c, Type.STRING_LEN));
+        PredicateCompiler.TupleTest test = PredicateCompiler.compile(p);
+        for (String v : STRINGS) {
+          Tuple t = stringTuple(v);
+          assertEquals(op + " " + c + " on " + v,
+              t.getField(0).compare(op, p.getOperand()), test.test(t));
+        }
+      }
+    }
+  }
+
+  /**
+   * A conjunction is true exactly when all its predicates are, including
+   * when comparisons of one field are merged into an empty range
+   */
+  @Test public void conjunctions() {
+    Random r = new Random(3);
+    Predicate.Op[] ops = Predicate.Op.values();
+    for (int i = 0; i < 2000; i++) {
+      Predicate[] ps = new Predicate[1 + r.nextInt(4)];
+      for (int k = 0; k < ps.length; k++)
+        ps[k] = new Predicate(r.nextInt(2), ops[r.nextInt(ops.length)],
+            new IntField(INTS[r.nextInt(INTS.length)]));
+      PredicateCompiler.TupleTest and = PredicateCompiler.and(ps);
+      PredicateCompiler.TupleTest or = PredicateCompiler.or(ps);
+      for (int a : INTS) {
+        Tuple t = intTuple(a, INTS[r.nextInt(INTS.length)]);
+        boolean all = true, any = false;
+        for (Predicate p : ps) {
+          all &= t.getField(p.getField()).compare(p.getOp(), p.getOperand());
+          any |= t.getField(p.getField()).compare(p.getOp(), p.getOperand());
+        }
+        assertEquals(Arrays.toString(ps), all, and.test(t));
+        assertEquals(Arrays.toString(ps), any, or.test(t));
+      }
+    }
+    Tuple t = intTuple(5, 5);
+    assertTrue(PredicateCompiler.and().test(t));
+    assertFalse(PredicateCompiler.or().test(t));
+    assertFalse(PredicateCompiler.and(
+        new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(Integer.MAX_VALUE))).test(
+        intTuple(Integer.MAX_VALUE, 0)));
+  }
+
+  /**
+   * A compiled join predicate agrees with Field.compare
+   */
+  @Test public void joinPredicates() {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate p = new JoinPredicate(1, op, 0);
+      PredicateCompiler.PairTest test = PredicateCompiler.compile(p,
+          Type.INT_TYPE, Type.INT_TYPE);
+      for (int a : INTS) {
+        for (int b : INTS) {
+          Tuple t1 = intTuple(0, a);
+          Tuple t2 = intTuple(b, 0);
+          assertEquals(new IntField(a).compare(op, new IntField(b)), test.test(t1, t2));
+          assertEquals(test.test(t1, t2), p.filter(t1, t2));
+        }
+      }
+      JoinPredicate sp = new JoinPredicate(0, op, 0);
+      for (String a : STRINGS) {
+        for (String b : STRINGS) {
+          assertEquals(stringTuple(a).getField(0).compare(op,
+              stringTuple(b).getField(0)), sp.filter(stringTuple(a), stringTuple(b)));
+        }
+      }
+    }
+  }
+
+  /**
+   * A Filter with several predicates returns the tuples satisfying all
+   */
+  @Test public void filterConjunction() throws Exception {
+    int[] data = new int[2000];
+    Random r = new Random(11);
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(100);
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < data.length; i += 2) {
+      if (data[i] > 20 && data[i] <= 70 && data[i + 1] != 5)
+        expected.addAll(Arrays.asList(data[i], data[i + 1]));
+    }
+    int[] exp = new int[expected.size()];
+    for (int i = 0; i < exp.length; i++)
+      exp[i] = expected.get(i);
+    Filter f = new Filter(new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20)),
+        new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(5)),
+        new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(70)) },
+        TestUtil.createTupleList(2, data));
+    assertEquals(3, f.getPredicates().length);
+    f.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, exp), f);
+    f.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PredicateCompilerTest.class);
+  }
+}
@@ -0,0 +1,215 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ProjectionTest extends SimpleDbTestBase {
+
+  /**
+   * @return the scan at the bottom of a chain of single-child operators
+   */
+  private static SeqScan scanOf(OpIterator plan) {
+    while (plan instanceof Operator)
+      plan = ((Operator) plan).getChildren()[0];
+    return (SeqScan) plan;
+  }
+
+  /**
+   * A scan of some fields returns them in the requested order, with the
+   * record ids of the whole tuples
+   */
+  @Test public void seqScanFields() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, null, null, "c");
+    TransactionId tid = new TransactionId();
+    SeqScan all = new SeqScan(tid, f.getId(), "t");
+    SeqScan some = new SeqScan(tid, f.getId(), "t", new int[] { 2, 0 });
+    assertNull(all.getFields());
+    assertArrayEquals(new int[] { 2, 0 }, some.getFields());
+    assertEquals(0, some.tableField(1));
+    assertEquals(2, some.getTupleDesc().numFields());
+    assertEquals("t.c2", some.getTupleDesc().getFieldName(0));
+    assertEquals("t.c0", some.getTupleDesc().getFieldName(1));
+    all.open();
+    some.open();
+    int n = 0;
+    while (all.hasNext()) {
+      Tuple wide = all.next();
+      Tuple narrow = some.next();
+      assertEquals(wide.getField(2), narrow.getField(0));
+      assertEquals(wide.getField(0), narrow.getField(1));
+      assertNotNull(narrow.getRecordId());
+      assertEquals(wide.getRecordId(), narrow.getRecordId());
+      n++;
+    }
+    assertEquals(1000, n);
+    all.close();
+    some.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A page decodes the requested fields of its tuples from the bytes it was
+   * read from, and from its tuples once they were decoded and changed
+   */
+  @Test public void heapPageFields() throws Exception {
+    TupleDesc td = new TupleDesc(
+        new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+        new String[] { "a", "s", "b" });
+    java.io.File temp = java.io.File.createTempFile("projection", ".dat");
+    temp.deleteOnExit();
+    HeapFile f = new HeapFile(temp, td);
+    Database.getCatalog().addTable(f, UUID.randomUUID().toString());
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    HeapPage written = new HeapPage(pid, HeapPage.createEmptyPageData());
+    for (int i = 0; i < 20; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("row " + i, Type.STRING_LEN));
+      t.setField(2, new IntField(-i));
+      written.insertTuple(t);
+    }
+    HeapPage page = new HeapPage(pid, written.getPageData());
+    assertArrayEquals(written.getPageData(), page.getPageData());
+
+    TupleDesc narrow = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    for (int round = 0; round < 2; round++) {
+      Iterator<Tuple> it = page.iterator(new int[] { 1, 2 }, narrow);
+      for (int i = 0; i < 20; i++) {
+        Tuple t = it.next();
+        assertEquals(narrow, t.getTupleDesc());
+        assertEquals(new StringField("row " + i, Type.STRING_LEN), t.getField(0));
+        assertEquals(new IntField(-i), t.getField(1));
+        assertEquals(new RecordId(pid, i), t.getRecordId());
+      }
+      if (round == 0) {
+        assertFalse(it.hasNext());
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(20));
+        t.setField(1, new StringField("row 20", Type.STRING_LEN));
+        t.setField(2, new IntField(-20));
+        page.insertTuple(t);
+      } else {
+        assertEquals(new IntField(-20), it.next().getField(1));
+        assertFalse(it.hasNext());
+      }
+    }
+  }
+
+  /**
+   * An iterator over some fields returns the tuples the page held when it
+   * was made, even if a tuple is inserted while it is read
+   */
+  @Test public void heapPageFieldsWhileInserting() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    HeapPage written = new HeapPage(pid, HeapPage.createEmptyPageData());
+    for (int i = 0; i < 20; i++)
+      written.insertTuple(Utility.getHeapTuple(new int[] { i, -i }));
+    HeapPage page = new HeapPage(pid, written.getPageData());
+
+    TupleDesc narrow = Utility.getTupleDesc(1);
+    Iterator<Tuple> it = page.iterator(new int[] { 1 }, narrow);
+    for (int i = 0; i < 20; i++) {
+      if (i == 5)
+        page.insertTuple(Utility.getHeapTuple(new int[] { 20, -20 }));
+      Tuple t = it.next();
+      assertEquals(new IntField(-i), t.getField(0));
+      assertEquals(new RecordId(pid, i), t.getRecordId());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  /**
+   * A B+ tree scan of some fields still returns the tuples in key order
+   */
+  @Test public void bTreeScanFields() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(3, 500, null, rows, 0);
+    TransactionId tid = new TransactionId();
+    BTreeScan scan = new BTreeScan(tid, f.getId(), "t", null, new int[] { 0, 2 });
+    assertEquals(2, scan.getTupleDesc().numFields());
+    assertEquals(2, scan.tableField(1));
+    ArrayList<String> expected = new ArrayList<String>();
+    for (ArrayList<Integer> row : rows)
+      expected.add(row.get(0) + " " + row.get(2));
+    Collections.sort(expected);
+    ArrayList<String> actual = new ArrayList<String>();
+    scan.open();
+    int last = Integer.MIN_VALUE;
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertEquals(true, key >= last);
+      last = key;
+      actual.add(key + " " + t.getField(1));
+    }
+    scan.close();
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The scans of a planned query return only the fields the query refers
+   * to, and the query returns the same tuples
+   */
+  @Test public void logicalPlanPushdown() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(4, 2000, 100, null, rows, "c");
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(f.getId(), "t");
+    lp.addProjectField("t.c3", null);
+    lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "50");
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    assertArrayEquals(new int[] { 1, 3 }, scanOf(plan).getFields());
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> row : rows) {
+      if (row.get(1) > 50)
+        expected.add(new ArrayList<Integer>(Arrays.asList(row.get(3))));
+    }
+    SystemTestUtil.matchTuples(plan, expected);
+    plan.close();
+
+    // a COUNT(*) reads one field
+    lp = new LogicalPlan();
+    lp.addScan(f.getId(), "t");
+    lp.addProjectField("*", "count");
+    lp.addAggregate("count", "*", null);
+    plan = lp.physicalPlan(tid, stats, false);
+    assertArrayEquals(new int[] { 0 }, scanOf(plan).getFields());
+    SystemTestUtil.matchTuples(plan, Arrays.asList(
+        new ArrayList<Integer>(Arrays.asList(rows.size()))));
+    plan.close();
+
+    // SELECT * reads them all
+    lp = new LogicalPlan();
+    lp.addScan(f.getId(), "t");
+    lp.addProjectField("*", null);
+    lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "50");
+    assertNull(scanOf(lp.physicalPlan(tid, stats, false)).getFields());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ProjectionTest.class);
+  }
+}
@@ -0,0 +1,184 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+  /**
+   * A Bloom filter contains every value added to it, and few others
+   */
+  @Test public void bloomFilter() {
+    BloomFilter bf = new BloomFilter(10000);
+    for (int i = 0; i < 10000; i++)
+      bf.add(i * 7);
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(bf.mightContain(i * 7));
+      assertTrue(bf.mightContain(new IntField(i * 7)));
+      if (bf.mightContain(i * 7 + 1))
+        falsePositives++;
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 500);
+
+    BloomFilter names = new BloomFilter(2);
+    names.add(new StringField("ann", Type.STRING_LEN));
+    assertTrue(names.mightContain(new StringField("ann", Type.STRING_LEN)));
+  }
+
+  /**
+   * Merging filters of different sizes keeps the values of both
+   */
+  @Test public void merge() {
+    BloomFilter small = new BloomFilter(10);
+    BloomFilter big = new BloomFilter(5000);
+    for (int i = 0; i < 10; i++)
+      small.add(i);
+    for (int i = 100; i < 5100; i++)
+      big.add(i);
+    BloomFilter merged = small.merge(big);
+    assertEquals(small.numBits(), merged.numBits());
+    for (int i = 0; i < 10; i++)
+      assertTrue(merged.mightContain(i));
+    for (int i = 100; i < 5100; i++)
+      assertTrue(merged.mightContain(i));
+  }
+
+  /**
+   * A filter with several builders is tested once all have published, and
+   * never after being abandoned
+   */
+  @Test public void publish() {
+    RuntimeFilter rf = new RuntimeFilter(2);
+    BloomFilter a = new BloomFilter(1);
+    a.add(1);
+    BloomFilter b = new BloomFilter(1);
+    b.add(2);
+    rf.publish(a);
+    assertFalse(rf.isActive());
+    assertTrue(rf.mightMatch(new IntField(3)));
+    rf.publish(b);
+    assertTrue(rf.isActive());
+    assertTrue(rf.mightMatch(new IntField(1)));
+    assertTrue(rf.mightMatch(new IntField(2)));
+    rf.abandon();
+    assertFalse(rf.isActive());
+    assertTrue(rf.mightMatch(new IntField(3)));
+  }
+
+  private static int count(OpIterator plan) throws Exception {
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      n++;
+    }
+    plan.close();
+    return n;
+  }
+
+  /**
+   * The scan below the probe side of a hash join drops most tuples that do
+   * not join, and the join returns the same tuples
+   */
+  @Test public void hashJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, rows, "c");
+    int[] keys = new int[] { 3, 0, 77, 0, 512, 0, 999, 0 };
+    int expected = 0;
+    for (ArrayList<Integer> row : rows) {
+      int v = row.get(1);
+      if (v == 3 || v == 77 || v == 512 || v == 999)
+        expected++;
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(0)), scan);
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        TestUtil.createTupleList(2, keys), filter);
+    assertNotNull(join.getRuntimeFilter());
+    assertEquals(expected, count(join));
+    assertTrue(join.getRuntimeFilter().isActive());
+    // at most a few false positives get through
+    assertTrue(scan.numRuntimeFiltered() >= (rows.size() - expected) * 9 / 10);
+
+    // a probe side that is not a scan gets no filter
+    assertNull(new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        TestUtil.createTupleList(2, keys), TestUtil.createTupleList(2, keys))
+        .getRuntimeFilter());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A build side that does not fit in one batch publishes no filter
+   */
+  @Test public void bigBuildSide() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(1, 1000, 100000, null, rows, "c");
+    int[] keys = new int[HashEquiJoin.MAP_SIZE * 2];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = i * 3;
+    int expected = 0;
+    for (ArrayList<Integer> row : rows) {
+      if (row.get(0) % 3 == 0 && row.get(0) < keys.length * 3)
+        expected++;
+    }
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(1, keys), scan);
+    assertEquals(expected, count(join));
+    assertFalse(join.getRuntimeFilter().isActive());
+    assertEquals(0, scan.numRuntimeFiltered());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The copies of a parallel hash join share one filter, tested by the
+   * split scans of the probe side
+   */
+  @Test public void parallelHashJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> dim = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> fact = new ArrayList<ArrayList<Integer>>();
+    HeapFile d = SystemTestUtil.createRandomHeapFile(2, 50, 10000, null, dim, "d");
+    HeapFile ft = SystemTestUtil.createRandomHeapFile(2, 20000, 10000, null, fact, "f");
+    HashMap<Integer, Integer> dimKeys = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> row : dim) {
+      Integer n = dimKeys.get(row.get(0));
+      dimKeys.put(row.get(0), n == null ? 1 : n + 1);
+    }
+    int expected = 0;
+    for (ArrayList<Integer> row : fact) {
+      Integer n = dimKeys.get(row.get(1));
+      expected += n == null ? 0 : n;
+    }
+
+    TransactionId tid = new TransactionId();
+    OpIterator plan = ParallelPlanner.parallelize(new HashEquiJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, d.getId(), "d"), new SeqScan(tid, ft.getId(), "f")), 3);
+    assertEquals(expected, count(plan));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RuntimeFilterTest.class);
+  }
+}
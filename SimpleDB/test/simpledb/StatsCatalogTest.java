@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StatsCatalogTest extends SimpleDbTestBase {
+
+  private static void assertSameStats(TableStats expected, TableStats actual, int numFields) {
+    assertEquals(expected.totalTuples(), actual.totalTuples());
+    assertEquals(expected.estimateScanCost(), actual.estimateScanCost(), 0);
+    assertEquals(expected.getBuildModificationCount(), actual.getBuildModificationCount());
+    for (int col = 0; col < numFields; col++) {
+      assertEquals(expected.avgSelectivity(col, Predicate.Op.EQUALS),
+          actual.avgSelectivity(col, Predicate.Op.EQUALS), 1e-12);
+      for (int v = -5; v < 1100; v += 13) {
+        assertEquals(expected.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(v)),
+            actual.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(v)), 1e-12);
+      }
+    }
+  }
+
+  /**
+   * Statistics read back from a saved file are the same as those saved
+   */
+  @Test public void saveAndRead() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, null, "c");
+    Database.getCatalog().addTable(f, "stats_t");
+    TableStats built = new TableStats(f.getId(), 10);
+    TableStats.setTableStats("stats_t", built);
+
+    File file = File.createTempFile("simpledb", ".stats");
+    file.deleteOnExit();
+    StatsCatalog.save(file);
+    Map<String, TableStats> read = StatsCatalog.read(file);
+    assertEquals(Collections.singleton("stats_t"), read.keySet());
+    assertSameStats(built, read.get("stats_t"), 3);
+  }
+
+  /**
+   * Concurrent saves to the same file each leave a complete file behind,
+   * and no temporary files
+   */
+  @Test public void concurrentSaves() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, null, "c");
+    Database.getCatalog().addTable(f, "stats_t");
+    TableStats built = new TableStats(f.getId(), 10);
+    TableStats.setTableStats("stats_t", built);
+    final File file = File.createTempFile("simpledb", ".stats");
+    file.deleteOnExit();
+    final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++)
+              StatsCatalog.save(file);
+          } catch (Exception e) {
+            errors.add(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals(Collections.emptyList(), errors);
+    assertSameStats(built, StatsCatalog.read(file).get("stats_t"), 3);
+    String[] left = file.getParentFile().list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(file.getName()) && name.endsWith(".tmp");
+      }
+    });
+    assertEquals(0, left.length);
+  }
+
+  /**
+   * Saved statistics are reused when the database starts again unless the
+   * table changed by more than the drift threshold
+   */
+  @Test public void reuseUntilDrift() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, null, "c");
+    Database.getCatalog().addTable(f, "drift_t");
+    File file = File.createTempFile("simpledb", ".stats");
+    file.delete();
+    file.deleteOnExit();
+
+    // no file yet: everything is read
+    assertEquals(Collections.singletonList(f.getId()),
+        StatsCatalog.loadOrCompute(file, 0.1, 1));
+    assertTrue(file.exists());
+    TableStats first = TableStats.getTableStats("drift_t");
+    assertEquals(5000, first.totalTuples());
+
+    // a fresh start with a few changes reuses the saved statistics
+    TableStats.getStatsMap().clear();
+    TableStats.recordModifications(f.getId(), 400);
+    assertEquals(Collections.emptyList(), StatsCatalog.loadOrCompute(file, 0.1, 1));
+    assertSameStats(first, TableStats.getTableStats("drift_t"), 2);
+
+    // the modification count is saved too, and adds up past the threshold
+    TableStats.setModificationCount(f.getId(), 0);
+    TableStats.getStatsMap().clear();
+    assertEquals(Collections.emptyList(), StatsCatalog.loadOrCompute(file, 0.1, 1));
+    assertEquals(first.getBuildModificationCount() + 400,
+        TableStats.getModificationCount(f.getId()));
+    TableStats.recordModifications(f.getId(), 200);
+    assertEquals(Collections.singletonList(f.getId()),
+        StatsCatalog.loadOrCompute(file, 0.1, 1));
+    assertEquals(TableStats.getModificationCount(f.getId()),
+        TableStats.getTableStats("drift_t").getBuildModificationCount());
+
+    // a file that cannot be read is ignored
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 1, 2, 3 });
+    out.close();
+    assertEquals(Collections.singletonList(f.getId()),
+        StatsCatalog.loadOrCompute(file, 0.1, 1));
+    assertEquals(Collections.emptyList(), StatsCatalog.loadOrCompute(file, 0.1, 1));
+  }
+
+  /**
+   * The statistics file of a catalog is next to it
+   */
+  @Test public void fileForCatalog() {
+    File f = StatsCatalog.fileFor("/data/db/catalog.txt");
+    assertEquals(new File("/data/db/catalog.stats"), f);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StatsCatalogTest.class);
+  }
+}
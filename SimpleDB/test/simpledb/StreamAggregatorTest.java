@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregatorTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] OPS = new Aggregator.Op[] {
+      Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.AVG };
+
+  private static int[] randomData(int rows, int width, int maxValue) {
+    Random r = new Random(17);
+    int[] data = new int[rows * width];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(maxValue);
+    return data;
+  }
+
+  /**
+   * @return the tuples of an open iterator as strings, in order
+   */
+  private static List<String> tuples(OpIterator it) throws Exception {
+    ArrayList<String> tuples = new ArrayList<String>();
+    while (it.hasNext())
+      tuples.add(it.next().toString());
+    return tuples;
+  }
+
+  /**
+   * Unit test for StreamAggregator: each group is returned when the next
+   * one starts
+   */
+  @Test public void groupsEndOnKeyChange() throws Exception {
+    StreamAggregator agg = new StreamAggregator(new int[] { 0 },
+        new Type[] { Type.INT_TYPE }, new int[] { 1, 1 },
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX });
+    OpIterator child = TestUtil.createTupleList(2, new int[] {
+        1, 5, 1, 7, 2, 3, 3, 4, 3, 9 });
+    child.open();
+    assertNull(agg.add(child.next()));
+    assertNull(agg.add(child.next()));
+    assertTrue(TestUtil.compareTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 12, 7 }).next(), agg.add(child.next())));
+    assertTrue(TestUtil.compareTuples(TestUtil.createTupleList(3,
+        new int[] { 2, 3, 3 }).next(), agg.add(child.next())));
+    assertNull(agg.add(child.next()));
+    assertTrue(TestUtil.compareTuples(TestUtil.createTupleList(3,
+        new int[] { 3, 13, 9 }).next(), agg.finish()));
+    assertNull(agg.finish());
+  }
+
+  /**
+   * Aggregate over a sorted child streams, and returns the same groups, in
+   * order, as hash aggregation
+   */
+  @Test public void streamsOverOrderBy() throws Exception {
+    int[] data = randomData(3000, 3, 20);
+    int[] gfields = new int[] { 1, 0 };
+    int[] afields = new int[] { 2, 2, 2, 0 };
+    OrderBy sorted = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        TestUtil.createTupleList(3, data));
+    Aggregate stream = new Aggregate(new Filter(new Predicate(2,
+        Predicate.Op.GREATER_THAN, new IntField(3)), sorted), afields, gfields, OPS);
+    assertTrue(stream.isStreaming());
+
+    Aggregate hash = new Aggregate(new Filter(new Predicate(2,
+        Predicate.Op.GREATER_THAN, new IntField(3)),
+        TestUtil.createTupleList(3, data)), afields, gfields, OPS);
+    assertFalse(hash.isStreaming());
+
+    hash.open();
+    stream.open();
+    List<String> expected = tuples(hash);
+    List<String> actual = tuples(stream);
+    // streamed groups come out in sort order
+    ArrayList<String> sortedActual = new ArrayList<String>(actual);
+    Collections.sort(expected);
+    Collections.sort(sortedActual);
+    assertEquals(expected, sortedActual);
+    stream.rewind();
+    assertEquals(actual, tuples(stream));
+    hash.close();
+    stream.close();
+  }
+
+  /**
+   * Only inputs sorted on the group-by fields first are grouped
+   */
+  @Test public void groupingDetection() throws Exception {
+    OpIterator child = TestUtil.createTupleList(3, randomData(10, 3, 5));
+    assertFalse(Aggregate.isGroupedOn(child, new int[] { 0 }));
+    OrderBy sorted = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true }, child);
+    assertTrue(Aggregate.isGroupedOn(sorted, new int[] { 0 }));
+    assertTrue(Aggregate.isGroupedOn(sorted, new int[] { 1, 0 }));
+    assertFalse(Aggregate.isGroupedOn(sorted, new int[] { 1 }));
+    assertFalse(Aggregate.isGroupedOn(sorted, new int[] { 0, 2 }));
+    assertFalse(Aggregate.isGroupedOn(sorted, new int[] { 0, 1, 2 }));
+    assertTrue(Aggregate.isGroupedOn(new Limit(3, 0, sorted), new int[] { 0 }));
+    // no grouping is left to the hash aggregator
+    assertFalse(Aggregate.isGroupedOn(sorted, new int[0]));
+  }
+
+  /**
+   * A scan of a B+ tree is grouped on its key field, and aggregated as it
+   * streams
+   */
+  @Test public void streamsOverBTreeScan() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 2000, 100, null, rows, 1);
+    TransactionId tid = new TransactionId();
+    Aggregate byKey = new Aggregate(new SeqScan(tid, f.getId(), "t"),
+        new int[] { 0 }, new int[] { 1 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    assertTrue(byKey.isStreaming());
+    Aggregate other = new Aggregate(new BTreeScan(tid, f.getId(), "t", null),
+        new int[] { 1 }, new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    assertFalse(other.isStreaming());
+
+    TreeMap<Integer, Integer> sums = new TreeMap<Integer, Integer>();
+    for (ArrayList<Integer> row : rows) {
+      Integer s = sums.get(row.get(1));
+      sums.put(row.get(1), (s == null ? 0 : s) + row.get(0));
+    }
+    int[] expected = new int[sums.size() * 2];
+    int i = 0;
+    for (Map.Entry<Integer, Integer> e : sums.entrySet()) {
+      expected[i++] = e.getKey();
+      expected[i++] = e.getValue();
+    }
+    byKey.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, expected), byKey);
+    byKey.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregatorTest.class);
+  }
+}
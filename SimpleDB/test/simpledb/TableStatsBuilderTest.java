@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsBuilderTest extends SimpleDbTestBase {
+
+  /**
+   * Statistics built by several workers over several tables are the same as
+   * those built one table at a time by a single thread
+   */
+  @Test public void parallelBuild() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile big = SystemTestUtil.createRandomHeapFile(3, 100000, 5000, null, rows, "c");
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 300, 40, null, null, "c");
+    HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, 40, null, null, "c");
+    assertTrue(big.numPages() > 2 * MorselScan.MORSEL_PAGES);
+    List<Integer> ids = Arrays.asList(big.getId(), small.getId(), empty.getId());
+
+    Map<Integer, TableStats> built = TableStatsBuilder.build(ids, 10, 4);
+    assertEquals(ids, new ArrayList<Integer>(built.keySet()));
+    for (HeapFile f : new HeapFile[] { big, small, empty }) {
+      TableStats serial = new TableStats(f.getId(), 10);
+      TableStats parallel = built.get(f.getId());
+      assertEquals(serial.totalTuples(), parallel.totalTuples());
+      assertEquals(serial.estimateScanCost(), parallel.estimateScanCost(), 0);
+      assertEquals(f.numPages() * 10.0, parallel.estimateScanCost(), 0);
+      for (int col = 0; col < f.getTupleDesc().numFields(); col++) {
+        for (int v = -10; v < 5100; v += 37) {
+          for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+              Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            assertEquals(serial.estimateSelectivity(col, op, new IntField(v)),
+                parallel.estimateSelectivity(col, op, new IntField(v)), 1e-12);
+          }
+        }
+      }
+    }
+    assertEquals(rows.size(), built.get(big.getId()).totalTuples());
+    assertEquals(0, built.get(empty.getId()).totalTuples());
+
+    // the histograms cover the values without knowing their range up front
+    int below = 0;
+    for (ArrayList<Integer> row : rows) {
+      if (row.get(1) < 1000)
+        below++;
+    }
+    assertEquals((double) below / rows.size(), built.get(big.getId())
+        .estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(1000)), 0.02);
+  }
+
+  /**
+   * Statistics built from a sample of the pages scale the number of tuples
+   * up to the whole table and keep the selectivities close
+   */
+  @Test public void sampledBuild() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200000, 1000, null, rows, "c");
+    List<Integer> ids = Collections.singletonList(f.getId());
+
+    TableStats s = TableStatsBuilder.build(ids, 10, 2,
+        TableStatsBuilder.Sample.ofFraction(0.1, new Random(42))).get(f.getId());
+    assertTrue(s.isSampled());
+    assertEquals((int) Math.ceil(f.numPages() * 0.1), s.getSampledPages());
+    assertEquals(f.numPages() * 10.0, s.estimateScanCost(), 0);
+    assertEquals(rows.size(), s.totalTuples(), rows.size() * 0.01);
+    int below = 0;
+    for (ArrayList<Integer> row : rows) {
+      if (row.get(0) < 300)
+        below++;
+    }
+    assertEquals((double) below / rows.size(),
+        s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(300)), 0.02);
+
+    // enough pages for the rows asked for
+    int perPage = f.numPages() > 0 ? (rows.size() + f.numPages() - 1) / f.numPages() : 1;
+    s = TableStatsBuilder.build(ids, 10, 1,
+        TableStatsBuilder.Sample.ofRows(5 * perPage)).get(f.getId());
+    assertEquals(5, s.getSampledPages());
+
+    // a sample of all the pages reads the whole table
+    s = TableStatsBuilder.build(ids, 10, 1,
+        TableStatsBuilder.Sample.ofFraction(1.0)).get(f.getId());
+    assertTrue(!s.isSampled());
+    assertEquals(rows.size(), s.totalTuples());
+  }
+
+  /**
+   * The analyze statement rebuilds the statistics of a table from a sample
+   */
+  @Test public void analyzeStatement() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 50000, 1000, null, null, "c");
+    String name = "analyze_t";
+    Database.getCatalog().addTable(f, name);
+    Parser p = new Parser();
+    assertTrue(p.handleAnalyzeStatement("ANALYZE " + name + " sample 20%;"));
+    TableStats s = TableStats.getTableStats(name);
+    assertEquals((int) Math.ceil(f.numPages() * 0.2), s.getSampledPages());
+
+    assertTrue(p.handleAnalyzeStatement("analyze " + name + ";"));
+    assertTrue(!TableStats.getTableStats(name).isSampled());
+    assertEquals(50000, TableStats.getTableStats(name).totalTuples());
+
+    assertTrue(!p.handleAnalyzeStatement("select * from " + name + ";"));
+    try {
+      p.handleAnalyzeStatement("analyze no_such_table sample 1%;");
+      assertTrue(false);
+    } catch (ParsingException expected) {
+    }
+    try {
+      p.handleAnalyzeStatement("analyze " + name + " sample 150%;");
+      assertTrue(false);
+    } catch (ParsingException expected) {
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TableStatsBuilderTest.class);
+  }
+}
@@ -0,0 +1,123 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import simpledb.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int MAX_VALUE = 64;
+
+    public void validateJoin(int outerRows, int innerRows, Predicate[] innerFilters)
+            throws IOException, DbException, TransactionAbortedException {
+        // outer relation is a heap file, inner relation a B+ tree keyed on
+        // column 0; the small value range produces duplicate keys on both sides
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, outerRows, MAX_VALUE, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, innerRows, MAX_VALUE, null, t2Tuples, 0);
+
+        // Generate the expected results
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (!t1.get(0).equals(t2.get(0)))
+                    continue;
+                boolean ok = true;
+                for (Predicate p : innerFilters)
+                    ok = ok && new IntField(t2.get(p.getField())).compare(
+                            p.getOp(), p.getOperand());
+                if (ok) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "t1");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(p, ss1, tid,
+                table2.getId(), "t2", innerFilters);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        // rewinding restarts both the outer scan and the probes
+        joinOp.rewind();
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSmallJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(10, 100, new Predicate[0]);
+    }
+
+    @Test public void testMultipleBatches()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(IndexNestedLoopJoin.BATCH_SIZE * 2 + 7, 2000, new Predicate[0]);
+    }
+
+    @Test public void testInnerFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(200, 2000, new Predicate[] {
+                new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE / 2)) });
+    }
+
+    @Test public void testInnerFields()
+            throws IOException, DbException, TransactionAbortedException {
+        // return inner fields 2 and 0; the join and filter fields index them
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                1, 300, MAX_VALUE, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(
+                3, 2000, MAX_VALUE, null, t2Tuples, 0);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0)) && t2.get(2) < MAX_VALUE / 2) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.add(t2.get(2));
+                    out.add(t2.get(0));
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, table1.getId(), "t1"), tid, table2.getId(), "t2",
+                new int[] { 2, 0 },
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)));
+        assertEquals(3, joinOp.getTupleDesc().numFields());
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonKeyField()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 10, null, null, 0);
+        TransactionId tid = new TransactionId();
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, table1.getId(), "t1"), tid, table2.getId(), "t2");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}